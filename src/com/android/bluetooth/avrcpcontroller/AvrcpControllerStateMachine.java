@@ -136,6 +136,8 @@ class AvrcpControllerStateMachine extends StateMachine {
     static final int ITEM_PAGE_SIZE = 20;
     static final int CMD_TIMEOUT_MILLIS = 10000;
     static final int ABS_VOL_TIMEOUT_MILLIS = 1000; //1s
+    // Tracks after the current one whose artwork is kept in memory
+    static final int PINNED_NEXT_TRACKS = 4;
 
     AvrcpControllerStateMachine(BluetoothDevice device, AvrcpControllerService service) {
         super(TAG);
@@ -369,6 +371,36 @@ class AvrcpControllerStateMachine extends StateMachine {
                 mCoverArtManager.removeImage(mDevice, uuid);
             }
         }
+        pinNowPlayingArtwork();
+    }
+
+    /**
+     * Keeps the images of the current track and the next few in the now playing list in memory,
+     * so that cover art storage only evicts images that are not about to be shown.
+     */
+    synchronized void pinNowPlayingArtwork() {
+        if (mCoverArtManager == null) return;
+        List<String> pinned = new ArrayList<>();
+        AvrcpItem currentTrack = getCurrentTrack();
+        if (currentTrack != null && currentTrack.getCoverArtUuid() != null) {
+            pinned.add(currentTrack.getCoverArtUuid());
+        }
+        List<BrowseTree.BrowseNode> nowPlaying = mBrowseTree.mNowPlayingNode.getChildren();
+        // The tracks after the current one, or the first ones if it is not in the list
+        int next = 0;
+        for (int i = 0; currentTrack != null && i < nowPlaying.size(); i++) {
+            if (nowPlaying.get(i).getBluetoothID() == currentTrack.getUid()) {
+                next = i + 1;
+                break;
+            }
+        }
+        for (int i = next; i < nowPlaying.size() && i < next + PINNED_NEXT_TRACKS; i++) {
+            String uuid = nowPlaying.get(i).getCoverArtUuid();
+            if (uuid != null) {
+                pinned.add(uuid);
+            }
+        }
+        mCoverArtManager.setPinnedImages(mDevice, pinned);
     }
 
     private void notifyChanged(BrowseTree.BrowseNode node) {
@@ -508,6 +540,8 @@ class AvrcpControllerStateMachine extends StateMachine {
                     if (previousTrack != null) {
                         removeUnusedArtwork(previousTrack.getCoverArtUuid());
                         removeUnusedArtworkFromBrowseTree();
+                    } else {
+                        pinNowPlayingArtwork();
                     }
                     return true;
 
@@ -771,6 +805,9 @@ class AvrcpControllerStateMachine extends StateMachine {
                     int newSize = mBrowseNode.addChildren(folderList);
                     logD("Added " + newSize + " items to the browse tree");
                     notifyChanged(mBrowseNode);
+                    if (mBrowseNode.equals(mBrowseTree.mNowPlayingNode)) {
+                        pinNowPlayingArtwork();
+                    }
 
                     if (mBrowseNode.getChildrenCount() >= endIndicator || folderList.size() == 0
                             || mAbort) {
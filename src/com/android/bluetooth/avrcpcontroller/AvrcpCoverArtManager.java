@@ -23,6 +23,7 @@ import android.net.Uri;
 import android.os.SystemProperties;
 import android.util.Log;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
@@ -193,6 +194,7 @@ public class AvrcpCoverArtManager {
         for (BluetoothDevice device : mClients.keySet()) {
             disconnect(device);
         }
+        mCoverArtStorage.cleanup();
     }
 
     /**
@@ -328,6 +330,17 @@ public class AvrcpCoverArtManager {
         mCoverArtStorage.removeImage(device, imageUuid);
     }
 
+    /**
+     * Keep the given downloaded images in memory, such as those of the current track and the next
+     * ones, replacing the images kept before
+     *
+     * @param device The remote Bluetooth device associated with the images
+     * @param imageUuids The UUIDs associated with the images you wish to keep, most wanted first
+     */
+    public void setPinnedImages(BluetoothDevice device, List<String> imageUuids) {
+        mCoverArtStorage.setPinnedImages(device, imageUuids);
+    }
+
     /**
      * Get a device's BIP client if it exists
      *
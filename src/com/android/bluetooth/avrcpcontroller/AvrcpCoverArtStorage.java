@@ -19,35 +19,147 @@ package com.android.bluetooth.avrcpcontroller;
 import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.util.Log;
+import android.util.LruCache;
 
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * An abstraction of the cover art image storage mechanism.
+ *
+ * Images are kept decoded in memory, up to a bounded number of bytes. When that is exceeded, the
+ * least recently used images are compressed to a bounded cache on disk, and decoded again the
+ * next time they are asked for. The compression runs on a thread of its own, and an image is
+ * served from memory until it is on disk. Up to {@link #MAX_PINNED_IMAGES} images per device,
+ * pinned with {@link #setPinnedImages} like the artwork of the current track and the next ones,
+ * are never evicted from memory.
  */
 public class AvrcpCoverArtStorage {
     private static final String TAG = "AvrcpCoverArtStorage";
     private static final boolean DBG = Log.isLoggable(TAG, Log.DEBUG);
 
+    // Room for about fifty 200x200 thumbnails, or a handful of native images
+    private static final int MAX_MEMORY_BYTES = 8 * 1024 * 1024;
+    private static final long MAX_DISK_BYTES = 32 * 1024 * 1024;
+    private static final String DISK_DIRECTORY = "avrcp_cover_art";
+    @VisibleForTesting
+    static final int MAX_PINNED_IMAGES = 8;
+
     private final Context mContext;
 
-    /* Each device gets its own place to land images. This makes it easier to clean things up on a
-     * per device basis. This also allows us to be confident that acting on one device will not
+    /* Images are stored per device and UUID. Keeping the device in the key makes it easy to clean
+     * things up on a per device basis, and lets us be confident that acting on one device will not
      * impact the images of another.
-     *
-     * The "landing place" is simply a map that will direct a given UUID to the proper bitmap image
      */
-    private final Map<BluetoothDevice, Map<String, Bitmap>> mDeviceImages =
-            new ConcurrentHashMap<>(1);
+    private static final class ImageKey {
+        final BluetoothDevice mDevice;
+        final String mUuid;
+
+        ImageKey(BluetoothDevice device, String uuid) {
+            mDevice = device;
+            mUuid = uuid;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ImageKey)) return false;
+            ImageKey other = (ImageKey) o;
+            return mDevice.equals(other.mDevice) && mUuid.equals(other.mUuid);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mDevice, mUuid);
+        }
+    }
+
+    // Images not pinned, evicted to disk in least recently used order
+    private final LruCache<ImageKey, Bitmap> mMemoryImages;
+    // The keys of mMemoryImages, to look them up without making them recently used
+    private final Set<ImageKey> mMemoryKeys = new HashSet<>();
+    // Images evicted from memory and not yet written to disk
+    private final Map<ImageKey, Bitmap> mPendingWrites = new HashMap<>();
+    private final Map<ImageKey, Bitmap> mPinnedImages = new HashMap<>();
+    private final Map<BluetoothDevice, Set<String>> mPinnedUuids = new HashMap<>();
+
+    // Compressed images on disk and their sizes, in least recently used order
+    private final LinkedHashMap<ImageKey, Long> mDiskImages =
+            new LinkedHashMap<ImageKey, Long>(16, 0.75f, true);
+    private final File mDiskDirectory;
+    private final long mMaxDiskBytes;
+    private long mDiskBytes;
+    private final HandlerThread mDiskThread;
+    private final Handler mDiskHandler;
+
+    private long mMemoryHits;
+    private long mDiskHits;
+    private long mMisses;
+    private long mEvictions;
 
     /**
      * Create and initialize this Cover Art storage interface
      */
     public AvrcpCoverArtStorage(Context context) {
+        this(context, MAX_MEMORY_BYTES, MAX_DISK_BYTES);
+    }
+
+    @VisibleForTesting
+    AvrcpCoverArtStorage(Context context, int maxMemoryBytes, long maxDiskBytes) {
         mContext = context;
+        mMaxDiskBytes = maxDiskBytes;
+        mDiskDirectory = new File(context.getCacheDir(), DISK_DIRECTORY);
+        mMemoryImages = new LruCache<ImageKey, Bitmap>(maxMemoryBytes) {
+            @Override
+            protected int sizeOf(ImageKey key, Bitmap image) {
+                return image.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, ImageKey key, Bitmap oldImage,
+                    Bitmap newImage) {
+                // Called on the thread of the put or remove, which holds the storage lock
+                if (newImage == null) {
+                    mMemoryKeys.remove(key);
+                }
+                if (evicted) {
+                    mEvictions++;
+                    scheduleDiskWrite(key, oldImage);
+                }
+            }
+        };
+        mDiskThread = new HandlerThread(TAG);
+        mDiskThread.start();
+        mDiskHandler = new Handler(mDiskThread.getLooper());
+    }
+
+    /**
+     * Remove all images and stop writing images to disk
+     *
+     * Please call when you've committed to shutting down the service.
+     */
+    public void cleanup() {
+        clear();
+        mDiskThread.quitSafely();
     }
 
     /**
@@ -56,11 +168,11 @@ public class AvrcpCoverArtStorage {
      * @param device - The device the images was downloaded from
      * @param imageUuid - The UUID that identifies the image
      */
-    public boolean doesImageExist(BluetoothDevice device, String imageUuid) {
+    public synchronized boolean doesImageExist(BluetoothDevice device, String imageUuid) {
         if (device == null || imageUuid == null || "".equals(imageUuid)) return false;
-        Map<String, Bitmap> images = mDeviceImages.get(device);
-        if (images == null) return false;
-        return images.containsKey(imageUuid);
+        ImageKey key = new ImageKey(device, imageUuid);
+        return mPinnedImages.containsKey(key) || mMemoryKeys.contains(key)
+                || mPendingWrites.containsKey(key) || mDiskImages.containsKey(key);
     }
 
     /**
@@ -72,9 +184,51 @@ public class AvrcpCoverArtStorage {
      */
     public Bitmap getImage(BluetoothDevice device, String imageUuid) {
         if (device == null || imageUuid == null || "".equals(imageUuid)) return null;
-        Map<String, Bitmap> images = mDeviceImages.get(device);
-        if (images == null) return null;
-        return images.get(imageUuid);
+        ImageKey key = new ImageKey(device, imageUuid);
+        File file;
+        synchronized (this) {
+            Bitmap image = getFromMemory(key);
+            if (image != null) {
+                mMemoryHits++;
+                return image;
+            }
+            if (mDiskImages.get(key) == null) {
+                mMisses++;
+                return null;
+            }
+            file = getDiskFile(key);
+        }
+
+        // Decoded without the storage lock, like the disk writes
+        Bitmap image = BitmapFactory.decodeFile(file.getPath());
+
+        synchronized (this) {
+            // Another caller may have read it meanwhile, or it was replaced
+            Bitmap current = getFromMemory(key);
+            if (current != null) {
+                mMemoryHits++;
+                return current;
+            }
+            if (!mDiskImages.containsKey(key)) {
+                // Removed while it was read
+                mMisses++;
+                return null;
+            }
+            if (image == null) {
+                error("Failed to read image '" + key.mUuid + "' from disk");
+                deleteFromDisk(key);
+                mMisses++;
+                return null;
+            }
+            mDiskHits++;
+            // The copy on disk stays, so evicting the image again does not write it
+            if (isPinned(key)) {
+                mPinnedImages.put(key, image);
+            } else {
+                putInMemory(key, image);
+            }
+            return image;
+        }
     }
 
     /**
@@ -91,15 +245,16 @@ public class AvrcpCoverArtStorage {
             return null;
         }
 
-        // A Thread safe way of creating a new UUID->Image set for a device. The putIfAbsent()
-        // function will return the value of the key if it wasn't absent. If it returns null, then
-        // there was no value there and we are to assume the reference we passed in was added.
-        Map<String, Bitmap> newImageSet = new ConcurrentHashMap<String, Bitmap>(1);
-        Map<String, Bitmap> images = mDeviceImages.putIfAbsent(device, newImageSet);
-        if (images == null) {
-            newImageSet.put(imageUuid, image);
-        } else {
-            images.put(imageUuid, image);
+        synchronized (this) {
+            ImageKey key = new ImageKey(device, imageUuid);
+            // Any copy on disk is of the image being replaced
+            mPendingWrites.remove(key);
+            deleteFromDisk(key);
+            if (isPinned(key)) {
+                mPinnedImages.put(key, image);
+            } else {
+                putInMemory(key, image);
+            }
         }
 
         Uri uri = AvrcpCoverArtProvider.getImageUri(device, imageUuid);
@@ -108,25 +263,67 @@ public class AvrcpCoverArtStorage {
         return uri;
     }
 
+    /**
+     * Set the images of a device that must stay in memory, replacing those set before
+     *
+     * Images that are pinned and not yet in storage stay in memory once added. Only the first
+     * {@link #MAX_PINNED_IMAGES} images are pinned.
+     *
+     * @param device - The device the images belong to
+     * @param imageUuids - The UUIDs that identify the images, most wanted first, or null to pin
+     *                     none
+     */
+    public synchronized void setPinnedImages(BluetoothDevice device, List<String> imageUuids) {
+        if (device == null) return;
+        Set<String> pinned = new LinkedHashSet<>();
+        if (imageUuids != null) {
+            for (String uuid : imageUuids) {
+                if (pinned.size() == MAX_PINNED_IMAGES) break;
+                if (uuid != null) pinned.add(uuid);
+            }
+        }
+        Set<String> previous = mPinnedUuids.remove(device);
+        if (!pinned.isEmpty()) {
+            mPinnedUuids.put(device, pinned);
+        }
+
+        // Pin first, so that the images unpinned below cannot evict the newly pinned ones
+        for (String uuid : pinned) {
+            ImageKey key = new ImageKey(device, uuid);
+            Bitmap image = mMemoryImages.remove(key);
+            if (image == null) {
+                image = mPendingWrites.remove(key);
+            }
+            if (image != null) {
+                mPinnedImages.put(key, image);
+            }
+        }
+        if (previous == null) return;
+        for (String uuid : previous) {
+            if (pinned.contains(uuid)) continue;
+            ImageKey key = new ImageKey(device, uuid);
+            Bitmap image = mPinnedImages.remove(key);
+            if (image != null) {
+                putInMemory(key, image);
+            }
+        }
+    }
+
     /**
      * Remove a specific image
      *
      * @param device The device the image belongs to
      * @param imageUuid - The UUID that identifies the image
      */
-    public void removeImage(BluetoothDevice device, String imageUuid) {
+    public synchronized void removeImage(BluetoothDevice device, String imageUuid) {
         debug("Removing image '" + imageUuid + "' from device " + device);
         if (device == null || imageUuid == null || "".equals(imageUuid)) return;
 
-        Map<String, Bitmap> images = mDeviceImages.get(device);
-        if (images == null) {
-            return;
-        }
-
-        images.remove(imageUuid);
-        if (images.size() == 0) {
-            mDeviceImages.remove(device);
-        }
+        ImageKey key = new ImageKey(device, imageUuid);
+        mPinnedImages.remove(key);
+        mMemoryImages.remove(key);
+        mPendingWrites.remove(key);
+        deleteFromDisk(key);
 
         debug("Image '" + imageUuid + "' removed for device '" + device.getAddress() + "'");
     }
@@ -136,34 +333,243 @@ public class AvrcpCoverArtStorage {
      *
      * @param device The device you wish to have images removed for
      */
-    public void removeImagesForDevice(BluetoothDevice device) {
+    public synchronized void removeImagesForDevice(BluetoothDevice device) {
         if (device == null) return;
         debug("Remove cover art for device " + device.getAddress());
-        mDeviceImages.remove(device);
+        mPinnedUuids.remove(device);
+        Iterator<ImageKey> pinned = mPinnedImages.keySet().iterator();
+        while (pinned.hasNext()) {
+            if (pinned.next().mDevice.equals(device)) {
+                pinned.remove();
+            }
+        }
+        for (ImageKey key : mMemoryImages.snapshot().keySet()) {
+            if (key.mDevice.equals(device)) {
+                mMemoryImages.remove(key);
+            }
+        }
+        Iterator<ImageKey> pending = mPendingWrites.keySet().iterator();
+        while (pending.hasNext()) {
+            if (pending.next().mDevice.equals(device)) {
+                pending.remove();
+            }
+        }
+        for (ImageKey key : new ArrayList<>(mDiskImages.keySet())) {
+            if (key.mDevice.equals(device)) {
+                deleteFromDisk(key);
+            }
+        }
+        getDeviceDirectory(device).delete();
     }
 
     /**
      * Clear the entirety of storage
      */
-    public void clear() {
+    public synchronized void clear() {
         debug("Clearing all images");
-        mDeviceImages.clear();
+        mPinnedUuids.clear();
+        mPinnedImages.clear();
+        // Removed one by one, as evicting them would write them to disk
+        for (ImageKey key : mMemoryImages.snapshot().keySet()) {
+            mMemoryImages.remove(key);
+        }
+        mPendingWrites.clear();
+        mDiskImages.clear();
+        mDiskBytes = 0;
+        // Also removes what an earlier run of the service left behind
+        deleteRecursively(mDiskDirectory);
+    }
+
+    private boolean isPinned(ImageKey key) {
+        Set<String> pinned = mPinnedUuids.get(key.mDevice);
+        return pinned != null && pinned.contains(key.mUuid);
+    }
+
+    private File getDeviceDirectory(BluetoothDevice device) {
+        return new File(mDiskDirectory, device.getAddress().replace(":", ""));
+    }
+
+    private File getDiskFile(ImageKey key) {
+        // UUIDs are generated per session, but do not trust them to be safe file names
+        return new File(getDeviceDirectory(key.mDevice), Uri.encode(key.mUuid) + ".png");
+    }
+
+    /**
+     * Returns the image if it is decoded in memory, taking it back if it waits to be written
+     */
+    private Bitmap getFromMemory(ImageKey key) {
+        Bitmap image = mPinnedImages.get(key);
+        if (image == null) {
+            image = mMemoryImages.get(key);
+        }
+        if (image == null) {
+            // Taking it back from the disk thread cancels the write
+            image = mPendingWrites.remove(key);
+            if (image != null && isPinned(key)) {
+                mPinnedImages.put(key, image);
+            } else if (image != null) {
+                putInMemory(key, image);
+            }
+        }
+        return image;
+    }
+
+    private void putInMemory(ImageKey key, Bitmap image) {
+        // Added first, as the image is removed again if it alone is over the limit
+        mMemoryKeys.add(key);
+        mMemoryImages.put(key, image);
+    }
+
+    /**
+     * Hands an image evicted from memory to the disk thread, unless it is already on disk
+     */
+    private void scheduleDiskWrite(final ImageKey key, final Bitmap image) {
+        if (mMaxDiskBytes <= 0 || mDiskImages.containsKey(key)) return;
+        mPendingWrites.put(key, image);
+        mDiskHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                writeToDisk(key, image);
+            }
+        });
+    }
+
+    /**
+     * Compresses an image to disk, on the disk thread and without the storage lock, unless it
+     * was taken back or removed since it was evicted
+     */
+    private void writeToDisk(ImageKey key, Bitmap image) {
+        synchronized (this) {
+            if (mPendingWrites.get(key) != image) return;
+        }
+        File file = getDiskFile(key);
+        file.getParentFile().mkdirs();
+        boolean written;
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            // Lossless, so that an image read back is the same as the one stored
+            written = image.compress(Bitmap.CompressFormat.PNG, 100, out);
+        } catch (IOException e) {
+            error("Failed to write image '" + key.mUuid + "' to disk: " + e);
+            written = false;
+        }
+        long size = file.length();
+
+        synchronized (this) {
+            if (mPendingWrites.get(key) != image) {
+                file.delete();
+                return;
+            }
+            mPendingWrites.remove(key);
+            if (!written || size > mMaxDiskBytes) {
+                file.delete();
+                return;
+            }
+            Long replacedSize = mDiskImages.put(key, size);
+            mDiskBytes += size - (replacedSize != null ? replacedSize : 0);
+            Iterator<Map.Entry<ImageKey, Long>> it = mDiskImages.entrySet().iterator();
+            while (mDiskBytes > mMaxDiskBytes && it.hasNext()) {
+                Map.Entry<ImageKey, Long> eldest = it.next();
+                it.remove();
+                mDiskBytes -= eldest.getValue();
+                getDiskFile(eldest.getKey()).delete();
+            }
+        }
+        debug("Image '" + key.mUuid + "' evicted to disk, " + size + " bytes");
+    }
+
+    /**
+     * Waits until the images evicted so far are written to disk
+     */
+    @VisibleForTesting
+    void waitForDiskWrites() throws InterruptedException {
+        final CountDownLatch written = new CountDownLatch(1);
+        mDiskHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                written.countDown();
+            }
+        });
+        written.await();
+    }
+
+    @VisibleForTesting
+    Looper getDiskLooper() {
+        return mDiskThread.getLooper();
+    }
+
+    private void deleteFromDisk(ImageKey key) {
+        Long size = mDiskImages.remove(key);
+        if (size == null) return;
+        mDiskBytes -= size;
+        getDiskFile(key).delete();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
     }
 
     @Override
-    public String toString() {
+    public synchronized String toString() {
         String s = "CoverArtStorage:\n";
-        for (BluetoothDevice device : mDeviceImages.keySet()) {
-            Map<String, Bitmap> images = mDeviceImages.get(device);
+        Map<ImageKey, Bitmap> memoryImages = mMemoryImages.snapshot();
+        s += "    Memory: " + (mPinnedImages.size() + memoryImages.size()) + " images ("
+                + mPinnedImages.size() + " pinned), " + getPinnedBytes() / 1024 + " KB pinned + "
+                + mMemoryImages.size() / 1024 + "/" + mMemoryImages.maxSize() / 1024 + " KB\n";
+        s += "    Disk: " + mDiskImages.size() + " images, " + mDiskBytes / 1024 + "/"
+                + mMaxDiskBytes / 1024 + " KB, " + mPendingWrites.size() + " pending\n";
+        s += "    Hits: " + mMemoryHits + " memory, " + mDiskHits + " disk, misses: " + mMisses
+                + ", evictions: " + mEvictions + "\n";
+
+        Map<BluetoothDevice, ArrayList<String>> deviceImages = new LinkedHashMap<>();
+        for (ImageKey key : mPinnedImages.keySet()) {
+            addImageLine(deviceImages, key, " (pinned)");
+        }
+        for (ImageKey key : memoryImages.keySet()) {
+            addImageLine(deviceImages, key, "");
+        }
+        for (ImageKey key : mPendingWrites.keySet()) {
+            addImageLine(deviceImages, key, " (writing)");
+        }
+        for (ImageKey key : mDiskImages.keySet()) {
+            if (!mPinnedImages.containsKey(key) && !memoryImages.containsKey(key)) {
+                addImageLine(deviceImages, key, " (disk)");
+            }
+        }
+        for (BluetoothDevice device : deviceImages.keySet()) {
+            ArrayList<String> images = deviceImages.get(device);
             s += "  " + device.getAddress() + " (" + images.size() + "):";
-            for (String uuid : images.keySet()) {
-                s += "\n    " + uuid;
+            for (String image : images) {
+                s += "\n    " + image;
             }
             s += "\n";
         }
         return s;
     }
 
+    private static void addImageLine(Map<BluetoothDevice, ArrayList<String>> deviceImages,
+            ImageKey key, String location) {
+        ArrayList<String> images = deviceImages.get(key.mDevice);
+        if (images == null) {
+            images = new ArrayList<>();
+            deviceImages.put(key.mDevice, images);
+        }
+        images.add(key.mUuid + location);
+    }
+
+    private long getPinnedBytes() {
+        long bytes = 0;
+        for (Bitmap image : mPinnedImages.values()) {
+            bytes += image.getAllocationByteCount();
+        }
+        return bytes;
+    }
+
     private void debug(String msg) {
         if (DBG) {
             Log.d(TAG, msg);
@@ -46,11 +46,14 @@ import com.google.common.collect.EvictingQueue;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.TreeSet;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
@@ -70,12 +73,36 @@ public class DatabaseManager {
     @VisibleForTesting
     final Map<String, Metadata> mMetadataCache = new HashMap<>();
     private final Semaphore mSemaphore = new Semaphore(1);
+
+    // Most recently connected first, ties broken by address.
+    private static final Comparator<Metadata> RECENCY_ORDER = (o1, o2) -> {
+        int result = Long.compare(o2.last_active_time, o1.last_active_time);
+        return result != 0 ? result : o1.getAddress().compareTo(o2.getAddress());
+    };
+    // Cached device metadata in RECENCY_ORDER. Guarded by mMetadataCache.
+    private final TreeSet<Metadata> mRecencyIndex = new TreeSet<>(RECENCY_ORDER);
+    // Written with mMetadataCache held, read without it.
+    private volatile Metadata mActiveA2dpMetadata = null;
+    // Result of getMostRecentlyConnectedDevices(), null once the order changed.
+    private volatile List<BluetoothDevice> mMostRecentlyConnectedDevices = null;
     private static final int METADATA_CHANGED_LOG_MAX_SIZE = 20;
     private final EvictingQueue<String> mMetadataChangedLog;
 
+    // Metadata changed since the last flush, by address. Guarded by itself.
+    private final Map<String, Metadata> mPendingWrites = new HashMap<>();
+    @VisibleForTesting
+    long mWritesRequested = 0;
+    @VisibleForTesting
+    long mWritesExecuted = 0;
+    @VisibleForTesting
+    long mWriteTransactions = 0;
+    @VisibleForTesting
+    long mWriteBehindDelayMillis = WRITE_BEHIND_DELAY;
+
     private static final int LOAD_DATABASE_TIMEOUT = 500; // milliseconds
+    private static final int WRITE_BEHIND_DELAY = 100; // milliseconds
     private static final int MSG_LOAD_DATABASE = 0;
-    private static final int MSG_UPDATE_DATABASE = 1;
+    private static final int MSG_FLUSH_DATABASE = 1;
     private static final int MSG_DELETE_DATABASE = 2;
     private static final int MSG_CLEAR_DATABASE = 100;
     private static final String LOCAL_STORAGE = "LocalStorage";
@@ -136,14 +163,12 @@ public class DatabaseManager {
                         }
                         compactLastConnectionTime(list);
                         cacheMetadata(list);
+                        flushDatabase();
                     }
                     break;
                 }
-                case MSG_UPDATE_DATABASE: {
-                    Metadata data = (Metadata) msg.obj;
-                    synchronized (mDatabase) {
-                        mDatabase.insert(data);
-                    }
+                case MSG_FLUSH_DATABASE: {
+                    flushDatabase();
                     break;
                 }
                 case MSG_DELETE_DATABASE: {
@@ -206,7 +231,7 @@ public class DatabaseManager {
             } else {
                 Metadata metadata = mMetadataCache.get(address);
                 if (metadata != null) {
-                    mMetadataCache.remove(address);
+                    removeCachedMetadata(address);
                     deleteDatabase(metadata);
                 }
             }
@@ -564,11 +589,15 @@ public class DatabaseManager {
             }
             // Updates last_active_time to the current counter value and increments the counter
             Metadata metadata = mMetadataCache.get(address);
+            mRecencyIndex.remove(metadata);
             metadata.last_active_time = MetadataDatabase.sCurrentConnectionNumber++;
+            mRecencyIndex.add(metadata);
+            mMostRecentlyConnectedDevices = null;
 
             // Only update is_active_a2dp_device if an a2dp device is connected
             if (isA2dpDevice) {
                 metadata.is_active_a2dp_device = true;
+                mActiveA2dpMetadata = metadata;
             }
 
             Log.d(TAG, "Updating last connected time for device: " + device + " to "
@@ -598,6 +627,9 @@ public class DatabaseManager {
             Metadata metadata = mMetadataCache.get(address);
             if (metadata.is_active_a2dp_device) {
                 metadata.is_active_a2dp_device = false;
+                if (mActiveA2dpMetadata == metadata) {
+                    mActiveA2dpMetadata = null;
+                }
                 Log.d(TAG, "setDisconnection: Updating is_active_device to false for device: "
                         + device);
                 updateDatabase(metadata);
@@ -611,13 +643,12 @@ public class DatabaseManager {
     private void resetActiveA2dpDevice() {
         synchronized (mMetadataCache) {
             Log.d(TAG, "resetActiveA2dpDevice()");
-            for (Map.Entry<String, Metadata> entry : mMetadataCache.entrySet()) {
-                Metadata metadata = entry.getValue();
-                if (metadata.is_active_a2dp_device) {
-                    Log.d(TAG, "resetActiveA2dpDevice");
-                    metadata.is_active_a2dp_device = false;
-                    updateDatabase(metadata);
-                }
+            Metadata metadata = mActiveA2dpMetadata;
+            if (metadata != null) {
+                Log.d(TAG, "resetActiveA2dpDevice");
+                metadata.is_active_a2dp_device = false;
+                mActiveA2dpMetadata = null;
+                updateDatabase(metadata);
             }
         }
     }
@@ -630,21 +661,25 @@ public class DatabaseManager {
      * in order of most recently connected
      */
     public List<BluetoothDevice> getMostRecentlyConnectedDevices() {
-        List<BluetoothDevice> mostRecentlyConnectedDevices = new ArrayList<>();
-        synchronized (mMetadataCache) {
-            List<Metadata> sortedMetadata = new ArrayList<>(mMetadataCache.values());
-            sortedMetadata.sort((o1, o2) -> Long.compare(o2.last_active_time, o1.last_active_time));
-            for (Metadata metadata : sortedMetadata) {
-                try {
-                    mostRecentlyConnectedDevices.add(BluetoothAdapter.getDefaultAdapter()
-                            .getRemoteDevice(metadata.getAddress()));
-                } catch (IllegalArgumentException ex) {
-                    Log.d(TAG, "getBondedDevicesOrdered: Invalid address for "
-                            + "device " + metadata.getAddress());
+        List<BluetoothDevice> mostRecentlyConnectedDevices = mMostRecentlyConnectedDevices;
+        if (mostRecentlyConnectedDevices == null) {
+            synchronized (mMetadataCache) {
+                mostRecentlyConnectedDevices = new ArrayList<>(mRecencyIndex.size());
+                for (Metadata metadata : mRecencyIndex) {
+                    try {
+                        mostRecentlyConnectedDevices.add(BluetoothAdapter.getDefaultAdapter()
+                                .getRemoteDevice(metadata.getAddress()));
+                    } catch (IllegalArgumentException ex) {
+                        Log.d(TAG, "getBondedDevicesOrdered: Invalid address for "
+                                + "device " + metadata.getAddress());
+                    }
                 }
+                mostRecentlyConnectedDevices =
+                        Collections.unmodifiableList(mostRecentlyConnectedDevices);
+                mMostRecentlyConnectedDevices = mostRecentlyConnectedDevices;
             }
         }
-        return mostRecentlyConnectedDevices;
+        return new ArrayList<>(mostRecentlyConnectedDevices);
     }
 
     /**
@@ -653,19 +688,15 @@ public class DatabaseManager {
      * @return the most recently active a2dp device or null if the last a2dp device was null
      */
     public BluetoothDevice getMostRecentlyConnectedA2dpDevice() {
-        synchronized (mMetadataCache) {
-            for (Map.Entry<String, Metadata> entry : mMetadataCache.entrySet()) {
-                Metadata metadata = entry.getValue();
-                if (metadata.is_active_a2dp_device) {
-                    try {
-                        return BluetoothAdapter.getDefaultAdapter().getRemoteDevice(
-                                metadata.getAddress());
-                    } catch (IllegalArgumentException ex) {
-                        Log.d(TAG, "getMostRecentlyConnectedA2dpDevice: Invalid address for "
-                                + "device " + metadata.getAddress());
-                    }
-                }
-            }
+        Metadata metadata = mActiveA2dpMetadata;
+        if (metadata == null) {
+            return null;
+        }
+        try {
+            return BluetoothAdapter.getDefaultAdapter().getRemoteDevice(metadata.getAddress());
+        } catch (IllegalArgumentException ex) {
+            Log.d(TAG, "getMostRecentlyConnectedA2dpDevice: Invalid address for "
+                    + "device " + metadata.getAddress());
         }
         return null;
     }
@@ -724,6 +755,10 @@ public class DatabaseManager {
 
         mDatabase = database;
 
+        synchronized (mPendingWrites) {
+            // Writes requested after the last cleanup() refer to metadata that is reloaded below.
+            mPendingWrites.clear();
+        }
         mHandlerThread = new HandlerThread("BluetoothDatabaseManager");
         mHandlerThread.start();
         mHandler = new DatabaseHandler(mHandlerThread.getLooper());
@@ -747,6 +782,10 @@ public class DatabaseManager {
      */
     public void factoryReset() {
         Log.w(TAG, "factoryReset");
+        synchronized (mPendingWrites) {
+            mPendingWrites.clear();
+            mHandler.removeMessages(MSG_FLUSH_DATABASE);
+        }
         Message message = mHandler.obtainMessage(MSG_CLEAR_DATABASE);
         mHandler.sendMessage(message);
     }
@@ -758,20 +797,82 @@ public class DatabaseManager {
         removeUnusedMetadata();
         mAdapterService.unregisterReceiver(mReceiver);
         if (mHandlerThread != null) {
-            mHandlerThread.quit();
+            // Write out whatever is still pending on the handler thread, after the database
+            // operations already queued, and let the thread exit once it is done. Adapter
+            // shutdown does not wait for the disk.
+            mHandler.removeMessages(MSG_FLUSH_DATABASE);
+            mHandler.sendEmptyMessage(MSG_FLUSH_DATABASE);
+            mHandlerThread.quitSafely();
             mHandlerThread = null;
         }
-        mMetadataCache.clear();
+        clearCachedMetadata();
     }
 
     void createMetadata(String address, boolean isActiveA2dpDevice) {
         Metadata data = new Metadata(address);
         data.is_active_a2dp_device = isActiveA2dpDevice;
-        mMetadataCache.put(address, data);
+        putCachedMetadata(address, data);
         updateDatabase(data);
         logMetadataChange(address, "Metadata created");
     }
 
+    /**
+     * Adds or replaces the cached metadata of an address and keeps the recency index and the
+     * active A2DP device in sync with it.
+     */
+    @VisibleForTesting
+    void putCachedMetadata(String address, Metadata data) {
+        synchronized (mMetadataCache) {
+            removeCachedMetadata(address);
+            mMetadataCache.put(address, data);
+            if (address.equals(LOCAL_STORAGE)) {
+                return;
+            }
+            mRecencyIndex.add(data);
+            mMostRecentlyConnectedDevices = null;
+            if (data.is_active_a2dp_device) {
+                Metadata active = mActiveA2dpMetadata;
+                if (active != null && RECENCY_ORDER.compare(active, data) < 0) {
+                    // Only one device can be the active A2DP device, keep the most recent.
+                    data.is_active_a2dp_device = false;
+                    updateDatabase(data);
+                } else {
+                    if (active != null) {
+                        active.is_active_a2dp_device = false;
+                        updateDatabase(active);
+                    }
+                    mActiveA2dpMetadata = data;
+                }
+            }
+        }
+    }
+
+    @VisibleForTesting
+    void removeCachedMetadata(String address) {
+        synchronized (mMetadataCache) {
+            Metadata data = mMetadataCache.remove(address);
+            if (data == null) {
+                return;
+            }
+            if (mRecencyIndex.remove(data)) {
+                mMostRecentlyConnectedDevices = null;
+            }
+            if (mActiveA2dpMetadata == data) {
+                mActiveA2dpMetadata = null;
+            }
+        }
+    }
+
+    @VisibleForTesting
+    void clearCachedMetadata() {
+        synchronized (mMetadataCache) {
+            mMetadataCache.clear();
+            mRecencyIndex.clear();
+            mActiveA2dpMetadata = null;
+            mMostRecentlyConnectedDevices = null;
+        }
+    }
+
     @VisibleForTesting
     void removeUnusedMetadata() {
         BluetoothDevice[] bondedDevices = mAdapterService.getBondedDevices();
@@ -806,7 +907,7 @@ public class DatabaseManager {
             for (Metadata data : list) {
                 String address = data.getAddress();
                 Log.v(TAG, "cacheMetadata: found device " + address);
-                mMetadataCache.put(address, data);
+                putCachedMetadata(address, data);
             }
             Log.i(TAG, "cacheMetadata: Database is ready");
         }
@@ -891,14 +992,14 @@ public class DatabaseManager {
                     hearingaidConnectionPolicy);
             data.a2dpSupportsOptionalCodecs = a2dpSupportsOptionalCodec;
             data.a2dpOptionalCodecsEnabled = a2dpOptionalCodecEnabled;
-            mMetadataCache.put(address, data);
+            putCachedMetadata(address, data);
             updateDatabase(data);
         }
 
         // Mark database migrated from Settings Global
         Metadata localData = new Metadata(LOCAL_STORAGE);
         localData.migrated = true;
-        mMetadataCache.put(LOCAL_STORAGE, localData);
+        putCachedMetadata(LOCAL_STORAGE, localData);
         updateDatabase(localData);
 
         // Reload database after migration is completed
@@ -1011,9 +1112,37 @@ public class DatabaseManager {
             return;
         }
         Log.d(TAG, "updateDatabase " + data.getAddress());
-        Message message = mHandler.obtainMessage(MSG_UPDATE_DATABASE);
-        message.obj = data;
-        mHandler.sendMessage(message);
+        synchronized (mPendingWrites) {
+            mWritesRequested++;
+            boolean scheduled = !mPendingWrites.isEmpty();
+            mPendingWrites.put(data.getAddress(), data);
+            if (!scheduled && !mHandler.sendEmptyMessageDelayed(MSG_FLUSH_DATABASE,
+                    mWriteBehindDelayMillis)) {
+                // The handler thread was stopped by cleanup(), nothing would ever flush this.
+                Log.w(TAG, "updateDatabase: database thread stopped, dropping write");
+                mPendingWrites.remove(data.getAddress());
+            }
+        }
+    }
+
+    /**
+     * Writes all pending metadata to the database in a single transaction.
+     */
+    private void flushDatabase() {
+        Metadata[] pending;
+        synchronized (mPendingWrites) {
+            if (mPendingWrites.isEmpty()) {
+                return;
+            }
+            pending = mPendingWrites.values().toArray(new Metadata[0]);
+            mPendingWrites.clear();
+            mWritesExecuted += pending.length;
+            mWriteTransactions++;
+        }
+        Log.d(TAG, "flushDatabase: writing " + pending.length + " metadata");
+        synchronized (mDatabase) {
+            mDatabase.insert(pending);
+        }
     }
 
     @VisibleForTesting
@@ -1024,6 +1153,9 @@ public class DatabaseManager {
             return;
         }
         logMetadataChange(address, "Metadata deleted");
+        synchronized (mPendingWrites) {
+            mPendingWrites.remove(address);
+        }
         Message message = mHandler.obtainMessage(MSG_DELETE_DATABASE);
         message.obj = data.getAddress();
         mHandler.sendMessage(message);
@@ -1077,6 +1209,11 @@ public class DatabaseManager {
         for (String log : mMetadataChangedLog) {
             writer.println("    " + log);
         }
+        synchronized (mPendingWrites) {
+            writer.println("  Metadata Writes: requested=" + mWritesRequested + ", executed="
+                    + mWritesExecuted + " in " + mWriteTransactions + " transactions, pending="
+                    + mPendingWrites.size());
+        }
         writer.println("\nMetadata:");
         for (HashMap.Entry<String, Metadata> entry : mMetadataCache.entrySet()) {
             if (entry.getKey().equals(LOCAL_STORAGE)) {
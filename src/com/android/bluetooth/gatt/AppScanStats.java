@@ -73,6 +73,9 @@ import java.util.Objects;
         public boolean isCallbackScan;
         public boolean isBatchScan;
         public int results;
+        public int resultIpcs;
+        public int coalescedResults;
+        public int suppressedResults;
         public int scannerId;
         public int scanMode;
         public int scanCallbackType;
@@ -91,6 +94,9 @@ import java.util.Objects;
             this.scanMode = scanMode;
             this.scanCallbackType = scanCallbackType;
             this.results = 0;
+            this.resultIpcs = 0;
+            this.coalescedResults = 0;
+            this.suppressedResults = 0;
             this.scannerId = scannerId;
             this.suspendDuration = 0;
             this.suspendStartTime = 0;
@@ -132,6 +138,9 @@ import java.util.Objects;
     public long startTime = 0;
     public long stopTime = 0;
     public int results = 0;
+    private int mResultIpcs = 0;
+    private int mCoalescedResults = 0;
+    private int mSuppressedResults = 0;
 
     AppScanStats(String name, WorkSource source, ContextMap map, GattService service) {
         appName = name;
@@ -167,6 +176,30 @@ import java.util.Objects;
         results++;
     }
 
+    synchronized void addResultIpc(int scannerId) {
+        LastScan scan = getScanFromScannerId(scannerId);
+        if (scan != null) {
+            scan.resultIpcs++;
+        }
+        mResultIpcs++;
+    }
+
+    synchronized void addCoalescedResult(int scannerId) {
+        LastScan scan = getScanFromScannerId(scannerId);
+        if (scan != null) {
+            scan.coalescedResults++;
+        }
+        mCoalescedResults++;
+    }
+
+    synchronized void addSuppressedResult(int scannerId) {
+        LastScan scan = getScanFromScannerId(scannerId);
+        if (scan != null) {
+            scan.suppressedResults++;
+        }
+        mSuppressedResults++;
+    }
+
     boolean isScanning() {
         return !mOngoingScans.isEmpty();
     }
@@ -515,6 +548,8 @@ import java.util.Objects;
                 + " / " + lowPowerScan + " / " + balancedScan + " / " + lowLatencyScan);
         sb.append("\n  Score                                                       : " + Score);
         sb.append("\n  Total number of results                                     : " + results);
+        sb.append("\n  Result IPCs / coalesced / suppressed results                : "
+                + mResultIpcs + " / " + mCoalescedResults + " / " + mSuppressedResults);
 
         if (!mLastScans.isEmpty()) {
             sb.append("\n  Last " + mLastScans.size()
@@ -538,6 +573,12 @@ import java.util.Objects;
                     sb.append("Filter ");
                 }
                 sb.append(scan.results + " results");
+                if (scan.resultIpcs != 0) {
+                    sb.append(" in " + scan.resultIpcs + " IPCs");
+                }
+                if (scan.suppressedResults != 0) {
+                    sb.append(" (" + scan.suppressedResults + " suppressed)");
+                }
                 sb.append(" (" + scan.scannerId + ") ");
                 if (scan.isCallbackScan) {
                     sb.append("CB ");
@@ -586,6 +627,12 @@ import java.util.Objects;
                     sb.append("Suspended ");
                 }
                 sb.append(scan.results + " results");
+                if (scan.resultIpcs != 0) {
+                    sb.append(" in " + scan.resultIpcs + " IPCs");
+                }
+                if (scan.suppressedResults != 0) {
+                    sb.append(" (" + scan.suppressedResults + " suppressed)");
+                }
                 sb.append(" (" + scan.scannerId + ") ");
                 if (scan.isCallbackScan) {
                     sb.append("CB ");
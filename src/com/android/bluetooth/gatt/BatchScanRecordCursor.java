@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.util.Log;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Walks the records of a controller batch scan report in place.
+ *
+ * Record layout, all multi-byte fields little endian:
+ * <pre>
+ * Truncated: address(6) address_type(1) tx_power(1) rssi(1) timestamp(2)
+ * Full:      address(6) address_type(1) tx_power(1) rssi(1) timestamp(2)
+ *            adv_len(1) adv_data(adv_len) scan_rsp_len(1) scan_rsp_data(scan_rsp_len)
+ * </pre>
+ * Nothing but the combined advertise data of the current record is copied, and the
+ * {@link ScanResult} is only built when asked for.
+ * @hide
+ */
+/*package*/ class BatchScanRecordCursor {
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "BatchScanRecordCursor";
+
+    private static final int ADDRESS_LENGTH = 6;
+    private static final int TRUNCATED_RESULT_SIZE = 11;
+    // Timestamp is in every 50 ms.
+    private static final int TIMESTAMP_UNIT_MILLIS = 50;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private static final ScanRecord EMPTY_SCAN_RECORD = ScanRecord.parseFromBytes(new byte[0]);
+
+    private final ByteBuffer mBuffer;
+    private final boolean mTruncated;
+    private final long mNowNanos;
+    private int mRecordsLeft;
+
+    private int mAddressOffset;
+    private int mRssi;
+    private long mTimestampNanos;
+    private int mAdvertiseOffset;
+    private int mAdvertiseLength;
+    private int mScanResponseOffset;
+    private int mScanResponseLength;
+
+    private final char[] mAddressChars = new char[ADDRESS_LENGTH * 3 - 1];
+    private String mAddress;
+    private ScanResult mScanResult;
+
+    /**
+     * @param recordData raw report from the controller
+     * @param numRecords number of records the controller reported
+     * @param reportType {@link ScanManager#SCAN_RESULT_TYPE_TRUNCATED} or
+     * {@link ScanManager#SCAN_RESULT_TYPE_FULL}
+     * @param nowNanos elapsed realtime the record timestamps are relative to
+     */
+    BatchScanRecordCursor(byte[] recordData, int numRecords, int reportType, long nowNanos) {
+        mBuffer = ByteBuffer.wrap(recordData == null ? new byte[0] : recordData)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        mTruncated = reportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED;
+        mNowNanos = nowNanos;
+        mRecordsLeft = numRecords;
+    }
+
+    /**
+     * Moves to the next record, returns false once the report is exhausted or malformed.
+     */
+    boolean moveToNext() {
+        mAddress = null;
+        mScanResult = null;
+        if (mTruncated ? mRecordsLeft <= 0 || mBuffer.remaining() < TRUNCATED_RESULT_SIZE
+                : !mBuffer.hasRemaining()) {
+            return false;
+        }
+        try {
+            mAddressOffset = mBuffer.position();
+            // Skip address, address type and tx power level.
+            mBuffer.position(mAddressOffset + ADDRESS_LENGTH + 2);
+            mRssi = mBuffer.get();
+            mTimestampNanos = mNowNanos - parseTimestampNanos(mBuffer.getShort() & 0xFFFF);
+            if (!mTruncated) {
+                mAdvertiseLength = mBuffer.get() & 0xFF;
+                mAdvertiseOffset = mBuffer.position();
+                mBuffer.position(mAdvertiseOffset + mAdvertiseLength);
+                mScanResponseLength = mBuffer.get() & 0xFF;
+                mScanResponseOffset = mBuffer.position();
+                mBuffer.position(mScanResponseOffset + mScanResponseLength);
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            Log.w(TAG, "Malformed batch scan record at " + mAddressOffset);
+            mBuffer.position(mBuffer.limit());
+            return false;
+        }
+        mRecordsLeft--;
+        return true;
+    }
+
+    int getRssi() {
+        return mRssi;
+    }
+
+    long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    /**
+     * Returns the address of the current record, the controller reports it reversed.
+     */
+    String getAddress() {
+        if (mAddress == null) {
+            byte[] data = mBuffer.array();
+            for (int i = 0; i < ADDRESS_LENGTH; i++) {
+                int b = data[mAddressOffset + ADDRESS_LENGTH - 1 - i] & 0xFF;
+                int c = i * 3;
+                mAddressChars[c] = HEX_DIGITS[b >>> 4];
+                mAddressChars[c + 1] = HEX_DIGITS[b & 0x0F];
+                if (i < ADDRESS_LENGTH - 1) {
+                    mAddressChars[c + 2] = ':';
+                }
+            }
+            mAddress = new String(mAddressChars);
+        }
+        return mAddress;
+    }
+
+    /**
+     * Returns the advertise data followed by the scan response of the current record.
+     */
+    byte[] getScanRecordBytes() {
+        if (mTruncated) {
+            return new byte[0];
+        }
+        byte[] data = mBuffer.array();
+        byte[] scanRecord = new byte[mAdvertiseLength + mScanResponseLength];
+        System.arraycopy(data, mAdvertiseOffset, scanRecord, 0, mAdvertiseLength);
+        System.arraycopy(data, mScanResponseOffset, scanRecord, mAdvertiseLength,
+                mScanResponseLength);
+        return scanRecord;
+    }
+
+    /**
+     * Returns the scan result of the current record, built once per record.
+     */
+    ScanResult getScanResult(BluetoothAdapter adapter) {
+        if (mScanResult == null) {
+            ScanRecord record = mTruncated ? EMPTY_SCAN_RECORD
+                    : ScanRecord.parseFromBytes(getScanRecordBytes());
+            mScanResult = new ScanResult(adapter.getRemoteDevice(getAddress()), record, mRssi,
+                    mTimestampNanos);
+        }
+        return mScanResult;
+    }
+
+    static long parseTimestampNanos(int timestampUnits) {
+        return TimeUnit.MILLISECONDS.toNanos((long) timestampUnits * TIMESTAMP_UNIT_MILLIS);
+    }
+}
@@ -25,6 +25,7 @@ import android.os.WorkSource;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -33,6 +34,8 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Helper class that keeps track of registered GATT applications.
@@ -168,14 +171,32 @@ import java.util.UUID;
         }
     }
 
-    /** Our internal application list */
-    private List<App> mApps = new ArrayList<App>();
+    /** Our internal application list, copied on write so it can be iterated without a lock */
+    private final List<App> mApps = new CopyOnWriteArrayList<App>();
+
+    /** Index of registered applications by application ID */
+    private final Map<Integer, App> mAppsById = new ConcurrentHashMap<Integer, App>();
+
+    /** Index of applications by UUID */
+    private final Map<UUID, App> mAppsByUuid = new ConcurrentHashMap<UUID, App>();
 
     /** Internal map to keep track of logging information by app name */
-    HashMap<Integer, AppScanStats> mAppScanStats = new HashMap<Integer, AppScanStats>();
+    final Map<Integer, AppScanStats> mAppScanStats =
+            new ConcurrentHashMap<Integer, AppScanStats>();
+
+    /** Guards changes to the connection indexes, lookups don't take it */
+    private final Object mConnectionsLock = new Object();
+
+    /** Index of connected devices by connection ID **/
+    private final Map<Integer, Connection> mConnectionsByConnId =
+            new ConcurrentHashMap<Integer, Connection>();
 
-    /** Internal list of connected devices **/
-    Set<Connection> mConnections = new HashSet<Connection>();
+    /** Index of connected devices by application ID, then by upper case address **/
+    private final Map<Integer, Map<String, Connection>> mConnectionsByApp =
+            new ConcurrentHashMap<Integer, Map<String, Connection>>();
+
+    /** Snapshot of all connections, replaced whenever a connection is added or removed **/
+    private volatile List<Connection> mConnections = Collections.emptyList();
 
     /**
      * Add an entry to the application context list.
@@ -195,25 +216,37 @@ import java.util.UUID;
             }
             App app = new App(uuid, callback, info, appName, appScanStats);
             mApps.add(app);
+            mAppsByUuid.putIfAbsent(uuid, app);
             appScanStats.isRegistered = true;
             return app;
         }
     }
 
+    /**
+     * Sets the ID assigned by the stack once the application is registered.
+     */
+    void setId(App app, int id) {
+        synchronized (mApps) {
+            if (mAppsById.get(app.id) == app) {
+                mAppsById.remove(app.id);
+            }
+            app.id = id;
+            if (mApps.contains(app)) {
+                mAppsById.put(id, app);
+            }
+        }
+    }
+
     /**
      * Remove the context for a given UUID
      */
     void remove(UUID uuid) {
         synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.uuid.equals(uuid)) {
-                    entry.unlinkToDeath();
-                    entry.appScanStats.isRegistered = false;
-                    i.remove();
-                    break;
-                }
+            App entry = mAppsByUuid.get(uuid);
+            if (entry != null) {
+                entry.unlinkToDeath();
+                entry.appScanStats.isRegistered = false;
+                removeApp(entry);
             }
         }
     }
@@ -223,14 +256,27 @@ import java.util.UUID;
      */
     void remove(int id) {
         synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.id == id) {
-                    removeConnectionsByAppId(id);
-                    entry.unlinkToDeath();
-                    entry.appScanStats.isRegistered = false;
-                    i.remove();
+            App entry = mAppsById.get(id);
+            if (entry != null) {
+                removeConnectionsByAppId(id);
+                entry.unlinkToDeath();
+                entry.appScanStats.isRegistered = false;
+                removeApp(entry);
+            }
+        }
+    }
+
+    private void removeApp(App entry) {
+        mApps.remove(entry);
+        if (mAppsById.get(entry.id) == entry) {
+            mAppsById.remove(entry.id);
+        }
+        if (mAppsByUuid.get(entry.uuid) == entry) {
+            mAppsByUuid.remove(entry.uuid);
+            // Another app registered with the same UUID takes over the index.
+            for (App app : mApps) {
+                if (app.uuid.equals(entry.uuid)) {
+                    mAppsByUuid.put(app.uuid, app);
                     break;
                 }
             }
@@ -239,12 +285,8 @@ import java.util.UUID;
 
     List<Integer> getAllAppsIds() {
         List<Integer> appIds = new ArrayList();
-        synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                appIds.add(entry.id);
-            }
+        for (App entry : mApps) {
+            appIds.add(entry.id);
         }
         return appIds;
     }
@@ -253,10 +295,21 @@ import java.util.UUID;
      * Add a new connection for a given application ID.
      */
     void addConnection(int id, int connId, String address) {
-        synchronized (mConnections) {
+        synchronized (mConnectionsLock) {
             App entry = getById(id);
             if (entry != null) {
-                mConnections.add(new Connection(connId, address, id));
+                Connection connection = new Connection(connId, address, id);
+                Connection previous = mConnectionsByConnId.put(connId, connection);
+                if (previous != null) {
+                    unindexConnection(previous);
+                }
+                Map<String, Connection> appConnections = mConnectionsByApp.get(id);
+                if (appConnections == null) {
+                    appConnections = new ConcurrentHashMap<String, Connection>();
+                    mConnectionsByApp.put(id, appConnections);
+                }
+                appConnections.put(address.toUpperCase(), connection);
+                updateConnectionSnapshot();
             }
         }
     }
@@ -265,14 +318,11 @@ import java.util.UUID;
      * Remove a connection with the given ID.
      */
     void removeConnection(int id, int connId) {
-        synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.connId == connId) {
-                    i.remove();
-                    break;
-                }
+        synchronized (mConnectionsLock) {
+            Connection connection = mConnectionsByConnId.remove(connId);
+            if (connection != null) {
+                unindexConnection(connection);
+                updateConnectionSnapshot();
             }
         }
     }
@@ -281,60 +331,64 @@ import java.util.UUID;
      * Remove all connections for a given application ID.
      */
     void removeConnectionsByAppId(int appId) {
-        Iterator<Connection> i = mConnections.iterator();
-        while (i.hasNext()) {
-            Connection connection = i.next();
-            if (connection.appId == appId) {
-                i.remove();
+        synchronized (mConnectionsLock) {
+            Map<String, Connection> appConnections = mConnectionsByApp.remove(appId);
+            if (appConnections != null) {
+                for (Connection connection : appConnections.values()) {
+                    mConnectionsByConnId.remove(connection.connId, connection);
+                }
+                updateConnectionSnapshot();
             }
         }
     }
 
+    // Must be called with mConnectionsLock held.
+    private void unindexConnection(Connection connection) {
+        Map<String, Connection> appConnections = mConnectionsByApp.get(connection.appId);
+        if (appConnections == null) {
+            return;
+        }
+        appConnections.remove(connection.address.toUpperCase(), connection);
+        if (appConnections.isEmpty()) {
+            mConnectionsByApp.remove(connection.appId);
+        }
+    }
+
+    // Must be called with mConnectionsLock held.
+    private void updateConnectionSnapshot() {
+        mConnections = Collections.unmodifiableList(
+                new ArrayList<Connection>(mConnectionsByConnId.values()));
+    }
+
     /**
      * Get an application context by ID.
      */
     App getById(int id) {
-        synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.id == id) {
-                    return entry;
-                }
-            }
+        App entry = mAppsById.get(id);
+        if (entry == null) {
+            Log.e(TAG, "Context not found for ID " + id);
         }
-        Log.e(TAG, "Context not found for ID " + id);
-        return null;
+        return entry;
     }
 
     /**
      * Get an application context by UUID.
      */
     App getByUuid(UUID uuid) {
-        synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.uuid.equals(uuid)) {
-                    return entry;
-                }
-            }
+        App entry = mAppsByUuid.get(uuid);
+        if (entry == null) {
+            Log.e(TAG, "Context not found for UUID " + uuid);
         }
-        Log.e(TAG, "Context not found for UUID " + uuid);
-        return null;
+        return entry;
     }
 
     /**
      * Get an application context by the calling Apps name.
      */
     App getByName(String name) {
-        synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.name.equals(name)) {
-                    return entry;
-                }
+        for (App entry : mApps) {
+            if (entry.name.equals(name)) {
+                return entry;
             }
         }
         Log.e(TAG, "Context not found for name " + name);
@@ -345,13 +399,9 @@ import java.util.UUID;
      * Get an application context by the context info object.
      */
     App getByContextInfo(T contextInfo) {
-        synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.info != null && entry.info.equals(contextInfo)) {
-                    return entry;
-                }
+        for (App entry : mApps) {
+            if (entry.info != null && entry.info.equals(contextInfo)) {
+                return entry;
             }
         }
         Log.e(TAG, "Context not found for info " + contextInfo);
@@ -381,9 +431,7 @@ import java.util.UUID;
      */
     Set<String> getConnectedDevices() {
         Set<String> addresses = new HashSet<String>();
-        Iterator<Connection> i = mConnections.iterator();
-        while (i.hasNext()) {
-            Connection connection = i.next();
+        for (Connection connection : mConnections) {
             addresses.add(connection.address);
         }
         return addresses;
@@ -393,14 +441,11 @@ import java.util.UUID;
      * Get an application context by a connection ID.
      */
     App getByConnId(int connId) {
-        Iterator<Connection> ii = mConnections.iterator();
-        while (ii.hasNext()) {
-            Connection connection = ii.next();
-            if (connection.connId == connId) {
-                return getById(connection.appId);
-            }
+        Connection connection = mConnectionsByConnId.get(connId);
+        if (connection == null) {
+            return null;
         }
-        return null;
+        return getById(connection.appId);
     }
 
     /**
@@ -412,40 +457,28 @@ import java.util.UUID;
             return null;
         }
 
-        Iterator<Connection> i = mConnections.iterator();
-        while (i.hasNext()) {
-            Connection connection = i.next();
-            if (connection.address.equalsIgnoreCase(address) && connection.appId == id) {
-                return connection.connId;
-            }
+        Map<String, Connection> appConnections = mConnectionsByApp.get(id);
+        if (appConnections == null) {
+            return null;
         }
-        return null;
+        Connection connection = appConnections.get(address.toUpperCase());
+        return connection == null ? null : connection.connId;
     }
 
     /**
      * Returns the device address for a given connection ID.
      */
     String addressByConnId(int connId) {
-        Iterator<Connection> i = mConnections.iterator();
-        while (i.hasNext()) {
-            Connection connection = i.next();
-            if (connection.connId == connId) {
-                return connection.address;
-            }
-        }
-        return null;
+        Connection connection = mConnectionsByConnId.get(connId);
+        return connection == null ? null : connection.address;
     }
 
     List<Connection> getConnectionByApp(int appId) {
-        List<Connection> currentConnections = new ArrayList<Connection>();
-        Iterator<Connection> i = mConnections.iterator();
-        while (i.hasNext()) {
-            Connection connection = i.next();
-            if (connection.appId == appId) {
-                currentConnections.add(connection);
-            }
+        Map<String, Connection> appConnections = mConnectionsByApp.get(appId);
+        if (appConnections == null) {
+            return new ArrayList<Connection>();
         }
-        return currentConnections;
+        return new ArrayList<Connection>(appConnections.values());
     }
 
     /**
@@ -453,17 +486,19 @@ import java.util.UUID;
      */
     void clear() {
         synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
+            for (App entry : mApps) {
                 entry.unlinkToDeath();
                 entry.appScanStats.isRegistered = false;
-                i.remove();
             }
+            mApps.clear();
+            mAppsById.clear();
+            mAppsByUuid.clear();
         }
 
-        synchronized (mConnections) {
-            mConnections.clear();
+        synchronized (mConnectionsLock) {
+            mConnectionsByConnId.clear();
+            mConnectionsByApp.clear();
+            mConnections = Collections.emptyList();
         }
     }
 
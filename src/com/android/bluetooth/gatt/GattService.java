@@ -71,6 +71,7 @@ import com.android.internal.annotations.VisibleForTesting;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -78,7 +79,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Provides Bluetooth Gatt profile, as a service in
@@ -95,8 +95,7 @@ public class GattService extends ProfileService {
 
     private static final int MAC_ADDRESS_LENGTH = 6;
     // Batch scan related constants.
-    private static final int TRUNCATED_RESULT_SIZE = 11;
-    private static final int TIME_STAMP_LENGTH = 2;
+    private static final int BATCH_SCAN_RESULTS_PER_CALLBACK = 256;
 
     // onFoundLost related constants
     private static final int ADVT_STATE_ONFOUND = 0;
@@ -184,6 +183,8 @@ public class GattService extends ProfileService {
     private AdvertiseManager mAdvertiseManager;
     private PeriodicScanManager mPeriodicScanManager;
     private ScanManager mScanManager;
+    private final ScanResultFanOut mScanResultFanOut = new ScanResultFanOut();
+    private final NotificationTracker mNotificationTracker = new NotificationTracker();
     private AppOpsManager mAppOps;
     private ICompanionDeviceManager mCompanionManager;
     private String mExposureNotificationPackage;
@@ -241,6 +242,7 @@ public class GattService extends ProfileService {
         mServerMap.clear();
         mHandleMap.clear();
         mReliableQueue.clear();
+        mNotificationTracker.clear();
         if (mAdvertiseManager != null) {
             mAdvertiseManager.cleanup();
         }
@@ -1025,23 +1027,22 @@ public class GattService extends ProfileService {
                     + Integer.toHexString(advertisingSid) + ", txPower=" + txPower + ", rssi="
                     + rssi + ", periodicAdvInt=0x" + Integer.toHexString(periodicAdvInt));
         }
-        List<UUID> remoteUuids = parseUuids(advData);
+        mScanResultFanOut.reset(eventType, primaryPhy, secondaryPhy, advertisingSid, txPower,
+                rssi, periodicAdvInt, address, advData);
 
-        byte[] legacyAdvData = Arrays.copyOfRange(advData, 0, 62);
+        // Only the clients whose filters could match this advertisement are considered.
+        ScanFilterIndex filterIndex = mScanManager.getFilterIndex();
+        ScanRecord indexRecord =
+                filterIndex.needsScanRecord() ? mScanResultFanOut.getScanRecord() : null;
+        Set<UUID> remoteUuids = null;
+        long dedupKey = -1;
 
-        for (ScanClient client : mScanManager.getRegularScanQueue()) {
+        for (ScanClient client : filterIndex.getCandidates(address, indexRecord)) {
             if (client.uuids.length > 0) {
-                int matches = 0;
-                for (UUID search : client.uuids) {
-                    for (UUID remote : remoteUuids) {
-                        if (remote.equals(search)) {
-                            ++matches;
-                            break; // Only count 1st match in case of duplicates
-                        }
-                    }
+                if (remoteUuids == null) {
+                    remoteUuids = new HashSet<UUID>(parseUuids(advData));
                 }
-
-                if (matches < client.uuids.length) {
+                if (!remoteUuids.containsAll(Arrays.asList(client.uuids))) {
                     continue;
                 }
             }
@@ -1051,28 +1052,15 @@ public class GattService extends ProfileService {
                 continue;
             }
 
-            BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
-
             ScanSettings settings = client.settings;
-            byte[] scanRecordData;
             // This is for compability with applications that assume fixed size scan data.
-            if (settings.getLegacy()) {
-                if ((eventType & ET_LEGACY_MASK) == 0) {
-                    // If this is legacy scan, but nonlegacy result - skip.
-                    continue;
-                } else {
-                    // Some apps are used to fixed-size advertise data.
-                    scanRecordData = legacyAdvData;
-                }
-            } else {
-                scanRecordData = advData;
+            if (settings.getLegacy() && (eventType & ET_LEGACY_MASK) == 0) {
+                // If this is legacy scan, but nonlegacy result - skip.
+                continue;
             }
 
-            ScanResult result =
-                    new ScanResult(device, eventType, primaryPhy, secondaryPhy, advertisingSid,
-                            txPower, rssi, periodicAdvInt,
-                            ScanRecord.parseFromBytes(scanRecordData),
-                            SystemClock.elapsedRealtimeNanos());
+            // Shared by every client asking for the same variant, only parsed once.
+            ScanResult result = mScanResultFanOut.getResult(settings.getLegacy());
             boolean hasPermission = hasScanResultPermission(client);
             if (!hasPermission) {
                 for (String associatedDevice : client.associatedDevices) {
@@ -1097,8 +1085,25 @@ public class GattService extends ProfileService {
                 continue;
             }
 
+            if (client.dedupCache != null) {
+                if (dedupKey == -1) {
+                    dedupKey = ScanResultDedupCache.getKey(address, advertisingSid);
+                }
+                if (!client.dedupCache.shouldDeliver(dedupKey, rssi, advData,
+                        mScanResultFanOut.getTimestampNanos())) {
+                    app.appScanStats.addSuppressedResult(client.scannerId);
+                    continue;
+                }
+            }
+
+            app.appScanStats.addResult(client.scannerId);
+            if (client.batchResultDelivery) {
+                mScanManager.addBatchedScanResult(client, result);
+                continue;
+            }
+
             try {
-                app.appScanStats.addResult(client.scannerId);
+                app.appScanStats.addResultIpc(client.scannerId);
                 if (app.callback != null) {
                     app.callback.onScanResult(result);
                 } else {
@@ -1156,7 +1161,7 @@ public class GattService extends ProfileService {
         ScannerMap.App cbApp = mScannerMap.getByUuid(uuid);
         if (cbApp != null) {
             if (status == 0) {
-                cbApp.id = scannerId;
+                mScannerMap.setId(cbApp, scannerId);
                 // If app is callback based, setup a death recipient. App will initiate the start.
                 // Otherwise, if PendingIntent based, start the scan directly.
                 if (cbApp.callback != null) {
@@ -1205,7 +1210,7 @@ public class GattService extends ProfileService {
         ClientMap.App app = mClientMap.getByUuid(uuid);
         if (app != null) {
             if (status == 0) {
-                app.id = clientIf;
+                mClientMap.setId(app, clientIf);
                 app.linkToDeath(new ClientDeathRecipient(clientIf));
             } else {
                 mClientMap.remove(uuid);
@@ -1239,6 +1244,7 @@ public class GattService extends ProfileService {
         }
 
         mClientMap.removeConnection(clientIf, connId);
+        mNotificationTracker.remove(connId);
         ClientMap.App app = mClientMap.getById(clientIf);
         if (app != null) {
             app.callback.onClientConnectionState(status, clientIf, false, address);
@@ -1465,6 +1471,7 @@ public class GattService extends ProfileService {
         if (!restrictedIds.isEmpty()) {
             mRestrictedHandles.put(connId, restrictedIds);
         }
+        mNotificationTracker.invalidate(connId);
         // Search is complete when there was error, or nothing more to process
         app.callback.onSearchComplete(address, dbOut, 0 /* status */);
     }
@@ -1486,13 +1493,20 @@ public class GattService extends ProfileService {
                     + data.length);
         }
 
+        long receivedNanos = SystemClock.elapsedRealtimeNanos();
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
-            if (!permissionCheck(app, connId, handle)) {
-                Log.w(TAG, "onNotify() - permission check failed!");
-                return;
+            if (!mNotificationTracker.isPermitted(connId, handle)) {
+                boolean permitted = permissionCheck(app, connId, handle);
+                mNotificationTracker.setPermitted(connId, address, handle, permitted);
+                if (!permitted) {
+                    Log.w(TAG, "onNotify() - permission check failed!");
+                    return;
+                }
             }
             app.callback.onNotify(address, handle, data);
+            mNotificationTracker.addNotification(connId, address, data.length, receivedNanos,
+                    SystemClock.elapsedRealtimeNanos());
         }
     }
 
@@ -1649,56 +1663,26 @@ public class GattService extends ProfileService {
                     + ", reportType=" + reportType + ", numRecords=" + numRecords);
         }
         mScanManager.callbackDone(scannerId, status);
-        Set<ScanResult> results = parseBatchScanResults(numRecords, reportType, recordData);
+        if (DBG) {
+            Log.d(TAG, "current time is " + SystemClock.elapsedRealtimeNanos());
+            Log.d(TAG, "batch record " + Arrays.toString(recordData));
+        }
+        BatchScanRecordCursor cursor = new BatchScanRecordCursor(recordData, numRecords,
+                reportType, SystemClock.elapsedRealtimeNanos());
         if (reportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED) {
             // We only support single client for truncated mode.
-            ScannerMap.App app = mScannerMap.getById(scannerId);
-            if (app == null) {
-                return;
-            }
-
             ScanClient client = findBatchScanClientById(scannerId);
             if (client == null) {
                 return;
             }
-
-            ArrayList<ScanResult> permittedResults;
-            if (hasScanResultPermission(client)) {
-                permittedResults = new ArrayList<ScanResult>(results);
-            } else {
-                permittedResults = new ArrayList<ScanResult>();
-                for (ScanResult scanResult : results) {
-                    for (String associatedDevice : client.associatedDevices) {
-                        if (associatedDevice.equalsIgnoreCase(scanResult.getDevice()
-                                    .getAddress())) {
-                            permittedResults.add(scanResult);
-                        }
-                    }
-                }
-                if (permittedResults.isEmpty()) {
-                    return;
-                }
-            }
-
-            if (app.callback != null) {
-                app.callback.onBatchScanResults(permittedResults);
-            } else {
-                // PendingIntent based
-                try {
-                    sendResultsByPendingIntent(app.info, permittedResults,
-                            ScanSettings.CALLBACK_TYPE_ALL_MATCHES);
-                } catch (PendingIntent.CanceledException e) {
-                }
-            }
+            // Truncated records carry no advertise data to filter on.
+            deliverBatchScan(Collections.singleton(client), cursor, false);
         } else {
-            for (ScanClient client : mScanManager.getFullBatchScanQueue()) {
-                // Deliver results for each client.
-                deliverBatchScan(client, results);
-            }
+            deliverBatchScan(mScanManager.getFullBatchScanQueue(), cursor, true);
         }
     }
 
-    private void sendBatchScanResults(ScannerMap.App app, ScanClient client,
+    private boolean sendBatchScanResults(ScannerMap.App app, ScanClient client,
             ArrayList<ScanResult> results) {
         try {
             if (app.callback != null) {
@@ -1707,150 +1691,117 @@ public class GattService extends ProfileService {
                 sendResultsByPendingIntent(app.info, results,
                         ScanSettings.CALLBACK_TYPE_ALL_MATCHES);
             }
+            return true;
         } catch (RemoteException | PendingIntent.CanceledException e) {
             Log.e(TAG, "Exception: " + e);
             mScannerMap.remove(client.scannerId);
             mScanManager.stopScan(client.scannerId);
+            return false;
         }
     }
 
-    // Check and deliver scan results for different scan clients.
-    private void deliverBatchScan(ScanClient client, Set<ScanResult> allResults)
-            throws RemoteException {
+    /**
+     * Delivers the regular scan results accumulated by {@link ScanResultBatcher}.
+     */
+    void deliverBatchedScanResults(ScanClient client, ArrayList<ScanResult> results) {
         ScannerMap.App app = mScannerMap.getById(client.scannerId);
         if (app == null) {
             return;
         }
-
-        ArrayList<ScanResult> permittedResults;
-        if (hasScanResultPermission(client)) {
-            permittedResults = new ArrayList<ScanResult>(allResults);
-        } else {
-            permittedResults = new ArrayList<ScanResult>();
-            for (ScanResult scanResult : allResults) {
-                for (String associatedDevice : client.associatedDevices) {
-                    if (associatedDevice.equalsIgnoreCase(scanResult.getDevice().getAddress())) {
-                        permittedResults.add(scanResult);
-                    }
-                }
-            }
-            if (permittedResults.isEmpty()) {
-                return;
-            }
-        }
-
-        if (client.filters == null || client.filters.isEmpty()) {
-            sendBatchScanResults(app, client, permittedResults);
-            // TODO: Question to reviewer: Shouldn't there be a return here?
-        }
-        // Reconstruct the scan results.
-        ArrayList<ScanResult> results = new ArrayList<ScanResult>();
-        for (ScanResult scanResult : permittedResults) {
-            if (matchesFilters(client, scanResult)) {
-                results.add(scanResult);
-            }
-        }
+        app.appScanStats.addResultIpc(client.scannerId);
         sendBatchScanResults(app, client, results);
     }
 
-    private Set<ScanResult> parseBatchScanResults(int numRecords, int reportType,
-            byte[] batchRecord) {
-        if (numRecords == 0) {
-            return Collections.emptySet();
-        }
-        if (DBG) {
-            Log.d(TAG, "current time is " + SystemClock.elapsedRealtimeNanos());
+    /**
+     * Per client state while a batch scan report is streamed out.
+     */
+    private static class BatchScanDelivery {
+        final ScanClient mClient;
+        final ScannerMap.App mApp;
+        final boolean mHasPermission;
+        ArrayList<ScanResult> mResults = new ArrayList<ScanResult>();
+        boolean mHasPermittedResult;
+        boolean mSent;
+        boolean mFailed;
+
+        BatchScanDelivery(ScanClient client, ScannerMap.App app, boolean hasPermission) {
+            mClient = client;
+            mApp = app;
+            mHasPermission = hasPermission;
+        }
+    }
+
+    // Walks the batch report once, filtering for every client as it goes and delivering
+    // matching results in chunks of at most BATCH_SCAN_RESULTS_PER_CALLBACK.
+    private void deliverBatchScan(Collection<ScanClient> clients, BatchScanRecordCursor cursor,
+            boolean applyFilters) {
+        List<BatchScanDelivery> deliveries = new ArrayList<BatchScanDelivery>(clients.size());
+        for (ScanClient client : clients) {
+            ScannerMap.App app = mScannerMap.getById(client.scannerId);
+            if (app != null) {
+                deliveries.add(new BatchScanDelivery(client, app,
+                        hasScanResultPermission(client)));
+            }
         }
-        if (reportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED) {
-            return parseTruncatedResults(numRecords, batchRecord);
-        } else {
-            return parseFullResults(numRecords, batchRecord);
+        if (deliveries.isEmpty()) {
+            return;
         }
-    }
 
-    private Set<ScanResult> parseTruncatedResults(int numRecords, byte[] batchRecord) {
-        if (DBG) {
-            Log.d(TAG, "batch record " + Arrays.toString(batchRecord));
-        }
-        Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
-        long now = SystemClock.elapsedRealtimeNanos();
-        for (int i = 0; i < numRecords; ++i) {
-            byte[] record =
-                    extractBytes(batchRecord, i * TRUNCATED_RESULT_SIZE, TRUNCATED_RESULT_SIZE);
-            byte[] address = extractBytes(record, 0, 6);
-            reverse(address);
-            BluetoothDevice device = mAdapter.getRemoteDevice(address);
-            int rssi = record[8];
-            long timestampNanos = now - parseTimestampNanos(extractBytes(record, 9, 2));
-            results.add(new ScanResult(device, ScanRecord.parseFromBytes(new byte[0]), rssi,
-                    timestampNanos));
+        while (cursor.moveToNext()) {
+            for (BatchScanDelivery delivery : deliveries) {
+                if (delivery.mFailed || (!delivery.mHasPermission
+                        && !isAssociatedDevice(delivery.mClient, cursor.getAddress()))) {
+                    continue;
+                }
+                delivery.mHasPermittedResult = true;
+                ScanResult result = cursor.getScanResult(mAdapter);
+                if (applyFilters && !matchesFilters(delivery.mClient, result)) {
+                    continue;
+                }
+                delivery.mResults.add(result);
+                if (delivery.mResults.size() >= BATCH_SCAN_RESULTS_PER_CALLBACK) {
+                    delivery.mFailed = !sendBatchScanResults(delivery.mApp, delivery.mClient,
+                            delivery.mResults);
+                    delivery.mSent = true;
+                    delivery.mResults = new ArrayList<ScanResult>();
+                }
+            }
         }
-        return results;
-    }
 
-    @VisibleForTesting
-    long parseTimestampNanos(byte[] data) {
-        long timestampUnit = NumberUtils.littleEndianByteArrayToInt(data);
-        // Timestamp is in every 50 ms.
-        return TimeUnit.MILLISECONDS.toNanos(timestampUnit * 50);
+        for (BatchScanDelivery delivery : deliveries) {
+            // Clients without scan permission only hear about their associated devices.
+            if (delivery.mFailed || (!delivery.mHasPermission
+                    && !delivery.mHasPermittedResult)) {
+                continue;
+            }
+            // Always answer the flush, even when nothing matched.
+            if (!delivery.mResults.isEmpty() || !delivery.mSent) {
+                sendBatchScanResults(delivery.mApp, delivery.mClient, delivery.mResults);
+            }
+        }
     }
 
-    private Set<ScanResult> parseFullResults(int numRecords, byte[] batchRecord) {
-        if (DBG) {
-            Log.d(TAG, "Batch record : " + Arrays.toString(batchRecord));
+    private static boolean isAssociatedDevice(ScanClient client, String address) {
+        if (client.associatedDevices == null) {
+            return false;
         }
-        Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
-        int position = 0;
-        long now = SystemClock.elapsedRealtimeNanos();
-        while (position < batchRecord.length) {
-            byte[] address = extractBytes(batchRecord, position, 6);
-            // TODO: remove temp hack.
-            reverse(address);
-            BluetoothDevice device = mAdapter.getRemoteDevice(address);
-            position += 6;
-            // Skip address type.
-            position++;
-            // Skip tx power level.
-            position++;
-            int rssi = batchRecord[position++];
-            long timestampNanos = now - parseTimestampNanos(extractBytes(batchRecord, position, 2));
-            position += 2;
-
-            // Combine advertise packet and scan response packet.
-            int advertisePacketLen = batchRecord[position++];
-            byte[] advertiseBytes = extractBytes(batchRecord, position, advertisePacketLen);
-            position += advertisePacketLen;
-            int scanResponsePacketLen = batchRecord[position++];
-            byte[] scanResponseBytes = extractBytes(batchRecord, position, scanResponsePacketLen);
-            position += scanResponsePacketLen;
-            byte[] scanRecord = new byte[advertisePacketLen + scanResponsePacketLen];
-            System.arraycopy(advertiseBytes, 0, scanRecord, 0, advertisePacketLen);
-            System.arraycopy(scanResponseBytes, 0, scanRecord, advertisePacketLen,
-                    scanResponsePacketLen);
-            if (DBG) {
-                Log.d(TAG, "ScanRecord : " + Arrays.toString(scanRecord));
+        for (String associatedDevice : client.associatedDevices) {
+            if (associatedDevice.equalsIgnoreCase(address)) {
+                return true;
             }
-            results.add(new ScanResult(device, ScanRecord.parseFromBytes(scanRecord), rssi,
-                    timestampNanos));
         }
-        return results;
+        return false;
     }
 
-    // Reverse byte array.
-    private void reverse(byte[] address) {
-        int len = address.length;
-        for (int i = 0; i < len / 2; ++i) {
-            byte b = address[i];
-            address[i] = address[len - 1 - i];
-            address[len - 1 - i] = b;
-        }
+    @VisibleForTesting
+    ScanManager getScanManager() {
+        return mScanManager;
     }
 
-    // Helper method to extract bytes from byte array.
-    private static byte[] extractBytes(byte[] scanRecord, int start, int length) {
-        byte[] bytes = new byte[length];
-        System.arraycopy(scanRecord, start, bytes, 0, length);
-        return bytes;
+    @VisibleForTesting
+    long parseTimestampNanos(byte[] data) {
+        return BatchScanRecordCursor.parseTimestampNanos(
+                NumberUtils.littleEndianByteArrayToInt(data));
     }
 
     void onBatchScanThresholdCrossed(int clientIf) {
@@ -2116,6 +2067,9 @@ public class GattService extends ProfileService {
         scanClient.hasScanWithoutLocationPermission =
                 Utils.checkCallerHasScanWithoutLocationPermission(this);
         scanClient.associatedDevices = getAssociatedDevices(callingPackage, scanClient.userHandle);
+        scanClient.batchResultDelivery =
+                mScanManager.shouldBatchResults(callingPackage, settings);
+        scanClient.dedupCache = mScanManager.createDedupCache(callingPackage, settings);
 
         AppScanStats app = mScannerMap.getAppScanStatsById(scannerId);
         ScannerMap.App cbApp = mScannerMap.getById(scannerId);
@@ -2199,6 +2153,10 @@ public class GattService extends ProfileService {
         scanClient.hasNetworkSetupWizardPermission = app.mHasNetworkSetupWizardPermission;
         scanClient.hasScanWithoutLocationPermission = app.mHasScanWithoutLocationPermission;
         scanClient.associatedDevices = app.mAssociatedDevices;
+        scanClient.batchResultDelivery =
+                mScanManager.shouldBatchResults(piInfo.callingPackage, piInfo.settings);
+        scanClient.dedupCache =
+                mScanManager.createDedupCache(piInfo.callingPackage, piInfo.settings);
 
         AppScanStats scanStats = mScannerMap.getAppScanStatsById(scannerId);
         if (scanStats != null) {
@@ -2741,7 +2699,7 @@ public class GattService extends ProfileService {
         }
         ServerMap.App app = mServerMap.getByUuid(uuid);
         if (app != null) {
-            app.id = serverIf;
+            mServerMap.setId(app, serverIf);
             app.linkToDeath(new ServerDeathRecipient(serverIf));
             app.callback.onServerRegistered(status, serverIf);
         }
@@ -3272,10 +3230,8 @@ public class GattService extends ProfileService {
         }
 
         if (status == 0) {
-            List<HandleMap.Entry> entries = mHandleMap.getEntries();
-            for (HandleMap.Entry entry : entries) {
-                if (entry.type != HandleMap.TYPE_SERVICE || entry.serverIf != serverIf
-                        || !entry.started) {
+            for (HandleMap.Entry entry : mHandleMap.getServices(serverIf)) {
+                if (!entry.started) {
                     continue;
                 }
 
@@ -3295,11 +3251,7 @@ public class GattService extends ProfileService {
          * The handles are copied into a new list to avoid race conditions.
          */
         List<Integer> handleList = new ArrayList<Integer>();
-        List<HandleMap.Entry> entries = mHandleMap.getEntries();
-        for (HandleMap.Entry entry : entries) {
-            if (entry.type != HandleMap.TYPE_SERVICE || entry.serverIf != serverIf) {
-                continue;
-            }
+        for (HandleMap.Entry entry : mHandleMap.getServices(serverIf)) {
             handleList.add(entry.handle);
         }
 
@@ -3367,6 +3319,15 @@ public class GattService extends ProfileService {
 
         println(sb, "mMaxScanFilters: " + mMaxScanFilters);
 
+        sb.append("\nScan Result Fan-out\n");
+        mScanResultFanOut.dump(sb);
+
+        sb.append("\nScan Filter Index\n");
+        mScanManager.getFilterIndex().dump(sb);
+
+        sb.append("\nGATT Client Notifications\n");
+        mNotificationTracker.dump(sb);
+
         sb.append("\nRegistered App\n");
         dumpRegisterId(sb);
 
@@ -16,12 +16,16 @@
 package com.android.bluetooth.gatt;
 
 import android.util.Log;
+import android.util.SparseArray;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 class HandleMap {
@@ -87,6 +91,11 @@ class HandleMap {
     Map<Integer, Integer> mRequestMap = null;
     int mLastCharacteristic = 0;
 
+    /* Indexes over mEntries, so ATT requests don't have to walk the whole database */
+    private final SparseArray<Entry> mEntriesByHandle = new SparseArray<Entry>();
+    private final SparseArray<List<Entry>> mEntriesByService = new SparseArray<List<Entry>>();
+    private final SparseArray<List<Entry>> mServicesByServer = new SparseArray<List<Entry>>();
+
     HandleMap() {
         mEntries = new ArrayList<Entry>();
         mRequestMap = new HashMap<Integer, Integer>();
@@ -95,65 +104,106 @@ class HandleMap {
     void clear() {
         mEntries.clear();
         mRequestMap.clear();
+        mEntriesByHandle.clear();
+        mEntriesByService.clear();
+        mServicesByServer.clear();
     }
 
     void addService(int serverIf, int handle, UUID uuid, int serviceType, int instance,
             boolean advertisePreferred) {
-        mEntries.add(new Entry(serverIf, handle, uuid, serviceType, instance, advertisePreferred));
+        Entry entry = new Entry(serverIf, handle, uuid, serviceType, instance, advertisePreferred);
+        addEntry(entry, handle);
+        getOrCreateList(mServicesByServer, serverIf).add(entry);
     }
 
     void addCharacteristic(int serverIf, int handle, UUID uuid, int serviceHandle) {
         mLastCharacteristic = handle;
-        mEntries.add(new Entry(serverIf, TYPE_CHARACTERISTIC, handle, uuid, serviceHandle));
+        addEntry(new Entry(serverIf, TYPE_CHARACTERISTIC, handle, uuid, serviceHandle),
+                serviceHandle);
     }
 
     void addDescriptor(int serverIf, int handle, UUID uuid, int serviceHandle) {
-        mEntries.add(new Entry(serverIf, TYPE_DESCRIPTOR, handle, uuid, serviceHandle,
-                mLastCharacteristic));
+        addEntry(new Entry(serverIf, TYPE_DESCRIPTOR, handle, uuid, serviceHandle,
+                mLastCharacteristic), serviceHandle);
     }
 
-    void setStarted(int serverIf, int handle, boolean started) {
-        for (Entry entry : mEntries) {
-            if (entry.type != TYPE_SERVICE || entry.serverIf != serverIf
-                    || entry.handle != handle) {
-                continue;
-            }
+    private void addEntry(Entry entry, int serviceHandle) {
+        mEntries.add(entry);
+        mEntriesByHandle.put(entry.handle, entry);
+        getOrCreateList(mEntriesByService, serviceHandle).add(entry);
+    }
 
-            entry.started = started;
+    private static List<Entry> getOrCreateList(SparseArray<List<Entry>> lists, int key) {
+        List<Entry> list = lists.get(key);
+        if (list == null) {
+            list = new ArrayList<Entry>();
+            lists.put(key, list);
+        }
+        return list;
+    }
+
+    void setStarted(int serverIf, int handle, boolean started) {
+        Entry entry = mEntriesByHandle.get(handle);
+        if (entry == null || entry.type != TYPE_SERVICE || entry.serverIf != serverIf) {
             return;
         }
+        entry.started = started;
     }
 
     Entry getByHandle(int handle) {
-        for (Entry entry : mEntries) {
-            if (entry.handle == handle) {
-                return entry;
-            }
+        Entry entry = mEntriesByHandle.get(handle);
+        if (entry == null) {
+            Log.e(TAG, "getByHandle() - Handle " + handle + " not found!");
         }
-        Log.e(TAG, "getByHandle() - Handle " + handle + " not found!");
-        return null;
+        return entry;
     }
 
     boolean checkServiceExists(UUID uuid, int handle) {
-        for (Entry entry : mEntries) {
-            if (entry.type == TYPE_SERVICE && entry.handle == handle && entry.uuid.equals(uuid)) {
-                return true;
-            }
-        }
-        return false;
+        Entry entry = mEntriesByHandle.get(handle);
+        return entry != null && entry.type == TYPE_SERVICE && entry.uuid.equals(uuid);
     }
 
     void deleteService(int serverIf, int serviceHandle) {
-        for (Iterator<Entry> it = mEntries.iterator(); it.hasNext(); ) {
+        List<Entry> serviceEntries = mEntriesByService.get(serviceHandle);
+        if (serviceEntries == null) {
+            return;
+        }
+        Set<Entry> deleted = new HashSet<Entry>();
+        for (Iterator<Entry> it = serviceEntries.iterator(); it.hasNext(); ) {
             Entry entry = it.next();
             if (entry.serverIf != serverIf) {
                 continue;
             }
-
-            if (entry.handle == serviceHandle || entry.serviceHandle == serviceHandle) {
-                it.remove();
+            it.remove();
+            deleted.add(entry);
+            if (mEntriesByHandle.get(entry.handle) == entry) {
+                mEntriesByHandle.remove(entry.handle);
+            }
+            if (entry.type == TYPE_SERVICE) {
+                List<Entry> services = mServicesByServer.get(serverIf);
+                if (services != null) {
+                    services.remove(entry);
+                    if (services.isEmpty()) {
+                        mServicesByServer.remove(serverIf);
+                    }
+                }
             }
         }
+        if (serviceEntries.isEmpty()) {
+            mEntriesByService.remove(serviceHandle);
+        }
+        mEntries.removeAll(deleted);
+    }
+
+    /**
+     * Returns the service entries of the given server, in the order they were added.
+     */
+    List<Entry> getServices(int serverIf) {
+        List<Entry> services = mServicesByServer.get(serverIf);
+        if (services == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<Entry>(services);
     }
 
     List<Entry> getEntries() {
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.util.SparseBooleanArray;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per connection state of the GATT client notification path.
+ *
+ * Remembers which handles of a connection already passed the permission check, so that
+ * repeated notifications on the same characteristic skip it, and keeps notification rate,
+ * delivery latency and denied notification statistics for the dump. Only permitted decisions
+ * are cached, as a denied handle may become permitted once the app is found to hold
+ * BLUETOOTH_PRIVILEGED. The decisions of a connection are dropped when it disconnects or when
+ * its services are discovered again, as the restricted handles may have changed.
+ *
+ * Only updated from the native callback thread, which delivers the notifications and the
+ * connection events, so updates take no lock. The dump is read from a binder thread and may see
+ * the counters of a connection mid-update.
+ * @hide
+ */
+/*package*/ class NotificationTracker {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long NANOS_PER_MICRO = TimeUnit.MICROSECONDS.toNanos(1);
+
+    private final Map<Integer, Connection> mConnections = new ConcurrentHashMap<>();
+
+    private static class Connection {
+        final String mAddress;
+        // Only accessed from the native callback thread.
+        final SparseBooleanArray mPermittedHandles = new SparseBooleanArray();
+        volatile int mCachedHandles;
+        volatile long mNotifications;
+        volatile long mBytes;
+        volatile long mDenied;
+        volatile long mFirstNanos;
+        volatile long mLastNanos;
+        volatile long mDeliveryNanos;
+        volatile long mMaxDeliveryNanos;
+
+        Connection(String address) {
+            mAddress = address;
+        }
+    }
+
+    /**
+     * Returns true if a notification on the handle was already permitted for the connection.
+     */
+    boolean isPermitted(int connId, int handle) {
+        Connection connection = mConnections.get(connId);
+        return connection != null && connection.mPermittedHandles.get(handle);
+    }
+
+    /**
+     * Records the outcome of a permission check on the handle. Permitted handles are cached,
+     * denied ones are counted.
+     */
+    void setPermitted(int connId, String address, int handle, boolean permitted) {
+        Connection connection = getOrCreate(connId, address);
+        if (permitted) {
+            connection.mPermittedHandles.put(handle, true);
+            connection.mCachedHandles = connection.mPermittedHandles.size();
+        } else {
+            connection.mDenied++;
+        }
+    }
+
+    /**
+     * Records one delivered notification.
+     *
+     * @param receivedNanos elapsed realtime the notification arrived from the stack
+     * @param deliveredNanos elapsed realtime the client callback returned
+     */
+    void addNotification(int connId, String address, int length, long receivedNanos,
+            long deliveredNanos) {
+        Connection connection = getOrCreate(connId, address);
+        if (connection.mNotifications == 0) {
+            connection.mFirstNanos = receivedNanos;
+        }
+        connection.mNotifications++;
+        connection.mBytes += length;
+        connection.mLastNanos = receivedNanos;
+        long deliveryNanos = deliveredNanos - receivedNanos;
+        connection.mDeliveryNanos += deliveryNanos;
+        if (deliveryNanos > connection.mMaxDeliveryNanos) {
+            connection.mMaxDeliveryNanos = deliveryNanos;
+        }
+    }
+
+    /**
+     * Forgets the cached permission decisions of a connection, e.g. after its services were
+     * discovered again and the restricted handles changed.
+     */
+    void invalidate(int connId) {
+        Connection connection = mConnections.get(connId);
+        if (connection != null) {
+            connection.mPermittedHandles.clear();
+            connection.mCachedHandles = 0;
+        }
+    }
+
+    void remove(int connId) {
+        mConnections.remove(connId);
+    }
+
+    void clear() {
+        mConnections.clear();
+    }
+
+    private Connection getOrCreate(int connId, String address) {
+        Connection connection = mConnections.get(connId);
+        if (connection == null) {
+            connection = new Connection(address);
+            mConnections.put(connId, connection);
+        }
+        return connection;
+    }
+
+    void dump(StringBuilder sb) {
+        if (mConnections.isEmpty()) {
+            sb.append("  No notifications\n");
+            return;
+        }
+        for (Map.Entry<Integer, Connection> entry : mConnections.entrySet()) {
+            Connection connection = entry.getValue();
+            long count = connection.mNotifications;
+            long spanNanos = connection.mLastNanos - connection.mFirstNanos;
+            sb.append("  connId: ").append(entry.getKey())
+                    .append(", address: ").append(connection.mAddress).append("\n");
+            sb.append("    Notifications     : ").append(count)
+                    .append(" (").append(connection.mBytes).append(" bytes)\n");
+            sb.append("    Rate              : ")
+                    .append(spanNanos > 0 ? (count - 1) * NANOS_PER_SECOND / spanNanos : 0)
+                    .append("/s\n");
+            sb.append("    Delivery latency  : avg ")
+                    .append(count > 0 ? connection.mDeliveryNanos / count / NANOS_PER_MICRO : 0)
+                    .append("us, max ")
+                    .append(connection.mMaxDeliveryNanos / NANOS_PER_MICRO).append("us\n");
+            sb.append("    Cached handles    : ").append(connection.mCachedHandles).append("\n");
+            sb.append("    Denied            : ").append(connection.mDenied).append("\n");
+        }
+    }
+}
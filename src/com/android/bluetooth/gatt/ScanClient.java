@@ -49,6 +49,10 @@ import java.util.UUID;
     public boolean hasNetworkSetupWizardPermission;
     public boolean hasScanWithoutLocationPermission;
     public List<String> associatedDevices;
+    // Regular scan results are delivered in batches, see ScanResultBatcher.
+    public boolean batchResultDelivery;
+    // Repeated advertisements are suppressed when set, see ScanResultDedupCache.
+    public ScanResultDedupCache dedupCache;
 
     public AppScanStats stats = null;
 
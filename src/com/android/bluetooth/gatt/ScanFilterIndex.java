@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.annotation.Nullable;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.os.ParcelUuid;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the software filters of the regular scan clients.
+ *
+ * Every filter is filed under its most selective exact-match key (device address, manufacturer
+ * id, service data UUID, unmasked service UUID or device name), so an advertisement only needs
+ * a handful of hash lookups to find the clients that could possibly match it. Clients that have
+ * no filters, or a filter without any of those keys, are always returned as candidates.
+ * Candidates must still be checked with {@link ScanFilter#matches}.
+ *
+ * The index is rebuilt by {@link ScanManager} on its handler thread whenever a regular scan
+ * client is started or stopped, and published as an immutable snapshot so lookups from the
+ * native callback thread never take a lock. Lookups themselves are only made from that thread,
+ * and reuse the same candidate list and per-client marks, so they do not allocate.
+ * @hide
+ */
+/*package*/ class ScanFilterIndex {
+
+    // A client of the snapshot, with the lookup that last returned it as a candidate
+    private static final class Entry {
+        final ScanClient mClient;
+        int mGeneration;
+
+        Entry(ScanClient client) {
+            mClient = client;
+        }
+    }
+
+    private static final class Snapshot {
+        final Map<String, List<Entry>> mByAddress = new HashMap<>();
+        final SparseArray<List<Entry>> mByManufacturerId = new SparseArray<>();
+        final Map<ParcelUuid, List<Entry>> mByServiceDataUuid = new HashMap<>();
+        final Map<ParcelUuid, List<Entry>> mByServiceUuid = new HashMap<>();
+        final Map<String, List<Entry>> mByName = new HashMap<>();
+        final List<ScanClient> mUnindexed = new ArrayList<>();
+        final List<ScanClient> mAll = new ArrayList<>();
+
+        boolean needsScanRecord() {
+            return mByManufacturerId.size() > 0 || !mByServiceDataUuid.isEmpty()
+                    || !mByServiceUuid.isEmpty() || !mByName.isEmpty();
+        }
+    }
+
+    private volatile Snapshot mSnapshot = new Snapshot();
+
+    // Only used by getCandidates(), on the native callback thread
+    private final ArrayList<ScanClient> mCandidates = new ArrayList<>();
+    private int mGeneration;
+
+    private volatile long mLookups;
+    private volatile long mCandidateCount;
+
+    /**
+     * Rebuilds the index from the given clients.
+     */
+    void rebuild(Collection<ScanClient> clients) {
+        Snapshot snapshot = new Snapshot();
+        for (ScanClient client : clients) {
+            snapshot.mAll.add(client);
+            if (client.uuids != null && client.uuids.length > 0) {
+                // Legacy UUID scans need every UUID present, any one of them is a valid key.
+                add(snapshot.mByServiceUuid, new ParcelUuid(client.uuids[0]), new Entry(client));
+                continue;
+            }
+            if (client.filters == null || client.filters.isEmpty() || !isIndexable(
+                    client.filters)) {
+                snapshot.mUnindexed.add(client);
+                continue;
+            }
+            Entry entry = new Entry(client);
+            for (ScanFilter filter : client.filters) {
+                addFilter(snapshot, filter, entry);
+            }
+        }
+        mSnapshot = snapshot;
+    }
+
+    void clear() {
+        mSnapshot = new Snapshot();
+    }
+
+    /**
+     * Returns true if {@link #getCandidates} can make use of the parsed scan record.
+     */
+    boolean needsScanRecord() {
+        return mSnapshot.needsScanRecord();
+    }
+
+    /**
+     * Returns the clients that may match an advertisement, each at most once. The returned list
+     * is reused by the next lookup.
+     *
+     * @param address address of the advertiser
+     * @param record parsed advertisement, or null to skip the record based lookups and return
+     * every client
+     */
+    List<ScanClient> getCandidates(String address, @Nullable ScanRecord record) {
+        Snapshot snapshot = mSnapshot;
+        mLookups++;
+        if (record == null && snapshot.needsScanRecord()) {
+            mCandidateCount += snapshot.mAll.size();
+            return snapshot.mAll;
+        }
+        if (++mGeneration == 0) {
+            // New entries start unmarked at 0
+            mGeneration = 1;
+        }
+        List<ScanClient> candidates = mCandidates;
+        candidates.clear();
+        // Never filed under a key, so they cannot be collected twice
+        candidates.addAll(snapshot.mUnindexed);
+        collect(candidates, snapshot.mByAddress.get(address));
+        if (record != null) {
+            SparseArray<byte[]> manufacturerData = record.getManufacturerSpecificData();
+            if (manufacturerData != null) {
+                for (int i = 0; i < manufacturerData.size(); i++) {
+                    collect(candidates,
+                            snapshot.mByManufacturerId.get(manufacturerData.keyAt(i)));
+                }
+            }
+            Map<ParcelUuid, byte[]> serviceData = record.getServiceData();
+            if (serviceData != null) {
+                for (ParcelUuid uuid : serviceData.keySet()) {
+                    collect(candidates, snapshot.mByServiceDataUuid.get(uuid));
+                }
+            }
+            List<ParcelUuid> serviceUuids = record.getServiceUuids();
+            if (serviceUuids != null) {
+                for (ParcelUuid uuid : serviceUuids) {
+                    collect(candidates, snapshot.mByServiceUuid.get(uuid));
+                }
+            }
+            String name = record.getDeviceName();
+            if (name != null) {
+                collect(candidates, snapshot.mByName.get(name));
+            }
+        }
+        mCandidateCount += candidates.size();
+        return candidates;
+    }
+
+    void dump(StringBuilder sb) {
+        Snapshot snapshot = mSnapshot;
+        long lookups = mLookups;
+        long candidates = mCandidateCount;
+        sb.append("  Clients               : ").append(snapshot.mAll.size())
+                .append(" (unindexed: ").append(snapshot.mUnindexed.size()).append(")\n");
+        sb.append("  Keys                  : address=").append(snapshot.mByAddress.size())
+                .append(", manufacturerId=").append(snapshot.mByManufacturerId.size())
+                .append(", serviceDataUuid=").append(snapshot.mByServiceDataUuid.size())
+                .append(", serviceUuid=").append(snapshot.mByServiceUuid.size())
+                .append(", name=").append(snapshot.mByName.size()).append("\n");
+        sb.append("  Lookups               : ").append(lookups).append("\n");
+        sb.append("  Candidates per lookup : ")
+                .append(lookups == 0 ? 0 : (float) candidates / lookups).append("\n");
+    }
+
+    private static boolean isIndexable(List<ScanFilter> filters) {
+        for (ScanFilter filter : filters) {
+            if (filter == null || (filter.getDeviceAddress() == null
+                    && filter.getManufacturerId() < 0 && filter.getServiceDataUuid() == null
+                    && (filter.getServiceUuid() == null || filter.getServiceUuidMask() != null)
+                    && filter.getDeviceName() == null)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Files the filter under its most selective key only, any other key is checked by matches().
+    private static void addFilter(Snapshot snapshot, ScanFilter filter, Entry entry) {
+        if (filter.getDeviceAddress() != null) {
+            add(snapshot.mByAddress, filter.getDeviceAddress(), entry);
+        } else if (filter.getManufacturerId() >= 0) {
+            List<Entry> entries = snapshot.mByManufacturerId.get(filter.getManufacturerId());
+            if (entries == null) {
+                entries = new ArrayList<>();
+                snapshot.mByManufacturerId.put(filter.getManufacturerId(), entries);
+            }
+            addOnce(entries, entry);
+        } else if (filter.getServiceDataUuid() != null) {
+            add(snapshot.mByServiceDataUuid, filter.getServiceDataUuid(), entry);
+        } else if (filter.getServiceUuid() != null && filter.getServiceUuidMask() == null) {
+            add(snapshot.mByServiceUuid, filter.getServiceUuid(), entry);
+        } else {
+            add(snapshot.mByName, filter.getDeviceName(), entry);
+        }
+    }
+
+    private static <K> void add(Map<K, List<Entry>> map, K key, Entry entry) {
+        List<Entry> entries = map.get(key);
+        if (entries == null) {
+            entries = new ArrayList<>();
+            map.put(key, entries);
+        }
+        addOnce(entries, entry);
+    }
+
+    private static void addOnce(List<Entry> entries, Entry entry) {
+        // The filters of a client are filed one after the other, so a repeat is the last entry
+        if (entries.isEmpty() || entries.get(entries.size() - 1) != entry) {
+            entries.add(entry);
+        }
+    }
+
+    private void collect(List<ScanClient> candidates, List<Entry> entries) {
+        if (entries == null) {
+            return;
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            if (entry.mGeneration != mGeneration) {
+                entry.mGeneration = mGeneration;
+                candidates.add(entry.mClient);
+            }
+        }
+    }
+}
@@ -23,6 +23,7 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
@@ -41,10 +42,12 @@ import android.provider.Settings;
 import android.util.Log;
 import android.view.Display;
 
+import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
@@ -99,6 +102,17 @@ public class ScanManager {
     private Set<ScanClient> mRegularScanClients;
     private Set<ScanClient> mBatchClients;
     private Set<ScanClient> mSuspendedScanClients;
+    private final ScanFilterIndex mFilterIndex = new ScanFilterIndex();
+    private ScanResultBatcher mResultBatcher;
+
+    private final Set<String> mResultBatchingPackages;
+    private final int mResultBatchingWindowMillis;
+    private final int mResultBatchingMaxResults;
+
+    private final Set<String> mResultDedupPackages;
+    private final int mResultDedupIntervalMillis;
+    private final int mResultDedupRssiThreshold;
+    private final int mResultDedupCacheSize;
 
     private CountDownLatch mLatch;
 
@@ -143,12 +157,28 @@ public class ScanManager {
         mDm = (DisplayManager) mService.getSystemService(Context.DISPLAY_SERVICE);
         mActivityManager = (ActivityManager) mService.getSystemService(Context.ACTIVITY_SERVICE);
         mLocationManager = (LocationManager) mService.getSystemService(Context.LOCATION_SERVICE);
+        mResultBatchingPackages = new HashSet<String>(Arrays.asList(mService.getResources()
+                .getStringArray(R.array.gatt_scan_result_batching_packages)));
+        mResultBatchingWindowMillis =
+                mService.getResources().getInteger(R.integer.gatt_scan_result_batching_window_ms);
+        mResultBatchingMaxResults = mService.getResources()
+                .getInteger(R.integer.gatt_scan_result_batching_max_results);
+        mResultDedupPackages = new HashSet<String>(Arrays.asList(mService.getResources()
+                .getStringArray(R.array.gatt_scan_result_dedup_packages)));
+        mResultDedupIntervalMillis =
+                mService.getResources().getInteger(R.integer.gatt_scan_result_dedup_interval_ms);
+        mResultDedupRssiThreshold = mService.getResources()
+                .getInteger(R.integer.gatt_scan_result_dedup_rssi_threshold);
+        mResultDedupCacheSize =
+                mService.getResources().getInteger(R.integer.gatt_scan_result_dedup_cache_size);
     }
 
     void start() {
         HandlerThread thread = new HandlerThread("BluetoothScanManager");
         thread.start();
         mHandler = new ClientHandler(thread.getLooper());
+        mResultBatcher = new ScanResultBatcher(mService, mHandler, mResultBatchingWindowMillis,
+                mResultBatchingMaxResults);
         if (mDm != null) {
             mDm.registerDisplayListener(mDisplayListener, null);
         }
@@ -162,6 +192,10 @@ public class ScanManager {
 
     void cleanup() {
         mRegularScanClients.clear();
+        mFilterIndex.clear();
+        if (mResultBatcher != null) {
+            mResultBatcher.clear();
+        }
         mBatchClients.clear();
         mSuspendedScanClients.clear();
         mScanNative.cleanup();
@@ -211,6 +245,13 @@ public class ScanManager {
         return mRegularScanClients;
     }
 
+    /**
+     * Returns the filter index of the regular scan queue.
+     */
+    ScanFilterIndex getFilterIndex() {
+        return mFilterIndex;
+    }
+
     /**
      * Returns batch scan queue.
      */
@@ -233,6 +274,46 @@ public class ScanManager {
         return fullBatchClients;
     }
 
+    /**
+     * Returns true if the regular scan results of the given app should be delivered in batches.
+     */
+    boolean shouldBatchResults(String callingPackage, ScanSettings settings) {
+        return mResultBatchingWindowMillis > 0 && mResultBatchingMaxResults > 1
+                && callingPackage != null && mResultBatchingPackages.contains(callingPackage)
+                && isRegularAllMatchesScan(settings);
+    }
+
+    /**
+     * Returns the cache used to suppress repeated advertisements for the given app, or null if
+     * it receives every advertisement.
+     */
+    ScanResultDedupCache createDedupCache(String callingPackage, ScanSettings settings) {
+        if (mResultDedupIntervalMillis <= 0 || mResultDedupCacheSize <= 0
+                || callingPackage == null || !mResultDedupPackages.contains(callingPackage)
+                || !isRegularAllMatchesScan(settings)) {
+            return null;
+        }
+        return new ScanResultDedupCache(
+                TimeUnit.MILLISECONDS.toNanos(mResultDedupIntervalMillis),
+                mResultDedupRssiThreshold, mResultDedupCacheSize);
+    }
+
+    private static boolean isRegularAllMatchesScan(ScanSettings settings) {
+        return settings != null
+                && settings.getCallbackType() == ScanSettings.CALLBACK_TYPE_ALL_MATCHES
+                && settings.getReportDelayMillis() == 0;
+    }
+
+    /**
+     * Queues a regular scan result of a client using batched delivery.
+     */
+    void addBatchedScanResult(ScanClient client, ScanResult result) {
+        ScanResultBatcher batcher = mResultBatcher;
+        if (batcher != null) {
+            batcher.add(client, result);
+        }
+    }
+
     void startScan(ScanClient client) {
         sendMessage(MSG_START_BLE_SCAN, client);
     }
@@ -357,6 +438,7 @@ public class ScanManager {
                 mScanNative.startBatchScan(client);
             } else {
                 mRegularScanClients.add(client);
+                mFilterIndex.rebuild(mRegularScanClients);
                 mScanNative.startRegularScan(client);
                 if (!mScanNative.isOpportunisticScanClient(client)) {
                     mScanNative.configureRegularScanParams();
@@ -381,6 +463,10 @@ public class ScanManager {
                 mSuspendedScanClients.remove(client);
             }
 
+            if (client.batchResultDelivery) {
+                mResultBatcher.remove(client);
+            }
+
             if (mRegularScanClients.contains(client)) {
                 mScanNative.stopRegularScan(client);
 
@@ -901,6 +987,7 @@ public class ScanManager {
                 }
             }
             mRegularScanClients.remove(client);
+            mFilterIndex.rebuild(mRegularScanClients);
             if (numRegularScanClients() == 0) {
                 if (DBG) {
                     Log.d(TAG, "stop scan");
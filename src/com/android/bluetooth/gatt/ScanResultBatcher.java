@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanResult;
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Accumulates the regular scan results of opted-in clients and hands them to
+ * {@link GattService} as a single batch, either when the batching window expires or when
+ * enough results are pending. Repeated results from the same device within a window are
+ * coalesced, only the latest one is delivered.
+ *
+ * Results are added from the native callback thread, batches are always delivered on the
+ * handler thread.
+ * @hide
+ */
+/*package*/ class ScanResultBatcher {
+    private final GattService mService;
+    private final Handler mHandler;
+    private final long mWindowMillis;
+    private final int mMaxResults;
+
+    // Guarded by itself.
+    private final Map<ScanClient, PendingResults> mPending = new HashMap<>();
+
+    private class PendingResults implements Runnable {
+        final ScanClient mClient;
+        final ArrayList<ScanResult> mResults = new ArrayList<>();
+        final Map<String, Integer> mPositions = new HashMap<>();
+
+        PendingResults(ScanClient client) {
+            mClient = client;
+        }
+
+        @Override
+        public void run() {
+            flush(mClient);
+        }
+    }
+
+    ScanResultBatcher(GattService service, Handler handler, long windowMillis, int maxResults) {
+        mService = service;
+        mHandler = handler;
+        mWindowMillis = windowMillis;
+        mMaxResults = maxResults;
+    }
+
+    /**
+     * Queues a result for the given client.
+     */
+    void add(ScanClient client, ScanResult result) {
+        synchronized (mPending) {
+            PendingResults pending = mPending.get(client);
+            if (pending == null) {
+                pending = new PendingResults(client);
+                mPending.put(client, pending);
+                mHandler.postDelayed(pending, mWindowMillis);
+            }
+
+            BluetoothDevice device = result.getDevice();
+            Integer position = device == null ? null : pending.mPositions.get(device.getAddress());
+            if (position != null) {
+                pending.mResults.set(position, result);
+                if (client.stats != null) {
+                    client.stats.addCoalescedResult(client.scannerId);
+                }
+                return;
+            }
+            if (device != null) {
+                pending.mPositions.put(device.getAddress(), pending.mResults.size());
+            }
+            pending.mResults.add(result);
+
+            if (pending.mResults.size() >= mMaxResults) {
+                // Deliver right away, but still from the handler thread.
+                mHandler.removeCallbacks(pending);
+                mHandler.post(pending);
+            }
+        }
+    }
+
+    /**
+     * Drops the pending results of a client that stopped scanning.
+     */
+    void remove(ScanClient client) {
+        synchronized (mPending) {
+            PendingResults pending = mPending.remove(client);
+            if (pending != null) {
+                mHandler.removeCallbacks(pending);
+            }
+        }
+    }
+
+    void clear() {
+        synchronized (mPending) {
+            for (PendingResults pending : mPending.values()) {
+                mHandler.removeCallbacks(pending);
+            }
+            mPending.clear();
+        }
+    }
+
+    private void flush(ScanClient client) {
+        PendingResults pending;
+        synchronized (mPending) {
+            pending = mPending.remove(client);
+        }
+        if (pending == null || pending.mResults.isEmpty()) {
+            return;
+        }
+        mService.deliverBatchedScanResults(client, pending.mResults);
+    }
+}
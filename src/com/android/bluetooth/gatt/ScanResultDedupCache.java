@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of the advertisements last delivered to one scan client, used to suppress
+ * repeated identical advertisements.
+ *
+ * Entries are keyed by advertiser address and advertising SID. An advertisement is delivered
+ * again once the interval since the last delivery has passed, its data changed, or its RSSI
+ * moved by at least the threshold.
+ *
+ * Only accessed from the native callback thread.
+ * @hide
+ */
+/*package*/ class ScanResultDedupCache {
+    private final long mIntervalNanos;
+    private final int mRssiThreshold;
+    private final LinkedHashMap<Long, Entry> mEntries;
+
+    private static class Entry {
+        long mTimestampNanos;
+        int mRssi;
+        byte[] mAdvData;
+    }
+
+    ScanResultDedupCache(long intervalNanos, int rssiThreshold, final int capacity) {
+        mIntervalNanos = intervalNanos;
+        mRssiThreshold = rssiThreshold;
+        mEntries = new LinkedHashMap<Long, Entry>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns true if the advertisement should be delivered, and remembers it if so.
+     *
+     * @param key value returned by {@link #getKey}
+     * @param advData advertisement data, kept by reference and never modified
+     */
+    boolean shouldDeliver(long key, int rssi, byte[] advData, long timestampNanos) {
+        Entry entry = mEntries.get(key);
+        if (entry != null && timestampNanos - entry.mTimestampNanos < mIntervalNanos
+                && Math.abs(rssi - entry.mRssi) < mRssiThreshold
+                && Arrays.equals(advData, entry.mAdvData)) {
+            return false;
+        }
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(key, entry);
+        }
+        entry.mTimestampNanos = timestampNanos;
+        entry.mRssi = rssi;
+        entry.mAdvData = advData;
+        return true;
+    }
+
+    int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Packs a "XX:XX:XX:XX:XX:XX" address and the advertising SID into a cache key.
+     */
+    static long getKey(String address, int advertisingSid) {
+        long key = 0;
+        for (int i = 0; i < address.length(); i++) {
+            int digit = Character.digit(address.charAt(i), 16);
+            if (digit >= 0) {
+                key = (key << 4) | digit;
+            }
+        }
+        return key | ((long) (advertisingSid & 0xFF) << 48);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.SystemClock;
+
+import java.util.Arrays;
+
+/**
+ * Builds the {@link ScanResult} handed to regular scan clients for one advertisement.
+ *
+ * The advertisement is parsed at most once per variant (legacy fixed-size data and full
+ * extended data) and the resulting {@link ScanResult} is shared by every client that matches,
+ * instead of being re-parsed and re-allocated per client.
+ *
+ * Only accessed from the native callback thread, apart from the counters read by dump().
+ * @hide
+ */
+/*package*/ class ScanResultFanOut {
+    // Some apps are used to fixed-size advertise data.
+    private static final int LEGACY_ADV_DATA_LENGTH = 62;
+
+    private int mEventType;
+    private int mPrimaryPhy;
+    private int mSecondaryPhy;
+    private int mAdvertisingSid;
+    private int mTxPower;
+    private int mRssi;
+    private int mPeriodicAdvInt;
+    private String mAddress;
+    private byte[] mAdvData;
+    private long mTimestampNanos;
+
+    private BluetoothDevice mDevice;
+    private ScanResult mLegacyResult;
+    private ScanResult mExtendedResult;
+
+    private volatile long mAdvertisements;
+    private volatile long mResultsRequested;
+    private volatile long mResultsBuilt;
+    private volatile long mLegacyCopies;
+
+    /**
+     * Starts a new advertisement. Results built for the previous advertisement are dropped.
+     */
+    void reset(int eventType, int primaryPhy, int secondaryPhy, int advertisingSid, int txPower,
+            int rssi, int periodicAdvInt, String address, byte[] advData) {
+        mEventType = eventType;
+        mPrimaryPhy = primaryPhy;
+        mSecondaryPhy = secondaryPhy;
+        mAdvertisingSid = advertisingSid;
+        mTxPower = txPower;
+        mRssi = rssi;
+        mPeriodicAdvInt = periodicAdvInt;
+        mAddress = address;
+        mAdvData = advData;
+        mTimestampNanos = SystemClock.elapsedRealtimeNanos();
+        mDevice = null;
+        mLegacyResult = null;
+        mExtendedResult = null;
+        mAdvertisements++;
+    }
+
+    /**
+     * Returns the result for the current advertisement, building it on first use.
+     *
+     * @param legacy whether the client expects fixed-size legacy advertise data
+     */
+    ScanResult getResult(boolean legacy) {
+        mResultsRequested++;
+        if (legacy) {
+            if (mLegacyResult == null) {
+                mLegacyCopies++;
+                mLegacyResult = buildResult(Arrays.copyOfRange(mAdvData, 0,
+                        LEGACY_ADV_DATA_LENGTH));
+            }
+            return mLegacyResult;
+        }
+        if (mExtendedResult == null) {
+            mExtendedResult = buildResult(mAdvData);
+        }
+        return mExtendedResult;
+    }
+
+    long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    /**
+     * Returns the parsed record of the full advertisement, used to look up candidate clients.
+     */
+    ScanRecord getScanRecord() {
+        if (mExtendedResult == null) {
+            mExtendedResult = buildResult(mAdvData);
+        }
+        return mExtendedResult.getScanRecord();
+    }
+
+    private ScanResult buildResult(byte[] scanRecordData) {
+        mResultsBuilt++;
+        if (mDevice == null) {
+            mDevice = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(mAddress);
+        }
+        return new ScanResult(mDevice, mEventType, mPrimaryPhy, mSecondaryPhy, mAdvertisingSid,
+                mTxPower, mRssi, mPeriodicAdvInt, ScanRecord.parseFromBytes(scanRecordData),
+                mTimestampNanos);
+    }
+
+    void dump(StringBuilder sb) {
+        long advertisements = mAdvertisements;
+        long requested = mResultsRequested;
+        long built = mResultsBuilt;
+        long legacyCopies = mLegacyCopies;
+        sb.append("  Advertisements        : ").append(advertisements).append("\n");
+        sb.append("  Results requested     : ").append(requested).append("\n");
+        sb.append("  Records parsed        : ").append(built).append("\n");
+        sb.append("  Parses saved          : ").append(requested - built).append("\n");
+        sb.append("  Legacy copies skipped : ").append(advertisements - legacyCopies)
+                .append("\n");
+    }
+}
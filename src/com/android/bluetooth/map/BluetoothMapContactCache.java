@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.provider.ContactsContract;
+import android.provider.Telephony.MmsSms;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of contact display names by phone number, and of SMS recipient addresses by thread
+ * id, shared by all MAS instances of the {@link BluetoothMapService}.
+ *
+ * Names are dropped on any change in the contacts provider. Thread addresses are dropped on
+ * any change in the SMS/MMS provider, as the id of a deleted thread may be reused.
+ * A lookup that raced with such a change is returned but not cached.
+ * @hide
+ */
+/*package*/ class BluetoothMapContactCache {
+    private static final String TAG = "BluetoothMapContactCache";
+    private static final boolean D = BluetoothMapService.DEBUG;
+
+    private static final int MAX_NAMES = 512;
+    private static final int MAX_THREAD_ADDRESSES = 256;
+    // Cached for numbers without a contact, as LruCache does not hold null values.
+    private static final String NO_NAME = "";
+
+    private static volatile BluetoothMapContactCache sInstance;
+
+    private final ContentResolver mResolver;
+    private final LruCache<String, String> mNames = new LruCache<String, String>(MAX_NAMES);
+    private final LruCache<Integer, String> mThreadAddresses =
+            new LruCache<Integer, String>(MAX_THREAD_ADDRESSES);
+    private final AtomicInteger mNamesGeneration = new AtomicInteger();
+    private final AtomicInteger mThreadAddressesGeneration = new AtomicInteger();
+    private final AtomicLong mNamesInvalidations = new AtomicLong();
+    private final AtomicLong mThreadAddressesInvalidations = new AtomicLong();
+
+    private final ContentObserver mContactsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidateNames();
+        }
+    };
+
+    private final ContentObserver mThreadsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidateThreadAddresses();
+        }
+    };
+
+    BluetoothMapContactCache(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Returns the cache in use, or null if names and addresses must be looked up every time.
+     */
+    static BluetoothMapContactCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Starts observing the providers and makes this the cache in use.
+     */
+    void start() {
+        mResolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true,
+                mContactsObserver);
+        mResolver.registerContentObserver(MmsSms.CONTENT_URI, true, mThreadsObserver);
+        sInstance = this;
+    }
+
+    void stop() {
+        if (sInstance == this) {
+            sInstance = null;
+        }
+        mResolver.unregisterContentObserver(mContactsObserver);
+        mResolver.unregisterContentObserver(mThreadsObserver);
+        mNames.evictAll();
+        mThreadAddresses.evictAll();
+    }
+
+    /**
+     * Returns the display name of the contact with the phone number, or null if there is none.
+     */
+    String getContactName(String phone, ContentResolver resolver) {
+        String name = mNames.get(phone);
+        if (name != null) {
+            return name.isEmpty() ? null : name;
+        }
+        int generation = mNamesGeneration.get();
+        name = BluetoothMapContent.queryContactNameFromPhone(phone, resolver);
+        if (generation == mNamesGeneration.get()) {
+            mNames.put(phone, name != null ? name : NO_NAME);
+        }
+        return name;
+    }
+
+    /**
+     * Returns the ';' separated recipient addresses of the SMS thread.
+     */
+    String getCanonicalAddress(int threadId, ContentResolver resolver) {
+        String address = mThreadAddresses.get(threadId);
+        if (address != null) {
+            return address;
+        }
+        int generation = mThreadAddressesGeneration.get();
+        address = BluetoothMapContent.queryCanonicalAddressSms(resolver, threadId);
+        if (generation == mThreadAddressesGeneration.get()) {
+            mThreadAddresses.put(threadId, address);
+        }
+        return address;
+    }
+
+    @VisibleForTesting
+    void invalidateNames() {
+        if (D) {
+            Log.d(TAG, "Contacts changed, dropping cached names");
+        }
+        mNamesGeneration.incrementAndGet();
+        mNamesInvalidations.incrementAndGet();
+        mNames.evictAll();
+    }
+
+    @VisibleForTesting
+    void invalidateThreadAddresses() {
+        mThreadAddressesGeneration.incrementAndGet();
+        mThreadAddressesInvalidations.incrementAndGet();
+        mThreadAddresses.evictAll();
+    }
+
+    void dump(StringBuilder sb) {
+        dump(sb, "Contact names", mNames, mNamesInvalidations.get());
+        dump(sb, "Thread addresses", mThreadAddresses, mThreadAddressesInvalidations.get());
+    }
+
+    private static void dump(StringBuilder sb, String name, LruCache<?, ?> cache,
+            long invalidations) {
+        sb.append("  ").append(name).append(" cache: ").append(cache.size()).append("/")
+                .append(cache.maxSize()).append(" entries, hits: ").append(cache.hitCount())
+                .append(", misses: ").append(cache.missCount())
+                .append(", evictions: ").append(cache.evictionCount())
+                .append(", invalidations: ").append(invalidations).append("\n");
+    }
+}
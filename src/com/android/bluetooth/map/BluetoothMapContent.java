@@ -528,6 +528,10 @@ public class BluetoothMapContent {
 
     private void setRead(BluetoothMapMessageListingElement e, Cursor c, FilterInfo fi,
             BluetoothMapAppParams ap) {
+        e.setRead(isRead(c, fi), ((ap.getParameterMask() & MASK_READ) != 0));
+    }
+
+    private boolean isRead(Cursor c, FilterInfo fi) {
         int read = 0;
         if (fi.mMsgType == FilterInfo.TYPE_SMS) {
             read = c.getInt(fi.mSmsColRead);
@@ -536,12 +540,7 @@ public class BluetoothMapContent {
         } else if (fi.mMsgType == FilterInfo.TYPE_EMAIL || fi.mMsgType == FilterInfo.TYPE_IM) {
             read = c.getInt(fi.mMessageColRead);
         }
-        String setread = null;
-
-        if (V) {
-            Log.d(TAG, "setRead: " + setread);
-        }
-        e.setRead((read == 1), ((ap.getParameterMask() & MASK_READ) != 0));
+        return read == 1;
     }
 
     private void setConvoRead(BluetoothMapConvoListingElement e, Cursor c, FilterInfo fi,
@@ -1247,25 +1246,29 @@ public class BluetoothMapContent {
     private void setDateTime(BluetoothMapMessageListingElement e, Cursor c, FilterInfo fi,
             BluetoothMapAppParams ap) {
         if ((ap.getParameterMask() & MASK_DATETIME) != 0) {
-            long date = 0;
-            if (fi.mMsgType == FilterInfo.TYPE_SMS) {
-                date = c.getLong(fi.mSmsColDate);
-            } else if (fi.mMsgType == FilterInfo.TYPE_MMS) {
-                /* Use Mms.DATE for all messages. Although contract class states */
-                /* Mms.DATE_SENT are for outgoing messages. But that is not working. */
-                date = c.getLong(fi.mMmsColDate) * 1000L;
-
-                /* int msgBox = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX)); */
-                /* if (msgBox == Mms.MESSAGE_BOX_INBOX) { */
-                /*     date = c.getLong(c.getColumnIndex(Mms.DATE)) * 1000L; */
-                /* } else { */
-                /*     date = c.getLong(c.getColumnIndex(Mms.DATE_SENT)) * 1000L; */
-                /* } */
-            } else if (fi.mMsgType == FilterInfo.TYPE_EMAIL || fi.mMsgType == FilterInfo.TYPE_IM) {
-                date = c.getLong(fi.mMessageColDate);
-            }
-            e.setDateTime(date);
+            e.setDateTime(getDateTime(c, fi));
+        }
+    }
+
+    private long getDateTime(Cursor c, FilterInfo fi) {
+        long date = 0;
+        if (fi.mMsgType == FilterInfo.TYPE_SMS) {
+            date = c.getLong(fi.mSmsColDate);
+        } else if (fi.mMsgType == FilterInfo.TYPE_MMS) {
+            /* Use Mms.DATE for all messages. Although contract class states */
+            /* Mms.DATE_SENT are for outgoing messages. But that is not working. */
+            date = c.getLong(fi.mMmsColDate) * 1000L;
+
+            /* int msgBox = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX)); */
+            /* if (msgBox == Mms.MESSAGE_BOX_INBOX) { */
+            /*     date = c.getLong(c.getColumnIndex(Mms.DATE)) * 1000L; */
+            /* } else { */
+            /*     date = c.getLong(c.getColumnIndex(Mms.DATE_SENT)) * 1000L; */
+            /* } */
+        } else if (fi.mMsgType == FilterInfo.TYPE_EMAIL || fi.mMsgType == FilterInfo.TYPE_IM) {
+            date = c.getLong(fi.mMessageColDate);
         }
+        return date;
     }
 
 
@@ -1388,15 +1391,25 @@ public class BluetoothMapContent {
         return e;
     }
 
-    /* TODO: Change to use SmsMmsContacts.getContactNameFromPhone() with proper use of
-     *       caching. */
+    /**
+     * Returns the display name of the contact with the phone number, from the
+     * {@link BluetoothMapContactCache} while the MAP service runs.
+     */
     public static String getContactNameFromPhone(String phone, ContentResolver resolver) {
-        String name = null;
         //Handle possible exception for empty phone address
         if (TextUtils.isEmpty(phone)) {
-            return name;
+            return null;
+        }
+        BluetoothMapContactCache cache = BluetoothMapContactCache.getInstance();
+        if (cache != null) {
+            return cache.getContactName(phone, resolver);
         }
+        return queryContactNameFromPhone(phone, resolver);
+    }
 
+    /* package */
+    static String queryContactNameFromPhone(String phone, ContentResolver resolver) {
+        String name = null;
         Uri uri =
                 Uri.withAppendedPath(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI, Uri.encode(phone));
 
@@ -1428,6 +1441,15 @@ public class BluetoothMapContent {
      *
      */
     public static String getCanonicalAddressSms(ContentResolver r, int threadId) {
+        BluetoothMapContactCache cache = BluetoothMapContactCache.getInstance();
+        if (cache != null) {
+            return cache.getCanonicalAddress(threadId, r);
+        }
+        return queryCanonicalAddressSms(r, threadId);
+    }
+
+    /* package */
+    static String queryCanonicalAddressSms(ContentResolver r, int threadId) {
 
         /*
          1. Get Recipient Ids from Threads.CONTENT_URI
@@ -2193,6 +2215,49 @@ public class BluetoothMapContent {
         }
     }
 
+    /**
+     * The cursor of one message type in a message listing, positioned on its next message
+     * to list.
+     */
+    private static class ListingSource {
+        final Cursor mCursor;
+        final int mMsgType;
+        long mDateTime;
+
+        ListingSource(Cursor cursor, int msgType) {
+            mCursor = cursor;
+            mMsgType = msgType;
+        }
+    }
+
+    private void addListingSource(List<ListingSource> sources, Cursor c, int msgType,
+            FilterInfo fi, BluetoothMapAppParams ap) {
+        ListingSource source = new ListingSource(c, msgType);
+        if (moveToNextListed(source, fi, ap)) {
+            sources.add(source);
+        }
+    }
+
+    /**
+     * Moves the cursor of the source to its next message passing the address filters.
+     * @return false if there are no more messages
+     */
+    private boolean moveToNextListed(ListingSource source, FilterInfo fi,
+            BluetoothMapAppParams ap) {
+        fi.mMsgType = source.mMsgType;
+        boolean filterAddresses = source.mMsgType == FilterInfo.TYPE_SMS
+                || source.mMsgType == FilterInfo.TYPE_MMS;
+        while (source.mCursor.moveToNext()) {
+            if (!filterAddresses || matchAddresses(source.mCursor, fi, ap)) {
+                // Without a date in the listing, types are listed in query order.
+                source.mDateTime = (ap.getParameterMask() & MASK_DATETIME) != 0
+                        ? getDateTime(source.mCursor, fi) : 0;
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Get a listing of message in folder after applying filter.
      * @param folderElement Must contain a valid folder string != null
@@ -2230,6 +2295,7 @@ public class BluetoothMapContent {
         Cursor mmsCursor = null;
         Cursor emailCursor = null;
         Cursor imCursor = null;
+        List<ListingSource> sources = new ArrayList<ListingSource>(4);
         String limit = "";
         int countNum = ap.getMaxListCount();
         int offsetNum = ap.getStartOffset();
@@ -2262,21 +2328,12 @@ public class BluetoothMapContent {
                     smsCursor = mResolver.query(Sms.CONTENT_URI, SMS_PROJECTION, where, null,
                             Sms.DATE + " DESC" + limit);
                     if (smsCursor != null) {
-                        BluetoothMapMessageListingElement e = null;
                         // store column index so we dont have to look them up anymore (optimization)
                         if (D) {
                             Log.d(TAG, "Found " + smsCursor.getCount() + " sms messages.");
                         }
                         fi.setSmsColumns(smsCursor);
-                        while (smsCursor.moveToNext()) {
-                            if (matchAddresses(smsCursor, fi, ap)) {
-                                if (V) {
-                                    BluetoothMapUtils.printCursor(smsCursor);
-                                }
-                                e = element(smsCursor, fi, ap);
-                                bmList.add(e);
-                            }
-                        }
+                        addListingSource(sources, smsCursor, FilterInfo.TYPE_SMS, fi, ap);
                     }
                 }
             }
@@ -2304,21 +2361,12 @@ public class BluetoothMapContent {
                     mmsCursor = mResolver.query(Mms.CONTENT_URI, MMS_PROJECTION, where, null,
                             Mms.DATE + " DESC" + limit);
                     if (mmsCursor != null) {
-                        BluetoothMapMessageListingElement e = null;
                         // store column index so we dont have to look them up anymore (optimization)
                         fi.setMmsColumns(mmsCursor);
                         if (D) {
                             Log.d(TAG, "Found " + mmsCursor.getCount() + " mms messages.");
                         }
-                        while (mmsCursor.moveToNext()) {
-                            if (matchAddresses(mmsCursor, fi, ap)) {
-                                if (V) {
-                                    BluetoothMapUtils.printCursor(mmsCursor);
-                                }
-                                e = element(mmsCursor, fi, ap);
-                                bmList.add(e);
-                            }
-                        }
+                        addListingSource(sources, mmsCursor, FilterInfo.TYPE_MMS, fi, ap);
                     }
                 }
             }
@@ -2349,21 +2397,12 @@ public class BluetoothMapContent {
                                     where, null,
                                     BluetoothMapContract.MessageColumns.DATE + " DESC" + limit);
                     if (emailCursor != null) {
-                        BluetoothMapMessageListingElement e = null;
                         // store column index so we dont have to look them up anymore (optimization)
                         fi.setEmailMessageColumns(emailCursor);
-                        int cnt = 0;
                         if (D) {
                             Log.d(TAG, "Found " + emailCursor.getCount() + " email messages.");
                         }
-                        while (emailCursor.moveToNext()) {
-                            if (V) {
-                                BluetoothMapUtils.printCursor(emailCursor);
-                            }
-                            e = element(emailCursor, fi, ap);
-                            bmList.add(e);
-                        }
-                        //   emailCursor.close();
+                        addListingSource(sources, emailCursor, FilterInfo.TYPE_EMAIL, fi, ap);
                     }
                 }
             }
@@ -2392,50 +2431,39 @@ public class BluetoothMapContent {
                         BluetoothMapContract.BT_INSTANT_MESSAGE_PROJECTION, where, null,
                         BluetoothMapContract.MessageColumns.DATE + " DESC" + limit);
                 if (imCursor != null) {
-                    BluetoothMapMessageListingElement e = null;
                     // store column index so we dont have to look them up anymore (optimization)
                     fi.setImMessageColumns(imCursor);
                     if (D) {
                         Log.d(TAG, "Found " + imCursor.getCount() + " im messages.");
                     }
-                    while (imCursor.moveToNext()) {
-                        if (V) {
-                            BluetoothMapUtils.printCursor(imCursor);
-                        }
-                        e = element(imCursor, fi, ap);
-                        bmList.add(e);
-                    }
+                    addListingSource(sources, imCursor, FilterInfo.TYPE_IM, fi, ap);
                 }
             }
 
-            /* Enable this if post sorting and segmenting needed */
-            bmList.sort();
-            bmList.segment(ap.getMaxListCount(), offsetNum);
-            List<BluetoothMapMessageListingElement> list = bmList.getList();
-            int listSize = list.size();
-            Cursor tmpCursor = null;
-            for (int x = 0; x < listSize; x++) {
-                BluetoothMapMessageListingElement ele = list.get(x);
-                /* If OBEX "GET" request header includes "ParameterMask" with 'Type' NOT set,
-                 * then ele.getType() returns "null" even for a valid cursor.
-                 * Avoid NullPointerException in equals() check when 'mType' value is "null" */
-                TYPE tmpType = ele.getType();
-                if (smsCursor != null && ((TYPE.SMS_GSM).equals(tmpType) || (TYPE.SMS_CDMA).equals(
-                        tmpType))) {
-                    tmpCursor = smsCursor;
-                    fi.mMsgType = FilterInfo.TYPE_SMS;
-                } else if (mmsCursor != null && (TYPE.MMS).equals(tmpType)) {
-                    tmpCursor = mmsCursor;
-                    fi.mMsgType = FilterInfo.TYPE_MMS;
-                } else if (emailCursor != null && ((TYPE.EMAIL).equals(tmpType))) {
-                    tmpCursor = emailCursor;
-                    fi.mMsgType = FilterInfo.TYPE_EMAIL;
-                } else if (imCursor != null && ((TYPE.IM).equals(tmpType))) {
-                    tmpCursor = imCursor;
-                    fi.mMsgType = FilterInfo.TYPE_IM;
+            /* Each cursor is ordered newest first, merge them and only build the elements
+             * inside the requested window. On equal dates the message type queried first is
+             * listed first. */
+            int skip = offsetNum;
+            while (!sources.isEmpty() && (countNum <= 0 || bmList.getCount() < countNum)) {
+                ListingSource next = sources.get(0);
+                for (int i = 1; i < sources.size(); i++) {
+                    if (sources.get(i).mDateTime > next.mDateTime) {
+                        next = sources.get(i);
+                    }
                 }
-                if (tmpCursor != null) {
-                    tmpCursor.moveToPosition(ele.getCursorIndex());
+                Cursor tmpCursor = next.mCursor;
+                fi.mMsgType = next.mMsgType;
+                if (skip > 0) {
+                    skip--;
+                    if (!isRead(tmpCursor, fi)) {
+                        bmList.setHasUnread();
+                    }
+                } else {
+                    if (V) {
+                        BluetoothMapUtils.printCursor(tmpCursor);
+                    }
+                    BluetoothMapMessageListingElement ele = element(tmpCursor, fi, ap);
+                    bmList.add(ele);
                     setSenderAddressing(ele, tmpCursor, fi, ap);
                     setSenderName(ele, tmpCursor, fi, ap);
                     setRecipientAddressing(ele, tmpCursor, fi, ap);
@@ -2455,6 +2483,21 @@ public class BluetoothMapContent {
                         setThreadName(ele, tmpCursor, fi, ap);
                     }
                 }
+                if (!moveToNextListed(next, fi, ap)) {
+                    sources.remove(next);
+                }
+            }
+            /* Unread messages after the window still count, the rows are only checked for
+             * their read state. */
+            for (int i = 0; i < sources.size() && !bmList.hasUnread(); i++) {
+                ListingSource source = sources.get(i);
+                do {
+                    fi.mMsgType = source.mMsgType;
+                    if (!isRead(source.mCursor, fi)) {
+                        bmList.setHasUnread();
+                        break;
+                    }
+                } while (moveToNextListed(source, fi, ap));
             }
         } finally {
             if (emailCursor != null) {
@@ -3557,6 +3600,23 @@ public class BluetoothMapContent {
     public byte[] getMessage(String handle, BluetoothMapAppParams appParams,
             BluetoothMapFolderElement folderElement, String version)
             throws UnsupportedEncodingException {
+        return getBMessage(handle, appParams, folderElement, version, false).encode();
+    }
+
+    /**
+     * Get the bMessage for a GetMessage request, to be written to the client with
+     * {@link BluetoothMapbMessage#encode(java.io.OutputStream, ContentResolver)}.
+     * MMS attachments and email bodies are not read until the message is written.
+     */
+    public BluetoothMapbMessage getBMessage(String handle, BluetoothMapAppParams appParams,
+            BluetoothMapFolderElement folderElement, String version)
+            throws UnsupportedEncodingException {
+        return getBMessage(handle, appParams, folderElement, version, true);
+    }
+
+    private BluetoothMapbMessage getBMessage(String handle, BluetoothMapAppParams appParams,
+            BluetoothMapFolderElement folderElement, String version, boolean stream)
+            throws UnsupportedEncodingException {
         TYPE type = BluetoothMapUtils.getMsgTypeFromHandle(handle);
         mMessageVersion = version;
         long id = BluetoothMapUtils.getCpHandle(handle);
@@ -3567,13 +3627,13 @@ public class BluetoothMapContent {
         switch (type) {
             case SMS_GSM:
             case SMS_CDMA:
-                return getSmsMessage(id, appParams.getCharset());
+                return getSmsBMessage(id, appParams.getCharset());
             case MMS:
-                return getMmsMessage(id, appParams);
+                return getMmsBMessage(id, appParams, stream);
             case EMAIL:
-                return getEmailMessage(id, appParams, folderElement);
+                return getEmailBMessage(id, appParams, folderElement, stream);
             case IM:
-                return getIMMessage(id, appParams, folderElement);
+                return getIMBMessage(id, appParams, folderElement);
         }
         throw new IllegalArgumentException("Invalid message handle.");
     }
@@ -3655,6 +3715,11 @@ public class BluetoothMapContent {
     public static final int MAP_MESSAGE_CHARSET_UTF8 = 1;
 
     public byte[] getSmsMessage(long id, int charset) throws UnsupportedEncodingException {
+        return getSmsBMessage(id, charset).encode();
+    }
+
+    private BluetoothMapbMessageSms getSmsBMessage(long id, int charset)
+            throws UnsupportedEncodingException {
         int type, threadId;
         long time = -1;
         String msgBody;
@@ -3715,7 +3780,7 @@ public class BluetoothMapContent {
                 } else /*if (charset == MAP_MESSAGE_CHARSET_UTF8)*/ {
                     message.setSmsBody(msgBody);
                 }
-                return message.encode();
+                return message;
             }
         } finally {
             if (c != null) {
@@ -3723,7 +3788,7 @@ public class BluetoothMapContent {
             }
         }
 
-        return message.encode();
+        return message;
     }
 
     private void extractMmsAddresses(long id, BluetoothMapbMessageMime message) {
@@ -3804,12 +3869,37 @@ public class BluetoothMapContent {
         return retVal;
     }
 
+    /**
+     * Get the size of a mime data part without reading it.
+     * @return the size in bytes, or -1 if it is unknown
+     */
+    private long getRawDataPartSize(Uri partUri) {
+        ParcelFileDescriptor fd = null;
+        try {
+            fd = mResolver.openFileDescriptor(partUri, "r");
+            return fd != null ? fd.getStatSize() : -1;
+        } catch (FileNotFoundException e) {
+            Log.w(TAG, "Error opening part data", e);
+            return -1;
+        } finally {
+            if (fd != null) {
+                try {
+                    fd.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
     /**
      * Read out the mms parts and update the bMessage object provided i {@linkplain message}
      * @param id the content provider ID of the message
      * @param message the bMessage object to add the information to
+     * @param streamAttachments refer to non-text parts by Uri, to be read while the message is
+     * written, instead of reading them into the message
      */
-    private void extractMmsParts(long id, BluetoothMapbMessageMime message) {
+    private void extractMmsParts(long id, BluetoothMapbMessageMime message,
+            boolean streamAttachments) {
         /* Handling of filtering out non-text parts for exclude
          * attachments is handled within the bMessage object. */
         final String[] projection = null;
@@ -3852,8 +3942,15 @@ public class BluetoothMapContent {
                             part.mData = text.getBytes("UTF-8");
                             part.mCharsetName = "utf-8";
                         } else {
-                            part.mData =
-                                    readRawDataPart(Uri.parse(Mms.CONTENT_URI + "/part"), partId);
+                            Uri partsUri = Uri.parse(Mms.CONTENT_URI + "/part");
+                            if (streamAttachments && !isTextPart(contentType)) {
+                                part.mDataUri = Uri.parse(partsUri + "/" + partId);
+                                part.mDataSize = getRawDataPartSize(part.mDataUri);
+                            }
+                            if (part.mDataSize < 0) {
+                                part.mDataUri = null;
+                                part.mData = readRawDataPart(partsUri, partId);
+                            }
                             if (charset != null) {
                                 part.mCharsetName =
                                         CharacterSets.getMimeName(Integer.parseInt(charset));
@@ -3880,6 +3977,17 @@ public class BluetoothMapContent {
         }
     }
 
+    /**
+     * @return true if the part is encoded as text by {@link BluetoothMapbMessageMime}
+     */
+    private static boolean isTextPart(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toUpperCase();
+        return type.contains("TEXT") || type.contains("SMIL");
+    }
+
     /**
      * Read out the mms parts and update the bMessage object provided i {@linkplain message}
      * @param id the content provider ID of the message
@@ -3963,6 +4071,14 @@ public class BluetoothMapContent {
      */
     public byte[] getMmsMessage(long id, BluetoothMapAppParams appParams)
             throws UnsupportedEncodingException {
+        return getMmsBMessage(id, appParams, false).encode();
+    }
+
+    /**
+     * @param streamAttachments refer to the attachments by Uri instead of reading them
+     */
+    private BluetoothMapbMessageMime getMmsBMessage(long id, BluetoothMapAppParams appParams,
+            boolean streamAttachments) throws UnsupportedEncodingException {
         int msgBox, threadId;
         if (appParams.getCharset() == MAP_MESSAGE_CHARSET_NATIVE) {
             throw new IllegalArgumentException(
@@ -3997,13 +4113,13 @@ public class BluetoothMapContent {
                 // c.getInt(c.getColumnIndex(Mms.STATUS)); - don't know what this is
 
                 // The parts
-                extractMmsParts(id, message);
+                extractMmsParts(id, message, streamAttachments);
 
                 // The addresses
                 extractMmsAddresses(id, message);
 
 
-                return message.encode();
+                return message;
             }
         } finally {
             if (c != null) {
@@ -4011,7 +4127,7 @@ public class BluetoothMapContent {
             }
         }
 
-        return message.encode();
+        return message;
     }
 
     /**
@@ -4024,6 +4140,15 @@ public class BluetoothMapContent {
      */
     public byte[] getEmailMessage(long id, BluetoothMapAppParams appParams,
             BluetoothMapFolderElement currentFolder) throws UnsupportedEncodingException {
+        return getEmailBMessage(id, appParams, currentFolder, false).encode();
+    }
+
+    /**
+     * @param streamBody refer to the email body by Uri instead of reading it
+     */
+    private BluetoothMapbMessageEmail getEmailBMessage(long id, BluetoothMapAppParams appParams,
+            BluetoothMapFolderElement currentFolder, boolean streamBody)
+            throws UnsupportedEncodingException {
         // Log print out of application parameters set
         if (D && appParams != null) {
             Log.d(TAG,
@@ -4134,6 +4259,10 @@ public class BluetoothMapContent {
                 String attStr = (appParams.getAttachment() == 0) ? "/"
                         + BluetoothMapContract.FILE_MSG_NO_ATTACHMENTS : "";
                 Uri uri = Uri.parse(contentUri + "/" + id + attStr);
+                if (streamBody) {
+                    message.setEmailBodyUri(uri);
+                    return message;
+                }
 
                 // Get email message body content
                 int count = 0;
@@ -4172,7 +4301,7 @@ public class BluetoothMapContent {
                     } catch (IOException e) {
                     }
                 }
-                return message.encode();
+                return message;
             }
         } finally {
             if (c != null) {
@@ -4200,6 +4329,11 @@ public class BluetoothMapContent {
      */
     public byte[] getIMMessage(long id, BluetoothMapAppParams appParams,
             BluetoothMapFolderElement folderElement) throws UnsupportedEncodingException {
+        return getIMBMessage(id, appParams, folderElement).encode();
+    }
+
+    private BluetoothMapbMessageMime getIMBMessage(long id, BluetoothMapAppParams appParams,
+            BluetoothMapFolderElement folderElement) throws UnsupportedEncodingException {
         long threadId, folderId;
 
         if (appParams.getCharset() == MAP_MESSAGE_CHARSET_NATIVE) {
@@ -4291,7 +4425,7 @@ public class BluetoothMapContent {
 
                     }
                 }
-                return message.encode();
+                return message;
             }
         } finally {
             if (c != null) {
@@ -38,6 +38,7 @@ import android.os.Message;
 import android.os.ParcelFileDescriptor;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserManager;
 import android.provider.Telephony;
 import android.provider.Telephony.Mms;
@@ -59,6 +60,7 @@ import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
 import com.android.bluetooth.map.BluetoothMapbMessageMime.MimePart;
 import com.android.bluetooth.mapapi.BluetoothMapContract;
 import com.android.bluetooth.mapapi.BluetoothMapContract.MessageColumns;
+import com.android.internal.annotations.VisibleForTesting;
 
 import com.google.android.mms.pdu.PduHeaders;
 
@@ -79,6 +81,7 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.obex.ResponseCodes;
 
@@ -122,6 +125,16 @@ public class BluetoothMapContentObserver {
     //       cases.
     private static final long PROVIDER_ANR_TIMEOUT = 20 * DateUtils.SECOND_IN_MILLIS;
 
+    // The telephony provider notifies several times while storing a single message, changes
+    // notified within this delay are handled by one scan of the SMS and MMS tables.
+    private static final long SMS_MMS_CHANGE_DELAY = 100;
+    // Between full resyncs only new messages and messages dated within this window are
+    // scanned, changes to older messages are picked up by the next full resync.
+    private static final long SMS_MMS_RECENT_WINDOW = DateUtils.DAY_IN_MILLIS;
+    // The SMS and MMS tables are fully rescanned at most this often, and at the latest this
+    // long after an incremental scan.
+    private static final long SMS_MMS_FULL_RESYNC_INTERVAL = 30 * DateUtils.SECOND_IN_MILLIS;
+
     private Context mContext;
     private ContentResolver mResolver;
     private ContentProviderClient mProviderClient = null;
@@ -182,6 +195,21 @@ public class BluetoothMapContentObserver {
     private boolean mStorageUnlocked = false;
     private boolean mInitialized = false;
 
+    private final Handler mSmsMmsChangeHandler = new Handler();
+    private boolean mSmsMmsChangePending = false;
+    // Uptime of the last full scan of the SMS and MMS tables, -1 if there was none.
+    private volatile long mLastFullResyncTime = -1;
+    // Highest message id seen so far. initMsgList() runs on a binder thread, the scans on the
+    // handler thread, and the message list they lock on may be replaced in between.
+    private final AtomicLong mSmsHighWaterMark = new AtomicLong(-1);
+    private final AtomicLong mMmsHighWaterMark = new AtomicLong(-1);
+
+    private final AtomicLong mSmsMmsChangeNotifications = new AtomicLong();
+    private final AtomicLong mSmsMmsIncrementalScans = new AtomicLong();
+    private final AtomicLong mSmsMmsFullResyncs = new AtomicLong();
+    private final AtomicLong mSmsMmsRowsScanned = new AtomicLong();
+    private final AtomicLong mSmsMmsLastRowsScanned = new AtomicLong();
+
 
     static final String[] SMS_PROJECTION = new String[]{
             Sms._ID,
@@ -284,19 +312,19 @@ public class BluetoothMapContentObserver {
         boolean doInit = false;
         if (mEnableSmsMms) {
             if (mMsgListSms == null) {
-                setMsgListSms(new HashMap<Long, Msg>(), false);
+                setMsgListSms(new BluetoothMapMessageIndex(), false);
                 doInit = true;
             }
             mMsgListMms = mMasInstance.getMsgListMms();
             if (mMsgListMms == null) {
-                setMsgListMms(new HashMap<Long, Msg>(), false);
+                setMsgListMms(new BluetoothMapMessageIndex(), false);
                 doInit = true;
             }
         }
         if (mAccount != null) {
             mMsgListMsg = mMasInstance.getMsgListMsg();
             if (mMsgListMsg == null) {
-                setMsgListMsg(new HashMap<Long, Msg>(), false);
+                setMsgListMsg(new BluetoothMapMessageIndex(), false);
                 doInit = true;
             }
         }
@@ -338,11 +366,12 @@ public class BluetoothMapContentObserver {
         }
     }
 
-    private Map<Long, Msg> getMsgListSms() {
+    private BluetoothMapMessageIndex getMsgListSms() {
         return mMsgListSms;
     }
 
-    private void setMsgListSms(Map<Long, Msg> msgListSms, boolean changesDetected) {
+    private void setMsgListSms(BluetoothMapMessageIndex msgListSms,
+            boolean changesDetected) {
         mMsgListSms = msgListSms;
         if (changesDetected) {
             mMasInstance.updateFolderVersionCounter();
@@ -351,12 +380,13 @@ public class BluetoothMapContentObserver {
     }
 
 
-    private Map<Long, Msg> getMsgListMms() {
+    private BluetoothMapMessageIndex getMsgListMms() {
         return mMsgListMms;
     }
 
 
-    private void setMsgListMms(Map<Long, Msg> msgListMms, boolean changesDetected) {
+    private void setMsgListMms(BluetoothMapMessageIndex msgListMms,
+            boolean changesDetected) {
         mMsgListMms = msgListMms;
         if (changesDetected) {
             mMasInstance.updateFolderVersionCounter();
@@ -365,12 +395,13 @@ public class BluetoothMapContentObserver {
     }
 
 
-    private Map<Long, Msg> getMsgListMsg() {
+    private BluetoothMapMessageIndex getMsgListMsg() {
         return mMsgListMsg;
     }
 
 
-    private void setMsgListMsg(Map<Long, Msg> msgListMsg, boolean changesDetected) {
+    private void setMsgListMsg(BluetoothMapMessageIndex msgListMsg,
+            boolean changesDetected) {
         mMsgListMsg = msgListMsg;
         if (changesDetected) {
             mMasInstance.updateFolderVersionCounter();
@@ -830,7 +861,7 @@ public class BluetoothMapContentObserver {
         }
     }
 
-    /*package*/ class Msg {
+    /*package*/ static class Msg {
         public long id;
         public int type;               // Used as folder for SMS/MMS
         public int threadId;           // Used for SMS/MMS at delete
@@ -885,11 +916,11 @@ public class BluetoothMapContentObserver {
         }
     }
 
-    private Map<Long, Msg> mMsgListSms = null;
+    private BluetoothMapMessageIndex mMsgListSms = null;
 
-    private Map<Long, Msg> mMsgListMms = null;
+    private BluetoothMapMessageIndex mMsgListMms = null;
 
-    private Map<Long, Msg> mMsgListMsg = null;
+    private BluetoothMapMessageIndex mMsgListMsg = null;
 
     private Map<String, BluetoothMapConvoContactElement> mContactList = null;
 
@@ -1055,6 +1086,9 @@ public class BluetoothMapContentObserver {
         }
         mResolver.unregisterContentObserver(mObserver);
         mObserverRegistered = false;
+        mSmsMmsChangeHandler.removeCallbacks(mSmsMmsChangeRunnable);
+        mSmsMmsChangeHandler.removeCallbacks(mSmsMmsResyncRunnable);
+        mSmsMmsChangePending = false;
         if (mProviderClient != null) {
             mProviderClient.close();
             mProviderClient = null;
@@ -1078,8 +1112,7 @@ public class BluetoothMapContentObserver {
         mTransmitEvents = false;
         try {
             if (mEnableSmsMms) {
-                handleMsgListChangesSms();
-                handleMsgListChangesMms();
+                handleSmsMmsChanges(true);
             }
             if (mAccount != null) {
                 try {
@@ -1248,7 +1281,10 @@ public class BluetoothMapContentObserver {
         }
 
         if (mEnableSmsMms) {
-            HashMap<Long, Msg> msgListSms = new HashMap<Long, Msg>();
+            BluetoothMapMessageIndex msgListSms;
+            long smsHighWaterMark = -1;
+            long mmsHighWaterMark = -1;
+            long resyncTime = SystemClock.uptimeMillis();
 
             Cursor c;
             try {
@@ -1259,6 +1295,7 @@ public class BluetoothMapContentObserver {
             }
 
             try {
+                msgListSms = new BluetoothMapMessageIndex(c != null ? c.getCount() : 0);
                 if (c != null && c.moveToFirst()) {
                     do {
                         long id = c.getLong(c.getColumnIndex(Sms._ID));
@@ -1268,6 +1305,7 @@ public class BluetoothMapContentObserver {
 
                         Msg msg = new Msg(id, type, threadId, read);
                         msgListSms.put(id, msg);
+                        smsHighWaterMark = Math.max(smsHighWaterMark, id);
                     } while (c.moveToNext());
                 }
             } finally {
@@ -1279,12 +1317,14 @@ public class BluetoothMapContentObserver {
             synchronized (getMsgListSms()) {
                 getMsgListSms().clear();
                 setMsgListSms(msgListSms, true); // Set initial folder version counter
+                mSmsHighWaterMark.set(smsHighWaterMark);
             }
 
-            HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
+            BluetoothMapMessageIndex msgListMms;
 
             c = mResolver.query(Mms.CONTENT_URI, MMS_PROJECTION_SHORT, null, null, null);
             try {
+                msgListMms = new BluetoothMapMessageIndex(c != null ? c.getCount() : 0);
                 if (c != null && c.moveToFirst()) {
                     do {
                         long id = c.getLong(c.getColumnIndex(Mms._ID));
@@ -1294,6 +1334,7 @@ public class BluetoothMapContentObserver {
 
                         Msg msg = new Msg(id, type, threadId, read);
                         msgListMms.put(id, msg);
+                        mmsHighWaterMark = Math.max(mmsHighWaterMark, id);
                     } while (c.moveToNext());
                 }
             } finally {
@@ -1305,15 +1346,18 @@ public class BluetoothMapContentObserver {
             synchronized (getMsgListMms()) {
                 getMsgListMms().clear();
                 setMsgListMms(msgListMms, true); // Set initial folder version counter
+                mMmsHighWaterMark.set(mmsHighWaterMark);
             }
+            mLastFullResyncTime = resyncTime;
         }
 
         if (mAccount != null) {
-            HashMap<Long, Msg> msgList = new HashMap<Long, Msg>();
+            BluetoothMapMessageIndex msgList;
             Uri uri = mMessageUri;
             Cursor c = mProviderClient.query(uri, MSG_PROJECTION_SHORT, null, null, null);
 
             try {
+                msgList = new BluetoothMapMessageIndex(c != null ? c.getCount() : 0);
                 if (c != null && c.moveToFirst()) {
                     do {
                         long id = c.getLong(c.getColumnIndex(MessageColumns._ID));
@@ -1392,32 +1436,61 @@ public class BluetoothMapContentObserver {
         }
     }
 
-    private void handleMsgListChangesSms() {
+    /**
+     * Compares the SMS table with the tracked list of SMS messages and sends events for the
+     * differences.
+     *
+     * @param fullResync if false, only messages newer than the last one seen or dated within
+     * {@link #SMS_MMS_RECENT_WINDOW} are compared, and messages missing from the table are not
+     * reported as deleted
+     * @return the number of rows scanned
+     */
+    private int handleMsgListChangesSms(boolean fullResync) {
         if (V) {
-            Log.d(TAG, "handleMsgListChangesSms");
+            Log.d(TAG, "handleMsgListChangesSms fullResync=" + fullResync);
         }
 
-        HashMap<Long, Msg> msgListSms = new HashMap<Long, Msg>();
         boolean listChanged = false;
+        int rows = 0;
 
         Cursor c;
         synchronized (getMsgListSms()) {
+            BluetoothMapMessageIndex msgListSms = getMsgListSms();
+            if (fullResync) {
+                msgListSms.clearSeen();
+            }
+            String selection = null;
+            String[] selectionArgs = null;
+            if (!fullResync) {
+                selection = Sms._ID + " > ? OR " + Sms.DATE + " > ?";
+                selectionArgs = new String[] {
+                        Long.toString(mSmsHighWaterMark.get()),
+                        Long.toString(System.currentTimeMillis() - SMS_MMS_RECENT_WINDOW)
+                };
+            }
             if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                c = mResolver.query(Sms.CONTENT_URI, SMS_PROJECTION_SHORT, null, null, null);
+                c = mResolver.query(Sms.CONTENT_URI, SMS_PROJECTION_SHORT, selection,
+                        selectionArgs, null);
             } else {
-                c = mResolver.query(Sms.CONTENT_URI, SMS_PROJECTION_SHORT_EXT, null, null, null);
+                c = mResolver.query(Sms.CONTENT_URI, SMS_PROJECTION_SHORT_EXT, selection,
+                        selectionArgs, null);
             }
             try {
                 if (c != null && c.moveToFirst()) {
+                    int idIndex = c.getColumnIndexOrThrow(Sms._ID);
+                    int typeIndex = c.getColumnIndex(Sms.TYPE);
+                    int threadIdIndex = c.getColumnIndex(Sms.THREAD_ID);
+                    int readIndex = c.getColumnIndex(Sms.READ);
                     do {
-                        int idIndex = c.getColumnIndexOrThrow(Sms._ID);
+                        rows++;
                         if (c.isNull(idIndex)) {
                             throw new IllegalStateException("ID is null");
                         }
                         long id = c.getLong(idIndex);
-                        int type = c.getInt(c.getColumnIndex(Sms.TYPE));
-                        int threadId = c.getInt(c.getColumnIndex(Sms.THREAD_ID));
-                        int read = c.getInt(c.getColumnIndex(Sms.READ));
+                        int type = c.getInt(typeIndex);
+                        int threadId = c.getInt(threadIdIndex);
+                        int read = c.getInt(readIndex);
+                        raiseHighWaterMark(mSmsHighWaterMark, id);
 
                         Msg msg = getMsgListSms().remove(id);
 
@@ -1535,52 +1608,87 @@ public class BluetoothMapContentObserver {
                     c.close();
                 }
             }
-            String eventType = EVENT_TYPE_DELETE;
-            for (Msg msg : getMsgListSms().values()) {
-                // "old_folder" used only for MessageShift event
-                if (mMapEventReportVersion >= BluetoothMapUtils.MAP_EVENT_REPORT_V12) {
-                    eventType = EVENT_TYPE_REMOVED;
-                    if (V) Log.v(TAG," sent EVENT_TYPE_REMOVED");
+            if (fullResync) {
+                String eventType = EVENT_TYPE_DELETE;
+                for (Msg msg : msgListSms.removeUnseen()) {
+                    // "old_folder" used only for MessageShift event
+                    if (mMapEventReportVersion >= BluetoothMapUtils.MAP_EVENT_REPORT_V12) {
+                        eventType = EVENT_TYPE_REMOVED;
+                        if (V) Log.v(TAG," sent EVENT_TYPE_REMOVED");
+                    }
+                    Event evt = new Event(eventType, msg.id, getSmsFolderName(msg.type), null,
+                            mSmsType);
+                    sendEvent(evt);
+                    listChanged = true;
                 }
-                Event evt = new Event(eventType, msg.id, getSmsFolderName(msg.type), null,
-                        mSmsType);
-                sendEvent(evt);
-                listChanged = true;
             }
 
             setMsgListSms(msgListSms, listChanged);
         }
+        return rows;
     }
 
-    private void handleMsgListChangesMms() {
+    /**
+     * Compares the MMS table with the tracked list of MMS messages and sends events for the
+     * differences.
+     *
+     * @param fullResync if false, only messages newer than the last one seen or dated within
+     * {@link #SMS_MMS_RECENT_WINDOW} are compared, and messages missing from the table are not
+     * reported as deleted
+     * @return the number of rows scanned
+     */
+    private int handleMsgListChangesMms(boolean fullResync) {
         if (V) {
-            Log.d(TAG, "handleMsgListChangesMms");
+            Log.d(TAG, "handleMsgListChangesMms fullResync=" + fullResync);
         }
 
-        HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
         boolean listChanged = false;
+        int rows = 0;
         Cursor c;
         synchronized (getMsgListMms()) {
+            BluetoothMapMessageIndex msgListMms = getMsgListMms();
+            if (fullResync) {
+                msgListMms.clearSeen();
+            }
+            String selection = null;
+            String[] selectionArgs = null;
+            if (!fullResync) {
+                // MMS dates are in seconds.
+                selection = Mms._ID + " > ? OR " + Mms.DATE + " > ?";
+                selectionArgs = new String[] {
+                        Long.toString(mMmsHighWaterMark.get()),
+                        Long.toString((System.currentTimeMillis() - SMS_MMS_RECENT_WINDOW)
+                                / DateUtils.SECOND_IN_MILLIS)
+                };
+            }
             if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                c = mResolver.query(Mms.CONTENT_URI, MMS_PROJECTION_SHORT, null, null, null);
+                c = mResolver.query(Mms.CONTENT_URI, MMS_PROJECTION_SHORT, selection,
+                        selectionArgs, null);
             } else {
-                c = mResolver.query(Mms.CONTENT_URI, MMS_PROJECTION_SHORT_EXT, null, null, null);
+                c = mResolver.query(Mms.CONTENT_URI, MMS_PROJECTION_SHORT_EXT, selection,
+                        selectionArgs, null);
             }
 
             try {
                 if (c != null && c.moveToFirst()) {
+                    int idIndex = c.getColumnIndexOrThrow(Mms._ID);
+                    int typeIndex = c.getColumnIndex(Mms.MESSAGE_BOX);
+                    int mtypeIndex = c.getColumnIndex(Mms.MESSAGE_TYPE);
+                    int threadIdIndex = c.getColumnIndex(Mms.THREAD_ID);
+                    int readIndex = c.getColumnIndex(Mms.READ);
                     do {
-                        int idIndex = c.getColumnIndexOrThrow(Mms._ID);
+                        rows++;
                         if (c.isNull(idIndex)) {
                             throw new IllegalStateException("ID is null");
                         }
                         long id = c.getLong(idIndex);
-                        int type = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX));
-                        int mtype = c.getInt(c.getColumnIndex(Mms.MESSAGE_TYPE));
-                        int threadId = c.getInt(c.getColumnIndex(Mms.THREAD_ID));
+                        int type = c.getInt(typeIndex);
+                        int mtype = c.getInt(mtypeIndex);
+                        int threadId = c.getInt(threadIdIndex);
                         // TODO: Go through code to see if we have an issue with mismatch in types
                         //       for threadId. Seems to be a long in DB??
-                        int read = c.getInt(c.getColumnIndex(Mms.READ));
+                        int read = c.getInt(readIndex);
+                        raiseHighWaterMark(mMmsHighWaterMark, id);
 
                         Msg msg = getMsgListMms().remove(id);
 
@@ -1708,15 +1816,18 @@ public class BluetoothMapContentObserver {
                     c.close();
                 }
             }
-            for (Msg msg : getMsgListMms().values()) {
-                // "old_folder" used only for MessageShift event
-                Event evt = new Event(EVENT_TYPE_DELETE, msg.id, getMmsFolderName(msg.type), null,
-                        TYPE.MMS);
-                sendEvent(evt);
-                listChanged = true;
+            if (fullResync) {
+                for (Msg msg : msgListMms.removeUnseen()) {
+                    // "old_folder" used only for MessageShift event
+                    Event evt = new Event(EVENT_TYPE_DELETE, msg.id, getMmsFolderName(msg.type),
+                            null, TYPE.MMS);
+                    sendEvent(evt);
+                    listChanged = true;
+                }
             }
             setMsgListMms(msgListMms, listChanged);
         }
+        return rows;
     }
 
     private void handleMsgListChangesMsg(Uri uri) throws RemoteException {
@@ -1726,7 +1837,7 @@ public class BluetoothMapContentObserver {
 
         // TODO: Change observer to handle accountId and message ID if present
 
-        HashMap<Long, Msg> msgList = new HashMap<Long, Msg>();
+        BluetoothMapMessageIndex msgList = getMsgListMsg();
         Cursor c;
         boolean listChanged = false;
         if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
@@ -1737,6 +1848,7 @@ public class BluetoothMapContentObserver {
             c = mProviderClient.query(mMessageUri, MSG_PROJECTION_SHORT_EXT2, null, null, null);
         }
         synchronized (getMsgListMsg()) {
+            msgList.clearSeen();
             try {
                 if (c != null && c.moveToFirst()) {
                     do {
@@ -1872,7 +1984,7 @@ public class BluetoothMapContentObserver {
                 }
             }
             // For all messages no longer in the database send a delete notification
-            for (Msg msg : getMsgListMsg().values()) {
+            for (Msg msg : msgList.removeUnseen()) {
                 BluetoothMapFolderElement oldFolderElement = mFolders.getFolderById(msg.folderId);
                 String oldFolder;
                 listChanged = true;
@@ -1927,9 +2039,75 @@ public class BluetoothMapContentObserver {
         }
         // TODO: check to see if there could be problem with IM and SMS in one instance
         if (mEnableSmsMms) {
-            handleMsgListChangesSms();
-            handleMsgListChangesMms();
+            mSmsMmsChangeNotifications.incrementAndGet();
+            if (!mSmsMmsChangePending) {
+                mSmsMmsChangePending = true;
+                mSmsMmsChangeHandler.postDelayed(mSmsMmsChangeRunnable, SMS_MMS_CHANGE_DELAY);
+            }
+        }
+    }
+
+    private final Runnable mSmsMmsChangeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mSmsMmsChangePending = false;
+            long now = SystemClock.uptimeMillis();
+            boolean fullResync = mLastFullResyncTime < 0
+                    || now - mLastFullResyncTime >= SMS_MMS_FULL_RESYNC_INTERVAL;
+            handleSmsMmsChanges(fullResync);
+            if (!fullResync) {
+                // Catch up on changes to older messages once the interval has passed.
+                mSmsMmsChangeHandler.removeCallbacks(mSmsMmsResyncRunnable);
+                mSmsMmsChangeHandler.postAtTime(mSmsMmsResyncRunnable,
+                        mLastFullResyncTime + SMS_MMS_FULL_RESYNC_INTERVAL);
+            }
+        }
+    };
+
+    private final Runnable mSmsMmsResyncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            handleSmsMmsChanges(true);
         }
+    };
+
+    @VisibleForTesting
+    void handleSmsMmsChanges(boolean fullResync) {
+        if (fullResync) {
+            mSmsMmsChangeHandler.removeCallbacks(mSmsMmsResyncRunnable);
+            mLastFullResyncTime = SystemClock.uptimeMillis();
+            mSmsMmsFullResyncs.incrementAndGet();
+        } else {
+            mSmsMmsIncrementalScans.incrementAndGet();
+        }
+        long rows = handleMsgListChangesSms(fullResync) + handleMsgListChangesMms(fullResync);
+        mSmsMmsRowsScanned.addAndGet(rows);
+        mSmsMmsLastRowsScanned.set(rows);
+    }
+
+    private static void raiseHighWaterMark(AtomicLong highWaterMark, long id) {
+        long current = highWaterMark.get();
+        while (id > current && !highWaterMark.compareAndSet(current, id)) {
+            current = highWaterMark.get();
+        }
+    }
+
+    /* package */ void dump(StringBuilder sb) {
+        if (!mEnableSmsMms) {
+            return;
+        }
+        long notifications = mSmsMmsChangeNotifications.get();
+        long rows = mSmsMmsRowsScanned.get();
+        sb.append("      SMS/MMS change notifications: ").append(notifications)
+                .append(", incremental scans: ").append(mSmsMmsIncrementalScans.get())
+                .append(", full resyncs: ").append(mSmsMmsFullResyncs.get()).append("\n");
+        sb.append("      SMS/MMS rows scanned: ").append(rows)
+                .append(", last scan: ").append(mSmsMmsLastRowsScanned.get())
+                .append(", per notification: ")
+                .append(notifications > 0 ? rows / notifications : 0).append("\n");
+        sb.append("      SMS/MMS highest id: ").append(mSmsHighWaterMark.get())
+                .append("/").append(mMmsHighWaterMark.get())
+                .append(", last full resync: ").append(mLastFullResyncTime).append("\n");
     }
 
     private void handleContactListChanges(Uri uri) {
@@ -2213,6 +2391,9 @@ public class BluetoothMapContentObserver {
                     }
                 }
             }
+            if (msg != null) {
+                getMsgListMsg().put(handle, msg);
+            }
             if (V) {
                 BluetoothMapFolderElement folderElement;
                 String folderName = "unknown";
@@ -2252,6 +2433,7 @@ public class BluetoothMapContentObserver {
                         Msg msg = getMsgListMms().get(handle);
                         if (msg != null) { // This will always be the case
                             msg.threadId = DELETED_THREAD_ID;
+                            getMsgListMms().put(handle, msg);
                         }
                     }
                     updateThreadId(uri, Mms.THREAD_ID, DELETED_THREAD_ID);
@@ -2308,6 +2490,7 @@ public class BluetoothMapContentObserver {
                             // the event handler will se the update as the message have been shifted
                             // from INBOX to old-folder. (Errata 5591 clearifies this)
                             msg.type = Mms.MESSAGE_BOX_INBOX;
+                            getMsgListMms().put(handle, msg);
                         }
                     }
                     updateThreadId(uri, Mms.THREAD_ID, oldThreadId);
@@ -2338,6 +2521,7 @@ public class BluetoothMapContentObserver {
                         Msg msg = getMsgListSms().get(handle);
                         if (msg != null) { // This will always be the case
                             msg.threadId = DELETED_THREAD_ID;
+                            getMsgListSms().put(handle, msg);
                         }
                     }
                     /* Set deleted thread id */
@@ -2389,6 +2573,7 @@ public class BluetoothMapContentObserver {
                              * from INBOX to old-folder. (Errata 5591 clearifies this)
                              * */
                             msg.type = Sms.MESSAGE_TYPE_INBOX;
+                            getMsgListSms().put(handle, msg);
                         }
                     }
                     updateThreadId(uri, Sms.THREAD_ID, oldThreadId);
@@ -2480,6 +2665,7 @@ public class BluetoothMapContentObserver {
                 Msg msg = getMsgListSms().get(handle);
                 if (msg != null) { // This will always be the case
                     msg.flagRead = statusValue;
+                    getMsgListSms().put(handle, msg);
                 }
             }
             count = mResolver.update(uri, contentValues, null, null);
@@ -2498,6 +2684,7 @@ public class BluetoothMapContentObserver {
                 Msg msg = getMsgListMms().get(handle);
                 if (msg != null) { // This will always be the case
                     msg.flagRead = statusValue;
+                    getMsgListMms().put(handle, msg);
                 }
             }
             count = mResolver.update(uri, contentValues, null, null);
@@ -2513,6 +2700,7 @@ public class BluetoothMapContentObserver {
                 Msg msg = getMsgListMsg().get(handle);
                 if (msg != null) { // This will always be the case
                     msg.flagRead = statusValue;
+                    getMsgListMsg().put(handle, msg);
                 }
             }
             count = mProviderClient.update(uri, contentValues, null, null);
@@ -3474,7 +3662,7 @@ public class BluetoothMapContentObserver {
      * @param result The result
      */
     public static void actionMmsSent(Context context, Intent intent, int result,
-            Map<Long, Msg> mmsMsgList) {
+            BluetoothMapMessageIndex mmsMsgList) {
         /*
          * if transparent:
          *   delete message and send notification(regardless of result)
@@ -3522,6 +3710,7 @@ public class BluetoothMapContentObserver {
                     Msg msg = mmsMsgList.get(handle);
                     if (msg != null) {
                         msg.type = Mms.MESSAGE_BOX_OUTBOX;
+                        mmsMsgList.put(handle, msg);
                     }
                 }
             }
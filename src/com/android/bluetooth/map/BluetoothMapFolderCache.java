@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.provider.Telephony.MmsSms;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.bluetooth.mapapi.BluetoothMapContract;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the folder tree and of the size-only message listings of a MAS instance.
+ *
+ * Car kits poll the listing size and new message flag of the same folders over and over, and
+ * build the email folder tree on every connect. Both are kept here between requests and
+ * between connections, and are dropped when the content providers report a change:
+ * a change in the messages drops the listing sizes, a change in the email folders drops
+ * the folder tree as well. The cache observes the providers on its own, as the
+ * {@link BluetoothMapContentObserver} of the instance only exists while connected.
+ * Each drop bumps a version, and a lookup that raced with a drop is returned but not cached.
+ * @hide
+ */
+/*package*/ class BluetoothMapFolderCache {
+    private static final String TAG = "BluetoothMapFolderCache";
+    private static final boolean D = BluetoothMapService.DEBUG;
+
+    private static final int MAX_LISTING_SIZES = 64;
+
+    /**
+     * The size and new message flag of a message listing.
+     */
+    static class ListingSize {
+        final int mSize;
+        final boolean mHasUnread;
+
+        ListingSize(int size, boolean hasUnread) {
+            mSize = size;
+            mHasUnread = hasUnread;
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final BluetoothMapAccountItem mAccount;
+    private final boolean mEnableSmsMms;
+
+    private volatile BluetoothMapFolderElement mFolders;
+    private final LruCache<String, ListingSize> mListingSizes =
+            new LruCache<String, ListingSize>(MAX_LISTING_SIZES);
+    private final AtomicInteger mFoldersVersion = new AtomicInteger();
+    private final AtomicInteger mListingSizesVersion = new AtomicInteger();
+    private final AtomicLong mFolderHits = new AtomicLong();
+    private final AtomicLong mFolderMisses = new AtomicLong();
+
+    private final ContentObserver mMessagesObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidateListingSizes();
+        }
+    };
+
+    private final ContentObserver mFoldersObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidateFolders();
+        }
+    };
+
+    BluetoothMapFolderCache(ContentResolver resolver, BluetoothMapAccountItem account,
+            boolean enableSmsMms) {
+        mResolver = resolver;
+        mAccount = account;
+        mEnableSmsMms = enableSmsMms;
+    }
+
+    /**
+     * Starts observing the providers of the instance. Nothing is cached before this.
+     */
+    void start() {
+        if (mEnableSmsMms) {
+            mResolver.registerContentObserver(MmsSms.CONTENT_URI, true, mMessagesObserver);
+        }
+        if (mAccount != null) {
+            mResolver.registerContentObserver(Uri.parse(mAccount.mBase_uri_no_account + "/"
+                    + BluetoothMapContract.TABLE_MESSAGE), true, mMessagesObserver);
+            mResolver.registerContentObserver(Uri.parse(mAccount.mBase_uri + "/"
+                    + BluetoothMapContract.TABLE_MESSAGE), true, mMessagesObserver);
+            if (mAccount.getType() == BluetoothMapUtils.TYPE.EMAIL) {
+                mResolver.registerContentObserver(Uri.parse(mAccount.mBase_uri_no_account + "/"
+                        + BluetoothMapContract.TABLE_FOLDER), true, mFoldersObserver);
+                mResolver.registerContentObserver(Uri.parse(mAccount.mBase_uri + "/"
+                        + BluetoothMapContract.TABLE_FOLDER), true, mFoldersObserver);
+            }
+        }
+        // Anything cached before now was not observed.
+        invalidateFolders();
+    }
+
+    void stop() {
+        mResolver.unregisterContentObserver(mMessagesObserver);
+        mResolver.unregisterContentObserver(mFoldersObserver);
+        invalidateFolders();
+    }
+
+    /**
+     * Returns the version of the folder tree, to pass to {@link #setFolders} when building it.
+     */
+    int getFoldersVersion() {
+        return mFoldersVersion.get();
+    }
+
+    /**
+     * Returns the root of the cached folder tree, or null if it must be built.
+     */
+    BluetoothMapFolderElement getFolders() {
+        BluetoothMapFolderElement folders = mFolders;
+        if (folders != null) {
+            mFolderHits.incrementAndGet();
+            // A listing interrupted by a failure may have left the root ignored.
+            folders.setIngore(false);
+        } else {
+            mFolderMisses.incrementAndGet();
+        }
+        return folders;
+    }
+
+    /**
+     * Caches the root of a folder tree, unless the folders changed since version was read.
+     */
+    void setFolders(BluetoothMapFolderElement folders, int version) {
+        synchronized (mFoldersVersion) {
+            if (version == mFoldersVersion.get()) {
+                mFolders = folders;
+            }
+        }
+    }
+
+    /**
+     * Returns the size and new message flag of the message listing of folder, as
+     * {@link BluetoothMapContent#msgListingSize} and
+     * {@link BluetoothMapContent#msgListingHasUnread} would.
+     */
+    ListingSize getListingSize(BluetoothMapFolderElement folder, BluetoothMapAppParams ap,
+            BluetoothMapContent content) {
+        String key = getListingSizeKey(folder, ap);
+        ListingSize listingSize = key != null ? mListingSizes.get(key) : null;
+        if (listingSize != null) {
+            return listingSize;
+        }
+        int version = mListingSizesVersion.get();
+        listingSize = new ListingSize(content.msgListingSize(folder, ap),
+                content.msgListingHasUnread(folder, ap));
+        if (key != null && version == mListingSizesVersion.get()) {
+            mListingSizes.put(key, listingSize);
+        }
+        return listingSize;
+    }
+
+    /**
+     * Returns the key of a listing, or null if its filters are too specific to be worth
+     * caching.
+     */
+    private static String getListingSizeKey(BluetoothMapFolderElement folder,
+            BluetoothMapAppParams ap) {
+        if (folder.shouldIgnore() || ap.getFilterRecipient() != null
+                || ap.getFilterOriginator() != null
+                || ap.getFilterMsgHandle() != BluetoothMapAppParams.INVALID_VALUE_PARAMETER
+                || ap.getFilterConvoId() != null) {
+            return null;
+        }
+        return folder.getFullPath() + ":" + ap.getFilterMessageType() + ":"
+                + ap.getFilterPeriodBegin() + ":" + ap.getFilterPeriodEnd() + ":"
+                + ap.getFilterReadStatus() + ":" + ap.getFilterPriority();
+    }
+
+    @VisibleForTesting
+    void invalidateListingSizes() {
+        mListingSizesVersion.incrementAndGet();
+        mListingSizes.evictAll();
+    }
+
+    @VisibleForTesting
+    void invalidateFolders() {
+        if (D) {
+            Log.d(TAG, "Folders changed, dropping cached folder tree");
+        }
+        synchronized (mFoldersVersion) {
+            mFoldersVersion.incrementAndGet();
+            mFolders = null;
+        }
+        // The listing sizes are keyed by folder path, which may now refer to another folder.
+        invalidateListingSizes();
+    }
+
+    void dump(StringBuilder sb) {
+        sb.append("      Folder tree version: ").append(mFoldersVersion.get())
+                .append(", cached: ").append(mFolders != null)
+                .append(", hits: ").append(mFolderHits.get())
+                .append(", misses: ").append(mFolderMisses.get()).append("\n");
+        sb.append("      Listing size cache version: ").append(mListingSizesVersion.get())
+                .append(", ").append(mListingSizes.size()).append("/")
+                .append(mListingSizes.maxSize()).append(" entries, hits: ")
+                .append(mListingSizes.hitCount()).append(", misses: ")
+                .append(mListingSizes.missCount()).append("\n");
+    }
+}
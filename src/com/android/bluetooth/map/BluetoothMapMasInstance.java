@@ -27,7 +27,6 @@ import android.util.Log;
 import com.android.bluetooth.BluetoothObexTransport;
 import com.android.bluetooth.IObexConnectionHandler;
 import com.android.bluetooth.ObexServerSockets;
-import com.android.bluetooth.map.BluetoothMapContentObserver.Msg;
 import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
 import com.android.bluetooth.sdp.SdpManager;
 
@@ -88,14 +87,15 @@ public class BluetoothMapMasInstance implements IObexConnectionHandler {
     private boolean mEnableSmsMms = false;
     BluetoothMapContentObserver mObserver;
     private BluetoothMapObexServer mMapServer;
+    private BluetoothMapFolderCache mFolderCache = null;
     private AtomicLong mDbIndetifier = new AtomicLong();
     private AtomicLong mFolderVersionCounter = new AtomicLong(0);
     private AtomicLong mSmsMmsConvoListVersionCounter = new AtomicLong(0);
     private AtomicLong mImEmailConvoListVersionCounter = new AtomicLong(0);
 
-    private Map<Long, Msg> mMsgListSms = null;
-    private Map<Long, Msg> mMsgListMms = null;
-    private Map<Long, Msg> mMsgListMsg = null;
+    private BluetoothMapMessageIndex mMsgListSms = null;
+    private BluetoothMapMessageIndex mMsgListMms = null;
+    private BluetoothMapMessageIndex mMsgListMsg = null;
 
     private Map<String, BluetoothMapConvoContactElement> mContactList;
 
@@ -196,27 +196,27 @@ public class BluetoothMapMasInstance implements IObexConnectionHandler {
         mImEmailConvoListVersionCounter.incrementAndGet();
     }
 
-    /* package */ Map<Long, Msg> getMsgListSms() {
+    /* package */ BluetoothMapMessageIndex getMsgListSms() {
         return mMsgListSms;
     }
 
-    /* package */ void setMsgListSms(Map<Long, Msg> msgListSms) {
+    /* package */ void setMsgListSms(BluetoothMapMessageIndex msgListSms) {
         mMsgListSms = msgListSms;
     }
 
-    /* package */ Map<Long, Msg> getMsgListMms() {
+    /* package */ BluetoothMapMessageIndex getMsgListMms() {
         return mMsgListMms;
     }
 
-    /* package */ void setMsgListMms(Map<Long, Msg> msgListMms) {
+    /* package */ void setMsgListMms(BluetoothMapMessageIndex msgListMms) {
         mMsgListMms = msgListMms;
     }
 
-    /* package */ Map<Long, Msg> getMsgListMsg() {
+    /* package */ BluetoothMapMessageIndex getMsgListMsg() {
         return mMsgListMsg;
     }
 
-    /* package */ void setMsgListMsg(Map<Long, Msg> msgListMsg) {
+    /* package */ void setMsgListMsg(BluetoothMapMessageIndex msgListMsg) {
         mMsgListMsg = msgListMsg;
     }
 
@@ -259,6 +259,11 @@ public class BluetoothMapMasInstance implements IObexConnectionHandler {
         return mFolderVersionCounter.get();
     }
 
+    /* package */
+    BluetoothMapFolderCache getFolderCache() {
+        return mFolderCache;
+    }
+
     /* package */
     long getCombinedConvoListVersionCounter() {
         long combinedVersionCounter = mSmsMmsConvoListVersionCounter.get();
@@ -389,6 +394,11 @@ public class BluetoothMapMasInstance implements IObexConnectionHandler {
             }
 
             mMnsClient = mnsClient;
+            if (mFolderCache == null) {
+                mFolderCache = new BluetoothMapFolderCache(mContext.getContentResolver(),
+                        mAccount, mEnableSmsMms);
+                mFolderCache.start();
+            }
             mObserver = new BluetoothMapContentObserver(mContext, mMnsClient, this, mAccount,
                     mEnableSmsMms);
             mObserver.init();
@@ -418,6 +428,30 @@ public class BluetoothMapMasInstance implements IObexConnectionHandler {
         return false;
     }
 
+    /* package */ void dump(StringBuilder sb) {
+        dumpMsgList(sb, "SMS", mMsgListSms);
+        dumpMsgList(sb, "MMS", mMsgListMms);
+        dumpMsgList(sb, "Messages", mMsgListMsg);
+        BluetoothMapFolderCache folderCache = mFolderCache;
+        if (folderCache != null) {
+            folderCache.dump(sb);
+        }
+        BluetoothMapContentObserver observer = mObserver;
+        if (observer != null) {
+            observer.dump(sb);
+        }
+    }
+
+    private static void dumpMsgList(StringBuilder sb, String name,
+            BluetoothMapMessageIndex msgList) {
+        if (msgList == null) {
+            return;
+        }
+        synchronized (msgList) {
+            sb.append("      ").append(name).append(" index: ").append(msgList).append("\n");
+        }
+    }
+
     /**
      * Check if this instance is started.
      * @return true if started
@@ -439,6 +473,10 @@ public class BluetoothMapMasInstance implements IObexConnectionHandler {
             mObserver.deinit();
             mObserver = null;
         }
+        if (mFolderCache != null) {
+            mFolderCache.stop();
+            mFolderCache = null;
+        }
 
         removeSdpRecord();
 
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import com.android.bluetooth.map.BluetoothMapContentObserver.Msg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact index of the messages known to a {@link BluetoothMapContentObserver}, keyed by
+ * message id.
+ *
+ * The fields of a {@link Msg} are stored in parallel primitive arrays of an open addressed
+ * hash table, so a message costs 18 bytes, plus 16 bytes for the folder ids once an email or
+ * IM message is stored, instead of a boxed key, a map entry and a Msg object.
+ * {@link #get} and {@link #remove} return a copy of the stored message, changes to it must be
+ * written back with {@link #put}.
+ *
+ * A full resync diffs the table in place: {@link #clearSeen} before the scan, {@link #put}
+ * every message still present, and {@link #removeUnseen} returns the deleted ones.
+ *
+ * Not thread safe, users synchronize on the index itself.
+ * @hide
+ */
+/*package*/ class BluetoothMapMessageIndex {
+    private static final int MIN_CAPACITY = 16;
+
+    private static final byte FLAG_USED = 1;
+    private static final byte FLAG_SEEN = 1 << 1;
+    private static final byte FLAG_LOCAL_INITIATED_SEND = 1 << 2;
+    private static final byte FLAG_TRANSPARENT = 1 << 3;
+
+    private long[] mIds;
+    private int[] mTypes;
+    private int[] mThreadIds;
+    private byte[] mReadFlags;
+    private byte[] mFlags;
+    // Only allocated once a message with a folder id is stored.
+    private long[] mFolderIds;
+    private long[] mOldFolderIds;
+    private int mMask;
+    private int mSize;
+
+    BluetoothMapMessageIndex() {
+        this(0);
+    }
+
+    BluetoothMapMessageIndex(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity / 4 * 3 < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean containsKey(long id) {
+        return indexOf(id) >= 0;
+    }
+
+    /**
+     * Returns a copy of the message, or null if it is not in the index.
+     */
+    Msg get(long id) {
+        int index = indexOf(id);
+        return index < 0 ? null : toMsg(index);
+    }
+
+    /**
+     * Removes the message and returns a copy of it, or null if it was not in the index.
+     */
+    Msg remove(long id) {
+        int index = indexOf(id);
+        if (index < 0) {
+            return null;
+        }
+        Msg msg = toMsg(index);
+        removeAt(index);
+        return msg;
+    }
+
+    /**
+     * Stores the fields of the message under the id, and marks it seen.
+     */
+    void put(long id, Msg msg) {
+        if (mSize >= (mMask + 1) / 4 * 3) {
+            resize((mMask + 1) * 2);
+        }
+        int index = slot(id);
+        while ((mFlags[index] & FLAG_USED) != 0 && mIds[index] != id) {
+            index = (index + 1) & mMask;
+        }
+        if ((mFlags[index] & FLAG_USED) == 0) {
+            mSize++;
+        }
+        if (mFolderIds == null && (msg.folderId != -1 || msg.oldFolderId != -1)) {
+            mFolderIds = new long[mMask + 1];
+            mOldFolderIds = new long[mMask + 1];
+            Arrays.fill(mFolderIds, -1);
+            Arrays.fill(mOldFolderIds, -1);
+        }
+        mIds[index] = id;
+        mTypes[index] = msg.type;
+        mThreadIds[index] = msg.threadId;
+        mReadFlags[index] = (byte) msg.flagRead;
+        if (mFolderIds != null) {
+            mFolderIds[index] = msg.folderId;
+            mOldFolderIds[index] = msg.oldFolderId;
+        }
+        byte flags = FLAG_USED | FLAG_SEEN;
+        if (msg.localInitiatedSend) {
+            flags |= FLAG_LOCAL_INITIATED_SEND;
+        }
+        if (msg.transparent) {
+            flags |= FLAG_TRANSPARENT;
+        }
+        mFlags[index] = flags;
+    }
+
+    void clear() {
+        Arrays.fill(mFlags, (byte) 0);
+        mSize = 0;
+    }
+
+    /**
+     * Marks all messages as not seen, before diffing the index against the message store.
+     */
+    void clearSeen() {
+        for (int i = 0; i <= mMask; i++) {
+            mFlags[i] &= ~FLAG_SEEN;
+        }
+    }
+
+    /**
+     * Removes the messages not stored since the last {@link #clearSeen}.
+     *
+     * @return copies of the removed messages
+     */
+    List<Msg> removeUnseen() {
+        List<Msg> removed = new ArrayList<Msg>();
+        for (int i = 0; i <= mMask; i++) {
+            if ((mFlags[i] & (FLAG_USED | FLAG_SEEN)) == FLAG_USED) {
+                removed.add(toMsg(i));
+            }
+        }
+        for (Msg msg : removed) {
+            remove(msg.id);
+        }
+        return removed;
+    }
+
+    /**
+     * Returns the approximate heap size of the index in bytes.
+     */
+    long getFootprint() {
+        long perSlot = 8 + 4 + 4 + 1 + 1;
+        if (mFolderIds != null) {
+            perSlot += 8 + 8;
+        }
+        return perSlot * (mMask + 1);
+    }
+
+    @Override
+    public String toString() {
+        return mSize + " messages, capacity " + (mMask + 1) + ", " + getFootprint() + " bytes";
+    }
+
+    private void allocate(int capacity) {
+        mIds = new long[capacity];
+        mTypes = new int[capacity];
+        mThreadIds = new int[capacity];
+        mReadFlags = new byte[capacity];
+        mFlags = new byte[capacity];
+        if (mFolderIds != null) {
+            mFolderIds = new long[capacity];
+            mOldFolderIds = new long[capacity];
+        }
+        mMask = capacity - 1;
+    }
+
+    private void resize(int capacity) {
+        long[] ids = mIds;
+        int[] types = mTypes;
+        int[] threadIds = mThreadIds;
+        byte[] readFlags = mReadFlags;
+        byte[] flags = mFlags;
+        long[] folderIds = mFolderIds;
+        long[] oldFolderIds = mOldFolderIds;
+        allocate(capacity);
+        for (int i = 0; i < ids.length; i++) {
+            if ((flags[i] & FLAG_USED) == 0) {
+                continue;
+            }
+            int index = slot(ids[i]);
+            while ((mFlags[index] & FLAG_USED) != 0) {
+                index = (index + 1) & mMask;
+            }
+            mIds[index] = ids[i];
+            mTypes[index] = types[i];
+            mThreadIds[index] = threadIds[i];
+            mReadFlags[index] = readFlags[i];
+            mFlags[index] = flags[i];
+            if (folderIds != null) {
+                mFolderIds[index] = folderIds[i];
+                mOldFolderIds[index] = oldFolderIds[i];
+            }
+        }
+    }
+
+    private int slot(long id) {
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & mMask;
+    }
+
+    private int indexOf(long id) {
+        int index = slot(id);
+        while ((mFlags[index] & FLAG_USED) != 0) {
+            if (mIds[index] == id) {
+                return index;
+            }
+            index = (index + 1) & mMask;
+        }
+        return -1;
+    }
+
+    private Msg toMsg(int index) {
+        Msg msg = new Msg(mIds[index], mTypes[index], mThreadIds[index], mReadFlags[index]);
+        if (mFolderIds != null) {
+            msg.folderId = mFolderIds[index];
+            msg.oldFolderId = mOldFolderIds[index];
+        }
+        msg.localInitiatedSend = (mFlags[index] & FLAG_LOCAL_INITIATED_SEND) != 0;
+        msg.transparent = (mFlags[index] & FLAG_TRANSPARENT) != 0;
+        return msg;
+    }
+
+    /**
+     * Empties the slot, and shifts back the following entries of the probe sequence that may
+     * no longer be reachable from their home slot.
+     */
+    private void removeAt(int index) {
+        mFlags[index] = 0;
+        mSize--;
+        int hole = index;
+        int next = index;
+        while (true) {
+            next = (next + 1) & mMask;
+            if ((mFlags[next] & FLAG_USED) == 0) {
+                return;
+            }
+            int home = slot(mIds[next]);
+            if (((next - home) & mMask) >= ((next - hole) & mMask)) {
+                mIds[hole] = mIds[next];
+                mTypes[hole] = mTypes[next];
+                mThreadIds[hole] = mThreadIds[next];
+                mReadFlags[hole] = mReadFlags[next];
+                mFlags[hole] = mFlags[next];
+                if (mFolderIds != null) {
+                    mFolderIds[hole] = mFolderIds[next];
+                    mOldFolderIds[hole] = mOldFolderIds[next];
+                }
+                mFlags[next] = 0;
+                hole = next;
+            }
+        }
+    }
+}
@@ -23,10 +23,10 @@ import com.android.internal.util.FastXmlSerializer;
 import org.xmlpull.v1.XmlSerializer;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 public class BluetoothMapMessageListing {
@@ -59,6 +59,14 @@ public class BluetoothMapMessageListing {
         return 0;
     }
 
+    /**
+     * Marks the listing as containing unread messages, for unread messages that matched the
+     * filters but were left out of the listing by the start offset.
+     */
+    public void setHasUnread() {
+        mHasUnread = true;
+    }
+
     /**
      * does the list contain any unread messages
      * @return true if unread messages have been added to the list, else false
@@ -91,20 +99,68 @@ public class BluetoothMapMessageListing {
     public byte[] encode(boolean includeThreadId, String version)
             throws UnsupportedEncodingException {
         StringWriter sw = new StringWriter();
-        XmlSerializer xmlMsgElement = null;
-        boolean isBenzCarkit = DeviceWorkArounds.addressStartsWith(
+        boolean isBenzCarkit = isBenzCarkit();
+        try {
+            XmlSerializer xmlMsgElement = newSerializer(isBenzCarkit);
+            xmlMsgElement.setOutput(sw);
+            encode(xmlMsgElement, isBenzCarkit, includeThreadId, version);
+        } catch (IOException e) {
+            Log.w(TAG, e);
+        }
+        /* Fix IOT issue to replace '&amp;' by '&', &lt; by < and '&gt; by '>' in MessageListing */
+        if (DeviceWorkArounds.addressStartsWith(BluetoothMapService.getRemoteDevice().getAddress(),
+                    DeviceWorkArounds.BREZZA_ZDI_CARKIT)) {
+            return sw.toString()
+                    .replaceAll("&amp;", "&")
+                    .replaceAll("&lt;", "<")
+                    .replaceAll("&gt;", ">")
+                    .getBytes("UTF-8");
+        }
+        return sw.toString().getBytes("UTF-8");
+    }
+
+    /**
+     * Encode the list of BluetoothMapMessageListingElement(s) as UTF-8 formatted XML directly
+     * into the stream, without building the document in memory first.
+     *
+     * @param version the version as a string, see {@link #encode(boolean, String)}.
+     * @throws IOException if writing to the stream failed, e.g. as the operation was aborted.
+     */
+    public void encode(OutputStream out, boolean includeThreadId, String version)
+            throws IOException {
+        if (DeviceWorkArounds.addressStartsWith(BluetoothMapService.getRemoteDevice().getAddress(),
+                    DeviceWorkArounds.BREZZA_ZDI_CARKIT)) {
+            // The entity replacement of the work around needs the complete document.
+            out.write(encode(includeThreadId, version));
+            return;
+        }
+        boolean isBenzCarkit = isBenzCarkit();
+        XmlSerializer xmlMsgElement = newSerializer(isBenzCarkit);
+        xmlMsgElement.setOutput(out, "UTF-8");
+        encode(xmlMsgElement, isBenzCarkit, includeThreadId, version);
+    }
+
+    private static boolean isBenzCarkit() {
+        return DeviceWorkArounds.addressStartsWith(
                 BluetoothMapService.getRemoteDevice().getAddress(),
                 DeviceWorkArounds.MERCEDES_BENZ_CARKIT);
+    }
+
+    private static XmlSerializer newSerializer(boolean isBenzCarkit) {
+        if (isBenzCarkit) {
+            Log.d(TAG, "java_interop: Remote is Mercedes Benz, "
+                    + "using Xml Workaround.");
+            return Xml.newSerializer();
+        }
+        return new FastXmlSerializer(0);
+    }
+
+    private void encode(XmlSerializer xmlMsgElement, boolean isBenzCarkit,
+            boolean includeThreadId, String version) throws IOException {
         try {
             if (isBenzCarkit) {
-                Log.d(TAG, "java_interop: Remote is Mercedes Benz, "
-                        + "using Xml Workaround.");
-                xmlMsgElement = Xml.newSerializer();
-                xmlMsgElement.setOutput(sw);
                 xmlMsgElement.text("\n");
             } else {
-                xmlMsgElement = new FastXmlSerializer(0);
-                xmlMsgElement.setOutput(sw);
                 xmlMsgElement.startDocument("UTF-8", true);
                 xmlMsgElement.setFeature(
                         "http://xmlpull.org/v1/doc/features.html#indent-output", true);
@@ -121,39 +177,7 @@ public class BluetoothMapMessageListing {
             Log.w(TAG, e);
         } catch (IllegalStateException e) {
             Log.w(TAG, e);
-        } catch (IOException e) {
-            Log.w(TAG, e);
-        }
-        /* Fix IOT issue to replace '&amp;' by '&', &lt; by < and '&gt; by '>' in MessageListing */
-        if (DeviceWorkArounds.addressStartsWith(BluetoothMapService.getRemoteDevice().getAddress(),
-                    DeviceWorkArounds.BREZZA_ZDI_CARKIT)) {
-            return sw.toString()
-                    .replaceAll("&amp;", "&")
-                    .replaceAll("&lt;", "<")
-                    .replaceAll("&gt;", ">")
-                    .getBytes("UTF-8");
-        }
-        return sw.toString().getBytes("UTF-8");
-    }
-
-    public void sort() {
-        Collections.sort(mList);
-    }
-
-    public void segment(int count, int offset) {
-        count = Math.min(count, mList.size() - offset);
-        if (count > 0) {
-            mList = mList.subList(offset, offset + count);
-            if (mList == null) {
-                mList = new ArrayList<BluetoothMapMessageListingElement>(); // Return an empty list
-            }
-        } else {
-            if (offset > mList.size()) {
-                mList = new ArrayList<BluetoothMapMessageListingElement>();
-                Log.d(TAG, "offset greater than list size. Returning empty list");
-            } else {
-                mList = mList.subList(offset, mList.size());
-            }
         }
+        xmlMsgElement.flush();
     }
 }
@@ -33,6 +33,7 @@ import com.android.bluetooth.SignedLongLong;
 import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
 import com.android.bluetooth.mapapi.BluetoothMapContract;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -157,8 +158,16 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             mProviderClient = acquireUnstableContentProviderOrThrow();
         }
 
-        buildFolderStructure(); /* Build the default folder structure, and set
-                                   mCurrentFolder to root folder */
+        BluetoothMapFolderCache folderCache = mMasInstance.getFolderCache();
+        mCurrentFolder = folderCache != null ? folderCache.getFolders() : null;
+        if (mCurrentFolder == null) {
+            int foldersVersion = folderCache != null ? folderCache.getFoldersVersion() : 0;
+            buildFolderStructure(); /* Build the default folder structure, and set
+                                       mCurrentFolder to root folder */
+            if (folderCache != null) {
+                folderCache.setFolders(mCurrentFolder, foldersVersion);
+            }
+        }
         mObserver.setFolderStructure(mCurrentFolder.getRoot());
 
         mOutContent = new BluetoothMapContent(mContext, mAccount, mMasInstance);
@@ -1138,12 +1147,12 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
     private int sendMessageListingRsp(Operation op, BluetoothMapAppParams appParams,
             String folderName) {
         OutputStream outStream = null;
-        byte[] outBytes = null;
-        int maxChunkSize, bytesToWrite, bytesWritten = 0, listSize;
+        int listSize;
         boolean hasUnread = false;
         HeaderSet replyHeaders = new HeaderSet();
         BluetoothMapAppParams outAppParams = new BluetoothMapAppParams();
-        BluetoothMapMessageListing outList;
+        BluetoothMapMessageListing outList = null;
+        String version = null;
         if (appParams == null) {
             appParams = new BluetoothMapAppParams();
             appParams.setMaxListCount(1024);
@@ -1190,22 +1199,25 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             // Check to see if we only need to send the size - hence no need to encode.
             if (appParams.getMaxListCount() != 0) {
                 outList = mOutContent.msgListing(folderToList, appParams);
-                // Generate the byte stream
                 outAppParams.setMessageListingSize(outList.getCount());
-                String version;
                 if (0 < (mRemoteFeatureMask
                         & BluetoothMapUtils.MAP_FEATURE_MESSAGE_LISTING_FORMAT_V11_BIT)) {
                     version = BluetoothMapUtils.MAP_V11_STR;
                 } else {
                     version = BluetoothMapUtils.MAP_V10_STR;
                 }
-                /* This will only set the version, the bit must also be checked before adding any
-                 * 1.1 bits to the listing. */
-                outBytes = outList.encode(mThreadIdSupport, version);
                 hasUnread = outList.hasUnread();
             } else {
-                listSize = mOutContent.msgListingSize(folderToList, appParams);
-                hasUnread = mOutContent.msgListingHasUnread(folderToList, appParams);
+                BluetoothMapFolderCache folderCache = mMasInstance.getFolderCache();
+                if (folderCache != null) {
+                    BluetoothMapFolderCache.ListingSize listingSize =
+                            folderCache.getListingSize(folderToList, appParams, mOutContent);
+                    listSize = listingSize.mSize;
+                    hasUnread = listingSize.mHasUnread;
+                } else {
+                    listSize = mOutContent.msgListingSize(folderToList, appParams);
+                    hasUnread = mOutContent.msgListingHasUnread(folderToList, appParams);
+                }
                 outAppParams.setMessageListingSize(listSize);
                 op.noBodyHeader();
             }
@@ -1261,14 +1273,16 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         }
 
-        maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-        if (outBytes != null) {
+        if (outList != null) {
+            boolean encoded = false;
             try {
-                while (bytesWritten < outBytes.length && !mIsAborted) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
-                }
+                /* This will only set the version, the bit must also be checked before adding any
+                 * 1.1 bits to the listing. The XML is written to the OBEX stream as it is
+                 * encoded, in chunks of at most the packet size, checking for an abort before
+                 * each of them. */
+                outList.encode(newAbortableStream(outStream, op.getMaxPacketSize()),
+                        mThreadIdSupport, version);
+                encoded = true;
             } catch (IOException e) {
                 if (D) {
                     Log.w(TAG, e);
@@ -1282,8 +1296,8 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                     }
                 }
             }
-            if (bytesWritten != outBytes.length && !mIsAborted) {
-                Log.w(TAG, "sendMessageListingRsp: bytesWritten != outBytes.length"
+            if (!encoded && !mIsAborted) {
+                Log.w(TAG, "sendMessageListingRsp: failed to write the listing"
                         + " - sending OBEX_HTTP_BAD_REQUEST");
                 return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
             }
@@ -1298,6 +1312,32 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
         return ResponseCodes.OBEX_HTTP_OK;
     }
 
+    /**
+     * Returns a stream writing to out in chunks of at most maxChunkSize, which fails with an
+     * IOException once the operation is aborted.
+     */
+    private OutputStream newAbortableStream(OutputStream out, final int maxChunkSize) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                int bytesWritten = 0;
+                while (bytesWritten < len) {
+                    if (mIsAborted) {
+                        throw new IOException("Operation aborted");
+                    }
+                    int bytesToWrite = Math.min(maxChunkSize, len - bytesWritten);
+                    out.write(b, off + bytesWritten, bytesToWrite);
+                    bytesWritten += bytesToWrite;
+                }
+            }
+        };
+    }
+
     /**
      * Update the {@link BluetoothMapAppParams} object message type filter mask to only contain
      * message types supported by this mas instance.
@@ -1723,11 +1763,10 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
     private int sendGetMessageRsp(Operation op, String handle, BluetoothMapAppParams appParams,
             String version) {
         OutputStream outStream = null;
-        byte[] outBytes = null;
-        int maxChunkSize, bytesToWrite, bytesWritten = 0;
+        BluetoothMapbMessage message = null;
 
         try {
-            outBytes = mOutContent.getMessage(handle, appParams, mCurrentFolder, version);
+            message = mOutContent.getBMessage(handle, appParams, mCurrentFolder, version);
 
             // If it is a fraction request of Email message, set header before responding
             if ((BluetoothMapUtils.getMsgTypeFromHandle(handle).equals(TYPE.EMAIL)
@@ -1776,19 +1815,21 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         }
 
-        maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-
-        if (outBytes != null) {
+        if (message != null) {
+            boolean encoded = false;
             try {
-                while (bytesWritten < outBytes.length && !mIsAborted) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
-                }
+                /* MMS attachments and email bodies are read from the content providers while
+                 * they are written, in chunks of at most the packet size, checking for an abort
+                 * before each of them. */
+                message.encode(newAbortableStream(outStream, op.getMaxPacketSize()),
+                        mContext.getContentResolver());
+                encoded = true;
             } catch (IOException e) {
                 // We were probably aborted or disconnected
-                if (D && e.getMessage().equals("Abort Received")) {
+                if (D && (mIsAborted || "Abort Received".equals(e.getMessage()))) {
                     Log.w(TAG, "getMessage() Aborted...", e);
+                } else {
+                    Log.w(TAG, "sendGetMessageRsp: failed to write the message", e);
                 }
             } finally {
                 if (outStream != null) {
@@ -1798,7 +1839,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                     }
                 }
             }
-            if (bytesWritten == outBytes.length || mIsAborted) {
+            if (encoded || mIsAborted) {
                 return ResponseCodes.OBEX_HTTP_OK;
             } else {
                 return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
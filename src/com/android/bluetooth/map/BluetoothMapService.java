@@ -131,6 +131,7 @@ public class BluetoothMapService extends ProfileService {
 
     private int mState;
     private BluetoothMapAppObserver mAppObserver = null;
+    private BluetoothMapContactCache mContactCache = null;
     private AlarmManager mAlarmManager = null;
 
     private boolean mIsWaitingAuthorization = false;
@@ -659,6 +660,9 @@ public class BluetoothMapService extends ProfileService {
         TelephonyManager tm = (TelephonyManager) getSystemService(Context.TELEPHONY_SERVICE);
         mSmsCapable = tm.isSmsCapable();
 
+        mContactCache = new BluetoothMapContactCache(getContentResolver());
+        mContactCache.start();
+
         mEnabledAccounts = mAppObserver.getEnabledAccountItems();
         createMasInstances();  // Uses mEnabledAccounts
 
@@ -848,6 +852,10 @@ public class BluetoothMapService extends ProfileService {
             unregisterReceiver(mMapReceiver);
             mAppObserver.shutdown();
         }
+        if (mContactCache != null) {
+            mContactCache.stop();
+            mContactCache = null;
+        }
         sendShutdownMessage();
         return true;
     }
@@ -1311,7 +1319,14 @@ public class BluetoothMapService extends ProfileService {
         println(sb, "mBluetoothMnsObexClient: " + mBluetoothMnsObexClient);
         println(sb, "mMasInstanceMap:");
         for (BluetoothMapAccountItem key : mMasInstanceMap.keySet()) {
-            println(sb, "  " + key + " : " + mMasInstanceMap.get(key));
+            BluetoothMapMasInstance instance = mMasInstanceMap.get(key);
+            println(sb, "  " + key + " : " + instance);
+            if (instance != null) {
+                instance.dump(sb);
+            }
+        }
+        if (mContactCache != null) {
+            mContactCache.dump(sb);
         }
         println(sb, "mEnabledAccounts:");
         for (BluetoothMapAccountItem account : mEnabledAccounts) {
@@ -14,6 +14,7 @@
 */
 package com.android.bluetooth.map;
 
+import android.content.ContentResolver;
 import android.os.Environment;
 import android.telephony.PhoneNumberUtils;
 import android.util.Log;
@@ -27,8 +28,11 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public abstract class BluetoothMapbMessage {
 
@@ -40,6 +44,11 @@ public abstract class BluetoothMapbMessage {
 
     public static final int INVALID_VALUE = -1;
 
+    private static final byte[] MSG_BEGIN = "BEGIN:MSG\r\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] MSG_END = "\r\nEND:MSG\r\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] END_MSG_TAG = "END:MSG".getBytes(StandardCharsets.UTF_8);
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+
     protected int mAppParamCharset = BluetoothMapAppParams.INVALID_VALUE_PARAMETER;
 
     /* BMSG attributes */
@@ -324,15 +333,59 @@ public abstract class BluetoothMapbMessage {
     ;
 
     private static class BMsgReader {
-        InputStream mInStream;
+        private static final int BUFFER_SIZE = 8 * 1024;
+        private static final int INITIAL_LINE_SIZE = 256;
+
+        private final InputStream mInStream;
+        private final byte[] mBuffer = new byte[BUFFER_SIZE];
+        private int mPos;
+        private int mLimit;
+        // The last line read, the array is reused for every line.
+        private byte[] mLine = new byte[INITIAL_LINE_SIZE];
+        private int mLineLength;
 
         BMsgReader(InputStream is) {
             this.mInStream = is;
         }
 
-        private byte[] getLineAsBytes() {
-            int readByte;
+        /**
+         * Refills the buffer if it has been consumed.
+         * @return false at end of stream
+         */
+        private boolean fill() throws IOException {
+            while (mPos == mLimit) {
+                int count = mInStream.read(mBuffer, 0, BUFFER_SIZE);
+                if (count == -1) {
+                    return false;
+                }
+                mPos = 0;
+                mLimit = count;
+            }
+            return true;
+        }
 
+        private void append(byte[] data, int offset, int length) {
+            if (mLineLength + length > mLine.length) {
+                mLine = Arrays.copyOf(mLine, Math.max(mLine.length * 2, mLineLength + length));
+            }
+            System.arraycopy(data, offset, mLine, mLineLength, length);
+            mLineLength += length;
+        }
+
+        private void append(int data) {
+            if (mLineLength == mLine.length) {
+                mLine = Arrays.copyOf(mLine, mLine.length * 2);
+            }
+            mLine[mLineLength++] = (byte) data;
+        }
+
+        /**
+         * Reads the next non-empty CRLF terminated line into mLine, copying the bytes up to the
+         * next CR from the buffer in bulk. A lone CR or LF is kept as part of the line, but LFs
+         * at the start of a line are skipped.
+         * @return false if no more lines could be read
+         */
+        private boolean readLine() {
             /* TODO: Actually the vCard spec. allows to break lines by using a newLine
              * followed by a white space character(space or tab). Not sure this is a good idea to
              * implement as the Bluetooth MAP spec. illustrates vCards using tab alignment,
@@ -341,31 +394,42 @@ public abstract class BluetoothMapbMessage {
              * UPDATE: Check if we actually do unfold before parsing the input stream
              */
 
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            mLineLength = 0;
             try {
-                while ((readByte = mInStream.read()) != -1) {
-                    if (readByte == '\r') {
-                        if ((readByte = mInStream.read()) != -1 && readByte == '\n') {
-                            if (output.size() == 0) {
-                                continue; /* Skip empty lines */
-                            } else {
-                                break;
-                            }
-                        } else {
-                            output.write('\r');
+                while (fill()) {
+                    if (mLineLength == 0) {
+                        while (mPos < mLimit && mBuffer[mPos] == '\n') {
+                            mPos++; /* Empty line - skip */
                         }
-                    } else if (readByte == '\n' && output.size() == 0) {
-                        /* Empty line - skip */
+                    }
+                    int end = mPos;
+                    while (end < mLimit && mBuffer[end] != '\r') {
+                        end++;
+                    }
+                    append(mBuffer, mPos, end - mPos);
+                    mPos = end;
+                    if (mPos == mLimit) {
                         continue;
                     }
-
-                    output.write(readByte);
+                    mPos++;
+                    if (!fill()) {
+                        append('\r');
+                        break;
+                    }
+                    int next = mBuffer[mPos++];
+                    if (next == '\n') {
+                        if (mLineLength != 0) {
+                            return true;
+                        }
+                        continue; /* Skip empty lines */
+                    }
+                    append('\r');
+                    append(next);
                 }
             } catch (IOException e) {
                 Log.w(TAG, e);
-                return null;
             }
-            return output.toByteArray();
+            return mLineLength != 0;
         }
 
         /**
@@ -373,17 +437,39 @@ public abstract class BluetoothMapbMessage {
          * @return the next line of text, or null at end of file, or if UTF-8 is not supported.
          */
         public String getLine() {
-            try {
-                byte[] line = getLineAsBytes();
-                if (line.length == 0) {
-                    return null;
-                } else {
-                    return new String(line, "UTF-8");
-                }
-            } catch (UnsupportedEncodingException e) {
-                Log.w(TAG, e);
+            if (!readLine()) {
                 return null;
             }
+            return new String(mLine, 0, mLineLength, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Read the lines of a message up to the END:MSG line, without creating a String per
+         * line.
+         * @return the lines concatenated without line breaks
+         * @throws IllegalArgumentException if END:MSG is not found
+         */
+        public String getMessageContent() {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            while (readLine()) {
+                if (isLine(END_MSG_TAG)) {
+                    return new String(content.toByteArray(), StandardCharsets.UTF_8);
+                }
+                content.write(mLine, 0, mLineLength);
+            }
+            throw new IllegalArgumentException("Bmessage too short");
+        }
+
+        private boolean isLine(byte[] line) {
+            if (mLineLength != line.length) {
+                return false;
+            }
+            for (int i = 0; i < mLineLength; i++) {
+                if (mLine[i] != line[i]) {
+                    return false;
+                }
+            }
+            return true;
         }
 
         /**
@@ -447,11 +533,12 @@ public abstract class BluetoothMapbMessage {
          */
         public byte[] getDataBytes(int length) {
             byte[] data = new byte[length];
+            int offset = Math.min(length, mLimit - mPos);
+            System.arraycopy(mBuffer, mPos, data, 0, offset);
+            mPos += offset;
             try {
-                int bytesRead;
-                int offset = 0;
-                while ((bytesRead = mInStream.read(data, offset, length - offset)) != (length
-                        - offset)) {
+                while (offset < length) {
+                    int bytesRead = mInStream.read(data, offset, length - offset);
                     if (bytesRead == -1) {
                         return null;
                     }
@@ -775,12 +862,7 @@ public abstract class BluetoothMapbMessage {
                  * the length field.*/
 
                 // Read until we receive END:MSG as some carkits send bad message lengths
-                String data = "";
-                String messageLine = "";
-                while (!messageLine.equals("END:MSG")) {
-                    data += messageLine;
-                    messageLine = reader.getLineEnforce();
-                }
+                String data = reader.getMessageContent();
 
                 // The MAP spec says that all END:MSG strings in the body
                 // of the message must be escaped upon encoding and the
@@ -981,8 +1063,127 @@ public abstract class BluetoothMapbMessage {
 
     public byte[] encodeGeneric(ArrayList<byte[]> bodyFragments)
             throws UnsupportedEncodingException {
+        int length = 0;
+        /* 22 is the length of the 'BEGIN:MSG' and 'END:MSG' + 3*CRLF */
+        for (byte[] fragment : bodyFragments) {
+            length += fragment.length + 22;
+        }
+        byte[] msgStart = encodeStart(length);
+        byte[] msgEnd = encodeEnd();
+
+        try {
+
+            ByteArrayOutputStream stream =
+                    new ByteArrayOutputStream(msgStart.length + msgEnd.length + length);
+            stream.write(msgStart);
+
+            for (byte[] fragment : bodyFragments) {
+                stream.write(MSG_BEGIN);
+                stream.write(fragment);
+                stream.write(MSG_END);
+            }
+            stream.write(msgEnd);
+
+            if (V) {
+                Log.v(TAG, stream.toString("UTF-8"));
+            }
+            return stream.toByteArray();
+        } catch (IOException e) {
+            Log.w(TAG, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the body content of a bMessage encoded with
+     * {@link #encodeGeneric(OutputStream, long, BodyWriter)}.
+     */
+    protected interface BodyWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Write a bMessage with a single body fragment to the stream, without holding the fragment
+     * in memory.
+     * @param out the stream to write to
+     * @param fragmentLength the number of bytes bodyWriter writes
+     * @param bodyWriter writes the already escaped body fragment
+     */
+    protected void encodeGeneric(OutputStream out, long fragmentLength, BodyWriter bodyWriter)
+            throws IOException {
+        out.write(encodeStart(fragmentLength + 22));
+        out.write(MSG_BEGIN);
+        bodyWriter.write(out);
+        out.write(MSG_END);
+        out.write(encodeEnd());
+    }
+
+    /**
+     * Write the encoded bMessage to the stream.
+     * MMS attachments and email bodies referring to content provider data are read from the
+     * resolver while they are written, other messages are encoded with {@link #encode()} first.
+     * @param out the stream to write to
+     * @param resolver the resolver to read referred content from
+     * @throws IOException if the stream or the content cannot be read or written
+     */
+    public void encode(OutputStream out, ContentResolver resolver) throws IOException {
+        byte[] data = encode();
+        if (data == null) {
+            throw new IOException("Unable to encode bMessage");
+        }
+        out.write(data);
+    }
+
+    /**
+     * Copy the stream, replacing any occurrences of END:MSG with /END:MSG like
+     * {@link #encode()} does for in memory body content.
+     * @param in the content to copy
+     * @param out the stream to write to, or null to only count the bytes
+     * @return the number of bytes written to out
+     */
+    static long copyEscaped(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        // Room for a whole read buffer with every byte preceded by the escape character
+        byte[] escaped = new byte[COPY_BUFFER_SIZE * 2];
+        long written = 0;
+        int matched = 0; // The number of bytes of END:MSG matched so far
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            int length = 0;
+            for (int i = 0; i < count; i++) {
+                byte b = buffer[i];
+                if (b == END_MSG_TAG[matched]) {
+                    if (++matched == END_MSG_TAG.length) {
+                        escaped[length++] = '/';
+                        System.arraycopy(END_MSG_TAG, 0, escaped, length, matched);
+                        length += matched;
+                        matched = 0;
+                    }
+                    continue;
+                }
+                // END:MSG has no prefix that is also a suffix, so a mismatch restarts the match
+                System.arraycopy(END_MSG_TAG, 0, escaped, length, matched);
+                length += matched;
+                matched = 0;
+                if (b == END_MSG_TAG[0]) {
+                    matched = 1;
+                } else {
+                    escaped[length++] = b;
+                }
+            }
+            if (out != null) {
+                out.write(escaped, 0, length);
+            }
+            written += length;
+        }
+        if (out != null) {
+            out.write(END_MSG_TAG, 0, matched);
+        }
+        return written + matched;
+    }
+
+    private byte[] encodeStart(long length) throws UnsupportedEncodingException {
         StringBuilder sb = new StringBuilder(256);
-        byte[] msgStart, msgEnd;
         sb.append("BEGIN:BMSG").append("\r\n");
 
         sb.append(mVersionString).append("\r\n");
@@ -1023,45 +1224,18 @@ public abstract class BluetoothMapbMessage {
         if (mCharset != null && !mCharset.isEmpty()) {
             sb.append("CHARSET:").append(mCharset).append("\r\n");
         }
-
-
-        int length = 0;
-        /* 22 is the length of the 'BEGIN:MSG' and 'END:MSG' + 3*CRLF */
-        for (byte[] fragment : bodyFragments) {
-            length += fragment.length + 22;
-        }
         sb.append("LENGTH:").append(length).append("\r\n");
 
         // Extract the initial part of the bMessage string
-        msgStart = sb.toString().getBytes("UTF-8");
+        return sb.toString().getBytes("UTF-8");
+    }
 
-        sb = new StringBuilder(31);
+    private static byte[] encodeEnd() throws UnsupportedEncodingException {
+        StringBuilder sb = new StringBuilder(31);
         sb.append("END:BBODY").append("\r\n");
         sb.append("END:BENV").append("\r\n");
         sb.append("END:BMSG").append("\r\n");
 
-        msgEnd = sb.toString().getBytes("UTF-8");
-
-        try {
-
-            ByteArrayOutputStream stream =
-                    new ByteArrayOutputStream(msgStart.length + msgEnd.length + length);
-            stream.write(msgStart);
-
-            for (byte[] fragment : bodyFragments) {
-                stream.write("BEGIN:MSG\r\n".getBytes("UTF-8"));
-                stream.write(fragment);
-                stream.write("\r\nEND:MSG\r\n".getBytes("UTF-8"));
-            }
-            stream.write(msgEnd);
-
-            if (V) {
-                Log.v(TAG, stream.toString("UTF-8"));
-            }
-            return stream.toByteArray();
-        } catch (IOException e) {
-            Log.w(TAG, e);
-            return null;
-        }
+        return sb.toString().getBytes("UTF-8");
     }
 }
@@ -14,8 +14,14 @@
 */
 package com.android.bluetooth.map;
 
+import android.content.ContentResolver;
+import android.net.Uri;
 import android.util.Log;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 
@@ -23,6 +29,7 @@ import java.util.ArrayList;
 public class BluetoothMapbMessageEmail extends BluetoothMapbMessage {
 
     private String mEmailBody = null;
+    private Uri mEmailBodyUri = null;
 
     public void setEmailBody(String emailBody) {
         this.mEmailBody = emailBody;
@@ -34,6 +41,16 @@ public class BluetoothMapbMessageEmail extends BluetoothMapbMessage {
         return mEmailBody;
     }
 
+    /**
+     * Set the content Uri of the email body, which is read while the message is written by
+     * {@link #encode(OutputStream, ContentResolver)} instead of being held in memory.
+     */
+    public void setEmailBodyUri(Uri emailBodyUri) {
+        this.mEmailBodyUri = emailBodyUri;
+        this.mCharset = "UTF-8";
+        this.mEncoding = "8bit";
+    }
+
     @Override
     public void parseMsgPart(String msgPart) {
         if (mEmailBody == null) {
@@ -70,4 +87,36 @@ public class BluetoothMapbMessageEmail extends BluetoothMapbMessage {
         return encodeGeneric(bodyFragments);
     }
 
+    @Override
+    public void encode(OutputStream out, ContentResolver resolver) throws IOException {
+        if (mEmailBodyUri == null) {
+            super.encode(out, resolver);
+            return;
+        }
+        // The body is read twice, first to get the escaped LENGTH, then to write it.
+        long length;
+        try (InputStream body = openEmailBody(resolver)) {
+            length = copyEscaped(body, null);
+        } catch (FileNotFoundException e) {
+            Log.w(TAG, e);
+            super.encode(out, resolver); // Encoded without a body
+            return;
+        }
+        final long bodyLength = length;
+        encodeGeneric(out, bodyLength, stream -> {
+            try (InputStream body = openEmailBody(resolver)) {
+                if (copyEscaped(body, stream) != bodyLength) {
+                    throw new IOException("Email body changed while being sent");
+                }
+            }
+        });
+    }
+
+    private InputStream openEmailBody(ContentResolver resolver) throws FileNotFoundException {
+        InputStream body = resolver.openInputStream(mEmailBodyUri);
+        if (body == null) {
+            throw new FileNotFoundException("Unable to open " + mEmailBodyUri);
+        }
+        return body;
+    }
 }
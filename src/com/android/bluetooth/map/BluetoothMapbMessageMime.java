@@ -14,11 +14,17 @@
 */
 package com.android.bluetooth.map;
 
+import android.content.ContentResolver;
+import android.net.Uri;
 import android.text.util.Rfc822Token;
 import android.text.util.Rfc822Tokenizer;
 import android.util.Base64;
 import android.util.Log;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
@@ -31,6 +37,10 @@ import java.util.UUID;
 
 public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
 
+    // Base64.DEFAULT breaks lines after 76 characters, which encode 57 bytes
+    private static final int BASE64_LINE_BYTES = 57;
+    private static final int BASE64_CHUNK_SIZE = BASE64_LINE_BYTES * 1024;
+
     public static class MimePart {
         public long mId = INVALID_VALUE;   /* The _id from the content provider, can be used to
                                             * sort the parts if needed */
@@ -44,6 +54,9 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
         public String mFileName = null;     /* Do not seem to be used */
         public byte[] mData = null;        /* The raw un-encoded data e.g. the raw
                                             * jpeg data or the text.getBytes("utf-8") */
+        public Uri mDataUri = null;        /* Where to read the data from, if mData is not set
+                                            * and the part is streamed */
+        public long mDataSize = INVALID_VALUE; /* The size of the data at mDataUri */
 
 
         String getDataAsString() {
@@ -77,8 +90,14 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
             return result;
         }
 
-        public void encode(StringBuilder sb, String boundaryTag, boolean last)
-                throws UnsupportedEncodingException {
+        /**
+         * @return true if the data is read from mDataUri while the message is written
+         */
+        boolean isStreamed() {
+            return mData == null && mDataUri != null;
+        }
+
+        private void encodeHeaders(StringBuilder sb, String boundaryTag) {
             sb.append("--").append(boundaryTag).append("\r\n");
             if (mContentType != null) {
                 sb.append("Content-Type: ").append(mContentType);
@@ -96,6 +115,11 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
             if (mContentDisposition != null) {
                 sb.append("Content-Disposition: ").append(mContentDisposition).append("\r\n");
             }
+        }
+
+        public void encode(StringBuilder sb, String boundaryTag, boolean last)
+                throws UnsupportedEncodingException {
+            encodeHeaders(sb, boundaryTag);
             if (mData != null) {
                 /* TODO: If errata 4176 is adopted in the current form (it is not in either 1.1
                 or 1.2),
@@ -124,6 +148,43 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
             }
         }
 
+        /**
+         * @return the length of the Base64 encoding of the streamed data, including the line
+         * breaks added by {@link Base64#DEFAULT}
+         */
+        long getBase64Length() {
+            if (mDataSize <= 0) {
+                return 0;
+            }
+            return (mDataSize + 2) / 3 * 4 + (mDataSize - 1) / BASE64_LINE_BYTES + 1;
+        }
+
+        /**
+         * Write the data at mDataUri Base64 encoded, identical to encoding it in one go.
+         */
+        void writeBase64(OutputStream out, ContentResolver resolver) throws IOException {
+            try (InputStream in = resolver.openInputStream(mDataUri)) {
+                if (in == null) {
+                    throw new FileNotFoundException("Unable to open " + mDataUri);
+                }
+                byte[] buffer = new byte[BASE64_CHUNK_SIZE];
+                long remaining = mDataSize;
+                while (remaining > 0) {
+                    // Only the last chunk may end with a partial line
+                    int length = (int) Math.min(buffer.length, remaining);
+                    for (int read = 0; read < length; ) {
+                        int count = in.read(buffer, read, length - read);
+                        if (count == -1) {
+                            throw new IOException(mDataUri + " is shorter than " + mDataSize);
+                        }
+                        read += count;
+                    }
+                    out.write(Base64.encode(buffer, 0, length, Base64.DEFAULT));
+                    remaining -= length;
+                }
+            }
+        }
+
         public void encodePlainText(StringBuilder sb) throws UnsupportedEncodingException {
             if (mContentType != null && mContentType.toUpperCase().contains("TEXT")) {
                 String text = new String(mData, "UTF-8");
@@ -363,7 +424,7 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
         int messageSize = 0;
         if (mParts != null) {
             for (MimePart part : mParts) {
-                messageSize += part.mData.length;
+                messageSize += part.isStreamed() ? (int) part.mDataSize : part.mData.length;
             }
         }
         return messageSize;
@@ -823,4 +884,71 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
         return encodeMime();
     }
 
+    /**
+     * Write the bMessage as a Mime message, streaming the attachments with a content Uri from
+     * the resolver. Text parts and headers are encoded in memory like {@link #encodeMime()},
+     * the LENGTH is computed from the attachment sizes up front.
+     */
+    @Override
+    public void encode(OutputStream out, ContentResolver resolver) throws IOException {
+        if (!getIncludeAttachments() || mParts == null || !hasStreamedParts()) {
+            super.encode(out, resolver);
+            return;
+        }
+        mEncoding = "8BIT"; // The encoding used
+
+        // The body alternates between in memory text and streamed parts, starting with text.
+        final ArrayList<byte[]> texts = new ArrayList<byte[]>();
+        final ArrayList<MimePart> streamedParts = new ArrayList<MimePart>();
+        long length = 0;
+        StringBuilder sb = new StringBuilder();
+        encodeHeaders(sb);
+        int count = 0;
+        for (MimePart part : mParts) {
+            count++;
+            boolean last = count == mParts.size();
+            if (!part.isStreamed()) {
+                part.encode(sb, getBoundary(), last);
+                continue;
+            }
+            part.encodeHeaders(sb, getBoundary());
+            sb.append("Content-Transfer-Encoding: Base64\r\n\r\n");
+            texts.add(escapeText(sb));
+            streamedParts.add(part);
+            length += part.getBase64Length();
+            sb.setLength(0);
+            sb.append("\r\n");
+            if (last) {
+                sb.append("--").append(getBoundary()).append("--").append("\r\n");
+            }
+        }
+        texts.add(escapeText(sb));
+        for (byte[] text : texts) {
+            length += text.length;
+        }
+
+        encodeGeneric(out, length, stream -> {
+            for (int i = 0; i < texts.size(); i++) {
+                stream.write(texts.get(i));
+                if (i < streamedParts.size()) {
+                    streamedParts.get(i).writeBase64(stream, resolver);
+                }
+            }
+        });
+    }
+
+    private boolean hasStreamedParts() {
+        for (MimePart part : mParts) {
+            if (part.isStreamed()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] escapeText(StringBuilder sb) throws UnsupportedEncodingException {
+        // Replace any occurrences of END:MSG with \END:MSG
+        return sb.toString().replaceAll("END:MSG", "/END\\:MSG").getBytes("UTF-8");
+    }
+
 }
@@ -165,6 +165,18 @@ public class BluetoothOppBatch {
         return mShares.contains(info);
     }
 
+    /** whether this batch has a share with the content URI of a share of the other batch */
+    boolean hasUriOf(BluetoothOppBatch other) {
+        for (BluetoothOppShareInfo share : mShares) {
+            for (BluetoothOppShareInfo otherShare : other.mShares) {
+                if (share.mUri != null && share.mUri.equals(otherShare.mUri)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     /** if this batch is empty */
     public boolean isEmpty() {
         return (mShares.size() == 0);
@@ -174,6 +186,15 @@ public class BluetoothOppBatch {
         return mShares.size();
     }
 
+    /** the bytes transferred of the shares in this batch */
+    public long getCurrentBytes() {
+        long bytes = 0;
+        for (BluetoothOppShareInfo share : mShares) {
+            bytes += BluetoothOppProgress.getCurrentBytes(share.mId, share.mCurrentBytes);
+        }
+        return bytes;
+    }
+
     /**
      * Get the running status of the batch
      * @return
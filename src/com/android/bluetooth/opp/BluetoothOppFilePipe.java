@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Moves the data of a file between the disk and an OBEX session on a separate disk thread,
+ * through a pool of buffers, so that reading or writing the file overlaps with the radio.
+ *
+ * A pipe made by {@link #forReading} reads the file ahead into the buffers, which the session
+ * takes one at a time with {@link #take} and gives back with {@link #recycle}. A pipe made by
+ * {@link #forWriting} fills the buffers from the OBEX stream with {@link #readFrom}, and writes
+ * them to the file behind the session; {@link #finish} waits for the last of them. Errors of
+ * the disk thread are thrown to the session by the next of these calls.
+ *
+ * The buffers are heap buffers, as the OBEX streams read and write byte arrays. They are kept
+ * in a pool shared by the pipes, so that a batch of files does not allocate them for each file.
+ * @hide
+ */
+/*package*/ class BluetoothOppFilePipe implements Closeable {
+    private static final String TAG = "BluetoothOppFilePipe";
+    private static final boolean V = Constants.VERBOSE;
+
+    @VisibleForTesting
+    static final int BUFFER_COUNT = 8;
+    // Enough buffers for a client and a server transfer at the same time
+    private static final int MAX_POOLED_BUFFERS = BUFFER_COUNT * 2;
+
+    private static final ArrayDeque<ByteBuffer> sPool = new ArrayDeque<>();
+
+    // Queued after the last buffer of the file
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final int mShareId;
+    private final ByteBuffer[] mBuffers;
+    private final ArrayBlockingQueue<ByteBuffer> mFree;
+    private final ArrayBlockingQueue<ByteBuffer> mFilled;
+    private Thread mThread;
+    private volatile IOException mError;
+    private boolean mEnded;
+    private ByteBuffer mCurrent;
+    private long mWaitNanos;
+
+    /**
+     * Returns a pipe reading up to length bytes of the channel into buffers of bufferSize,
+     * each full except the last one.
+     */
+    static BluetoothOppFilePipe forReading(final ReadableByteChannel channel, final long length,
+            int bufferSize, int shareId) {
+        final BluetoothOppFilePipe pipe = new BluetoothOppFilePipe(bufferSize, shareId);
+        pipe.start(new Runnable() {
+            @Override
+            public void run() {
+                pipe.readChannel(channel, length);
+            }
+        });
+        return pipe;
+    }
+
+    /**
+     * Returns a pipe writing what {@link #readFrom} reads to the channel, in buffers of
+     * bufferSize.
+     */
+    static BluetoothOppFilePipe forWriting(final WritableByteChannel channel, int bufferSize,
+            int shareId) {
+        final BluetoothOppFilePipe pipe = new BluetoothOppFilePipe(bufferSize, shareId);
+        pipe.start(new Runnable() {
+            @Override
+            public void run() {
+                pipe.writeChannel(channel);
+            }
+        });
+        return pipe;
+    }
+
+    private BluetoothOppFilePipe(int bufferSize, int shareId) {
+        mShareId = shareId;
+        mBuffers = new ByteBuffer[BUFFER_COUNT];
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            mBuffers[i] = acquireBuffer(bufferSize);
+        }
+        // One more slot in each queue for END
+        mFree = new ArrayBlockingQueue<>(BUFFER_COUNT + 1);
+        mFilled = new ArrayBlockingQueue<>(BUFFER_COUNT + 1);
+        mFree.addAll(Arrays.asList(mBuffers));
+    }
+
+    private void start(Runnable diskTask) {
+        mThread = new Thread(diskTask, TAG + " " + mShareId);
+        mThread.start();
+    }
+
+    /**
+     * Returns the next buffer read from the file, positioned at its data, or null after the last
+     * one. The buffer must be given back with {@link #recycle} once sent.
+     */
+    ByteBuffer take() throws IOException {
+        if (mEnded) {
+            return null;
+        }
+        ByteBuffer buffer = waitFor(mFilled);
+        if (buffer == END) {
+            mEnded = true;
+            throwIfFailed();
+            return null;
+        }
+        return buffer;
+    }
+
+    /**
+     * Gives back a buffer returned by {@link #take}, to read more of the file into it.
+     */
+    void recycle(ByteBuffer buffer) {
+        buffer.clear();
+        mFree.offer(buffer);
+    }
+
+    /**
+     * Reads once from the stream into the buffers, and queues the buffers that are full to be
+     * written to the file. Returns the number of bytes read, or -1 at the end of the stream.
+     */
+    int readFrom(InputStream is) throws IOException {
+        throwIfFailed();
+        if (mCurrent == null) {
+            mCurrent = waitFor(mFree);
+        }
+        int readLength = is.read(mCurrent.array(), mCurrent.arrayOffset() + mCurrent.position(),
+                mCurrent.remaining());
+        if (readLength > 0) {
+            mCurrent.position(mCurrent.position() + readLength);
+            if (!mCurrent.hasRemaining()) {
+                mCurrent.flip();
+                mFilled.offer(mCurrent);
+                mCurrent = null;
+            }
+        }
+        return readLength;
+    }
+
+    /**
+     * Queues the rest of what {@link #readFrom} read, and waits until all of it is written to
+     * the file.
+     */
+    void finish() throws IOException {
+        if (mCurrent != null) {
+            mCurrent.flip();
+            mFilled.offer(mCurrent);
+            mCurrent = null;
+        }
+        mFilled.offer(END);
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for the file to be written");
+        }
+        throwIfFailed();
+    }
+
+    /**
+     * Returns how long the session waited for the disk, in milliseconds.
+     */
+    long getWaitMillis() {
+        return mWaitNanos / 1000000;
+    }
+
+    /**
+     * Stops the disk thread if still running, and returns the buffers to the pool. Interrupting
+     * the disk thread in the middle of reading or writing closes the channel.
+     */
+    @Override
+    public void close() {
+        if (mThread.isAlive()) {
+            mThread.interrupt();
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted stopping the disk thread of share " + mShareId);
+                // The disk thread may still use the buffers
+                return;
+            }
+        }
+        if (V) {
+            Log.v(TAG, "Share " + mShareId + " waited " + getWaitMillis() + " ms for the disk");
+        }
+        for (ByteBuffer buffer : mBuffers) {
+            releaseBuffer(buffer);
+        }
+    }
+
+    private ByteBuffer waitFor(ArrayBlockingQueue<ByteBuffer> queue) throws IOException {
+        ByteBuffer buffer = queue.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            buffer = queue.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for the disk");
+        }
+        long waitNanos = SystemClock.elapsedRealtimeNanos() - start;
+        mWaitNanos += waitNanos;
+        BluetoothOppProgress.addDiskWait(mShareId, waitNanos / 1000000);
+        return buffer;
+    }
+
+    private void throwIfFailed() throws IOException {
+        IOException error = mError;
+        if (error != null) {
+            throw new IOException("Disk error on share " + mShareId, error);
+        }
+    }
+
+    // Runs on the disk thread
+    private void readChannel(ReadableByteChannel channel, long length) {
+        long remaining = length;
+        try {
+            while (remaining > 0) {
+                ByteBuffer buffer = mFree.take();
+                if (buffer.capacity() > remaining) {
+                    buffer.limit((int) remaining);
+                }
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        remaining = 0;
+                        break;
+                    }
+                }
+                if (buffer.position() == 0) {
+                    // The file is shorter than its length
+                    break;
+                }
+                remaining -= buffer.position();
+                buffer.flip();
+                mFilled.put(buffer);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading share " + mShareId + ": " + e);
+            mError = e;
+        } catch (InterruptedException e) {
+            // Closed by the session
+        }
+        mFilled.offer(END);
+    }
+
+    // Runs on the disk thread
+    private void writeChannel(WritableByteChannel channel) {
+        try {
+            ByteBuffer buffer;
+            while ((buffer = mFilled.take()) != END) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                buffer.clear();
+                mFree.put(buffer);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing share " + mShareId + ": " + e);
+            mError = e;
+            // Let the session fail on its next read, instead of waiting for a free buffer
+            mFree.clear();
+            mFree.addAll(Arrays.asList(mBuffers));
+        } catch (InterruptedException e) {
+            // Closed by the session
+        }
+    }
+
+    private static ByteBuffer acquireBuffer(int size) {
+        synchronized (sPool) {
+            for (int i = sPool.size(); i > 0; i--) {
+                ByteBuffer buffer = sPool.poll();
+                if (buffer.capacity() == size) {
+                    buffer.clear();
+                    return buffer;
+                }
+                sPool.offer(buffer);
+            }
+        }
+        return ByteBuffer.allocate(size);
+    }
+
+    private static void releaseBuffer(ByteBuffer buffer) {
+        synchronized (sPool) {
+            if (sPool.size() >= MAX_POOLED_BUFFERS) {
+                // Make room for the most recent size
+                sPool.poll();
+            }
+            sPool.offer(buffer);
+        }
+    }
+
+    @VisibleForTesting
+    static int getPooledBufferCount() {
+        synchronized (sPool) {
+            return sPool.size();
+        }
+    }
+}
@@ -57,7 +57,7 @@ import java.util.HashMap;
  * where there is an ongoing transfer, incoming transfer need confirm and
  * complete (successful or failed) transfer.
  */
-class BluetoothOppNotification {
+class BluetoothOppNotification implements BluetoothOppProgress.Listener {
     private static final String TAG = "BluetoothOppNotification";
     private static final boolean V = Constants.VERBOSE;
 
@@ -181,6 +181,11 @@ class BluetoothOppNotification {
         }
     }
 
+    @Override
+    public void onProgress(int shareId, long currentBytes, long totalBytes) {
+        updateNotification();
+    }
+
     private static final int NOTIFY = 0;
     // Use 1 second timer to limit notification frequency.
     // 1. On the first notification, create the update thread.
@@ -279,7 +284,9 @@ class BluetoothOppNotification {
             int dir = cursor.getInt(directionIndex);
             int id = cursor.getInt(idIndex);
             long total = cursor.getLong(totalBytesIndex);
-            long current = cursor.getLong(currentBytesIndex);
+            // The progress of running transfers is only written to the provider at the end.
+            long current = BluetoothOppProgress.getCurrentBytes(id,
+                    cursor.getLong(currentBytesIndex));
             int confirmation = cursor.getInt(confirmIndex);
 
             String destination = cursor.getString(destinationIndex);
@@ -46,10 +46,10 @@ import android.util.Log;
 import com.android.bluetooth.BluetoothMetricsProto;
 import com.android.bluetooth.btservice.MetricsLogger;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import javax.obex.ClientOperation;
 import javax.obex.ClientSession;
@@ -127,18 +127,6 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
         mThread.addShare(share);
     }
 
-    private static int readFully(InputStream is, byte[] buffer, int size) throws IOException {
-        int done = 0;
-        while (done < size) {
-            int got = is.read(buffer, done, size - done);
-            if (got <= 0) {
-                break;
-            }
-            done += got;
-        }
-        return done;
-    }
-
     private class ClientThread extends Thread {
 
         private static final int SLEEP_TIME = 500;
@@ -387,6 +375,7 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
             ClientOperation putOperation = null;
             OutputStream outputStream = null;
             InputStream inputStream = null;
+            BluetoothOppFilePipe pipe = null;
             try {
                 synchronized (this) {
                     mWaitingForRemote = true;
@@ -444,22 +433,23 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                     updateValues.put(BluetoothShare.CURRENT_BYTES, 0);
                     updateValues.put(BluetoothShare.STATUS, BluetoothShare.STATUS_RUNNING);
                     mContext1.getContentResolver().update(contentUri, updateValues, null, null);
+                    BluetoothOppProgress.start(mInfo.mId, fileInfo.mLength);
                 }
 
                 if (!error) {
                     int readLength = 0;
-                    long percent = 0;
-                    long prevPercent = 0;
                     boolean okToProceed = false;
                     long timestamp = 0;
                     long currentTime = 0;
-                    long prevTimestamp = SystemClock.elapsedRealtime();
                     int outputBufferSize = putOperation.getMaxPacketSize();
-                    byte[] buffer = new byte[outputBufferSize];
-                    BufferedInputStream a = new BufferedInputStream(fileInfo.mInputStream, 0x4000);
+                    // The file is read a packet at a time ahead of the session
+                    pipe = BluetoothOppFilePipe.forReading(fileInfo.mInputStream.getChannel(),
+                            fileInfo.mLength, outputBufferSize, mInfo.mId);
+                    ByteBuffer buffer;
 
                     if (!mInterrupted && (position != fileInfo.mLength)) {
-                        readLength = readFully(a, buffer, outputBufferSize);
+                        buffer = pipe.take();
+                        readLength = buffer != null ? buffer.remaining() : 0;
 
                         mCallback.sendMessageDelayed(mCallback.obtainMessage(
                                 BluetoothOppObexSession.MSG_CONNECT_TIMEOUT),
@@ -469,7 +459,11 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                         }
 
                         // first packet will block here
-                        outputStream.write(buffer, 0, readLength);
+                        if (buffer != null) {
+                            outputStream.write(buffer.array(),
+                                    buffer.arrayOffset() + buffer.position(), readLength);
+                            pipe.recycle(buffer);
+                        }
 
                         position += readLength;
 
@@ -494,10 +488,7 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                                 Log.v(TAG, "Remote accept");
                             }
                             okToProceed = true;
-                            updateValues = new ContentValues();
-                            updateValues.put(BluetoothShare.CURRENT_BYTES, position);
-                            mContext1.getContentResolver()
-                                    .update(contentUri, updateValues, null, null);
+                            BluetoothOppProgress.update(mInfo.mId, position);
                             mNumFilesAttemptedToSend++;
                         } else {
                             Log.i(TAG, "Remote reject, Response code is " + responseCode);
@@ -509,8 +500,15 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                             timestamp = SystemClock.elapsedRealtime();
                         }
 
-                        readLength = a.read(buffer, 0, outputBufferSize);
-                        outputStream.write(buffer, 0, readLength);
+                        buffer = pipe.take();
+                        if (buffer == null) {
+                            Log.e(TAG, "File ended at " + position + " of " + fileInfo.mLength);
+                            break;
+                        }
+                        readLength = buffer.remaining();
+                        outputStream.write(buffer.array(),
+                                buffer.arrayOffset() + buffer.position(), readLength);
+                        pipe.recycle(buffer);
 
                         /* check remote abort */
                         responseCode = putOperation.getResponseCode();
@@ -529,18 +527,7 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                                         + " readLength " + readLength + " bytes took "
                                         + (currentTime - timestamp) + " ms");
                             }
-                            // Update the Progress Bar only if there is change in percentage
-                            // or once per a period to notify NFC of this transfer is still alive
-                            percent = position * 100 / fileInfo.mLength;
-                            if (percent > prevPercent
-                                    || currentTime - prevTimestamp > Constants.NFC_ALIVE_CHECK_MS) {
-                                updateValues = new ContentValues();
-                                updateValues.put(BluetoothShare.CURRENT_BYTES, position);
-                                mContext1.getContentResolver()
-                                        .update(contentUri, updateValues, null, null);
-                                prevPercent = percent;
-                                prevTimestamp = currentTime;
-                            }
+                            BluetoothOppProgress.update(mInfo.mId, position);
                         }
                     }
 
@@ -580,8 +567,12 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                     Log.e(TAG, "Error when closing output stream after send");
                 }
 
+                if (pipe != null) {
+                    pipe.close();
+                }
                 // Close InputStream and remove SendFileInfo from map
                 BluetoothOppUtility.closeSendFileInfo(mInfo.mUri);
+                BluetoothOppProgress.finish(mContext1, mInfo.mId);
                 try {
                     if (!error) {
                         responseCode = putOperation.getResponseCode();
@@ -49,9 +49,12 @@ import com.android.bluetooth.BluetoothObexTransport;
 import com.android.bluetooth.btservice.MetricsLogger;
 
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 
 import javax.obex.HeaderSet;
@@ -71,6 +74,9 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
     private static final boolean D = Constants.DEBUG;
     private static final boolean V = Constants.VERBOSE;
 
+    // Size of the buffers received packets are gathered into before being written to the file
+    private static final int RECEIVE_BUFFER_SIZE = 0x20000;
+
     private ObexTransport mTransport;
 
     private Context mContext;
@@ -447,8 +453,6 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
         }
 
         long position = 0;
-        long percent;
-        long prevPercent = 0;
 
         if (!error) {
             try {
@@ -460,12 +464,16 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
         }
 
         if (!error) {
-            int outputBufferSize = op.getMaxPacketSize();
-            byte[] b = new byte[outputBufferSize];
+            // The packets are gathered into larger buffers, written to the file behind the session
+            int outputBufferSize = Math.max(op.getMaxPacketSize(), RECEIVE_BUFFER_SIZE);
+            WritableByteChannel channel = os instanceof FileOutputStream
+                    ? ((FileOutputStream) os).getChannel() : Channels.newChannel(os);
+            BluetoothOppFilePipe pipe =
+                    BluetoothOppFilePipe.forWriting(channel, outputBufferSize, mInfo.mId);
             int readLength;
             long timestamp = 0;
             long currentTime;
-            long prevTimestamp = SystemClock.elapsedRealtime();
+            BluetoothOppProgress.start(mInfo.mId, fileInfo.mLength);
             try {
                 while ((!mInterrupted) && (position != fileInfo.mLength)) {
 
@@ -473,7 +481,7 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
                         timestamp = SystemClock.elapsedRealtime();
                     }
 
-                    readLength = is.read(b);
+                    readLength = pipe.readFrom(is);
 
                     if (readLength == -1) {
                         if (D) {
@@ -482,9 +490,7 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
                         break;
                     }
 
-                    os.write(b, 0, readLength);
                     position += readLength;
-                    percent = position * 100 / fileInfo.mLength;
                     currentTime = SystemClock.elapsedRealtime();
 
                     if (V) {
@@ -493,17 +499,9 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
                                         + " bytes took " + (currentTime - timestamp) + " ms");
                     }
 
-                    // Update the Progress Bar only if there is change in percentage
-                    // or once per a period to notify NFC of this transfer is still alive
-                    if (percent > prevPercent
-                            || currentTime - prevTimestamp > Constants.NFC_ALIVE_CHECK_MS) {
-                        ContentValues updateValues = new ContentValues();
-                        updateValues.put(BluetoothShare.CURRENT_BYTES, position);
-                        mContext.getContentResolver().update(contentUri, updateValues, null, null);
-                        prevPercent = percent;
-                        prevTimestamp = currentTime;
-                    }
+                    BluetoothOppProgress.update(mInfo.mId, position);
                 }
+                pipe.finish();
             } catch (IOException e1) {
                 Log.e(TAG, "Error when receiving file: " + e1);
                 /* OBEX Abort packet received from remote device */
@@ -513,7 +511,10 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
                     status = BluetoothShare.STATUS_OBEX_DATA_ERROR;
                 }
                 error = true;
+            } finally {
+                pipe.close();
             }
+            BluetoothOppProgress.finish(mContext, mInfo.mId);
         }
 
         if (mInterrupted) {
@@ -522,7 +523,8 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
             }
             status = BluetoothShare.STATUS_CANCELED;
         } else {
-            if (position == fileInfo.mLength) {
+            // A disk error may come after the last packet
+            if (position == fileInfo.mLength && !error) {
                 if (D) {
                     Log.d(TAG, "Receiving file completed for " + fileInfo.mFileName);
                 }
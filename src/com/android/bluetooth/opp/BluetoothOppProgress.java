@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory progress of the running transfers.
+ *
+ * The OBEX sessions report the bytes transferred of a share here after every packet, instead
+ * of writing them to {@link BluetoothOppProvider}: each provider write makes the share
+ * observer of {@link BluetoothOppService} re-read the share table. The provider only gets the
+ * progress when the transfer of the share ends. The notification and the transfer activity
+ * read the progress from here, and are told about it by the listeners, at most once per
+ * percent of progress or per {@link Constants#NFC_ALIVE_CHECK_MS}. The throughput of a share
+ * and how long its session waited for the disk are kept here too, for the transfer info.
+ * @hide
+ */
+/*package*/ class BluetoothOppProgress {
+    private static final String TAG = "BluetoothOppProgress";
+    private static final boolean V = Constants.VERBOSE;
+
+    /**
+     * Told about the progress of the running transfers, on the thread of the transfer.
+     */
+    interface Listener {
+        void onProgress(int shareId, long currentBytes, long totalBytes);
+    }
+
+    private static class Share {
+        final AtomicLong mCurrentBytes = new AtomicLong();
+        final long mTotalBytes;
+        final long mStartTime = SystemClock.elapsedRealtime();
+        final AtomicLong mDiskWaitMillis = new AtomicLong();
+        // Only used by the thread of the transfer
+        long mReportedPercent = -1;
+        long mReportedTime;
+
+        Share(long totalBytes) {
+            mTotalBytes = totalBytes;
+        }
+    }
+
+    private static final ConcurrentHashMap<Integer, Share> sShares = new ConcurrentHashMap<>();
+    private static final CopyOnWriteArrayList<Listener> sListeners =
+            new CopyOnWriteArrayList<>();
+
+    private BluetoothOppProgress() {}
+
+    static void addListener(Listener listener) {
+        sListeners.add(listener);
+    }
+
+    static void removeListener(Listener listener) {
+        sListeners.remove(listener);
+    }
+
+    /**
+     * Starts tracking the progress of a share, from 0 of totalBytes.
+     */
+    static void start(int shareId, long totalBytes) {
+        sShares.put(shareId, new Share(totalBytes));
+    }
+
+    /**
+     * Sets the bytes transferred of a started share.
+     */
+    static void update(int shareId, long currentBytes) {
+        Share share = sShares.get(shareId);
+        if (share == null) {
+            return;
+        }
+        share.mCurrentBytes.set(currentBytes);
+        long percent = share.mTotalBytes > 0 ? currentBytes * 100 / share.mTotalBytes : 100;
+        long now = SystemClock.elapsedRealtime();
+        if (percent > share.mReportedPercent
+                || now - share.mReportedTime > Constants.NFC_ALIVE_CHECK_MS) {
+            share.mReportedPercent = percent;
+            share.mReportedTime = now;
+            for (Listener listener : sListeners) {
+                listener.onProgress(shareId, currentBytes, share.mTotalBytes);
+            }
+        }
+    }
+
+    /**
+     * Returns the bytes transferred of a share, or defaultBytes if it is not running.
+     */
+    static long getCurrentBytes(int shareId, long defaultBytes) {
+        Share share = sShares.get(shareId);
+        return share != null ? share.mCurrentBytes.get() : defaultBytes;
+    }
+
+    /**
+     * Adds to the time the session of a running share waited for the disk.
+     */
+    static void addDiskWait(int shareId, long millis) {
+        Share share = sShares.get(shareId);
+        if (share != null) {
+            share.mDiskWaitMillis.addAndGet(millis);
+        }
+    }
+
+    /**
+     * Returns the average throughput of a share since it started, or 0 if it is not running.
+     */
+    static long getBytesPerSecond(int shareId) {
+        Share share = sShares.get(shareId);
+        return share != null ? getBytesPerSecond(share) : 0;
+    }
+
+    /**
+     * Returns how long the session of a share waited for the disk, or 0 if it is not running.
+     */
+    static long getDiskWaitMillis(int shareId) {
+        Share share = sShares.get(shareId);
+        return share != null ? share.mDiskWaitMillis.get() : 0;
+    }
+
+    private static long getBytesPerSecond(Share share) {
+        long elapsed = SystemClock.elapsedRealtime() - share.mStartTime;
+        return share.mCurrentBytes.get() * 1000 / Math.max(1, elapsed);
+    }
+
+    /**
+     * Stops tracking the progress of a share, and writes its bytes transferred to the provider.
+     */
+    static void finish(Context context, int shareId) {
+        Share share = sShares.remove(shareId);
+        if (share == null) {
+            return;
+        }
+        if (V) {
+            Log.v(TAG, "Share " + shareId + " finished at " + share.mCurrentBytes.get() + " of "
+                    + share.mTotalBytes + ", " + getBytesPerSecond(share) + " bytes/s, waited "
+                    + share.mDiskWaitMillis.get() + " ms for the disk");
+        }
+        ContentValues updateValues = new ContentValues();
+        updateValues.put(BluetoothShare.CURRENT_BYTES, share.mCurrentBytes.get());
+        context.getContentResolver().update(
+                Uri.parse(BluetoothShare.CONTENT_URI + "/" + shareId), updateValues, null, null);
+    }
+}
@@ -44,6 +44,9 @@ import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.util.Log;
 
+import java.util.Arrays;
+import java.util.HashSet;
+
 /**
  * This provider allows application to interact with Bluetooth OPP manager
  */
@@ -92,6 +95,15 @@ public final class BluetoothOppProvider extends ContentProvider {
     /** The database that lies underneath this content provider */
     private SQLiteOpenHelper mOpenHelper = null;
 
+    /**
+     * Ids of the shares inserted, updated or deleted since the last call to
+     * {@link #takeChangedShares}, so that the service only reads those again.
+     */
+    private static final HashSet<Integer> sChangedShares = new HashSet<>();
+
+    /** Set when it is not known which shares changed */
+    private static boolean sAllSharesChanged = true;
+
     /**
      * Creates and updated database on demand when opening it. Helper class to
      * create database the first time the provider is initialized and upgrade it
@@ -138,6 +150,7 @@ public final class BluetoothOppProvider extends ContentProvider {
     }
 
     private void createTable(SQLiteDatabase db) {
+        recordAllSharesChanged();
         try {
             db.execSQL("CREATE TABLE " + DB_TABLE + "(" + BluetoothShare._ID
                     + " INTEGER PRIMARY KEY AUTOINCREMENT," + BluetoothShare.URI + " TEXT, "
@@ -164,6 +177,62 @@ public final class BluetoothOppProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Returns the sorted ids of the shares inserted, updated or deleted since the last call, or
+     * null if it is not known which shares changed and all of them must be read again.
+     */
+    static int[] takeChangedShares() {
+        synchronized (sChangedShares) {
+            int[] changedShares = null;
+            if (!sAllSharesChanged) {
+                changedShares = new int[sChangedShares.size()];
+                int i = 0;
+                for (int id : sChangedShares) {
+                    changedShares[i++] = id;
+                }
+                Arrays.sort(changedShares);
+            }
+            sChangedShares.clear();
+            sAllSharesChanged = false;
+            return changedShares;
+        }
+    }
+
+    private static void recordAllSharesChanged() {
+        synchronized (sChangedShares) {
+            sAllSharesChanged = true;
+            sChangedShares.clear();
+        }
+    }
+
+    private static void recordSharesChanged(int[] ids) {
+        synchronized (sChangedShares) {
+            if (!sAllSharesChanged) {
+                for (int id : ids) {
+                    sChangedShares.add(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the ids of the shares matching a selection, to record them as changed by an update
+     * or delete, or null if the selection is all shares.
+     */
+    private static int[] queryShareIds(SQLiteDatabase db, String where, String[] whereArgs) {
+        if (where == null || where.isEmpty()) {
+            return null;
+        }
+        try (Cursor cursor = db.query(DB_TABLE, new String[]{BluetoothShare._ID}, where,
+                whereArgs, null, null, null)) {
+            int[] ids = new int[cursor.getCount()];
+            for (int i = 0; i < ids.length && cursor.moveToNext(); i++) {
+                ids[i] = cursor.getInt(0);
+            }
+            return ids;
+        }
+    }
+
     @Override
     public String getType(Uri uri) {
         int match = sURIMatcher.match(uri);
@@ -250,6 +319,7 @@ public final class BluetoothOppProvider extends ContentProvider {
             Log.w(TAG, "couldn't insert " + uri + "into btopp database");
             return null;
         }
+        recordSharesChanged(new int[]{(int) rowID});
 
         context.getContentResolver().notifyChange(uri, null);
 
@@ -365,7 +435,19 @@ public final class BluetoothOppProvider extends ContentProvider {
                 }
 
                 if (values.size() > 0) {
-                    count = db.update(DB_TABLE, values, myWhere, selectionArgs);
+                    db.beginTransaction();
+                    try {
+                        int[] ids = queryShareIds(db, myWhere, selectionArgs);
+                        count = db.update(DB_TABLE, values, myWhere, selectionArgs);
+                        db.setTransactionSuccessful();
+                        if (ids != null) {
+                            recordSharesChanged(ids);
+                        } else {
+                            recordAllSharesChanged();
+                        }
+                    } finally {
+                        db.endTransaction();
+                    }
                 }
                 break;
             }
@@ -401,7 +483,19 @@ public final class BluetoothOppProvider extends ContentProvider {
                     myWhere += " ( " + BluetoothShare._ID + " = " + rowId + " ) ";
                 }
 
-                count = db.delete(DB_TABLE, myWhere, selectionArgs);
+                db.beginTransaction();
+                try {
+                    int[] ids = queryShareIds(db, myWhere, selectionArgs);
+                    count = db.delete(DB_TABLE, myWhere, selectionArgs);
+                    db.setTransactionSuccessful();
+                    if (ids != null) {
+                        recordSharesChanged(ids);
+                    } else {
+                        recordAllSharesChanged();
+                    }
+                } finally {
+                    db.endTransaction();
+                }
                 break;
             }
             default:
@@ -57,6 +57,7 @@ import android.util.Log;
 import com.android.bluetooth.BluetoothObexTransport;
 import com.android.bluetooth.IObexConnectionHandler;
 import com.android.bluetooth.ObexServerSockets;
+import com.android.bluetooth.R;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.sdp.SdpManager;
 import com.android.internal.annotations.VisibleForTesting;
@@ -115,14 +116,23 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
 
     private boolean mUpdateThreadRunning;
 
+    /** Whether mShares holds all the shares, so only the changed ones need to be read again */
+    private boolean mSharesSynced;
+
+    /** Whether an inbound share succeeded since the history of shares was last trimmed */
+    private boolean mTrimPending;
+
     private ArrayList<BluetoothOppShareInfo> mShares;
 
     private ArrayList<BluetoothOppBatch> mBatches;
 
-    private BluetoothOppTransfer mTransfer;
+    /** The running outbound transfers, each to a different device */
+    private ArrayList<BluetoothOppTransfer> mTransfers;
 
     private BluetoothOppTransfer mServerTransfer;
 
+    private BluetoothOppTransferScheduler mScheduler;
+
     private int mBatchId;
 
     /**
@@ -196,14 +206,10 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
         }
         mShares = new ArrayList();
         mBatches = new ArrayList();
+        mTransfers = new ArrayList<>();
+        mScheduler = new BluetoothOppTransferScheduler(
+                getResources().getInteger(R.integer.opp_max_concurrent_transfers));
         mBatchId = 1;
-        final ContentResolver contentResolver = getContentResolver();
-        new Thread("trimDatabase") {
-            @Override
-            public void run() {
-                trimDatabase(contentResolver);
-            }
-        }.start();
 
         IntentFilter filter = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
         registerReceiver(mBluetoothReceiver, filter);
@@ -234,6 +240,7 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
         mNotifier = new BluetoothOppNotification(this);
         mNotifier.mNotificationMgr.cancelAll();
         mNotifier.updateNotification();
+        BluetoothOppProgress.addListener(mNotifier);
         updateFromProvider();
         setBluetoothOppService(this);
         return true;
@@ -271,10 +278,18 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
                 String dir = info.mDirection == BluetoothShare.DIRECTION_OUTBOUND ? " -> " : " <- ";
                 SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss", Locale.US);
                 Date date = new Date(info.mTimestamp);
-                println(sb, "  " + format.format(date) + dir + info.mCurrentBytes + "/"
-                        + info.mTotalBytes);
+                String throughput = "";
+                long bytesPerSecond = BluetoothOppProgress.getBytesPerSecond(info.mId);
+                if (bytesPerSecond > 0) {
+                    throughput = " at " + bytesPerSecond / 1024 + " KB/s, waited "
+                            + BluetoothOppProgress.getDiskWaitMillis(info.mId) + " ms for disk";
+                }
+                println(sb, "  " + format.format(date) + dir
+                        + BluetoothOppProgress.getCurrentBytes(info.mId, info.mCurrentBytes)
+                        + "/" + info.mTotalBytes + throughput);
             }
         }
+        mScheduler.dump(sb);
     }
 
     /**
@@ -326,11 +341,11 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
                         mServerTransfer.onBatchCanceled();
                         mServerTransfer = null;
                     }
-                    //Stop Active OUTBOUND Transfer
-                    if (mTransfer != null) {
-                        mTransfer.onBatchCanceled();
-                        mTransfer = null;
+                    //Stop Active OUTBOUND Transfers
+                    for (BluetoothOppTransfer transfer : mTransfers) {
+                        transfer.onBatchCanceled();
                     }
+                    mTransfers.clear();
                     unregisterReceivers();
                     synchronized (BluetoothOppService.this) {
                         if (mUpdateThread != null) {
@@ -397,11 +412,11 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
 
                     /*
                      * Strategy for incoming connections:
-                     * 1. If there is no ongoing transfer, no on-hold connection, start it
-                     * 2. If there is ongoing transfer, hold it for 20 seconds(1 seconds * 20 times)
+                     * 1. If the connection can be served now, no on-hold connection, start it
+                     * 2. If not, hold it for 20 seconds(1 seconds * 20 times)
                      * 3. If there is on-hold connection, reject directly
                      */
-                    if (mBatches.size() == 0 && mPendingConnection == null) {
+                    if (canAcceptConnection() && mPendingConnection == null) {
                         Log.i(TAG, "Start Obex Server");
                         createServerSession(transport);
                     } else {
@@ -423,7 +438,7 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
                     }
                     break;
                 case MSG_INCOMING_CONNECTION_RETRY:
-                    if (mBatches.size() == 0) {
+                    if (canAcceptConnection()) {
                         Log.i(TAG, "Start Obex Server");
                         createServerSession(mPendingConnection);
                         mIncomingRetries = 0;
@@ -500,6 +515,9 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
                 getContentResolver().unregisterContentObserver(mObserver);
                 mObserver = null;
             }
+            if (mNotifier != null) {
+                BluetoothOppProgress.removeListener(mNotifier);
+            }
             unregisterReceiver(mBluetoothReceiver);
         } catch (IllegalArgumentException e) {
             Log.w(TAG, "unregisterReceivers " + e.toString());
@@ -612,102 +630,202 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
                     }
                     mPendingUpdate = false;
                 }
-                Cursor cursor =
-                        getContentResolver().query(BluetoothShare.CONTENT_URI, null, null, null,
-                                BluetoothShare._ID);
-
-                if (cursor == null) {
+                ContentResolver contentResolver = getContentResolver();
+                if (!mSharesSynced) {
+                    // Trim the history before reading all of it for the first time
+                    trimDatabase(contentResolver);
+                }
+                int[] changedShares = BluetoothOppProvider.takeChangedShares();
+                if (!mSharesSynced || changedShares == null) {
+                    mSharesSynced = syncAllShares(contentResolver);
+                } else {
+                    mSharesSynced = syncChangedShares(contentResolver, changedShares);
+                }
+                if (!mSharesSynced) {
                     mUpdateThreadRunning = false;
                     return;
                 }
+                if (mTrimPending) {
+                    // The shares deleted are read on the next pass
+                    mTrimPending = false;
+                    trimHistory(contentResolver, true);
+                }
 
-                cursor.moveToFirst();
-
-                int arrayPos = 0;
-
-                boolean isAfterLast = cursor.isAfterLast();
-
-                int idColumn = cursor.getColumnIndexOrThrow(BluetoothShare._ID);
-                /*
-                 * Walk the cursor and the local array to keep them in sync. The
-                 * key to the algorithm is that the ids are unique and sorted
-                 * both in the cursor and in the array, so that they can be
-                 * processed in order in both sources at the same time: at each
-                 * step, both sources point to the lowest id that hasn't been
-                 * processed from that source, and the algorithm processes the
-                 * lowest id from those two possibilities. At each step: -If the
-                 * array contains an entry that's not in the cursor, remove the
-                 * entry, move to next entry in the array. -If the array
-                 * contains an entry that's in the cursor, nothing to do, move
-                 * to next cursor row and next array entry. -If the cursor
-                 * contains an entry that's not in the array, insert a new entry
-                 * in the array, move to next cursor row and next array entry.
-                 */
-                while (!isAfterLast || arrayPos < mShares.size() && mListenStarted) {
-                    if (isAfterLast) {
-                        // We're beyond the end of the cursor but there's still some
-                        // stuff in the local array, which can only be junk
-                        if (mShares.size() != 0) {
-                            if (V) {
-                                Log.v(TAG, "Array update: trimming " + mShares.get(arrayPos).mId
-                                        + " @ " + arrayPos);
-                            }
-                        }
+                mNotifier.updateNotification();
+            }
 
-                        deleteShare(arrayPos); // this advances in the array
-                    } else {
-                        int id = cursor.getInt(idColumn);
+            mUpdateThreadRunning = false;
+        }
+    }
 
-                        if (arrayPos == mShares.size()) {
-                            insertShare(cursor, arrayPos);
-                            if (V) {
-                                Log.v(TAG, "Array update: inserting " + id + " @ " + arrayPos);
-                            }
-                            ++arrayPos;
-                            cursor.moveToNext();
-                            isAfterLast = cursor.isAfterLast();
-                        } else {
-                            int arrayId = 0;
-                            if (mShares.size() != 0) {
-                                arrayId = mShares.get(arrayPos).mId;
-                            }
+    /**
+     * Reads all the shares, and brings mShares in sync with them. Returns false if the shares
+     * could not be read.
+     */
+    private boolean syncAllShares(ContentResolver contentResolver) {
+        Cursor cursor =
+                contentResolver.query(BluetoothShare.CONTENT_URI, null, null, null,
+                        BluetoothShare._ID);
 
-                            if (arrayId < id) {
-                                if (V) {
-                                    Log.v(TAG,
-                                            "Array update: removing " + arrayId + " @ " + arrayPos);
-                                }
-                                deleteShare(arrayPos);
-                            } else if (arrayId == id) {
-                                // This cursor row already exists in the stored array.
-                                updateShare(cursor, arrayPos);
-                                scanFileIfNeeded(arrayPos);
-                                ++arrayPos;
-                                cursor.moveToNext();
-                                isAfterLast = cursor.isAfterLast();
-                            } else {
-                                // This cursor entry didn't exist in the stored
-                                // array
-                                if (V) {
-                                    Log.v(TAG, "Array update: appending " + id + " @ " + arrayPos);
-                                }
-                                insertShare(cursor, arrayPos);
-
-                                ++arrayPos;
-                                cursor.moveToNext();
-                                isAfterLast = cursor.isAfterLast();
-                            }
+        if (cursor == null) {
+            return false;
+        }
+
+        cursor.moveToFirst();
+
+        int arrayPos = 0;
+
+        boolean isAfterLast = cursor.isAfterLast();
+
+        int idColumn = cursor.getColumnIndexOrThrow(BluetoothShare._ID);
+        /*
+         * Walk the cursor and the local array to keep them in sync. The
+         * key to the algorithm is that the ids are unique and sorted
+         * both in the cursor and in the array, so that they can be
+         * processed in order in both sources at the same time: at each
+         * step, both sources point to the lowest id that hasn't been
+         * processed from that source, and the algorithm processes the
+         * lowest id from those two possibilities. At each step: -If the
+         * array contains an entry that's not in the cursor, remove the
+         * entry, move to next entry in the array. -If the array
+         * contains an entry that's in the cursor, nothing to do, move
+         * to next cursor row and next array entry. -If the cursor
+         * contains an entry that's not in the array, insert a new entry
+         * in the array, move to next cursor row and next array entry.
+         */
+        while (!isAfterLast || arrayPos < mShares.size() && mListenStarted) {
+            if (isAfterLast) {
+                // We're beyond the end of the cursor but there's still some
+                // stuff in the local array, which can only be junk
+                if (mShares.size() != 0) {
+                    if (V) {
+                        Log.v(TAG, "Array update: trimming " + mShares.get(arrayPos).mId
+                                + " @ " + arrayPos);
+                    }
+                }
+
+                deleteShare(arrayPos); // this advances in the array
+            } else {
+                int id = cursor.getInt(idColumn);
+
+                if (arrayPos == mShares.size()) {
+                    insertShare(cursor, arrayPos);
+                    if (V) {
+                        Log.v(TAG, "Array update: inserting " + id + " @ " + arrayPos);
+                    }
+                    ++arrayPos;
+                    cursor.moveToNext();
+                    isAfterLast = cursor.isAfterLast();
+                } else {
+                    int arrayId = 0;
+                    if (mShares.size() != 0) {
+                        arrayId = mShares.get(arrayPos).mId;
+                    }
+
+                    if (arrayId < id) {
+                        if (V) {
+                            Log.v(TAG,
+                                    "Array update: removing " + arrayId + " @ " + arrayPos);
+                        }
+                        deleteShare(arrayPos);
+                    } else if (arrayId == id) {
+                        // This cursor row already exists in the stored array.
+                        updateShare(cursor, arrayPos);
+                        scanFileIfNeeded(arrayPos);
+                        ++arrayPos;
+                        cursor.moveToNext();
+                        isAfterLast = cursor.isAfterLast();
+                    } else {
+                        // This cursor entry didn't exist in the stored
+                        // array
+                        if (V) {
+                            Log.v(TAG, "Array update: appending " + id + " @ " + arrayPos);
                         }
+                        insertShare(cursor, arrayPos);
+
+                        ++arrayPos;
+                        cursor.moveToNext();
+                        isAfterLast = cursor.isAfterLast();
                     }
                 }
+            }
+        }
 
-                mNotifier.updateNotification();
+        cursor.close();
+        return true;
+    }
 
-                cursor.close();
+    /**
+     * Reads the shares changed since the last pass, by their sorted ids, and brings mShares in
+     * sync with them. Returns false if the shares could not be read.
+     */
+    private boolean syncChangedShares(ContentResolver contentResolver, int[] ids) {
+        if (ids.length == 0) {
+            return true;
+        }
+        StringBuilder selection = new StringBuilder(BluetoothShare._ID).append(" IN (");
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                selection.append(',');
+            }
+            selection.append(ids[i]);
+        }
+        selection.append(')');
+        Cursor cursor = contentResolver.query(BluetoothShare.CONTENT_URI, null,
+                selection.toString(), null, BluetoothShare._ID);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            int idColumn = cursor.getColumnIndexOrThrow(BluetoothShare._ID);
+            boolean isAfterLast = !cursor.moveToFirst();
+            for (int id : ids) {
+                // Both the ids and the rows are sorted, so a row is either this id or a later one
+                boolean exists = !isAfterLast && cursor.getInt(idColumn) == id;
+                int arrayPos = findShare(id);
+                if (exists && arrayPos >= 0) {
+                    updateShare(cursor, arrayPos);
+                    scanFileIfNeeded(arrayPos);
+                } else if (exists) {
+                    if (V) {
+                        Log.v(TAG, "Array update: inserting " + id + " @ " + ~arrayPos);
+                    }
+                    insertShare(cursor, ~arrayPos);
+                } else if (arrayPos >= 0) {
+                    if (V) {
+                        Log.v(TAG, "Array update: removing " + id + " @ " + arrayPos);
+                    }
+                    deleteShare(arrayPos);
+                }
+                if (exists) {
+                    isAfterLast = !cursor.moveToNext();
+                }
             }
+        } finally {
+            cursor.close();
+        }
+        return true;
+    }
 
-            mUpdateThreadRunning = false;
+    /**
+     * Returns the position of the share in mShares, which is sorted by id, or if it is not there
+     * the complement of the position it would be inserted at.
+     */
+    private int findShare(int id) {
+        int low = 0;
+        int high = mShares.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midId = mShares.get(mid).mId;
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
         }
+        return ~low;
     }
 
     private void insertShare(Cursor cursor, int arrayPos) {
@@ -764,11 +882,9 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
         /*
          * Add info into a batch. The logic is
          * 1) Only add valid and readyToStart info
-         * 2) If there is no batch, create a batch and insert this transfer into batch,
-         * then run the batch
-         * 3) If there is existing batch and timestamp match, insert transfer into batch
-         * 4) If there is existing batch and timestamp does not match, create a new batch and
-         * put in queue
+         * 2) If there is existing batch and timestamp match, insert transfer into batch
+         * 3) Otherwise create a new batch and put in queue, then run the queued batches the
+         * scheduler allows to run
          */
 
         if (info.isReadyToStart()) {
@@ -783,60 +899,22 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
                     return;
                 }
             }
-            if (mBatches.size() == 0) {
+            int i = findBatchWithTimeStamp(info.mTimestamp);
+            if (i != -1) {
+                if (V) {
+                    Log.v(TAG, "Service add info " + info.mId + " to existing batch " + mBatches
+                            .get(i).mId);
+                }
+                mBatches.get(i).addShare(info);
+            } else {
                 BluetoothOppBatch newBatch = new BluetoothOppBatch(this, info);
                 newBatch.mId = mBatchId;
                 mBatchId++;
                 mBatches.add(newBatch);
-                if (info.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
-                    if (V) {
-                        Log.v(TAG,
-                                "Service create new Batch " + newBatch.mId + " for OUTBOUND info "
-                                        + info.mId);
-                    }
-                    mTransfer = new BluetoothOppTransfer(this, newBatch);
-                } else if (info.mDirection == BluetoothShare.DIRECTION_INBOUND) {
-                    if (V) {
-                        Log.v(TAG, "Service create new Batch " + newBatch.mId + " for INBOUND info "
-                                + info.mId);
-                    }
-                    mServerTransfer = new BluetoothOppTransfer(this, newBatch, mServerSession);
-                }
-
-                if (info.mDirection == BluetoothShare.DIRECTION_OUTBOUND && mTransfer != null) {
-                    if (V) {
-                        Log.v(TAG, "Service start transfer new Batch " + newBatch.mId + " for info "
-                                + info.mId);
-                    }
-                    mTransfer.start();
-                } else if (info.mDirection == BluetoothShare.DIRECTION_INBOUND
-                        && mServerTransfer != null) {
-                    if (V) {
-                        Log.v(TAG, "Service start server transfer new Batch " + newBatch.mId
-                                + " for info " + info.mId);
-                    }
-                    mServerTransfer.start();
-                }
-
-            } else {
-                int i = findBatchWithTimeStamp(info.mTimestamp);
-                if (i != -1) {
-                    if (V) {
-                        Log.v(TAG, "Service add info " + info.mId + " to existing batch " + mBatches
-                                .get(i).mId);
-                    }
-                    mBatches.get(i).addShare(info);
-                } else {
-                    // There is ongoing batch
-                    BluetoothOppBatch newBatch = new BluetoothOppBatch(this, info);
-                    newBatch.mId = mBatchId;
-                    mBatchId++;
-                    mBatches.add(newBatch);
-                    if (V) {
-                        Log.v(TAG,
-                                "Service add new Batch " + newBatch.mId + " for info " + info.mId);
-                    }
+                if (V) {
+                    Log.v(TAG, "Service add new Batch " + newBatch.mId + " for info " + info.mId);
                 }
+                startPendingBatches();
             }
         }
     }
@@ -884,6 +962,11 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
             mNotifier.mNotificationMgr.cancel(info.mId);
         }
 
+        if (info.mDirection == BluetoothShare.DIRECTION_INBOUND
+                && newStatus == BluetoothShare.STATUS_SUCCESS
+                && info.mStatus != BluetoothShare.STATUS_SUCCESS) {
+            mTrimPending = true;
+        }
         info.mStatus = newStatus;
         info.mTotalBytes = cursor.getLong(cursor.getColumnIndexOrThrow(BluetoothShare.TOTAL_BYTES));
         info.mCurrentBytes =
@@ -914,15 +997,13 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
                     Log.v(TAG, "Batch " + batch.mId + " is finished");
                 }
                 if (batch.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
-                    if (mTransfer == null) {
-                        Log.e(TAG, "Unexpected error! mTransfer is null");
-                    } else if (batch.mId == mTransfer.getBatchId()) {
-                        mTransfer.stop();
+                    BluetoothOppTransfer transfer = findTransfer(batch.mId);
+                    if (transfer == null) {
+                        Log.e(TAG, "Unexpected error! no transfer for batch " + batch.mId);
                     } else {
-                        Log.e(TAG, "Unexpected error! batch id " + batch.mId
-                                + " doesn't match mTransfer id " + mTransfer.getBatchId());
+                        transfer.stop();
+                        mTransfers.remove(transfer);
                     }
-                    mTransfer = null;
                 } else {
                     if (mServerTransfer == null) {
                         Log.e(TAG, "Unexpected error! mServerTransfer is null");
@@ -1012,41 +1093,73 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
             Log.v(TAG, "Remove batch " + batch.mId);
         }
         mBatches.remove(batch);
-        if (mBatches.size() > 0) {
-            for (BluetoothOppBatch nextBatch : mBatches) {
-                // we have a running batch
-                if (nextBatch.mStatus == Constants.BATCH_STATUS_RUNNING) {
-                    return;
-                } else {
-                    // just finish a transfer, start pending outbound transfer
-                    if (nextBatch.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
-                        if (V) {
-                            Log.v(TAG, "Start pending outbound batch " + nextBatch.mId);
-                        }
-                        mTransfer = new BluetoothOppTransfer(this, nextBatch);
-                        mTransfer.start();
-                        return;
-                    } else if (nextBatch.mDirection == BluetoothShare.DIRECTION_INBOUND
-                            && mServerSession != null) {
-                        // have to support pending inbound transfer
-                        // if an outbound transfer and incoming socket happens together
-                        if (V) {
-                            Log.v(TAG, "Start pending inbound batch " + nextBatch.mId);
-                        }
-                        mServerTransfer = new BluetoothOppTransfer(this, nextBatch, mServerSession);
-                        mServerTransfer.start();
-                        if (nextBatch.getPendingShare() != null
-                                && nextBatch.getPendingShare().mConfirm
-                                == BluetoothShare.USER_CONFIRMATION_CONFIRMED) {
-                            mServerTransfer.confirmStatusChanged();
-                        }
-                        return;
-                    }
+        // The transfer of a canceled batch is already stopped
+        BluetoothOppTransfer transfer = findTransfer(batch.mId);
+        if (transfer != null) {
+            mTransfers.remove(transfer);
+        }
+        if (mServerTransfer != null && mServerTransfer.getBatchId() == batch.mId) {
+            mServerTransfer = null;
+        }
+        mScheduler.onBatchRemoved(batch, batch.getCurrentBytes());
+        startPendingBatches();
+    }
+
+    /**
+     * Starts the queued batches, as many as the scheduler allows to run with those running.
+     */
+    private void startPendingBatches() {
+        BluetoothOppBatch batch;
+        while ((batch = mScheduler.pickNext(mBatches,
+                mServerTransfer == null && mServerSession != null)) != null) {
+            mScheduler.onBatchStarted(batch);
+            if (batch.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
+                if (V) {
+                    Log.v(TAG, "Start outbound batch " + batch.mId);
+                }
+                BluetoothOppTransfer transfer = new BluetoothOppTransfer(this, batch);
+                mTransfers.add(transfer);
+                transfer.start();
+            } else {
+                if (V) {
+                    Log.v(TAG, "Start inbound batch " + batch.mId);
+                }
+                mServerTransfer = new BluetoothOppTransfer(this, batch, mServerSession);
+                mServerTransfer.start();
+                if (batch.getPendingShare() != null && batch.getPendingShare().mConfirm
+                        == BluetoothShare.USER_CONFIRMATION_CONFIRMED) {
+                    mServerTransfer.confirmStatusChanged();
                 }
             }
         }
     }
 
+    /**
+     * Returns whether an incoming connection can be served now. With one transfer at a time it
+     * waits for all the queued batches, like it always did. Otherwise it only waits for the
+     * inbound batches, as there is a single server session, and for a free transfer slot.
+     */
+    private boolean canAcceptConnection() {
+        if (mScheduler.getMaxTransfers() == 1) {
+            return mBatches.size() == 0;
+        }
+        for (BluetoothOppBatch batch : mBatches) {
+            if (batch.mDirection == BluetoothShare.DIRECTION_INBOUND) {
+                return false;
+            }
+        }
+        return mScheduler.getRunningCount() < mScheduler.getMaxTransfers();
+    }
+
+    private BluetoothOppTransfer findTransfer(int batchId) {
+        for (BluetoothOppTransfer transfer : mTransfers) {
+            if (transfer.getBatchId() == batchId) {
+                return transfer;
+            }
+        }
+        return null;
+    }
+
     private void scanFileIfNeeded(int arrayPos) {
         BluetoothOppShareInfo info = mShares.get(arrayPos);
         boolean isFileReceived = BluetoothShare.isStatusSuccess(info.mStatus)
@@ -1066,7 +1179,7 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
         }
     }
 
-    // Run in a background thread at boot.
+    // Run in the update thread before the shares are first read.
     private static void trimDatabase(ContentResolver contentResolver) {
         // remove the invisible/unconfirmed inbound shares
         int delNum = contentResolver.delete(BluetoothShare.CONTENT_URI, WHERE_INVISIBLE_UNCONFIRMED,
@@ -1074,7 +1187,15 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
         if (V) {
             Log.v(TAG, "Deleted shares, number = " + delNum);
         }
+        trimHistory(contentResolver, false);
+    }
 
+    /**
+     * Run in the update thread, at startup and when an inbound share succeeds. At startup every
+     * share older than the oldest one kept is deleted. Later on only successful inbound shares
+     * are, as older outbound shares may still be queued or running.
+     */
+    private static void trimHistory(ContentResolver contentResolver, boolean inboundSuccessOnly) {
         // Keep the latest inbound and successful shares.
         Cursor cursor =
                 contentResolver.query(BluetoothShare.CONTENT_URI, new String[]{BluetoothShare._ID},
@@ -1089,8 +1210,11 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
             if (cursor.moveToPosition(numToDelete)) {
                 int columnId = cursor.getColumnIndexOrThrow(BluetoothShare._ID);
                 long id = cursor.getLong(columnId);
-                delNum = contentResolver.delete(BluetoothShare.CONTENT_URI,
-                        BluetoothShare._ID + " < " + id, null);
+                String where = BluetoothShare._ID + " < " + id;
+                if (inboundSuccessOnly) {
+                    where = WHERE_INBOUND_SUCCESS + " AND " + where;
+                }
+                int delNum = contentResolver.delete(BluetoothShare.CONTENT_URI, where, null);
                 if (V) {
                     Log.v(TAG, "Deleted old inbound success share: " + delNum);
                 }
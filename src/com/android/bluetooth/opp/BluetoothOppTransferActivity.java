@@ -109,6 +109,9 @@ public class BluetoothOppTransferActivity extends AlertActivity
     /** Observer to get notified when the content observer's data changes */
     private BluetoothTransferContentObserver mObserver;
 
+    /** Listener to get notified of the progress of the transfer, which is not in the db */
+    private BluetoothOppProgress.Listener mProgressListener;
+
     // do not update button during activity creating, only update when db
     // changes after activity created
     private boolean mNeedUpdateButton = false;
@@ -155,6 +158,23 @@ public class BluetoothOppTransferActivity extends AlertActivity
             mObserver = new BluetoothTransferContentObserver();
             getContentResolver().registerContentObserver(BluetoothShare.CONTENT_URI, true,
                     mObserver);
+            final int shareId = mTransInfo.mID;
+            mProgressListener = new BluetoothOppProgress.Listener() {
+                @Override
+                public void onProgress(int id, long currentBytes, long totalBytes) {
+                    if (id == shareId) {
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (mProgressListener != null) {
+                                    updateProgressbar();
+                                }
+                            }
+                        });
+                    }
+                }
+            };
+            BluetoothOppProgress.addListener(mProgressListener);
         }
 
         if (mWhichDialog != DIALOG_SEND_ONGOING && mWhichDialog != DIALOG_RECEIVE_ONGOING) {
@@ -177,6 +197,10 @@ public class BluetoothOppTransferActivity extends AlertActivity
         if (mObserver != null) {
             getContentResolver().unregisterContentObserver(mObserver);
         }
+        if (mProgressListener != null) {
+            BluetoothOppProgress.removeListener(mProgressListener);
+            mProgressListener = null;
+        }
         super.onDestroy();
     }
 
@@ -433,6 +457,10 @@ public class BluetoothOppTransferActivity extends AlertActivity
                 getContentResolver().unregisterContentObserver(mObserver);
                 mObserver = null;
             }
+            if (mProgressListener != null) {
+                BluetoothOppProgress.removeListener(mProgressListener);
+                mProgressListener = null;
+            }
             displayWhichDialog();
             updateButton();
             customizeViewContent();
@@ -60,5 +60,9 @@ public class BluetoothOppTransferInfo {
     String mDeviceName; // bt device name
 
     boolean mHandoverInitiated; // the transfer was initiated by connection handover (eg. NFC)
+
+    long mBytesPerSecond; // average throughput of the running transfer, 0 if not running
+
+    long mDiskWaitMillis; // time the running transfer waited for the disk
     // int mScanned;
 }
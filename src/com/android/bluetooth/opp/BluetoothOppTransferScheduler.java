@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.os.SystemClock;
+
+import com.android.bluetooth.btservice.ProfileService;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides which batches of {@link BluetoothOppService} run, and keeps the throughput of the
+ * transfers to and from each remote device.
+ *
+ * Up to a configured number of batches run at the same time, each with its own
+ * {@link BluetoothOppTransfer}, and at most one per remote device. There is a single server
+ * session, so at most one of them is inbound. A pending inbound batch goes first, as its
+ * remote device is connected and waiting; the outbound batches go round robin over the remote
+ * devices, so that a device with many batches queued does not hold back the others. With a
+ * limit of one, the batches run one at a time in the order they were queued, as they always
+ * did.
+ *
+ * The file info of an outbound share is kept by content URI in {@link BluetoothOppUtility}, so
+ * an outbound batch does not start while another running batch sends one of its contents.
+ * @hide
+ */
+/*package*/ class BluetoothOppTransferScheduler {
+    // Remote devices whose turn and throughput are kept
+    @VisibleForTesting
+    static final int MAX_DEVICES = 32;
+
+    private static class DeviceStats {
+        // Order in which the last batch of the device started, 0 if none did
+        long mLastStarted;
+        int mBatches;
+        long mBytes;
+        long mMillis;
+    }
+
+    private static class RunningBatch {
+        final BluetoothOppBatch mBatch;
+        final String mAddress;
+        final long mStartTime = SystemClock.elapsedRealtime();
+
+        RunningBatch(BluetoothOppBatch batch) {
+            mBatch = batch;
+            mAddress = batch.mDestination.getAddress();
+        }
+    }
+
+    private final int mMaxTransfers;
+    private final HashMap<Integer, RunningBatch> mRunning = new HashMap<>();
+    private final LinkedHashMap<String, DeviceStats> mDevices =
+            new LinkedHashMap<String, DeviceStats>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, DeviceStats> eldest) {
+                    return size() > MAX_DEVICES;
+                }
+            };
+    private long mStartCount;
+
+    BluetoothOppTransferScheduler(int maxTransfers) {
+        mMaxTransfers = Math.max(1, maxTransfers);
+    }
+
+    /**
+     * Returns the pending batch to start next, or null if none can start now. Inbound batches
+     * only start if canStartInbound is true.
+     */
+    BluetoothOppBatch pickNext(List<BluetoothOppBatch> batches, boolean canStartInbound) {
+        if (mRunning.size() >= mMaxTransfers) {
+            return null;
+        }
+        BluetoothOppBatch next = null;
+        long nextLastStarted = Long.MAX_VALUE;
+        for (BluetoothOppBatch batch : batches) {
+            if (batch.mStatus != Constants.BATCH_STATUS_PENDING || mRunning.containsKey(batch.mId)
+                    || isDeviceBusy(batch.mDestination.getAddress())) {
+                continue;
+            }
+            if (batch.mDirection == BluetoothShare.DIRECTION_INBOUND) {
+                if (canStartInbound) {
+                    return batch;
+                }
+                continue;
+            }
+            if (isContentInFlight(batch)) {
+                continue;
+            }
+            if (mMaxTransfers == 1) {
+                return batch;
+            }
+            DeviceStats stats = mDevices.get(batch.mDestination.getAddress());
+            long lastStarted = stats != null ? stats.mLastStarted : 0;
+            // The first batch of the least recently served device
+            if (lastStarted < nextLastStarted) {
+                next = batch;
+                nextLastStarted = lastStarted;
+            }
+        }
+        return next;
+    }
+
+    void onBatchStarted(BluetoothOppBatch batch) {
+        RunningBatch running = new RunningBatch(batch);
+        mRunning.put(batch.mId, running);
+        getStats(running.mAddress).mLastStarted = ++mStartCount;
+    }
+
+    /**
+     * Called when a batch is removed, with the bytes its transfer moved.
+     */
+    void onBatchRemoved(BluetoothOppBatch batch, long bytes) {
+        RunningBatch running = mRunning.remove(batch.mId);
+        if (running == null) {
+            return;
+        }
+        DeviceStats stats = getStats(running.mAddress);
+        stats.mBatches++;
+        stats.mBytes += bytes;
+        stats.mMillis += SystemClock.elapsedRealtime() - running.mStartTime;
+    }
+
+    int getRunningCount() {
+        return mRunning.size();
+    }
+
+    int getMaxTransfers() {
+        return mMaxTransfers;
+    }
+
+    void dump(StringBuilder sb) {
+        ProfileService.println(sb, "Transfers: " + mRunning.size() + " of " + mMaxTransfers
+                + " running");
+        for (Map.Entry<String, DeviceStats> entry : mDevices.entrySet()) {
+            DeviceStats stats = entry.getValue();
+            if (stats.mBatches == 0) {
+                continue;
+            }
+            ProfileService.println(sb, "  " + entry.getKey() + ": " + stats.mBatches
+                    + " batches, " + stats.mBytes / 1024 + " KB in " + stats.mMillis + " ms, "
+                    + stats.mBytes * 1000 / Math.max(1, stats.mMillis) / 1024 + " KB/s");
+        }
+    }
+
+    private boolean isDeviceBusy(String address) {
+        for (RunningBatch running : mRunning.values()) {
+            if (running.mAddress.equals(address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether a running outbound batch sends one of the contents of the batch.
+     */
+    private boolean isContentInFlight(BluetoothOppBatch batch) {
+        for (RunningBatch running : mRunning.values()) {
+            if (running.mBatch.mDirection == BluetoothShare.DIRECTION_OUTBOUND
+                    && running.mBatch.hasUriOf(batch)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private DeviceStats getStats(String address) {
+        DeviceStats stats = mDevices.get(address);
+        if (stats == null) {
+            stats = new DeviceStats();
+            mDevices.put(address, stats);
+        }
+        return stats;
+    }
+}
@@ -168,6 +168,8 @@ public class BluetoothPbapService extends ProfileService implements IObexConnect
 
     private Thread mThreadUpdateSecVersionCounter;
 
+    private BluetoothPbapVcardCache mVcardCache;
+
     private static BluetoothPbapService sBluetoothPbapService;
 
     private class BluetoothPbapContentObserver extends ContentObserver {
@@ -561,6 +563,8 @@ public class BluetoothPbapService extends ProfileService implements IObexConnect
         filter.addAction(AUTH_RESPONSE_ACTION);
         filter.addAction(AUTH_CANCELLED_ACTION);
         BluetoothPbapConfig.init(this);
+        mVcardCache = new BluetoothPbapVcardCache(this);
+        mVcardCache.start();
         registerReceiver(mPbapReceiver, filter);
         try {
             mContactChangeObserver = new BluetoothPbapContentObserver();
@@ -595,6 +599,10 @@ public class BluetoothPbapService extends ProfileService implements IObexConnect
             mHandlerThread.quitSafely();
         }
         mContactsLoaded = false;
+        if (mVcardCache != null) {
+            mVcardCache.stop();
+            mVcardCache = null;
+        }
         if (mContactChangeObserver == null) {
             Log.i(TAG, "Avoid unregister when receiver it is not registered");
             return true;
@@ -842,6 +850,10 @@ public class BluetoothPbapService extends ProfileService implements IObexConnect
                 public void run() {
                     BluetoothPbapUtils.updateSecondaryVersionCounter(mContext,
                             mSessionStatusHandler);
+                    BluetoothPbapVcardCache vcardCache = BluetoothPbapVcardCache.getInstance();
+                    if (vcardCache != null) {
+                        vcardCache.purgeDeletedContacts(mContext.getContentResolver());
+                    }
                     mThreadUpdateSecVersionCounter = null;
                 }
             };
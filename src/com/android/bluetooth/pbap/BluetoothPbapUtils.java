@@ -17,6 +17,7 @@
  ************************************************************************************/
 package com.android.bluetooth.pbap;
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
@@ -30,19 +31,28 @@ import android.provider.ContactsContract.CommonDataKinds.StructuredName;
 import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.DeletedContacts;
 import android.provider.ContactsContract.Profile;
 import android.provider.ContactsContract.RawContactsEntity;
+import android.util.AtomicFile;
 import android.util.Log;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.vcard.VCardComposer;
 import com.android.vcard.VCardConfig;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Calendar;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Objects;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
 class BluetoothPbapUtils {
@@ -57,43 +67,27 @@ class BluetoothPbapUtils {
 
     static long sPrimaryVersionCounter = 0;
     static long sSecondaryVersionCounter = 0;
-    private static long sTotalContacts = 0;
 
-    /* totalFields and totalSvcFields used to update primary/secondary version
-     * counter between pbap sessions*/
-    private static long sTotalFields = 0;
-    private static long sTotalSvcFields = 0;
-    private static long sContactsLastUpdated = 0;
-
-    private static class ContactData {
-        private String mName;
-        private ArrayList<String> mEmail;
-        private ArrayList<String> mPhone;
-        private ArrayList<String> mAddress;
-
-        ContactData() {
-            mPhone = new ArrayList<>();
-            mEmail = new ArrayList<>();
-            mAddress = new ArrayList<>();
-        }
-
-        ContactData(String name, ArrayList<String> phone, ArrayList<String> email,
-                ArrayList<String> address) {
-            this.mName = name;
-            this.mPhone = phone;
-            this.mEmail = email;
-            this.mAddress = address;
-        }
+    private static final String CONTACTS_STATE_FILE = "pbap_contacts_state";
+    private static final int CONTACTS_STATE_VERSION = 2;
+    // Number of contact ids looked up per Data query
+    private static final int QUERY_CHUNK_SIZE = 500;
+
+    /* What is known of a contact to tell which folder version counters a
+     * change to it bumps: any update for the primary one, a change to the
+     * name, phone, email and address fields for the secondary one.*/
+    private static class ContactHashes {
+        private long mLastUpdated;
+        private long mSvcFields;
     }
 
-    private static HashMap<String, ContactData> sContactDataset = new HashMap<>();
-
-    private static HashSet<String> sContactSet = new HashSet<>();
+    private static HashMap<Long, ContactHashes> sContactHashes = new HashMap<>();
+    private static boolean sContactsStateLoaded = false;
 
-    private static final String TYPE_NAME = "name";
-    private static final String TYPE_PHONE = "phone";
-    private static final String TYPE_EMAIL = "email";
-    private static final String TYPE_ADDRESS = "address";
+    /* Contacts updated or deleted since these times may not be reflected in
+     * sContactHashes and the folder version counters yet.*/
+    private static long sContactsLastUpdated = 0;
+    private static long sContactsLastDeleted = 0;
 
     private static boolean hasFilter(byte[] filter) {
         return filter != null && filter.length > 0;
@@ -112,6 +106,13 @@ class BluetoothPbapUtils {
 
     static VCardComposer createFilteredVCardComposer(final Context ctx, final int vcardType,
             final byte[] filter) {
+        return new VCardComposer(ctx, getFilteredVCardType(vcardType, filter), true);
+    }
+
+    /**
+     * Returns the vCard type of the composers made by {@link #createFilteredVCardComposer}.
+     */
+    static int getFilteredVCardType(final int vcardType, final byte[] filter) {
         int vType = vcardType;
         boolean includePhoto =
                 BluetoothPbapConfig.includePhotosInVcard() && (!hasFilter(filter) || isFilterBitSet(
@@ -122,7 +123,7 @@ class BluetoothPbapUtils {
             }
             vType |= VCardConfig.FLAG_REFRAIN_IMAGE_EXPORT;
         }
-        return new VCardComposer(ctx, vType, true);
+        return vType;
     }
 
     public static String getProfileName(Context context) {
@@ -160,18 +161,17 @@ class BluetoothPbapUtils {
         return vcard;
     }
 
-    static void savePbapParams(Context ctx) {
+    static synchronized void savePbapParams(Context ctx) {
         SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(ctx);
         long dbIdentifier = sDbIdentifier.get();
         Editor edit = pref.edit();
         edit.putLong("primary", sPrimaryVersionCounter);
         edit.putLong("secondary", sSecondaryVersionCounter);
         edit.putLong("dbIdentifier", dbIdentifier);
-        edit.putLong("totalContacts", sTotalContacts);
-        edit.putLong("lastUpdatedTimestamp", sContactsLastUpdated);
-        edit.putLong("totalFields", sTotalFields);
-        edit.putLong("totalSvcFields", sTotalSvcFields);
         edit.apply();
+        if (sContactsStateLoaded) {
+            writeContactsState(ctx);
+        }
 
         if (V) {
             Log.v(TAG, "Saved Primary:" + sPrimaryVersionCounter + ", Secondary:"
@@ -184,336 +184,323 @@ class BluetoothPbapUtils {
      * one at each connection will not benefit from the resulting performance and
      * user experience improvements. So database identifier is set with current
      * timestamp and updated on rollover of folder version counter.*/
-    static void fetchPbapParams(Context ctx) {
+    static synchronized void fetchPbapParams(Context ctx) {
         SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(ctx);
         long timeStamp = Calendar.getInstance().getTimeInMillis();
         BluetoothPbapUtils.sDbIdentifier.set(pref.getLong("DbIdentifier", timeStamp));
         BluetoothPbapUtils.sPrimaryVersionCounter = pref.getLong("primary", 0);
         BluetoothPbapUtils.sSecondaryVersionCounter = pref.getLong("secondary", 0);
-        BluetoothPbapUtils.sTotalFields = pref.getLong("totalContacts", 0);
-        BluetoothPbapUtils.sContactsLastUpdated = pref.getLong("lastUpdatedTimestamp", timeStamp);
-        BluetoothPbapUtils.sTotalFields = pref.getLong("totalFields", 0);
-        BluetoothPbapUtils.sTotalSvcFields = pref.getLong("totalSvcFields", 0);
         if (V) {
             Log.v(TAG, " fetchPbapParams " + pref.getAll());
         }
     }
 
-    static void loadAllContacts(Context context, Handler handler) {
+    /* loadAllContacts() restores the field hashes of the contacts saved by
+     * savePbapParams(), and catches up with the changes made since then, even
+     * while BT was OFF. The contacts are only scanned in full when there is no
+     * saved state.*/
+    static synchronized void loadAllContacts(Context context, Handler handler) {
         if (V) {
             Log.v(TAG, "Loading Contacts ...");
         }
 
-        String[] projection = {Data.CONTACT_ID, Data.DATA1, Data.MIMETYPE};
-        sTotalContacts = fetchAndSetContacts(context, handler, projection, null, null, true);
-        if (sTotalContacts < 0) {
-            sTotalContacts = 0;
-            return;
+        if (!sContactsStateLoaded && !readContactsState(context)) {
+            if (!scanAllContacts(context)) {
+                /* send delayed message to loadContact when ContentResolver is unable
+                 * to fetch data from contact database using the specified URI at that
+                 * moment (Case: immediate Pbap connect on system boot with BT ON)*/
+                handler.sendMessageDelayed(
+                        handler.obtainMessage(BluetoothPbapService.LOAD_CONTACTS),
+                        QUERY_CONTACT_RETRY_INTERVAL);
+                return;
+            }
+            /* Without the saved hashes, changes made while BT was OFF cannot be
+             * told apart, so let the clients know something may have changed.*/
+            sPrimaryVersionCounter++;
+            sSecondaryVersionCounter++;
+            writeContactsState(context);
+        } else {
+            updateVersionCounters(context);
         }
+        checkRollover(handler);
         handler.sendMessage(handler.obtainMessage(BluetoothPbapService.CONTACTS_LOADED));
     }
 
-    static void updateSecondaryVersionCounter(Context context, Handler handler) {
-            /* updatedList stores list of contacts which are added/updated after
-             * the time when contacts were last updated. (contactsLastUpdated
-             * indicates the time when contact/contacts were last updated and
-             * corresponding changes were reflected in Folder Version Counters).*/
-        ArrayList<String> updatedList = new ArrayList<>();
-        HashSet<String> currentContactSet = new HashSet<>();
-
-        String[] projection = {Contacts._ID, Contacts.CONTACT_LAST_UPDATED_TIMESTAMP};
-        Cursor c = context.getContentResolver()
-                .query(Contacts.CONTENT_URI, projection, null, null, null);
-
-        if (c == null) {
-            Log.d(TAG, "Failed to fetch data from contact database");
+    static synchronized void updateSecondaryVersionCounter(Context context, Handler handler) {
+        if (!sContactsStateLoaded) {
+            // loadAllContacts() has not completed yet, and will catch up with the change.
             return;
         }
-        while (c.moveToNext()) {
-            String contactId = c.getString(0);
-            long lastUpdatedTime = c.getLong(1);
-            if (lastUpdatedTime > sContactsLastUpdated) {
-                updatedList.add(contactId);
+        updateVersionCounters(context);
+        checkRollover(handler);
+    }
+
+    /* updateVersionCounters() reads the contacts updated or deleted since the
+     * last update, and bumps the primary folder version counter by the number
+     * of contacts updated since they were last seen, and the secondary one by
+     * the number of contacts whose name, phone, email or address changed. A
+     * contact seen again with the same update time bumps nothing, so the times
+     * are compared inclusively.*/
+    private static void updateVersionCounters(Context context) {
+        ContentResolver resolver = context.getContentResolver();
+        long lastDeleted = sContactsLastDeleted;
+        ArrayList<Long> deletedList = new ArrayList<>();
+        String[] deletedProjection = {DeletedContacts.CONTACT_ID,
+                DeletedContacts.CONTACT_DELETED_TIMESTAMP};
+        try (Cursor c = resolver.query(DeletedContacts.CONTENT_URI, deletedProjection,
+                DeletedContacts.CONTACT_DELETED_TIMESTAMP + ">=?",
+                new String[]{String.valueOf(sContactsLastDeleted)}, null)) {
+            if (c == null) {
+                Log.d(TAG, "Failed to fetch data from contact database");
+                return;
+            }
+            while (c.moveToNext()) {
+                deletedList.add(c.getLong(0));
+                lastDeleted = Math.max(lastDeleted, c.getLong(1));
             }
-            currentContactSet.add(contactId);
         }
-        int currentContactCount = c.getCount();
-        c.close();
 
+        /* updatedList stores list of contacts which are added/updated after
+         * the time when contacts were last updated.*/
+        long lastUpdated = sContactsLastUpdated;
+        ArrayList<Long> updatedList = new ArrayList<>();
+        HashMap<Long, ContactHashes> updatedHashes = new HashMap<>();
+        String[] projection = {Contacts._ID, Contacts.CONTACT_LAST_UPDATED_TIMESTAMP};
+        try (Cursor c = resolver.query(Contacts.CONTENT_URI, projection,
+                Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + ">=?",
+                new String[]{String.valueOf(sContactsLastUpdated)}, null)) {
+            if (c == null) {
+                Log.d(TAG, "Failed to fetch data from contact database");
+                return;
+            }
+            while (c.moveToNext()) {
+                ContactHashes hashes = new ContactHashes();
+                hashes.mLastUpdated = c.getLong(1);
+                updatedList.add(c.getLong(0));
+                updatedHashes.put(c.getLong(0), hashes);
+                lastUpdated = Math.max(lastUpdated, hashes.mLastUpdated);
+            }
+        }
         if (V) {
-            Log.v(TAG, "updated list =" + updatedList);
+            Log.v(TAG, "updated list =" + updatedList + ", deleted list =" + deletedList);
         }
-        String[] dataProjection = {Data.CONTACT_ID, Data.DATA1, Data.MIMETYPE};
-
-        String whereClause = Data.CONTACT_ID + "=?";
 
-            /* code to check if new contact/contacts are added */
-        if (currentContactCount > sTotalContacts) {
-            for (String contact : updatedList) {
-                String[] selectionArgs = {contact};
-                fetchAndSetContacts(context, handler, dataProjection, whereClause, selectionArgs,
-                        false);
-                sSecondaryVersionCounter++;
-                sPrimaryVersionCounter++;
-                sTotalContacts = currentContactCount;
+        for (int start = 0; start < updatedList.size(); start += QUERY_CHUNK_SIZE) {
+            int end = Math.min(updatedList.size(), start + QUERY_CHUNK_SIZE);
+            StringBuilder selection = new StringBuilder(Data.CONTACT_ID).append(" IN (");
+            for (int i = start; i < end; i++) {
+                selection.append(i > start ? "," : "").append(updatedList.get(i));
             }
-                /* When contact/contacts are deleted */
-        } else if (currentContactCount < sTotalContacts) {
-            sTotalContacts = currentContactCount;
-            ArrayList<String> svcFields = new ArrayList<>(
-                    Arrays.asList(StructuredName.CONTENT_ITEM_TYPE, Phone.CONTENT_ITEM_TYPE,
-                            Email.CONTENT_ITEM_TYPE, StructuredPostal.CONTENT_ITEM_TYPE));
-            HashSet<String> deletedContacts = new HashSet<>(sContactSet);
-            deletedContacts.removeAll(currentContactSet);
-            sPrimaryVersionCounter += deletedContacts.size();
-            sSecondaryVersionCounter += deletedContacts.size();
-            if (V) {
-                Log.v(TAG, "Deleted Contacts : " + deletedContacts);
+            selection.append(')');
+            if (!fetchContactHashes(context, selection.toString(), updatedHashes)) {
+                return;
             }
+        }
 
-            // to decrement totalFields and totalSvcFields count
-            for (String deletedContact : deletedContacts) {
-                sContactSet.remove(deletedContact);
-                String[] selectionArgs = {deletedContact};
-                Cursor dataCursor = context.getContentResolver()
-                        .query(Data.CONTENT_URI, dataProjection, whereClause, selectionArgs, null);
-
-                if (dataCursor == null) {
-                    Log.d(TAG, "Failed to fetch data from contact database");
-                    return;
-                }
-
-                while (dataCursor.moveToNext()) {
-                    if (svcFields.contains(
-                            dataCursor.getString(dataCursor.getColumnIndex(Data.MIMETYPE)))) {
-                        sTotalSvcFields--;
-                    }
-                    sTotalFields--;
-                }
-                dataCursor.close();
+        for (Long contactId : deletedList) {
+            if (sContactHashes.remove(contactId) != null) {
+                sPrimaryVersionCounter++;
+                sSecondaryVersionCounter++;
             }
-
-                /* When contacts are updated. i.e. Fields of existing contacts are
-                 * added/updated/deleted */
-        } else {
-            for (String contact : updatedList) {
+        }
+        for (Map.Entry<Long, ContactHashes> entry : updatedHashes.entrySet()) {
+            ContactHashes hashes = entry.getValue();
+            ContactHashes oldHashes = sContactHashes.put(entry.getKey(), hashes);
+            if (oldHashes == null) {
                 sPrimaryVersionCounter++;
-                ArrayList<String> phoneTmp = new ArrayList<>();
-                ArrayList<String> emailTmp = new ArrayList<>();
-                ArrayList<String> addressTmp = new ArrayList<>();
-                String nameTmp = null;
-                boolean updated = false;
-
-                String[] selectionArgs = {contact};
-                Cursor dataCursor = context.getContentResolver()
-                        .query(Data.CONTENT_URI, dataProjection, whereClause, selectionArgs, null);
-
-                if (dataCursor == null) {
-                    Log.d(TAG, "Failed to fetch data from contact database");
-                    return;
-                }
-                // fetch all updated contacts and compare with cached copy of contacts
-                int indexData = dataCursor.getColumnIndex(Data.DATA1);
-                int indexMimeType = dataCursor.getColumnIndex(Data.MIMETYPE);
-                String data;
-                String mimeType;
-                while (dataCursor.moveToNext()) {
-                    data = dataCursor.getString(indexData);
-                    mimeType = dataCursor.getString(indexMimeType);
-                    switch (mimeType) {
-                        case Email.CONTENT_ITEM_TYPE:
-                            emailTmp.add(data);
-                            break;
-                        case Phone.CONTENT_ITEM_TYPE:
-                            phoneTmp.add(data);
-                            break;
-                        case StructuredPostal.CONTENT_ITEM_TYPE:
-                            addressTmp.add(data);
-                            break;
-                        case StructuredName.CONTENT_ITEM_TYPE:
-                            nameTmp = data;
-                            break;
-                    }
-                }
-                ContactData cData = new ContactData(nameTmp, phoneTmp, emailTmp, addressTmp);
-                dataCursor.close();
-
-                ContactData currentContactData = sContactDataset.get(contact);
-                if (currentContactData == null) {
-                    Log.e(TAG, "Null contact in the updateList: " + contact);
-                    continue;
-                }
-
-                if (!Objects.equals(nameTmp, currentContactData.mName)) {
-                    updated = true;
-                } else if (checkFieldUpdates(currentContactData.mPhone, phoneTmp)) {
-                    updated = true;
-                } else if (checkFieldUpdates(currentContactData.mEmail, emailTmp)) {
-                    updated = true;
-                } else if (checkFieldUpdates(currentContactData.mAddress, addressTmp)) {
-                    updated = true;
+                sSecondaryVersionCounter++;
+            } else {
+                if (hashes.mLastUpdated > oldHashes.mLastUpdated) {
+                    sPrimaryVersionCounter++;
+                } else {
+                    // Seen again at the watermark, keep the later time.
+                    hashes.mLastUpdated = oldHashes.mLastUpdated;
                 }
-
-                if (updated) {
+                if (oldHashes.mSvcFields != hashes.mSvcFields) {
                     sSecondaryVersionCounter++;
-                    sContactDataset.put(contact, cData);
                 }
             }
         }
+        sContactsLastUpdated = lastUpdated;
+        sContactsLastDeleted = lastDeleted;
 
         Log.d(TAG,
                 "primaryVersionCounter = " + sPrimaryVersionCounter + ", secondaryVersionCounter="
                         + sSecondaryVersionCounter);
+    }
 
-        // check if Primary/Secondary version Counter has rolled over
-        if (sSecondaryVersionCounter < 0 || sPrimaryVersionCounter < 0) {
-            handler.sendMessage(handler.obtainMessage(BluetoothPbapService.ROLLOVER_COUNTERS));
+    /* scanAllContacts() computes the field hashes of all contacts, when there
+     * is no saved state to start from.*/
+    private static boolean scanAllContacts(Context context) {
+        // Changes made while scanning are picked up by the next update.
+        long scanTime = System.currentTimeMillis();
+        HashMap<Long, ContactHashes> hashes = new HashMap<>();
+        try (Cursor c = context.getContentResolver().query(Contacts.CONTENT_URI,
+                new String[]{Contacts._ID, Contacts.CONTACT_LAST_UPDATED_TIMESTAMP}, null, null,
+                null)) {
+            if (c == null) {
+                Log.d(TAG, "Failed to fetch contacts data from database..");
+                return false;
+            }
+            while (c.moveToNext()) {
+                ContactHashes contactHashes = new ContactHashes();
+                contactHashes.mLastUpdated = c.getLong(1);
+                hashes.put(c.getLong(0), contactHashes);
+            }
         }
+        if (!fetchContactHashes(context, null, hashes)) {
+            return false;
+        }
+        sContactHashes = hashes;
+        sContactsLastUpdated = scanTime;
+        sContactsLastDeleted = scanTime;
+        sContactsStateLoaded = true;
+        Log.d(TAG, "Scanned " + hashes.size() + " contacts");
+        return true;
     }
 
-    /* checkFieldUpdates checks update contact fields of a particular contact.
-     * Field update can be a field updated/added/deleted in an existing contact.
-     * Returns true if any contact field is updated else return false. */
-    private static boolean checkFieldUpdates(ArrayList<String> oldFields,
-            ArrayList<String> newFields) {
-        if (newFields != null && oldFields != null) {
-            if (newFields.size() != oldFields.size()) {
-                sTotalSvcFields += Math.abs(newFields.size() - oldFields.size());
-                sTotalFields += Math.abs(newFields.size() - oldFields.size());
-                return true;
+    /* fetchContactHashes() reads the name, phone, email and address fields
+     * matching whereClause in one query, and adds them to the hashes of their
+     * contacts. Fields of contacts not in hashes are ignored.*/
+    private static boolean fetchContactHashes(Context context, String whereClause,
+            HashMap<Long, ContactHashes> hashes) {
+        String[] projection = {Data.CONTACT_ID, Data.DATA1, Data.MIMETYPE};
+        String selection = Data.MIMETYPE + " IN (?,?,?,?)";
+        if (whereClause != null) {
+            selection = "(" + whereClause + ") AND " + selection;
+        }
+        String[] selectionArgs = {StructuredName.CONTENT_ITEM_TYPE, Phone.CONTENT_ITEM_TYPE,
+                Email.CONTENT_ITEM_TYPE, StructuredPostal.CONTENT_ITEM_TYPE};
+        try (Cursor c = context.getContentResolver()
+                .query(Data.CONTENT_URI, projection, selection, selectionArgs, null)) {
+            if (c == null) {
+                Log.d(TAG, "Failed to fetch contacts data from database..");
+                return false;
             }
-            for (String newField : newFields) {
-                if (!oldFields.contains(newField)) {
-                    return true;
+            while (c.moveToNext()) {
+                ContactHashes contactHashes = hashes.get(c.getLong(0));
+                if (contactHashes == null) {
+                    continue;
+                }
+                String mimeType = c.getString(2);
+                if (isSvcField(mimeType)) {
+                    /* Sums of the field hashes do not depend on the order of
+                     * the fields, like the comparison of the field lists they
+                     * replace.*/
+                    contactHashes.mSvcFields += hashField(mimeType, c.getString(1));
                 }
             }
-            /* when all fields of type(phone/email/address) are deleted in a given contact*/
-        } else if (newFields == null && oldFields != null && oldFields.size() > 0) {
-            sTotalSvcFields += oldFields.size();
-            sTotalFields += oldFields.size();
-            return true;
-
-            /* when new fields are added for a type(phone/email/address) in a contact
-             * for which there were no fields of this type earliar.*/
-        } else if (oldFields == null && newFields != null && newFields.size() > 0) {
-            sTotalSvcFields += newFields.size();
-            sTotalFields += newFields.size();
-            return true;
         }
-        return false;
+        return true;
     }
 
-    /* fetchAndSetContacts reads contacts and caches them
-     * isLoad = true indicates its loading all contacts
-     * isLoad = false indiacates its caching recently added contact in database*/
-    private static int fetchAndSetContacts(Context context, Handler handler, String[] projection,
-            String whereClause, String[] selectionArgs, boolean isLoad) {
-        long currentTotalFields = 0, currentSvcFieldCount = 0;
-        Cursor c = context.getContentResolver()
-                .query(Data.CONTENT_URI, projection, whereClause, selectionArgs, null);
-
-        /* send delayed message to loadContact when ContentResolver is unable
-         * to fetch data from contact database using the specified URI at that
-         * moment (Case: immediate Pbap connect on system boot with BT ON)*/
-        if (c == null) {
-            Log.d(TAG, "Failed to fetch contacts data from database..");
-            if (isLoad) {
-                handler.sendMessageDelayed(
-                        handler.obtainMessage(BluetoothPbapService.LOAD_CONTACTS),
-                        QUERY_CONTACT_RETRY_INTERVAL);
-            }
-            return -1;
-        }
+    private static boolean isSvcField(String mimeType) {
+        return StructuredName.CONTENT_ITEM_TYPE.equals(mimeType)
+                || Phone.CONTENT_ITEM_TYPE.equals(mimeType)
+                || Email.CONTENT_ITEM_TYPE.equals(mimeType)
+                || StructuredPostal.CONTENT_ITEM_TYPE.equals(mimeType);
+    }
 
-        int indexCId = c.getColumnIndex(Data.CONTACT_ID);
-        int indexData = c.getColumnIndex(Data.DATA1);
-        int indexMimeType = c.getColumnIndex(Data.MIMETYPE);
-        String contactId, data, mimeType;
-        while (c.moveToNext()) {
-            contactId = c.getString(indexCId);
-            data = c.getString(indexData);
-            mimeType = c.getString(indexMimeType);
-            /* fetch phone/email/address/name information of the contact */
-            switch (mimeType) {
-                case Phone.CONTENT_ITEM_TYPE:
-                    setContactFields(TYPE_PHONE, contactId, data);
-                    currentSvcFieldCount++;
-                    break;
-                case Email.CONTENT_ITEM_TYPE:
-                    setContactFields(TYPE_EMAIL, contactId, data);
-                    currentSvcFieldCount++;
-                    break;
-                case StructuredPostal.CONTENT_ITEM_TYPE:
-                    setContactFields(TYPE_ADDRESS, contactId, data);
-                    currentSvcFieldCount++;
-                    break;
-                case StructuredName.CONTENT_ITEM_TYPE:
-                    setContactFields(TYPE_NAME, contactId, data);
-                    currentSvcFieldCount++;
-                    break;
+    /* hashField() returns a 64 bit FNV-1a hash of a data field, with the bits
+     * mixed so that sums of hashes stay spread out.*/
+    @VisibleForTesting
+    static long hashField(String mimeType, String data) {
+        long hash = 0xcbf29ce484222325L;
+        String[] values = {mimeType, data};
+        for (String value : values) {
+            if (value == null) {
+                hash = (hash ^ 0xffff) * 0x100000001b3L;
+                continue;
+            }
+            for (int i = 0; i < value.length(); i++) {
+                hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
             }
-            sContactSet.add(contactId);
-            currentTotalFields++;
+            hash = (hash ^ 0x10000) * 0x100000001b3L;
         }
-        c.close();
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
 
-        /* This code checks if there is any update in contacts after last pbap
-         * disconnect has happenned (even if BT is turned OFF during this time)*/
-        if (isLoad && currentTotalFields != sTotalFields) {
-            sPrimaryVersionCounter += Math.abs(sTotalContacts - sContactSet.size());
+    private static void checkRollover(Handler handler) {
+        // check if Primary/Secondary version Counter has rolled over
+        if (sSecondaryVersionCounter < 0 || sPrimaryVersionCounter < 0) {
+            handler.sendMessage(handler.obtainMessage(BluetoothPbapService.ROLLOVER_COUNTERS));
+        }
+    }
 
-            if (currentSvcFieldCount != sTotalSvcFields) {
-                if (sTotalContacts != sContactSet.size()) {
-                    sSecondaryVersionCounter += Math.abs(sTotalContacts - sContactSet.size());
-                } else {
-                    sSecondaryVersionCounter++;
-                }
+    /* readContactsState() restores the field hashes and update times saved by
+     * writeContactsState(). Returns false if there is no usable saved state.*/
+    private static boolean readContactsState(Context context) {
+        AtomicFile file = new AtomicFile(new File(context.getFilesDir(), CONTACTS_STATE_FILE));
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(file.openRead()))) {
+            if (in.readInt() != CONTACTS_STATE_VERSION) {
+                Log.w(TAG, "Unknown contacts state version, rescanning contacts");
+                return false;
             }
-            if (sPrimaryVersionCounter < 0 || sSecondaryVersionCounter < 0) {
-                rolloverCounters();
+            long lastUpdated = in.readLong();
+            long lastDeleted = in.readLong();
+            int count = in.readInt();
+            HashMap<Long, ContactHashes> hashes = new HashMap<>(count * 4 / 3 + 1);
+            for (int i = 0; i < count; i++) {
+                long contactId = in.readLong();
+                ContactHashes contactHashes = new ContactHashes();
+                contactHashes.mLastUpdated = in.readLong();
+                contactHashes.mSvcFields = in.readLong();
+                hashes.put(contactId, contactHashes);
             }
-
-            sTotalFields = currentTotalFields;
-            sTotalSvcFields = currentSvcFieldCount;
-            sContactsLastUpdated = System.currentTimeMillis();
-            Log.d(TAG, "Contacts updated between last BT OFF and current"
-                    + "Pbap Connect, primaryVersionCounter=" + sPrimaryVersionCounter
-                    + ", secondaryVersionCounter=" + sSecondaryVersionCounter);
-        } else if (!isLoad) {
-            sTotalFields++;
-            sTotalSvcFields++;
+            sContactHashes = hashes;
+            sContactsLastUpdated = lastUpdated;
+            sContactsLastDeleted = lastDeleted;
+            sContactsStateLoaded = true;
+            if (V) {
+                Log.v(TAG, "Restored " + count + " contacts, last updated " + lastUpdated);
+            }
+            return true;
+        } catch (FileNotFoundException e) {
+            Log.d(TAG, "No saved contacts state");
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read the contacts state, rescanning contacts", e);
         }
-        return sContactSet.size();
+        return false;
     }
 
-    /* setContactFields() is used to store contacts data in local cache (phone,
-     * email or address which is required for updating Secondary Version counter).
-     * contactsFieldData - List of field data for phone/email/address.
-     * contactId - Contact ID, data1 - field value from data table for phone/email/address*/
-
-    private static void setContactFields(String fieldType, String contactId, String data) {
-        ContactData cData;
-        if (sContactDataset.containsKey(contactId)) {
-            cData = sContactDataset.get(contactId);
-        } else {
-            cData = new ContactData();
+    private static void writeContactsState(Context context) {
+        AtomicFile file = new AtomicFile(new File(context.getFilesDir(), CONTACTS_STATE_FILE));
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(CONTACTS_STATE_VERSION);
+            out.writeLong(sContactsLastUpdated);
+            out.writeLong(sContactsLastDeleted);
+            out.writeInt(sContactHashes.size());
+            for (Map.Entry<Long, ContactHashes> entry : sContactHashes.entrySet()) {
+                out.writeLong(entry.getKey());
+                out.writeLong(entry.getValue().mLastUpdated);
+                out.writeLong(entry.getValue().mSvcFields);
+            }
+            out.flush();
+            file.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to save the contacts state", e);
+            file.failWrite(fos);
         }
+    }
 
-        switch (fieldType) {
-            case TYPE_NAME:
-                cData.mName = data;
-                break;
-            case TYPE_PHONE:
-                cData.mPhone.add(data);
-                break;
-            case TYPE_EMAIL:
-                cData.mEmail.add(data);
-                break;
-            case TYPE_ADDRESS:
-                cData.mAddress.add(data);
-                break;
-        }
-        sContactDataset.put(contactId, cData);
+    /* Forgets the contacts state in memory, as after a restart of the process.*/
+    @VisibleForTesting
+    static synchronized void resetContactsState() {
+        sContactHashes = new HashMap<>();
+        sContactsStateLoaded = false;
+        sContactsLastUpdated = 0;
+        sContactsLastDeleted = 0;
+    }
+
+    @VisibleForTesting
+    static synchronized int getContactsStateSize() {
+        return sContactHashes.size();
     }
 
     /* As per Pbap 1.2 specification, Database Identifies shall be
@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbap;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.provider.ContactsContract.DeletedContacts;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of composed vCards, by contact id and vCard type, kept while the PBAP service runs.
+ *
+ * Head units pull the same, mostly unchanged, phonebook each time they connect. A vCard is
+ * stored with the CONTACT_LAST_UPDATED_TIMESTAMP of its contact, and is only served while the
+ * contact still has that timestamp. Any change to a contact, its raw contacts or its data
+ * updates the timestamp, so a stale vCard is never served. The vCards of deleted contacts are
+ * removed by {@link #purgeDeletedContacts} when the contacts change.
+ *
+ * The vCards are stored as composed, before the PBAP filter is applied. The oldest are dropped
+ * once the cache holds more than {@link #MAX_ENTRIES} vCards or {@link #MAX_BYTES} of them, so a
+ * vCard found by {@link #getCached} may be gone when read. The database is deleted when the
+ * service stops, not to keep a copy of the contacts after Bluetooth is turned off.
+ * @hide
+ */
+/*package*/ class BluetoothPbapVcardCache {
+    private static final String TAG = "BluetoothPbapVcardCache";
+    private static final boolean V = BluetoothPbapService.VERBOSE;
+
+    private static final String DB_NAME = "pbap_vcards.db";
+    private static final int DB_VERSION = 2;
+    private static final String DB_TABLE = "vcards";
+
+    private static final String CONTACT_ID = "contact_id";
+    private static final String VCARD_TYPE = "vcard_type";
+    private static final String LAST_UPDATED = "last_updated";
+    private static final String VCARD = "vcard";
+    // UTF-8 length of the vCard
+    private static final String SIZE = "size";
+
+    @VisibleForTesting
+    static final int MAX_ENTRIES = 20000;
+    @VisibleForTesting
+    static final long MAX_BYTES = 8 * 1024 * 1024;
+    // Number of contact ids looked up per query
+    static final int QUERY_CHUNK_SIZE = 500;
+
+    private static volatile BluetoothPbapVcardCache sInstance;
+
+    private final Context mContext;
+    private final String mName;
+    private final int mMaxEntries;
+    private final long mMaxBytes;
+    private final SQLiteOpenHelper mOpenHelper;
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private boolean mStopped;
+    // Size of the cache, counted again when -1
+    private long mEntries = -1;
+    private long mBytes;
+    // CONTACT_DELETED_TIMESTAMP of the last deleted contact purged
+    private volatile long mPurgedUntil = System.currentTimeMillis();
+
+    private static final class DatabaseHelper extends SQLiteOpenHelper {
+        DatabaseHelper(Context context, String name) {
+            super(context, name, null, DB_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + DB_TABLE + "(" + CONTACT_ID + " INTEGER NOT NULL, "
+                    + VCARD_TYPE + " INTEGER NOT NULL, " + LAST_UPDATED + " INTEGER NOT NULL, "
+                    + VCARD + " TEXT NOT NULL, " + SIZE + " INTEGER NOT NULL, PRIMARY KEY ("
+                    + CONTACT_ID + ", " + VCARD_TYPE + "))");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            Log.i(TAG, "Upgrading vCard cache from version " + oldVersion + " to "
+                    + newVersion + ", dropping the cached vCards");
+            db.execSQL("DROP TABLE IF EXISTS " + DB_TABLE);
+            onCreate(db);
+        }
+
+        @Override
+        public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            onUpgrade(db, oldVersion, newVersion);
+        }
+    }
+
+    BluetoothPbapVcardCache(Context context) {
+        this(context, DB_NAME, MAX_ENTRIES, MAX_BYTES);
+    }
+
+    @VisibleForTesting
+    BluetoothPbapVcardCache(Context context, String name, int maxEntries, long maxBytes) {
+        mContext = context;
+        mName = name;
+        mMaxEntries = maxEntries;
+        mMaxBytes = maxBytes;
+        mOpenHelper = new DatabaseHelper(context, name);
+    }
+
+    /**
+     * Returns the cache in use, or null if all vCards must be composed.
+     */
+    static BluetoothPbapVcardCache getInstance() {
+        return sInstance;
+    }
+
+    void start() {
+        // Left behind if the service did not stop cleanly
+        mContext.deleteDatabase(mName);
+        sInstance = this;
+    }
+
+    synchronized void stop() {
+        if (sInstance == this) {
+            sInstance = null;
+        }
+        Log.d(TAG, "vCard cache hits: " + mHits.get() + ", misses: " + mMisses.get());
+        mStopped = true;
+        mOpenHelper.close();
+        mContext.deleteDatabase(mName);
+    }
+
+    /**
+     * Returns which of the contacts have a cached vCard of the type, composed when the contact
+     * had the given last updated time. Contacts with a negative last updated time are never
+     * cached.
+     */
+    boolean[] getCached(long[] contactIds, long[] lastUpdated, int vcardType) {
+        boolean[] cached = new boolean[contactIds.length];
+        int hits = 0;
+        try {
+            SQLiteDatabase db = getDatabase();
+            for (int start = 0; start < contactIds.length; start += QUERY_CHUNK_SIZE) {
+                int end = Math.min(contactIds.length, start + QUERY_CHUNK_SIZE);
+                Map<Long, Long> stored = new HashMap<>();
+                try (Cursor c = db.query(DB_TABLE, new String[] {CONTACT_ID, LAST_UPDATED},
+                        getSelection(contactIds, start, end, vcardType), null, null, null,
+                        null)) {
+                    while (c.moveToNext()) {
+                        stored.put(c.getLong(0), c.getLong(1));
+                    }
+                }
+                for (int i = start; i < end; i++) {
+                    Long storedLastUpdated = stored.get(contactIds[i]);
+                    cached[i] = lastUpdated[i] >= 0 && storedLastUpdated != null
+                            && storedLastUpdated == lastUpdated[i];
+                    if (cached[i]) {
+                        hits++;
+                    }
+                }
+            }
+        } catch (SQLiteException | IllegalStateException e) {
+            Log.w(TAG, "Unable to read the vCard cache", e);
+            cached = new boolean[contactIds.length];
+            hits = 0;
+        }
+        mHits.addAndGet(hits);
+        mMisses.addAndGet(contactIds.length - hits);
+        if (V) {
+            Log.v(TAG, hits + " of " + contactIds.length + " vCards cached");
+        }
+        return cached;
+    }
+
+    /**
+     * Returns the cached vCards of the type of the contacts from start to end, by contact id.
+     */
+    Map<Long, String> getVCards(long[] contactIds, int start, int end, int vcardType) {
+        Map<Long, String> vcards = new HashMap<>();
+        try (Cursor c = getDatabase().query(DB_TABLE, new String[] {CONTACT_ID, VCARD},
+                getSelection(contactIds, start, end, vcardType), null, null, null, null)) {
+            while (c.moveToNext()) {
+                vcards.put(c.getLong(0), c.getString(1));
+            }
+        } catch (SQLiteException | IllegalStateException e) {
+            Log.w(TAG, "Unable to read the vCard cache", e);
+        }
+        return vcards;
+    }
+
+    /**
+     * Caches composed vCards, as values made by {@link #toValues}, in one transaction, and
+     * drops the oldest vCards past the size limits.
+     */
+    synchronized void putAll(List<ContentValues> values) {
+        try {
+            SQLiteDatabase db = getDatabase();
+            countEntries(db);
+            db.beginTransaction();
+            try {
+                for (ContentValues value : values) {
+                    long replacedSize = getSize(db, value);
+                    db.insertWithOnConflict(DB_TABLE, null, value,
+                            SQLiteDatabase.CONFLICT_REPLACE);
+                    if (replacedSize < 0) {
+                        mEntries++;
+                    } else {
+                        mBytes -= replacedSize;
+                    }
+                    mBytes += value.getAsLong(SIZE);
+                }
+                trim(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException | IllegalStateException e) {
+            Log.w(TAG, "Unable to write the vCard cache", e);
+            mEntries = -1;
+        }
+    }
+
+    /**
+     * Removes the vCards of the contacts deleted since the last purge. Called on the thread
+     * updating the version counters when the contacts change.
+     */
+    void purgeDeletedContacts(ContentResolver resolver) {
+        long purgedUntil = mPurgedUntil;
+        List<Long> deleted = new ArrayList<>();
+        try (Cursor c = resolver.query(DeletedContacts.CONTENT_URI,
+                new String[] {DeletedContacts.CONTACT_ID,
+                        DeletedContacts.CONTACT_DELETED_TIMESTAMP},
+                DeletedContacts.CONTACT_DELETED_TIMESTAMP + ">=?",
+                new String[] {String.valueOf(mPurgedUntil)}, null)) {
+            if (c == null) {
+                Log.w(TAG, "Unable to query the deleted contacts");
+                return;
+            }
+            while (c.moveToNext()) {
+                deleted.add(c.getLong(0));
+                purgedUntil = Math.max(purgedUntil, c.getLong(1));
+            }
+        }
+        if (deleted.isEmpty()) {
+            return;
+        }
+        long[] contactIds = new long[deleted.size()];
+        for (int i = 0; i < contactIds.length; i++) {
+            contactIds[i] = deleted.get(i);
+        }
+        synchronized (this) {
+            try {
+                SQLiteDatabase db = getDatabase();
+                int purged = 0;
+                for (int start = 0; start < contactIds.length; start += QUERY_CHUNK_SIZE) {
+                    int end = Math.min(contactIds.length, start + QUERY_CHUNK_SIZE);
+                    purged += db.delete(DB_TABLE, appendContactIds(new StringBuilder(),
+                            contactIds, start, end).toString(), null);
+                }
+                if (V) {
+                    Log.v(TAG, "Purged " + purged + " vCards of " + contactIds.length
+                            + " deleted contacts");
+                }
+                mPurgedUntil = purgedUntil;
+            } catch (SQLiteException | IllegalStateException e) {
+                Log.w(TAG, "Unable to purge the vCard cache", e);
+            }
+            mEntries = -1;
+        }
+    }
+
+    static ContentValues toValues(long contactId, long lastUpdated, int vcardType,
+            String vcard) {
+        ContentValues values = new ContentValues(5);
+        values.put(CONTACT_ID, contactId);
+        values.put(VCARD_TYPE, vcardType);
+        values.put(LAST_UPDATED, lastUpdated);
+        values.put(VCARD, vcard);
+        values.put(SIZE, getUtf8Length(vcard));
+        return values;
+    }
+
+    /**
+     * Returns the database, unless the cache is stopped, so that it is not created again after
+     * it was deleted.
+     */
+    private synchronized SQLiteDatabase getDatabase() {
+        if (mStopped) {
+            throw new IllegalStateException("vCard cache is stopped");
+        }
+        return mOpenHelper.getWritableDatabase();
+    }
+
+    private void countEntries(SQLiteDatabase db) {
+        if (mEntries < 0) {
+            mEntries = DatabaseUtils.queryNumEntries(db, DB_TABLE);
+            mBytes = DatabaseUtils.longForQuery(db,
+                    "SELECT TOTAL(" + SIZE + ") FROM " + DB_TABLE, null);
+        }
+    }
+
+    /**
+     * Returns the size of the vCard the values replace, or -1 if there is none.
+     */
+    private static long getSize(SQLiteDatabase db, ContentValues values) {
+        try (Cursor c = db.query(DB_TABLE, new String[] {SIZE},
+                CONTACT_ID + "=? AND " + VCARD_TYPE + "=?",
+                new String[] {values.getAsString(CONTACT_ID), values.getAsString(VCARD_TYPE)},
+                null, null, null)) {
+            return c.moveToFirst() ? c.getLong(0) : -1;
+        }
+    }
+
+    private void trim(SQLiteDatabase db) {
+        if (mEntries <= mMaxEntries && mBytes <= mMaxBytes) {
+            return;
+        }
+        // Replacing a vCard gives it a new rowid, so the lowest are the oldest.
+        long lastRowId = -1;
+        try (Cursor c = db.query(DB_TABLE, new String[] {"rowid", SIZE}, null, null, null, null,
+                "rowid")) {
+            while ((mEntries > mMaxEntries || mBytes > mMaxBytes) && c.moveToNext()) {
+                lastRowId = c.getLong(0);
+                mBytes -= c.getLong(1);
+                mEntries--;
+            }
+        }
+        db.delete(DB_TABLE, "rowid<=" + lastRowId, null);
+    }
+
+    private static String getSelection(long[] contactIds, int start, int end, int vcardType) {
+        StringBuilder selection = new StringBuilder();
+        selection.append(VCARD_TYPE).append("=").append(vcardType).append(" AND ");
+        return appendContactIds(selection, contactIds, start, end).toString();
+    }
+
+    private static StringBuilder appendContactIds(StringBuilder selection, long[] contactIds,
+            int start, int end) {
+        selection.append(CONTACT_ID).append(" IN (");
+        for (int i = start; i < end; i++) {
+            if (i > start) {
+                selection.append(',');
+            }
+            selection.append(contactIds[i]);
+        }
+        return selection.append(')');
+    }
+
+    private static int getUtf8Length(String s) {
+        int length = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.isSurrogate(c)) {
+                // Two of them make four bytes
+                length++;
+            } else if (c >= 0x800) {
+                length += 2;
+            } else if (c >= 0x80) {
+                length++;
+            }
+        }
+        return length;
+    }
+}
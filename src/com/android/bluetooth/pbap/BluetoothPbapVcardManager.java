@@ -34,6 +34,7 @@
 package com.android.bluetooth.pbap;
 
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.CursorWindowAllocationException;
@@ -61,7 +62,10 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.obex.Operation;
 import javax.obex.ResponseCodes;
@@ -309,7 +313,7 @@ public class BluetoothPbapVcardManager {
             String vcardselectorop) {
         ArrayList<String> nameList = new ArrayList<String>();
         PropertySelector vcardselector = new PropertySelector(selector);
-        VCardComposer composer = null;
+        CachedVCardComposer composer = null;
         int vcardType;
 
         if (vcardType21) {
@@ -318,7 +322,7 @@ public class BluetoothPbapVcardManager {
             vcardType = VCardConfig.VCARD_TYPE_V30_GENERIC;
         }
 
-        composer = BluetoothPbapUtils.createFilteredVCardComposer(mContext, vcardType, null);
+        composer = new CachedVCardComposer(vcardType);
         composer.setPhoneNumberTranslationCallback(new VCardPhoneNumberTranslationCallback() {
 
             @Override
@@ -374,7 +378,9 @@ public class BluetoothPbapVcardManager {
                     }
 
                     if (!vcardselector.checkVCardSelector(vcard, vcardselectorop)) {
-                        Log.e(TAG, "vcard selector check fail");
+                        if (V) {
+                            Log.v(TAG, "vcard selector check fail");
+                        }
                         vcard = null;
                         pbSize--;
                         continue;
@@ -402,6 +408,7 @@ public class BluetoothPbapVcardManager {
         } catch (CursorWindowAllocationException e) {
             Log.e(TAG, "CursorWindowAllocationException while getting Phonebook name list");
         } finally {
+            composer.terminate();
             if (contactCursor != null) {
                 contactCursor.close();
                 contactCursor = null;
@@ -706,6 +713,197 @@ public class BluetoothPbapVcardManager {
         }
     }
 
+    /**
+     * Composes the vCards of the contacts of a cursor like {@link VCardComposer} does, except
+     * that the vCards of contacts not updated since they were last composed are read from the
+     * {@link BluetoothPbapVcardCache}, and that the vCards composed are added to it. A cached
+     * vCard dropped from the cache before it is read is composed on its own.
+     */
+    private class CachedVCardComposer {
+        // Number of composed vCards written to the cache per transaction
+        private static final int PUT_BATCH_SIZE = 100;
+
+        private final VCardComposer mComposer;
+        // The type asked for, and the filtered type the vCards are cached by
+        private final int mRequestedVCardType;
+        private final int mVCardType;
+        private final BluetoothPbapVcardCache mCache = BluetoothPbapVcardCache.getInstance();
+        private final ArrayList<ContentValues> mPendingVCards = new ArrayList<>();
+        private VCardPhoneNumberTranslationCallback mTranslationCallback;
+        private VCardComposer.RawContactEntitlesInfoCallback mCallback;
+        // The contacts of the cursor, or null if the composer composes all of them.
+        private long[] mContactIds;
+        private long[] mLastUpdated;
+        private boolean[] mCached;
+        private Map<Long, String> mCachedVCards;
+        private int mCachedVCardsEnd;
+        private int mPosition;
+
+        CachedVCardComposer(int vcardType) {
+            mRequestedVCardType = vcardType;
+            mComposer = BluetoothPbapUtils.createFilteredVCardComposer(mContext, vcardType, null);
+            mVCardType = BluetoothPbapUtils.getFilteredVCardType(vcardType, null);
+        }
+
+        void setPhoneNumberTranslationCallback(VCardPhoneNumberTranslationCallback callback) {
+            mTranslationCallback = callback;
+            mComposer.setPhoneNumberTranslationCallback(callback);
+        }
+
+        boolean initWithCallback(Cursor contactIdCursor,
+                VCardComposer.RawContactEntitlesInfoCallback callback) {
+            if (mCache == null || contactIdCursor.getCount() == 0) {
+                return mComposer.initWithCallback(contactIdCursor, callback);
+            }
+            mCallback = callback;
+            long[] contactIds = getContactIds(contactIdCursor);
+            mLastUpdated = queryLastUpdated(contactIds);
+            mCached = mCache.getCached(contactIds, mLastUpdated, mVCardType);
+            mContactIds = contactIds;
+            // The composer only gets the contacts that are not cached, in the same order.
+            MatrixCursor uncachedIdCursor = new MatrixCursor(new String[]{Phone.CONTACT_ID});
+            for (int i = 0; i < contactIds.length; i++) {
+                if (!mCached[i]) {
+                    uncachedIdCursor.addRow(new Long[]{contactIds[i]});
+                }
+            }
+            return uncachedIdCursor.getCount() == 0
+                    || mComposer.initWithCallback(uncachedIdCursor, callback);
+        }
+
+        boolean isAfterLast() {
+            if (mContactIds == null) {
+                return mComposer.isAfterLast();
+            }
+            return mPosition >= mContactIds.length;
+        }
+
+        String createOneEntry() {
+            if (mContactIds == null) {
+                return mComposer.createOneEntry();
+            }
+            int position = mPosition++;
+            if (mCached[position]) {
+                if (position >= mCachedVCardsEnd) {
+                    mCachedVCardsEnd = Math.min(mContactIds.length,
+                            position + BluetoothPbapVcardCache.QUERY_CHUNK_SIZE);
+                    mCachedVCards = mCache.getVCards(mContactIds, position, mCachedVCardsEnd,
+                            mVCardType);
+                }
+                String vcard = mCachedVCards.get(mContactIds[position]);
+                if (vcard != null) {
+                    return vcard;
+                }
+                if (V) {
+                    Log.v(TAG, "Cached vCard of contact " + mContactIds[position]
+                            + " is gone, composing it");
+                }
+                vcard = composeOne(mContactIds[position]);
+                addToCache(position, vcard);
+                return vcard;
+            }
+            String vcard = mComposer.createOneEntry();
+            addToCache(position, vcard);
+            return vcard;
+        }
+
+        String getErrorReason() {
+            return mComposer.getErrorReason();
+        }
+
+        void terminate() {
+            if (!mPendingVCards.isEmpty()) {
+                mCache.putAll(mPendingVCards);
+                mPendingVCards.clear();
+            }
+            mComposer.terminate();
+        }
+
+        private void addToCache(int position, String vcard) {
+            if (vcard != null && !vcard.isEmpty() && mLastUpdated[position] >= 0) {
+                mPendingVCards.add(BluetoothPbapVcardCache.toValues(mContactIds[position],
+                        mLastUpdated[position], mVCardType, vcard));
+                if (mPendingVCards.size() >= PUT_BATCH_SIZE) {
+                    mCache.putAll(mPendingVCards);
+                    mPendingVCards.clear();
+                }
+            }
+        }
+
+        /**
+         * Composes the vCard of one contact with a composer of its own, as the composer of the
+         * uncached contacts can't go back.
+         */
+        private String composeOne(long contactId) {
+            VCardComposer composer = BluetoothPbapUtils.createFilteredVCardComposer(mContext,
+                    mRequestedVCardType, null);
+            if (mTranslationCallback != null) {
+                composer.setPhoneNumberTranslationCallback(mTranslationCallback);
+            }
+            MatrixCursor contactIdCursor = new MatrixCursor(new String[]{Phone.CONTACT_ID});
+            contactIdCursor.addRow(new Long[]{contactId});
+            try {
+                if (!composer.initWithCallback(contactIdCursor, mCallback)) {
+                    Log.e(TAG, "Unable to compose the vCard of contact " + contactId + ": "
+                            + composer.getErrorReason());
+                    return null;
+                }
+                return composer.createOneEntry();
+            } finally {
+                composer.terminate();
+            }
+        }
+
+        private long[] getContactIds(Cursor contactIdCursor) {
+            int contactIdColumn = contactIdCursor.getColumnIndex(Data.CONTACT_ID);
+            if (contactIdColumn == -1) {
+                contactIdColumn = contactIdCursor.getColumnIndex(Contacts._ID);
+            }
+            long[] contactIds = new long[contactIdCursor.getCount()];
+            contactIdCursor.moveToPosition(-1);
+            for (int i = 0; i < contactIds.length && contactIdCursor.moveToNext(); i++) {
+                contactIds[i] = contactIdCursor.getLong(contactIdColumn);
+            }
+            return contactIds;
+        }
+
+        /**
+         * Returns the CONTACT_LAST_UPDATED_TIMESTAMP of the contacts, or -1 for the contacts
+         * that are not cached, like the enterprise ones.
+         */
+        private long[] queryLastUpdated(long[] contactIds) {
+            long[] lastUpdated = new long[contactIds.length];
+            Arrays.fill(lastUpdated, -1);
+            String[] projection = {Contacts._ID, Contacts.CONTACT_LAST_UPDATED_TIMESTAMP};
+            for (int start = 0; start < contactIds.length;
+                    start += BluetoothPbapVcardCache.QUERY_CHUNK_SIZE) {
+                int end = Math.min(contactIds.length,
+                        start + BluetoothPbapVcardCache.QUERY_CHUNK_SIZE);
+                StringBuilder selection = new StringBuilder(Contacts._ID).append(" IN (-1");
+                for (int i = start; i < end; i++) {
+                    if (!Contacts.isEnterpriseContactId(contactIds[i])) {
+                        selection.append(',').append(contactIds[i]);
+                    }
+                }
+                selection.append(')');
+                Map<Long, Long> timestamps = new HashMap<>();
+                try (Cursor c = mResolver.query(Contacts.CONTENT_URI, projection,
+                        selection.toString(), null, null)) {
+                    while (c != null && c.moveToNext()) {
+                        timestamps.put(c.getLong(0), c.getLong(1));
+                    }
+                }
+                for (int i = start; i < end; i++) {
+                    Long timestamp = timestamps.get(contactIds[i]);
+                    if (timestamp != null) {
+                        lastUpdated[i] = timestamp;
+                    }
+                }
+            }
+            return lastUpdated;
+        }
+    }
+
     private int composeContactsAndSendVCards(Operation op, final Cursor contactIdCursor,
             final boolean vcardType21, String ownerVCard, boolean ignorefilter, byte[] filter) {
         long timestamp = 0;
@@ -713,7 +911,7 @@ public class BluetoothPbapVcardManager {
             timestamp = System.currentTimeMillis();
         }
 
-        VCardComposer composer = null;
+        CachedVCardComposer composer = null;
         VCardFilter vcardfilter = new VCardFilter(ignorefilter ? null : filter);
 
         HandlerForStringBuffer buffer = null;
@@ -733,7 +931,7 @@ public class BluetoothPbapVcardManager {
 
             // Enhancement: customize Vcard based on preferences/settings and
             // input from caller
-            composer = BluetoothPbapUtils.createFilteredVCardComposer(mContext, vcardType, null);
+            composer = new CachedVCardComposer(vcardType);
             // End enhancement
 
             // BT does want PAUSE/WAIT conversion while it doesn't want the
@@ -778,14 +976,7 @@ public class BluetoothPbapVcardManager {
                     Log.v(TAG, "vCard from composer: " + vcard);
                 }
 
-                vcard = vcardfilter.apply(vcard, vcardType21);
-                vcard = stripTelephoneNumber(vcard);
-
-                if (V) {
-                    Log.v(TAG, "vCard after cleanup: " + vcard);
-                }
-
-                if (!buffer.onEntryCreated(vcard)) {
+                if (!buffer.onEntryCreated(vcard, vcardfilter, vcardType21, true)) {
                     // onEntryCreate() already emits error.
                     return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
                 }
@@ -815,7 +1006,7 @@ public class BluetoothPbapVcardManager {
             timestamp = System.currentTimeMillis();
         }
 
-        VCardComposer composer = null;
+        CachedVCardComposer composer = null;
         VCardFilter vcardfilter = new VCardFilter(ignorefilter ? null : filter);
         PropertySelector vcardselector = new PropertySelector(selector);
 
@@ -835,7 +1026,7 @@ public class BluetoothPbapVcardManager {
 
             // Enhancement: customize Vcard based on preferences/settings and
             // input from caller
-            composer = BluetoothPbapUtils.createFilteredVCardComposer(mContext, vcardType, null);
+            composer = new CachedVCardComposer(vcardType);
             // End enhancement
 
             /* BT does want PAUSE/WAIT conversion while it doesn't want the
@@ -878,23 +1069,20 @@ public class BluetoothPbapVcardManager {
                 }
 
                 if (!vcardselector.checkVCardSelector(vcard, vcardselectorop)) {
-                    Log.e(TAG, "vcard selector check fail");
+                    if (V) {
+                        Log.v(TAG, "vcard selector check fail");
+                    }
                     vcard = null;
                     pbSize--;
                     continue;
                 }
 
-                Log.e(TAG, "vcard selector check pass");
+                if (V) {
+                    Log.v(TAG, "vcard selector check pass");
+                }
 
                 if (needSendBody == NEED_SEND_BODY) {
-                    vcard = vcardfilter.apply(vcard, vcardType21);
-                    vcard = stripTelephoneNumber(vcard);
-
-                    if (V) {
-                        Log.v(TAG, "vCard after cleanup: " + vcard);
-                    }
-
-                    if (!buffer.onEntryCreated(vcard)) {
+                    if (!buffer.onEntryCreated(vcard, vcardfilter, vcardType21, true)) {
                         // onEntryCreate() already emits error.
                         return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
                     }
@@ -966,13 +1154,11 @@ public class BluetoothPbapVcardManager {
                             Log.i(TAG, "Call Log may have been deleted during operation");
                             continue;
                         }
-                        vcard = vcardfilter.apply(vcard, vcardType21);
-
                         if (V) {
                             Log.v(TAG, "Vcard Entry:");
                             Log.v(TAG, vcard);
                         }
-                        buffer.onEntryCreated(vcard);
+                        buffer.onEntryCreated(vcard, vcardfilter, vcardType21, false);
                     }
                 } else {
                     if (vcard == null) {
@@ -1047,6 +1233,8 @@ public class BluetoothPbapVcardManager {
 
         private OutputStream mOutputStream;
 
+        private VCardOutputBuffer mBuffer;
+
         private String mPhoneOwnVCard = null;
 
         public HandlerForStringBuffer(Operation op, String ownerVCard) {
@@ -1065,7 +1253,7 @@ public class BluetoothPbapVcardManager {
         private boolean write(String vCard) {
             try {
                 if (vCard != null) {
-                    mOutputStream.write(vCard.getBytes());
+                    mBuffer.write(vCard, 0, vCard.length());
                     return true;
                 }
             } catch (IOException e) {
@@ -1077,6 +1265,7 @@ public class BluetoothPbapVcardManager {
         public boolean onInit(Context context) {
             try {
                 mOutputStream = mOperation.openOutputStream();
+                mBuffer = new VCardOutputBuffer(mOutputStream);
                 if (mPhoneOwnVCard != null) {
                     return write(mPhoneOwnVCard);
                 }
@@ -1091,7 +1280,31 @@ public class BluetoothPbapVcardManager {
             return write(vcard);
         }
 
+        /**
+         * Writes the vCard through the filter, without composing the filtered vCard first.
+         * @param stripTel true to remove the formatting from telephone numbers
+         */
+        public boolean onEntryCreated(String vcard, VCardFilter filter, boolean vCardType21,
+                boolean stripTel) {
+            try {
+                if (vcard != null) {
+                    filter.write(vcard, vCardType21, stripTel, mBuffer);
+                    return true;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "write outputstrem failed" + e.toString());
+            }
+            return false;
+        }
+
         public void onTerminate() {
+            if (mBuffer != null) {
+                try {
+                    mBuffer.flush();
+                } catch (IOException e) {
+                    Log.e(TAG, "flush outputstrem failed" + e.toString());
+                }
+            }
             if (!BluetoothPbapObexServer.closeStream(mOutputStream, mOperation)) {
                 if (V) {
                     Log.v(TAG, "CloseStream failed!");
@@ -1133,6 +1346,7 @@ public class BluetoothPbapVcardManager {
             }
         }
 
+        private static final FilterBit[] FILTER_BITS = FilterBit.values();
         private static final String SEPARATOR = System.getProperty("line.separator");
         private final byte[] mFilter;
 
@@ -1201,6 +1415,75 @@ public class BluetoothPbapVcardManager {
 
             return filteredVCard.toString();
         }
+
+        /**
+         * Writes the vCard to out like apply() followed by stripTelephoneNumber() when stripTel
+         * is set would, in a single pass over the characters of the vCard.
+         */
+        void write(String vCard, boolean vCardType21, boolean stripTel, VCardOutputBuffer out)
+                throws IOException {
+            if (mFilter == null && !stripTel) {
+                out.write(vCard, 0, vCard.length());
+                return;
+            }
+            final int length = vCard.length();
+            boolean filteredIn = mFilter == null;
+            int start = 0;
+            while (start < length) {
+                int end = lineEnd(vCard, start);
+                if (end > start) {
+                    if (mFilter != null && isPropertyStart(vCard, start)) {
+                        filteredIn = isFilteredIn(vCard, start,
+                                propertyNameEnd(vCard, start, end), vCardType21);
+                    }
+                    if (filteredIn) {
+                        if (stripTel && vCard.startsWith("TEL", start)) {
+                            writeTelephoneNumber(vCard, start, end, out);
+                        } else {
+                            out.write(vCard, start, end);
+                        }
+                        out.writeLineEnd();
+                    }
+                }
+                start = end + 1;
+            }
+        }
+
+        private boolean isFilteredIn(String vCard, int start, int nameEnd,
+                boolean vCardType21) {
+            // Since PBAP does not have filter bits for IM and SIP, exclude all X- fields,
+            // except date time.
+            if (nameEnd - start >= 2 && vCard.startsWith("X-", start)) {
+                return isProperty(vCard, start, nameEnd, FilterBit.DATETIME.prop);
+            }
+            for (FilterBit bit : FILTER_BITS) {
+                if (isProperty(vCard, start, nameEnd, bit.prop)) {
+                    return isFilteredIn(bit, vCardType21);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Writes a TEL line with '-', '(', ')' and ' ' removed from the number.
+         */
+        private static void writeTelephoneNumber(String vCard, int start, int end,
+                VCardOutputBuffer out) throws IOException {
+            int valueStart = vCard.indexOf(':', start) + 1;
+            if (valueStart <= 0 || valueStart > end) {
+                out.write(vCard, start, end);
+                return;
+            }
+            int runStart = start;
+            for (int i = valueStart; i < end; i++) {
+                char c = vCard.charAt(i);
+                if (c == '-' || c == '(' || c == ')' || c == ' ') {
+                    out.write(vCard, runStart, i);
+                    runStart = i + 1;
+                }
+            }
+            out.write(vCard, runStart, end);
+        }
     }
 
     private static class PropertySelector {
@@ -1231,7 +1514,7 @@ public class BluetoothPbapVcardManager {
             }
         }
 
-        private static final String SEPARATOR = System.getProperty("line.separator");
+        private static final PropertyMask[] PROPERTY_MASKS = PropertyMask.values();
         private final byte[] mSelector;
 
         PropertySelector(byte[] selector) {
@@ -1246,40 +1529,51 @@ public class BluetoothPbapVcardManager {
             return true;
         }
 
-        private boolean checkprop(String vcard, String prop) {
-            String[] lines = vcard.split(SEPARATOR);
-            boolean isPresent = false;
-            for (String line : lines) {
-                if (!Character.isWhitespace(line.charAt(0)) && !line.startsWith("=")) {
-                    String currentProp = line.split("[;:]")[0];
-                    if (prop.equals(currentProp)) {
-                        Log.d(TAG, "bit.prop.equals current prop :" + prop);
-                        isPresent = true;
-                        return isPresent;
+        /**
+         * Returns the bits of the properties present in the vCard, found in a single pass.
+         */
+        private static long getPresentProperties(String vcard) {
+            long present = 0;
+            final int length = vcard.length();
+            int start = 0;
+            while (start < length) {
+                int end = lineEnd(vcard, start);
+                if (end > start && isPropertyStart(vcard, start)) {
+                    int nameEnd = propertyNameEnd(vcard, start, end);
+                    for (PropertyMask bit : PROPERTY_MASKS) {
+                        if (isProperty(vcard, start, nameEnd, bit.prop)) {
+                            present |= 1L << bit.pos;
+                            break;
+                        }
                     }
                 }
+                start = end + 1;
             }
-
-            return isPresent;
+            return present;
         }
 
         private boolean checkVCardSelector(String vcard, String vcardselectorop) {
             boolean selectedIn = true;
+            long present = -1;
 
-            for (PropertyMask bit : PropertyMask.values()) {
+            for (PropertyMask bit : PROPERTY_MASKS) {
                 if (checkbit(bit.pos, mSelector)) {
-                    Log.d(TAG, "checking for prop :" + bit.prop);
+                    if (V) {
+                        Log.v(TAG, "checking for prop :" + bit.prop);
+                    }
+                    if (present == -1) {
+                        present = getPresentProperties(vcard);
+                    }
+                    boolean isPresent = (present & (1L << bit.pos)) != 0;
                     if (vcardselectorop.equals("0")) {
-                        if (checkprop(vcard, bit.prop)) {
-                            Log.d(TAG, "bit.prop.equals current prop :" + bit.prop);
+                        if (isPresent) {
                             selectedIn = true;
                             break;
                         } else {
                             selectedIn = false;
                         }
                     } else if (vcardselectorop.equals("1")) {
-                        if (!checkprop(vcard, bit.prop)) {
-                            Log.d(TAG, "bit.prop.notequals current prop" + bit.prop);
+                        if (!isPresent) {
                             selectedIn = false;
                             return selectedIn;
                         } else {
@@ -1292,20 +1586,122 @@ public class BluetoothPbapVcardManager {
         }
 
         private String getName(String vcard) {
-            String[] lines = vcard.split(SEPARATOR);
             String name = "";
-            for (String line : lines) {
-                if (!Character.isWhitespace(line.charAt(0)) && !line.startsWith("=")) {
-                    if (line.startsWith("N:")) {
-                        name = line.substring(line.lastIndexOf(':'), line.length());
-                    }
+            final int length = vcard.length();
+            int start = 0;
+            while (start < length) {
+                int end = lineEnd(vcard, start);
+                if (vcard.startsWith("N:", start) && end > start) {
+                    name = vcard.substring(vcard.lastIndexOf(':', end - 1), end);
                 }
+                start = end + 1;
+            }
+            if (V) {
+                Log.v(TAG, "returning name: " + name);
             }
-            Log.d(TAG, "returning name: " + name);
             return name;
         }
     }
 
+    /**
+     * Returns the end of the vCard line starting at start, exclusive of the line separator.
+     */
+    private static int lineEnd(String vCard, int start) {
+        int end = vCard.indexOf('\n', start);
+        return end < 0 ? vCard.length() : end;
+    }
+
+    /**
+     * Returns true if the non-empty line starting at start is not the continuation of a folded
+     * or quoted-printable property.
+     */
+    private static boolean isPropertyStart(String vCard, int start) {
+        char c = vCard.charAt(start);
+        return !Character.isWhitespace(c) && c != '=';
+    }
+
+    /**
+     * Returns the end of the property name of the line, that is its first ';' or ':'.
+     */
+    private static int propertyNameEnd(String vCard, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = vCard.charAt(i);
+            if (c == ';' || c == ':') {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static boolean isProperty(String vCard, int start, int nameEnd, String prop) {
+        return nameEnd - start == prop.length() && vCard.startsWith(prop, start);
+    }
+
+    /**
+     * Reusable buffer encoding vCards to UTF-8 straight into the OBEX output stream, so
+     * no intermediate String or byte[] is created per vCard.
+     */
+    static class VCardOutputBuffer {
+        private static final int BUFFER_SIZE = 8192;
+
+        private final OutputStream mOutputStream;
+        private final byte[] mBuffer = new byte[BUFFER_SIZE];
+        private int mCount;
+
+        VCardOutputBuffer(OutputStream outputStream) {
+            mOutputStream = outputStream;
+        }
+
+        /**
+         * Writes the characters from start to end of s, encoded like String.getBytes().
+         */
+        void write(String s, int start, int end) throws IOException {
+            for (int i = start; i < end; i++) {
+                if (mCount + 4 > mBuffer.length) {
+                    flush();
+                }
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    mBuffer[mCount++] = (byte) c;
+                } else if (c < 0x800) {
+                    mBuffer[mCount++] = (byte) (0xc0 | (c >> 6));
+                    mBuffer[mCount++] = (byte) (0x80 | (c & 0x3f));
+                } else if (!Character.isSurrogate(c)) {
+                    mBuffer[mCount++] = (byte) (0xe0 | (c >> 12));
+                    mBuffer[mCount++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    mBuffer[mCount++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < end
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                    mBuffer[mCount++] = (byte) (0xf0 | (codePoint >> 18));
+                    mBuffer[mCount++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                    mBuffer[mCount++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                    mBuffer[mCount++] = (byte) (0x80 | (codePoint & 0x3f));
+                } else {
+                    // Unpaired surrogate, replaced like String.getBytes() does
+                    mBuffer[mCount++] = (byte) '?';
+                }
+            }
+        }
+
+        void writeLineEnd() throws IOException {
+            if (mCount == mBuffer.length) {
+                flush();
+            }
+            mBuffer[mCount++] = (byte) '\n';
+        }
+
+        /**
+         * Writes the buffered bytes to the output stream.
+         */
+        void flush() throws IOException {
+            if (mCount > 0) {
+                mOutputStream.write(mBuffer, 0, mCount);
+                mCount = 0;
+            }
+        }
+    }
+
     private static Uri getPhoneLookupFilterUri() {
         return PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI;
     }
@@ -24,6 +24,7 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.Handler;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.runner.AndroidJUnit4;
@@ -35,6 +36,10 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * A test suite for the AvrcpCoverArtStorage class.
@@ -49,6 +54,7 @@ public final class AvrcpCoverArtStorageTest {
     private Bitmap mImage2;
     private final String mHandle1 = "1";
     private final String mHandle2 = "2";
+    private final String mHandle3 = "3";
     private AvrcpCoverArtStorage mAvrcpCoverArtStorage;
 
     @Before
@@ -77,6 +83,7 @@ public final class AvrcpCoverArtStorageTest {
         if (mAvrcpCoverArtStorage != null) {
             mAvrcpCoverArtStorage.removeImagesForDevice(mDevice1);
             mAvrcpCoverArtStorage.removeImagesForDevice(mDevice2);
+            mAvrcpCoverArtStorage.cleanup();
             mAvrcpCoverArtStorage = null;
         }
         mImage1 = null;
@@ -332,4 +339,142 @@ public final class AvrcpCoverArtStorageTest {
         Assert.assertFalse(mAvrcpCoverArtStorage.doesImageExist(mDevice2, mHandle1));
         Assert.assertFalse(mAvrcpCoverArtStorage.doesImageExist(mDevice2, mHandle2));
     }
+
+    @Test
+    public void addImageOverMemoryLimit_oldestImageReadBackFromDisk() throws Exception {
+        useStorageOfOneImage(Long.MAX_VALUE);
+        mAvrcpCoverArtStorage.addImage(mDevice1, mHandle1, mImage1);
+        mAvrcpCoverArtStorage.addImage(mDevice1, mHandle2, mImage1);
+        mAvrcpCoverArtStorage.waitForDiskWrites();
+
+        Assert.assertTrue(mAvrcpCoverArtStorage.toString().contains("evictions: 1"));
+        Assert.assertTrue(mAvrcpCoverArtStorage.doesImageExist(mDevice1, mHandle1));
+        assertImageSame(mImage1, mDevice1, mHandle1);
+        Assert.assertTrue(mAvrcpCoverArtStorage.toString().contains("1 disk"));
+    }
+
+    @Test
+    public void addImageOverMemoryLimitWithoutDisk_oldestImageGone() {
+        useStorageOfOneImage(0);
+        mAvrcpCoverArtStorage.addImage(mDevice1, mHandle1, mImage1);
+        mAvrcpCoverArtStorage.addImage(mDevice1, mHandle2, mImage1);
+
+        Assert.assertFalse(mAvrcpCoverArtStorage.doesImageExist(mDevice1, mHandle1));
+        Assert.assertTrue(mAvrcpCoverArtStorage.doesImageExist(mDevice1, mHandle2));
+    }
+
+    @Test
+    public void addImageOverMemoryLimit_pinnedImageNotEvicted() {
+        useStorageOfOneImage(0);
+        mAvrcpCoverArtStorage.setPinnedImages(mDevice1, Collections.singletonList(mHandle1));
+        mAvrcpCoverArtStorage.addImage(mDevice1, mHandle1, mImage1);
+        mAvrcpCoverArtStorage.addImage(mDevice1, mHandle2, mImage1);
+        mAvrcpCoverArtStorage.addImage(mDevice1, mHandle3, mImage1);
+
+        Assert.assertTrue(mAvrcpCoverArtStorage.doesImageExist(mDevice1, mHandle1));
+        Assert.assertFalse(mAvrcpCoverArtStorage.doesImageExist(mDevice1, mHandle2));
+        Assert.assertTrue(mAvrcpCoverArtStorage.doesImageExist(mDevice1, mHandle3));
+    }
+
+    @Test
+    public void unpinImage_imageCanBeEvicted() {
+        useStorageOfOneImage(0);
+        mAvrcpCoverArtStorage.setPinnedImages(mDevice1, Collections.singletonList(mHandle1));
+        mAvrcpCoverArtStorage.addImage(mDevice1, mHandle1, mImage1);
+
+        mAvrcpCoverArtStorage.setPinnedImages(mDevice1, null);
+        mAvrcpCoverArtStorage.addImage(mDevice1, mHandle2, mImage1);
+
+        Assert.assertFalse(mAvrcpCoverArtStorage.doesImageExist(mDevice1, mHandle1));
+        Assert.assertTrue(mAvrcpCoverArtStorage.doesImageExist(mDevice1, mHandle2));
+    }
+
+    @Test
+    public void removeImageOnDisk_imageDoesntExist() throws Exception {
+        useStorageOfOneImage(Long.MAX_VALUE);
+        mAvrcpCoverArtStorage.addImage(mDevice1, mHandle1, mImage1);
+        mAvrcpCoverArtStorage.addImage(mDevice1, mHandle2, mImage1);
+        mAvrcpCoverArtStorage.waitForDiskWrites();
+
+        mAvrcpCoverArtStorage.removeImage(mDevice1, mHandle1);
+
+        Assert.assertFalse(mAvrcpCoverArtStorage.doesImageExist(mDevice1, mHandle1));
+        Assert.assertEquals(null, mAvrcpCoverArtStorage.getImage(mDevice1, mHandle1));
+    }
+
+    @Test
+    public void addImageOverMemoryLimit_evictedImageServedUntilWritten() throws Exception {
+        useStorageOfOneImage(Long.MAX_VALUE);
+        final CountDownLatch diskBlocked = new CountDownLatch(1);
+        new Handler(mAvrcpCoverArtStorage.getDiskLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    diskBlocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        mAvrcpCoverArtStorage.addImage(mDevice1, mHandle1, mImage1);
+        mAvrcpCoverArtStorage.addImage(mDevice1, mHandle2, mImage1);
+
+        Assert.assertTrue(mAvrcpCoverArtStorage.toString().contains("1 pending"));
+        Assert.assertTrue(mAvrcpCoverArtStorage.doesImageExist(mDevice1, mHandle1));
+        Assert.assertSame(mImage1, mAvrcpCoverArtStorage.getImage(mDevice1, mHandle1));
+
+        diskBlocked.countDown();
+        mAvrcpCoverArtStorage.waitForDiskWrites();
+        // Only the image evicted by taking the other one back was written
+        Assert.assertTrue(mAvrcpCoverArtStorage.toString().contains("Disk: 1 images"));
+        assertImageSame(mImage1, mDevice1, mHandle2);
+    }
+
+    @Test
+    public void doesImageExist_imageNotMadeRecentlyUsed() {
+        useStorage(mImage1.getAllocationByteCount() * 2, 0);
+        mAvrcpCoverArtStorage.addImage(mDevice1, mHandle1, mImage1);
+        mAvrcpCoverArtStorage.addImage(mDevice1, mHandle2, mImage1);
+
+        Assert.assertTrue(mAvrcpCoverArtStorage.doesImageExist(mDevice1, mHandle1));
+        mAvrcpCoverArtStorage.addImage(mDevice1, mHandle3, mImage1);
+
+        Assert.assertFalse(mAvrcpCoverArtStorage.doesImageExist(mDevice1, mHandle1));
+        Assert.assertTrue(mAvrcpCoverArtStorage.doesImageExist(mDevice1, mHandle2));
+    }
+
+    @Test
+    public void pinTooManyImages_onlyFirstImagesPinned() {
+        useStorageOfOneImage(0);
+        List<String> handles = new ArrayList<>();
+        for (int i = 0; i <= AvrcpCoverArtStorage.MAX_PINNED_IMAGES; i++) {
+            handles.add("pinned" + i);
+        }
+        mAvrcpCoverArtStorage.setPinnedImages(mDevice1, handles);
+        for (String handle : handles) {
+            mAvrcpCoverArtStorage.addImage(mDevice1, handle, mImage1);
+        }
+
+        mAvrcpCoverArtStorage.addImage(mDevice1, mHandle1, mImage1);
+
+        for (int i = 0; i < AvrcpCoverArtStorage.MAX_PINNED_IMAGES; i++) {
+            Assert.assertTrue(mAvrcpCoverArtStorage.doesImageExist(mDevice1, handles.get(i)));
+        }
+        Assert.assertFalse(mAvrcpCoverArtStorage.doesImageExist(mDevice1,
+                handles.get(AvrcpCoverArtStorage.MAX_PINNED_IMAGES)));
+    }
+
+    /**
+     * Replaces the storage with one holding a single image in memory, and up to maxDiskBytes of
+     * images on disk.
+     */
+    private void useStorageOfOneImage(long maxDiskBytes) {
+        useStorage(mImage1.getAllocationByteCount(), maxDiskBytes);
+    }
+
+    private void useStorage(int maxMemoryBytes, long maxDiskBytes) {
+        mAvrcpCoverArtStorage.cleanup();
+        mAvrcpCoverArtStorage = new AvrcpCoverArtStorage(mTargetContext, maxMemoryBytes,
+                maxDiskBytes);
+    }
 }
@@ -33,6 +33,7 @@ import android.bluetooth.BluetoothProfile;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.Looper;
 
 import androidx.room.Room;
 import androidx.room.testing.MigrationTestHelper;
@@ -56,7 +57,11 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 @MediumTest
 @RunWith(AndroidJUnit4.class)
@@ -103,6 +108,8 @@ public final class DatabaseManagerTest {
         when(mAdapterService.getPackageManager()).thenReturn(
                 InstrumentationRegistry.getTargetContext().getPackageManager());
         mDatabaseManager = new DatabaseManager(mAdapterService);
+        // Flush writes as soon as the handler gets to them so tests can wait on the looper.
+        mDatabaseManager.mWriteBehindDelayMillis = 0;
 
         BluetoothDevice[] bondedDevices = {mTestDevice};
         doReturn(bondedDevices).when(mAdapterService).getBondedDevices();
@@ -141,7 +148,7 @@ public final class DatabaseManagerTest {
         }
 
         mDatabaseManager.factoryReset();
-        mDatabaseManager.mMetadataCache.clear();
+        mDatabaseManager.clearCachedMetadata();
         // Wait for clear database
         TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
     }
@@ -240,11 +247,11 @@ public final class DatabaseManagerTest {
         Metadata otherData = new Metadata(OTHER_BT_ADDR1);
         // Add metadata for otherDevice
         otherData.setCustomizedMeta(0, TEST_BYTE_ARRAY);
-        mDatabaseManager.mMetadataCache.put(OTHER_BT_ADDR1, otherData);
+        mDatabaseManager.putCachedMetadata(OTHER_BT_ADDR1, otherData);
         mDatabase.insert(otherData);
 
         Metadata data = new Metadata(TEST_BT_ADDR);
-        mDatabaseManager.mMetadataCache.put(TEST_BT_ADDR, data);
+        mDatabaseManager.putCachedMetadata(TEST_BT_ADDR, data);
         mDatabase.insert(data);
 
         mDatabaseManager.removeUnusedMetadata();
@@ -264,7 +271,7 @@ public final class DatabaseManagerTest {
         Assert.assertEquals(TEST_BT_ADDR, checkData.getAddress());
 
         mDatabaseManager.factoryReset();
-        mDatabaseManager.mMetadataCache.clear();
+        mDatabaseManager.clearCachedMetadata();
         // Wait for clear database
         TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
     }
@@ -277,19 +284,19 @@ public final class DatabaseManagerTest {
         // Add metadata for TEST_BT_ADDR
         Metadata testData = new Metadata(TEST_BT_ADDR);
         testData.setCustomizedMeta(0, TEST_BYTE_ARRAY);
-        mDatabaseManager.mMetadataCache.put(TEST_BT_ADDR, testData);
+        mDatabaseManager.putCachedMetadata(TEST_BT_ADDR, testData);
         mDatabase.insert(testData);
 
         // Add metadata for OTHER_BT_ADDR1
         Metadata otherData1 = new Metadata(OTHER_BT_ADDR1);
         otherData1.setCustomizedMeta(0, TEST_BYTE_ARRAY);
-        mDatabaseManager.mMetadataCache.put(OTHER_BT_ADDR1, otherData1);
+        mDatabaseManager.putCachedMetadata(OTHER_BT_ADDR1, otherData1);
         mDatabase.insert(otherData1);
 
         // Add metadata for OTHER_BT_ADDR2
         Metadata otherData2 = new Metadata(OTHER_BT_ADDR2);
         otherData2.setCustomizedMeta(0, TEST_BYTE_ARRAY);
-        mDatabaseManager.mMetadataCache.put(OTHER_BT_ADDR2, otherData2);
+        mDatabaseManager.putCachedMetadata(OTHER_BT_ADDR2, otherData2);
         mDatabase.insert(otherData2);
 
         // Add OTHER_BT_ADDR1 OTHER_BT_ADDR2 to bonded devices
@@ -299,6 +306,8 @@ public final class DatabaseManagerTest {
                 .getRemoteDevice(OTHER_BT_ADDR2);
         BluetoothDevice[] bondedDevices = {otherDevice1, otherDevice2};
         doReturn(bondedDevices).when(mAdapterService).getBondedDevices();
+        Assert.assertEquals(Arrays.asList(otherDevice2, otherDevice1, mTestDevice),
+                mDatabaseManager.getMostRecentlyConnectedDevices());
 
         mDatabaseManager.removeUnusedMetadata();
         TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
@@ -318,7 +327,7 @@ public final class DatabaseManagerTest {
         Assert.assertEquals(OTHER_BT_ADDR1, checkData2.getAddress());
 
         mDatabaseManager.factoryReset();
-        mDatabaseManager.mMetadataCache.clear();
+        mDatabaseManager.clearCachedMetadata();
         // Wait for clear database
         TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
 
@@ -568,11 +577,167 @@ public final class DatabaseManagerTest {
         Assert.assertEquals(mTestDevice2, mostRecentlyConnectedDevicesOrdered.get(2));
 
         mDatabaseManager.factoryReset();
-        mDatabaseManager.mMetadataCache.clear();
+        mDatabaseManager.clearCachedMetadata();
         // Wait for clear database
         TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
     }
 
+    @Test
+    public void testSetConnectionWithManyDevices() {
+        int numDevices = 2000;
+        BluetoothDevice[] devices = new BluetoothDevice[numDevices];
+        for (int i = 0; i < numDevices; i++) {
+            devices[i] = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(String.format(
+                    Locale.ROOT, "00:11:22:33:%02X:%02X", (i >> 8) & 0xFF, i & 0xFF));
+        }
+        doReturn(devices).when(mAdapterService).getBondedDevices();
+
+        // Connect every device once, then reconnect every tenth one from the end.
+        LinkedList<BluetoothDevice> expected = new LinkedList<>();
+        for (int i = 0; i < numDevices; i++) {
+            mDatabaseManager.setConnection(devices[i], i % 2 == 0);
+            expected.addFirst(devices[i]);
+        }
+        for (int i = numDevices - 1; i >= 0; i -= 10) {
+            mDatabaseManager.setConnection(devices[i], false);
+            expected.remove(devices[i]);
+            expected.addFirst(devices[i]);
+        }
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+
+        Assert.assertEquals(expected, mDatabaseManager.getMostRecentlyConnectedDevices());
+        Assert.assertEquals(devices[numDevices - 2],
+                mDatabaseManager.getMostRecentlyConnectedA2dpDevice());
+
+        // The returned list is a copy.
+        mDatabaseManager.getMostRecentlyConnectedDevices().clear();
+        Assert.assertEquals(numDevices,
+                mDatabaseManager.getMostRecentlyConnectedDevices().size());
+
+        // The order survives a reload from the database.
+        restartDatabaseManagerHelper();
+        Assert.assertEquals(expected, mDatabaseManager.getMostRecentlyConnectedDevices());
+        Assert.assertEquals(devices[numDevices - 2],
+                mDatabaseManager.getMostRecentlyConnectedA2dpDevice());
+
+        mDatabaseManager.setDisconnection(devices[numDevices - 2]);
+        Assert.assertNull(mDatabaseManager.getMostRecentlyConnectedA2dpDevice());
+
+        // Unbonding drops the device from the order.
+        mDatabaseManager.bondStateChanged(expected.getFirst(), BluetoothDevice.BOND_NONE);
+        expected.removeFirst();
+        Assert.assertEquals(expected, mDatabaseManager.getMostRecentlyConnectedDevices());
+
+        mDatabaseManager.factoryReset();
+        mDatabaseManager.clearCachedMetadata();
+        // Wait for clear database
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+    }
+
+    @Test
+    public void testCachedMetadataEvictionOrder() {
+        Metadata data1 = new Metadata(TEST_BT_ADDR);
+        Metadata data2 = new Metadata(TEST_BT_ADDR2);
+        Metadata data3 = new Metadata(TEST_BT_ADDR3);
+        data2.is_active_a2dp_device = true;
+        mDatabaseManager.putCachedMetadata(TEST_BT_ADDR, data1);
+        mDatabaseManager.putCachedMetadata(TEST_BT_ADDR2, data2);
+        mDatabaseManager.putCachedMetadata(TEST_BT_ADDR3, data3);
+        Assert.assertEquals(Arrays.asList(mTestDevice3, mTestDevice2, mTestDevice),
+                mDatabaseManager.getMostRecentlyConnectedDevices());
+        Assert.assertEquals(mTestDevice2, mDatabaseManager.getMostRecentlyConnectedA2dpDevice());
+
+        // Replacing the metadata of a device moves it to its new place.
+        mDatabaseManager.putCachedMetadata(TEST_BT_ADDR, new Metadata(TEST_BT_ADDR));
+        Assert.assertEquals(Arrays.asList(mTestDevice, mTestDevice3, mTestDevice2),
+                mDatabaseManager.getMostRecentlyConnectedDevices());
+
+        // Evicting a device keeps the others in order.
+        mDatabaseManager.removeCachedMetadata(TEST_BT_ADDR3);
+        Assert.assertEquals(Arrays.asList(mTestDevice, mTestDevice2),
+                mDatabaseManager.getMostRecentlyConnectedDevices());
+        mDatabaseManager.bondStateChanged(mTestDevice2, BluetoothDevice.BOND_NONE);
+        Assert.assertEquals(Arrays.asList(mTestDevice),
+                mDatabaseManager.getMostRecentlyConnectedDevices());
+        Assert.assertNull(mDatabaseManager.getMostRecentlyConnectedA2dpDevice());
+
+        mDatabaseManager.clearCachedMetadata();
+        Assert.assertTrue(mDatabaseManager.getMostRecentlyConnectedDevices().isEmpty());
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+    }
+
+    @Test
+    public void testWritesAreCoalesced() throws InterruptedException {
+        // Keep the flush from running until cleanup.
+        mDatabaseManager.mWriteBehindDelayMillis = TimeUnit.HOURS.toMillis(1);
+        BluetoothDevice[] bondedDevices = {mTestDevice, mTestDevice2};
+        doReturn(bondedDevices).when(mAdapterService).getBondedDevices();
+        long requested = mDatabaseManager.mWritesRequested;
+        long executed = mDatabaseManager.mWritesExecuted;
+        long transactions = mDatabaseManager.mWriteTransactions;
+
+        mDatabaseManager.setProfileConnectionPolicy(mTestDevice, BluetoothProfile.HEADSET,
+                BluetoothProfile.CONNECTION_POLICY_ALLOWED);
+        mDatabaseManager.setProfileConnectionPolicy(mTestDevice, BluetoothProfile.A2DP,
+                BluetoothProfile.CONNECTION_POLICY_ALLOWED);
+        mDatabaseManager.setA2dpOptionalCodecsEnabled(mTestDevice,
+                BluetoothA2dp.OPTIONAL_CODECS_PREF_ENABLED);
+        mDatabaseManager.setConnection(mTestDevice, true);
+        mDatabaseManager.setConnection(mTestDevice2, false);
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+
+        // Nothing is written before the debounce expires.
+        Assert.assertEquals(0, mDatabase.load().size());
+
+        // Shutdown writes both devices in one go.
+        cleanupAndWaitForFlush();
+        List<Metadata> list = mDatabase.load();
+        Assert.assertEquals(2, list.size());
+        Assert.assertEquals(TEST_BT_ADDR2, list.get(0).getAddress());
+        Metadata data = list.get(1);
+        Assert.assertEquals(TEST_BT_ADDR, data.getAddress());
+        Assert.assertEquals(BluetoothProfile.CONNECTION_POLICY_ALLOWED,
+                data.getProfileConnectionPolicy(BluetoothProfile.HEADSET));
+        Assert.assertEquals(BluetoothProfile.CONNECTION_POLICY_ALLOWED,
+                data.getProfileConnectionPolicy(BluetoothProfile.A2DP));
+        Assert.assertTrue(data.is_active_a2dp_device);
+
+        // Six updates were requested, two rows were written in a single transaction.
+        Assert.assertEquals(requested + 6, mDatabaseManager.mWritesRequested);
+        Assert.assertEquals(executed + 2, mDatabaseManager.mWritesExecuted);
+        Assert.assertEquals(transactions + 1, mDatabaseManager.mWriteTransactions);
+    }
+
+    @Test
+    public void testDeleteDropsPendingWrite() throws InterruptedException {
+        mDatabaseManager.mWriteBehindDelayMillis = TimeUnit.HOURS.toMillis(1);
+
+        mDatabaseManager.setConnection(mTestDevice2, false);
+        mDatabaseManager.bondStateChanged(mTestDevice2, BluetoothDevice.BOND_NONE);
+        cleanupAndWaitForFlush();
+
+        Assert.assertEquals(0, mDatabase.load().size());
+    }
+
+    @Test
+    public void testWritesAreFlushedAfterRestart() throws InterruptedException {
+        cleanupAndWaitForFlush();
+        // Nothing runs the flush until the next start(), the write is dropped.
+        mDatabaseManager.setProfileConnectionPolicy(mTestDevice, BluetoothProfile.HEADSET,
+                BluetoothProfile.CONNECTION_POLICY_FORBIDDEN);
+
+        restartDatabaseManagerHelper();
+        Assert.assertEquals(0, mDatabase.load().size());
+
+        mDatabaseManager.setProfileConnectionPolicy(mTestDevice, BluetoothProfile.HEADSET,
+                BluetoothProfile.CONNECTION_POLICY_ALLOWED);
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+        List<Metadata> list = mDatabase.load();
+        Assert.assertEquals(1, list.size());
+        Assert.assertEquals(BluetoothProfile.CONNECTION_POLICY_ALLOWED,
+                list.get(0).getProfileConnectionPolicy(BluetoothProfile.HEADSET));
+    }
+
     @Test
     public void testDatabaseMigration_100_101() throws IOException {
         // Create a database with version 100
@@ -956,6 +1121,15 @@ public final class DatabaseManagerTest {
                 CoreMatchers.is(data));
     }
 
+    /**
+     * Stops the DatabaseManager and waits for its handler thread to write out pending metadata.
+     */
+    void cleanupAndWaitForFlush() throws InterruptedException {
+        Looper looper = mDatabaseManager.getHandlerLooper();
+        mDatabaseManager.cleanup();
+        looper.getThread().join();
+    }
+
     void restartDatabaseManagerHelper() {
         Metadata data = new Metadata(LOCAL_STORAGE);
         data.migrated = true;
@@ -967,7 +1141,7 @@ public final class DatabaseManagerTest {
         TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
 
         // Remove local storage
-        mDatabaseManager.mMetadataCache.remove(LOCAL_STORAGE);
+        mDatabaseManager.removeCachedMetadata(LOCAL_STORAGE);
         mDatabaseManager.deleteDatabase(data);
         // Wait for handler thread finish its task.
         TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
@@ -977,7 +1151,7 @@ public final class DatabaseManagerTest {
             int expectedConnectionPolicy, boolean expectedSetResult) {
         if (stored) {
             Metadata data = new Metadata(TEST_BT_ADDR);
-            mDatabaseManager.mMetadataCache.put(TEST_BT_ADDR, data);
+            mDatabaseManager.putCachedMetadata(TEST_BT_ADDR, data);
             mDatabase.insert(data);
         }
         Assert.assertEquals(expectedSetResult,
@@ -1007,7 +1181,7 @@ public final class DatabaseManagerTest {
                 mDatabaseManager.getProfileConnectionPolicy(mTestDevice, BluetoothProfile.HEADSET));
 
         mDatabaseManager.factoryReset();
-        mDatabaseManager.mMetadataCache.clear();
+        mDatabaseManager.clearCachedMetadata();
         // Wait for clear database
         TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
     }
@@ -1015,7 +1189,7 @@ public final class DatabaseManagerTest {
     void testSetGetA2dpOptionalCodecsCase(int test, boolean stored, int value, int expectedValue) {
         if (stored) {
             Metadata data = new Metadata(TEST_BT_ADDR);
-            mDatabaseManager.mMetadataCache.put(TEST_BT_ADDR, data);
+            mDatabaseManager.putCachedMetadata(TEST_BT_ADDR, data);
             mDatabase.insert(data);
         }
         if (test == A2DP_SUPPORT_OP_CODEC_TEST) {
@@ -1051,7 +1225,7 @@ public final class DatabaseManagerTest {
         }
 
         mDatabaseManager.factoryReset();
-        mDatabaseManager.mMetadataCache.clear();
+        mDatabaseManager.clearCachedMetadata();
         // Wait for clear database
         TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
     }
@@ -1061,7 +1235,7 @@ public final class DatabaseManagerTest {
         int verifyTime = 1;
         if (stored) {
             Metadata data = new Metadata(TEST_BT_ADDR);
-            mDatabaseManager.mMetadataCache.put(TEST_BT_ADDR, data);
+            mDatabaseManager.putCachedMetadata(TEST_BT_ADDR, data);
             mDatabase.insert(data);
             Assert.assertEquals(expectedResult,
                     mDatabaseManager.setCustomMeta(mTestDevice, key, testValue));
@@ -1088,7 +1262,7 @@ public final class DatabaseManagerTest {
                 mDatabaseManager.getCustomMeta(mTestDevice, key));
 
         mDatabaseManager.factoryReset();
-        mDatabaseManager.mMetadataCache.clear();
+        mDatabaseManager.clearCachedMetadata();
         // Wait for clear database
         TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
     }
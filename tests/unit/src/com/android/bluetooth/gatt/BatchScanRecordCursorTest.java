@@ -0,0 +1,173 @@
+/*
+ * Copyright 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanResult;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Test cases for {@link BatchScanRecordCursor}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BatchScanRecordCursorTest {
+    private static final long NOW_NANOS = 1_000_000_000_000L;
+    private static final int LARGE_REPORT_RECORDS = 1000;
+
+    // Flags, complete list of 16-bit UUIDs: 0x180D.
+    private static final byte[] ADVERTISE_DATA = {0x02, 0x01, 0x06, 0x03, 0x03, 0x0D, 0x18};
+    // Complete local name "Test".
+    private static final byte[] SCAN_RESPONSE = {0x05, 0x09, 'T', 'e', 's', 't'};
+
+    @Test
+    public void testTruncatedRecords() {
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        writeHeader(report, 1, -60, 0x07CA);
+        writeHeader(report, 2, -70, 0);
+
+        BatchScanRecordCursor cursor = new BatchScanRecordCursor(report.toByteArray(), 2,
+                ScanManager.SCAN_RESULT_TYPE_TRUNCATED, NOW_NANOS);
+
+        Assert.assertTrue(cursor.moveToNext());
+        Assert.assertEquals("00:11:22:33:44:01", cursor.getAddress());
+        Assert.assertEquals(-60, cursor.getRssi());
+        Assert.assertEquals(NOW_NANOS - 99700000000L, cursor.getTimestampNanos());
+        Assert.assertEquals(0, cursor.getScanRecordBytes().length);
+
+        Assert.assertTrue(cursor.moveToNext());
+        Assert.assertEquals("00:11:22:33:44:02", cursor.getAddress());
+        Assert.assertEquals(-70, cursor.getRssi());
+        Assert.assertEquals(NOW_NANOS, cursor.getTimestampNanos());
+
+        Assert.assertFalse(cursor.moveToNext());
+    }
+
+    @Test
+    public void testFullRecords() {
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        writeFullRecord(report, 0xAB, -42, 20, ADVERTISE_DATA, SCAN_RESPONSE);
+        writeFullRecord(report, 0xCD, -43, 0, ADVERTISE_DATA, new byte[0]);
+
+        BatchScanRecordCursor cursor = new BatchScanRecordCursor(report.toByteArray(), 2,
+                ScanManager.SCAN_RESULT_TYPE_FULL, NOW_NANOS);
+
+        Assert.assertTrue(cursor.moveToNext());
+        Assert.assertEquals("00:11:22:33:44:AB", cursor.getAddress());
+        Assert.assertEquals(-42, cursor.getRssi());
+        Assert.assertEquals(NOW_NANOS - 1000000000L, cursor.getTimestampNanos());
+        byte[] expected = new byte[ADVERTISE_DATA.length + SCAN_RESPONSE.length];
+        System.arraycopy(ADVERTISE_DATA, 0, expected, 0, ADVERTISE_DATA.length);
+        System.arraycopy(SCAN_RESPONSE, 0, expected, ADVERTISE_DATA.length,
+                SCAN_RESPONSE.length);
+        Assert.assertArrayEquals(expected, cursor.getScanRecordBytes());
+
+        Assert.assertTrue(cursor.moveToNext());
+        Assert.assertEquals("00:11:22:33:44:CD", cursor.getAddress());
+        Assert.assertArrayEquals(ADVERTISE_DATA, cursor.getScanRecordBytes());
+
+        Assert.assertFalse(cursor.moveToNext());
+    }
+
+    @Test
+    public void testMalformedRecordStops() {
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        writeFullRecord(report, 1, -42, 0, ADVERTISE_DATA, SCAN_RESPONSE);
+        byte[] data = report.toByteArray();
+
+        BatchScanRecordCursor cursor = new BatchScanRecordCursor(
+                Arrays.copyOf(data, data.length - 3), 1, ScanManager.SCAN_RESULT_TYPE_FULL,
+                NOW_NANOS);
+
+        Assert.assertFalse(cursor.moveToNext());
+        Assert.assertFalse(cursor.moveToNext());
+    }
+
+    @Test
+    public void testScanResultIsBuiltOncePerRecord() {
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        writeFullRecord(report, 1, -42, 0, ADVERTISE_DATA, SCAN_RESPONSE);
+        BatchScanRecordCursor cursor = new BatchScanRecordCursor(report.toByteArray(), 1,
+                ScanManager.SCAN_RESULT_TYPE_FULL, NOW_NANOS);
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+
+        Assert.assertTrue(cursor.moveToNext());
+        ScanResult result = cursor.getScanResult(adapter);
+        Assert.assertSame(result, cursor.getScanResult(adapter));
+        Assert.assertEquals("00:11:22:33:44:01", result.getDevice().getAddress());
+        Assert.assertEquals("Test", result.getScanRecord().getDeviceName());
+    }
+
+    /**
+     * Walks a full mode report of many records, as the controller would return after a long
+     * batch scan in a dense environment.
+     */
+    @Test
+    public void testEveryRecordOfLargeReportIsRead() {
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        for (int i = 0; i < LARGE_REPORT_RECORDS; i++) {
+            writeFullRecord(report, i, -40 - (i % 50), i % 1000, ADVERTISE_DATA, SCAN_RESPONSE);
+        }
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+
+        BatchScanRecordCursor cursor = new BatchScanRecordCursor(report.toByteArray(),
+                LARGE_REPORT_RECORDS, ScanManager.SCAN_RESULT_TYPE_FULL, NOW_NANOS);
+        int records = 0;
+        while (cursor.moveToNext()) {
+            ScanResult result = cursor.getScanResult(adapter);
+            Assert.assertEquals(-40 - (records % 50), result.getRssi());
+            Assert.assertEquals("Test", result.getScanRecord().getDeviceName());
+            records++;
+        }
+
+        Assert.assertEquals(LARGE_REPORT_RECORDS, records);
+    }
+
+    private static void writeHeader(ByteArrayOutputStream out, int addressLsb, int rssi,
+            int timestamp) {
+        // Address is reported reversed.
+        out.write(addressLsb);
+        out.write(0x44);
+        out.write(0x33);
+        out.write(0x22);
+        out.write(0x11);
+        out.write(0x00);
+        out.write(0); // Address type
+        out.write(0); // Tx power
+        out.write(rssi);
+        out.write(timestamp);
+        out.write(timestamp >> 8);
+    }
+
+    private static void writeFullRecord(ByteArrayOutputStream out, int addressLsb, int rssi,
+            int timestamp, byte[] advertiseData, byte[] scanResponse) {
+        writeHeader(out, addressLsb & 0xFF, rssi, timestamp);
+        out.write(advertiseData.length);
+        out.write(advertiseData, 0, advertiseData.length);
+        out.write(scanResponse.length);
+        out.write(scanResponse, 0, scanResponse.length);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static org.mockito.Mockito.*;
+
+import android.content.pm.PackageManager;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Test cases for {@link ContextMap}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ContextMapTest {
+    private static final int APP_ID = 7;
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final int MANY_CONNECTIONS = 500;
+
+    @Mock private GattService mService;
+    @Mock private PackageManager mPackageManager;
+
+    private ContextMap<Void, Void> mMap;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        doReturn(mPackageManager).when(mService).getPackageManager();
+        doReturn("com.android.bluetooth.test").when(mPackageManager).getNameForUid(anyInt());
+        mMap = new ContextMap<Void, Void>();
+    }
+
+    @Test
+    public void testAppIsIndexedOnceRegistered() {
+        UUID uuid = UUID.randomUUID();
+        ContextMap<Void, Void>.App app = mMap.add(uuid, null, null, null, mService);
+
+        Assert.assertSame(app, mMap.getByUuid(uuid));
+        Assert.assertNull(mMap.getById(APP_ID));
+
+        mMap.setId(app, APP_ID);
+        Assert.assertSame(app, mMap.getById(APP_ID));
+        Assert.assertEquals(APP_ID, app.id);
+
+        mMap.remove(APP_ID);
+        Assert.assertNull(mMap.getById(APP_ID));
+        Assert.assertNull(mMap.getByUuid(uuid));
+        Assert.assertTrue(mMap.getAllAppsIds().isEmpty());
+    }
+
+    @Test
+    public void testConnectionLookups() {
+        ContextMap<Void, Void>.App app = addApp(APP_ID);
+        mMap.addConnection(APP_ID, 3, ADDRESS);
+
+        Assert.assertSame(app, mMap.getByConnId(3));
+        Assert.assertEquals(ADDRESS, mMap.addressByConnId(3));
+        Assert.assertEquals(Integer.valueOf(3),
+                mMap.connIdByAddress(APP_ID, ADDRESS.toLowerCase(Locale.ROOT)));
+        Assert.assertEquals(1, mMap.getConnectionByApp(APP_ID).size());
+        Assert.assertTrue(mMap.getConnectedDevices().contains(ADDRESS));
+        Assert.assertEquals(ADDRESS, mMap.getConnectedMap().get(APP_ID));
+
+        mMap.removeConnection(APP_ID, 3);
+        Assert.assertNull(mMap.getByConnId(3));
+        Assert.assertNull(mMap.addressByConnId(3));
+        Assert.assertNull(mMap.connIdByAddress(APP_ID, ADDRESS));
+        Assert.assertTrue(mMap.getConnectionByApp(APP_ID).isEmpty());
+        Assert.assertTrue(mMap.getConnectedDevices().isEmpty());
+    }
+
+    @Test
+    public void testRemoveAppDropsItsConnections() {
+        addApp(APP_ID);
+        addApp(APP_ID + 1);
+        mMap.addConnection(APP_ID, 3, ADDRESS);
+        mMap.addConnection(APP_ID + 1, 4, ADDRESS);
+
+        mMap.remove(APP_ID);
+
+        Assert.assertNull(mMap.addressByConnId(3));
+        Assert.assertEquals(ADDRESS, mMap.addressByConnId(4));
+    }
+
+    @Test
+    public void testClear() {
+        addApp(APP_ID);
+        mMap.addConnection(APP_ID, 3, ADDRESS);
+
+        mMap.clear();
+
+        Assert.assertNull(mMap.getById(APP_ID));
+        Assert.assertNull(mMap.addressByConnId(3));
+        Assert.assertTrue(mMap.getConnectedDevices().isEmpty());
+    }
+
+    /**
+     * Looks up every connection of 500 connected devices spread over ten apps.
+     */
+    @Test
+    public void testLookupsWithManyConnections() {
+        for (int appId = 1; appId <= 10; appId++) {
+            addApp(appId);
+        }
+        for (int connId = 0; connId < MANY_CONNECTIONS; connId++) {
+            mMap.addConnection(connId % 10 + 1, connId, address(connId));
+        }
+
+        for (int connId = 0; connId < MANY_CONNECTIONS; connId++) {
+            int appId = connId % 10 + 1;
+            Assert.assertEquals(appId, mMap.getByConnId(connId).id);
+            Assert.assertEquals(address(connId), mMap.addressByConnId(connId));
+            Assert.assertEquals(Integer.valueOf(connId),
+                    mMap.connIdByAddress(appId, address(connId)));
+        }
+        Assert.assertEquals(MANY_CONNECTIONS / 10, mMap.getConnectionByApp(1).size());
+    }
+
+    private ContextMap<Void, Void>.App addApp(int id) {
+        ContextMap<Void, Void>.App app = mMap.add(UUID.randomUUID(), null, null, null, mService);
+        mMap.setId(app, id);
+        return app;
+    }
+
+    private static String address(int index) {
+        return String.format(Locale.ROOT, "00:11:22:33:%02X:%02X", (index >> 8) & 0xFF,
+                index & 0xFF);
+    }
+}
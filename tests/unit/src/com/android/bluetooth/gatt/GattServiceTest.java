@@ -2,6 +2,10 @@ package com.android.bluetooth.gatt;
 
 import static org.mockito.Mockito.*;
 
+import android.bluetooth.le.IScannerCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 
 import androidx.test.InstrumentationRegistry;
@@ -20,9 +24,14 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+
 /**
  * Test cases for {@link GattService}.
  */
@@ -30,6 +39,10 @@ import org.mockito.MockitoAnnotations;
 @RunWith(AndroidJUnit4.class)
 public class GattServiceTest {
     private static final int TIMES_UP_AND_DOWN = 3;
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final String OTHER_ADDRESS = "00:11:22:33:44:66";
+    // Legacy, connectable and scannable
+    private static final int EVENT_TYPE = 0x13;
     private Context mTargetContext;
     private GattService mService;
 
@@ -90,4 +103,45 @@ public class GattServiceTest {
         Assert.assertEquals(99700000000L, timestampNanos);
     }
 
+    @Test
+    public void testScanResultIsDeliveredOnceToEachMatchingClient() throws Exception {
+        IScannerCallback addressCallback = mock(IScannerCallback.class);
+        IScannerCallback unfilteredCallback = mock(IScannerCallback.class);
+        IScannerCallback otherCallback = mock(IScannerCallback.class);
+        ScanClient addressClient = addScanClient(1, addressCallback, ADDRESS);
+        ScanClient unfilteredClient = addScanClient(2, unfilteredCallback, null);
+        ScanClient otherClient = addScanClient(3, otherCallback, OTHER_ADDRESS);
+        mService.getScanManager().getFilterIndex().rebuild(
+                Arrays.asList(addressClient, unfilteredClient, otherClient));
+
+        // Flags only
+        mService.onScanResult(EVENT_TYPE, 0, ADDRESS, 1, 0, 0xFF, 127, -60, 0,
+                new byte[] {0x02, 0x01, 0x06});
+
+        ArgumentCaptor<ScanResult> addressResult = ArgumentCaptor.forClass(ScanResult.class);
+        ArgumentCaptor<ScanResult> unfilteredResult = ArgumentCaptor.forClass(ScanResult.class);
+        verify(addressCallback, times(1)).onScanResult(addressResult.capture());
+        verify(unfilteredCallback, times(1)).onScanResult(unfilteredResult.capture());
+        verify(otherCallback, never()).onScanResult(any());
+        Assert.assertEquals(ADDRESS, addressResult.getValue().getDevice().getAddress());
+        // Both clients want the legacy variant, which is only built once
+        Assert.assertSame(addressResult.getValue(), unfilteredResult.getValue());
+
+        mService.getScanManager().getFilterIndex().clear();
+        for (int scannerId = 1; scannerId <= 3; scannerId++) {
+            mService.mScannerMap.remove(scannerId);
+        }
+    }
+
+    private ScanClient addScanClient(int scannerId, IScannerCallback callback, String address) {
+        GattService.ScannerMap.App app = mService.mScannerMap.add(UUID.randomUUID(), null,
+                callback, null, mService);
+        mService.mScannerMap.setId(app, scannerId);
+        ScanClient client = new ScanClient(scannerId, new ScanSettings.Builder().build(),
+                address == null ? null : Collections.singletonList(
+                        new ScanFilter.Builder().setDeviceAddress(address).build()));
+        client.hasScanWithoutLocationPermission = true;
+        return client;
+    }
+
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.UUID;
+
+/**
+ * Test cases for {@link HandleMap}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class HandleMapTest {
+    private static final int SERVER_IF = 5;
+    private static final int OTHER_SERVER_IF = 6;
+    private static final UUID SERVICE_UUID = UUID.randomUUID();
+    private static final UUID CHAR_UUID = UUID.randomUUID();
+    private static final UUID DESC_UUID = UUID.randomUUID();
+
+    private HandleMap mHandleMap;
+
+    @Before
+    public void setUp() {
+        mHandleMap = new HandleMap();
+        // Service 0x10 of SERVER_IF: characteristic 0x11 with descriptor 0x12.
+        mHandleMap.addService(SERVER_IF, 0x10, SERVICE_UUID, 0, 0, false);
+        mHandleMap.addCharacteristic(SERVER_IF, 0x11, CHAR_UUID, 0x10);
+        mHandleMap.addDescriptor(SERVER_IF, 0x12, DESC_UUID, 0x10);
+        // Service 0x20 of OTHER_SERVER_IF.
+        mHandleMap.addService(OTHER_SERVER_IF, 0x20, SERVICE_UUID, 0, 1, false);
+        mHandleMap.addCharacteristic(OTHER_SERVER_IF, 0x21, CHAR_UUID, 0x20);
+    }
+
+    @Test
+    public void testGetByHandle() {
+        HandleMap.Entry descriptor = mHandleMap.getByHandle(0x12);
+        Assert.assertEquals(HandleMap.TYPE_DESCRIPTOR, descriptor.type);
+        Assert.assertEquals(0x10, descriptor.serviceHandle);
+        Assert.assertEquals(0x11, descriptor.charHandle);
+        Assert.assertNull(mHandleMap.getByHandle(0x13));
+    }
+
+    @Test
+    public void testCheckServiceExists() {
+        Assert.assertTrue(mHandleMap.checkServiceExists(SERVICE_UUID, 0x20));
+        Assert.assertFalse(mHandleMap.checkServiceExists(SERVICE_UUID, 0x21));
+        Assert.assertFalse(mHandleMap.checkServiceExists(CHAR_UUID, 0x10));
+    }
+
+    @Test
+    public void testSetStartedAndGetServices() {
+        mHandleMap.setStarted(SERVER_IF, 0x10, true);
+        // Wrong server, ignored.
+        mHandleMap.setStarted(SERVER_IF, 0x20, true);
+
+        Assert.assertEquals(1, mHandleMap.getServices(SERVER_IF).size());
+        Assert.assertTrue(mHandleMap.getServices(SERVER_IF).get(0).started);
+        Assert.assertFalse(mHandleMap.getServices(OTHER_SERVER_IF).get(0).started);
+    }
+
+    @Test
+    public void testDeleteService() {
+        mHandleMap.deleteService(SERVER_IF, 0x10);
+
+        Assert.assertNull(mHandleMap.getByHandle(0x10));
+        Assert.assertNull(mHandleMap.getByHandle(0x11));
+        Assert.assertNull(mHandleMap.getByHandle(0x12));
+        Assert.assertTrue(mHandleMap.getServices(SERVER_IF).isEmpty());
+        Assert.assertEquals(2, mHandleMap.getEntries().size());
+        Assert.assertNotNull(mHandleMap.getByHandle(0x21));
+    }
+
+    @Test
+    public void testRequests() {
+        mHandleMap.addRequest(1, 0x11);
+        Assert.assertEquals(0x11, mHandleMap.getByRequestId(1).handle);
+        mHandleMap.deleteRequest(1);
+        Assert.assertNull(mHandleMap.getByRequestId(1));
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Test cases for {@link NotificationTracker}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class NotificationTrackerTest {
+    private static final int CONN_ID = 3;
+    private static final int HANDLE = 0x2A;
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    private final NotificationTracker mTracker = new NotificationTracker();
+
+    @Test
+    public void testPermittedHandleIsCached() {
+        Assert.assertFalse(mTracker.isPermitted(CONN_ID, HANDLE));
+
+        mTracker.setPermitted(CONN_ID, ADDRESS, HANDLE, true);
+        Assert.assertTrue(mTracker.isPermitted(CONN_ID, HANDLE));
+        Assert.assertFalse(mTracker.isPermitted(CONN_ID, HANDLE + 1));
+        Assert.assertFalse(mTracker.isPermitted(CONN_ID + 1, HANDLE));
+    }
+
+    @Test
+    public void testDeniedHandleIsNotCached() {
+        mTracker.setPermitted(CONN_ID, ADDRESS, HANDLE, false);
+        Assert.assertFalse(mTracker.isPermitted(CONN_ID, HANDLE));
+    }
+
+    @Test
+    public void testInvalidateDropsDecisions() {
+        mTracker.setPermitted(CONN_ID, ADDRESS, HANDLE, true);
+        mTracker.invalidate(CONN_ID);
+        Assert.assertFalse(mTracker.isPermitted(CONN_ID, HANDLE));
+
+        StringBuilder sb = new StringBuilder();
+        mTracker.dump(sb);
+        Assert.assertTrue(sb.toString(), sb.toString().contains("Cached handles    : 0"));
+    }
+
+    @Test
+    public void testDumpReportsDenied() {
+        mTracker.setPermitted(CONN_ID, ADDRESS, HANDLE, false);
+        mTracker.setPermitted(CONN_ID, ADDRESS, HANDLE, false);
+
+        StringBuilder sb = new StringBuilder();
+        mTracker.dump(sb);
+        Assert.assertTrue(sb.toString(), sb.toString().contains("Denied            : 2"));
+    }
+
+    @Test
+    public void testRemove() {
+        mTracker.setPermitted(CONN_ID, ADDRESS, HANDLE, true);
+        mTracker.addNotification(CONN_ID, ADDRESS, 20, 0, 0);
+        mTracker.remove(CONN_ID);
+        Assert.assertFalse(mTracker.isPermitted(CONN_ID, HANDLE));
+
+        StringBuilder sb = new StringBuilder();
+        mTracker.dump(sb);
+        Assert.assertEquals("  No notifications\n", sb.toString());
+    }
+
+    @Test
+    public void testDumpReportsRateAndLatency() {
+        // 201 notifications, 5 ms apart, each delivered in 100 us.
+        for (int i = 0; i <= 200; i++) {
+            long received = i * 5_000_000L;
+            mTracker.addNotification(CONN_ID, ADDRESS, 20, received, received + 100_000L);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        mTracker.dump(sb);
+        String dump = sb.toString();
+        Assert.assertTrue(dump, dump.contains(ADDRESS));
+        Assert.assertTrue(dump, dump.contains("Notifications     : 201 (4020 bytes)"));
+        Assert.assertTrue(dump, dump.contains("Rate              : 200/s"));
+        Assert.assertTrue(dump, dump.contains("avg 100us, max 100us"));
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanSettings;
+import android.os.ParcelUuid;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Test cases for {@link ScanFilterIndex}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ScanFilterIndexTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final String OTHER_ADDRESS = "00:11:22:33:44:66";
+    private static final ParcelUuid HEART_RATE_UUID =
+            ParcelUuid.fromString("0000180D-0000-1000-8000-00805F9B34FB");
+    private static final int MANUFACTURER_ID = 0x004C;
+
+    private static final ScanSettings SETTINGS = new ScanSettings.Builder().build();
+
+    @Test
+    public void testUnfilteredClientIsAlwaysCandidate() {
+        ScanFilterIndex index = new ScanFilterIndex();
+        ScanClient client = new ScanClient(1, SETTINGS, null);
+        index.rebuild(Collections.singletonList(client));
+
+        Assert.assertEquals(Collections.singletonList(client),
+                index.getCandidates(ADDRESS, null));
+    }
+
+    @Test
+    public void testAddressFilter() {
+        ScanFilterIndex index = new ScanFilterIndex();
+        ScanClient client = new ScanClient(1, SETTINGS, Collections.singletonList(
+                new ScanFilter.Builder().setDeviceAddress(ADDRESS).build()));
+        index.rebuild(Collections.singletonList(client));
+
+        Assert.assertFalse(index.needsScanRecord());
+        Assert.assertEquals(Collections.singletonList(client),
+                index.getCandidates(ADDRESS, null));
+        Assert.assertTrue(index.getCandidates(OTHER_ADDRESS, null).isEmpty());
+    }
+
+    @Test
+    public void testRecordKeyedFilters() {
+        ScanFilterIndex index = new ScanFilterIndex();
+        ScanClient uuidClient = new ScanClient(1, SETTINGS, Collections.singletonList(
+                new ScanFilter.Builder().setServiceUuid(HEART_RATE_UUID).build()));
+        ScanClient manufacturerClient = new ScanClient(2, SETTINGS, Collections.singletonList(
+                new ScanFilter.Builder().setManufacturerData(MANUFACTURER_ID, new byte[0])
+                        .build()));
+        index.rebuild(Arrays.asList(uuidClient, manufacturerClient));
+
+        Assert.assertTrue(index.needsScanRecord());
+        Assert.assertEquals(Collections.singletonList(uuidClient),
+                index.getCandidates(ADDRESS, heartRateRecord()));
+        Assert.assertEquals(Collections.singletonList(manufacturerClient),
+                index.getCandidates(ADDRESS, manufacturerRecord(MANUFACTURER_ID)));
+        Assert.assertTrue(index.getCandidates(ADDRESS, manufacturerRecord(0x0006)).isEmpty());
+        // Without a record every client has to be checked.
+        Assert.assertEquals(2, index.getCandidates(ADDRESS, null).size());
+    }
+
+    @Test
+    public void testMaskedUuidFilterIsUnindexed() {
+        ScanFilterIndex index = new ScanFilterIndex();
+        ScanClient client = new ScanClient(1, SETTINGS, Collections.singletonList(
+                new ScanFilter.Builder().setServiceUuid(HEART_RATE_UUID,
+                        ParcelUuid.fromString("0000FF00-0000-0000-0000-000000000000"))
+                        .build()));
+        index.rebuild(Collections.singletonList(client));
+
+        Assert.assertEquals(Collections.singletonList(client),
+                index.getCandidates(ADDRESS, manufacturerRecord(MANUFACTURER_ID)));
+    }
+
+    @Test
+    public void testClientMatchingSeveralKeysIsReturnedOnce() {
+        ScanFilterIndex index = new ScanFilterIndex();
+        ScanClient client = new ScanClient(1, SETTINGS, Arrays.asList(
+                new ScanFilter.Builder().setDeviceAddress(ADDRESS).build(),
+                new ScanFilter.Builder().setServiceUuid(HEART_RATE_UUID).build()));
+        index.rebuild(Collections.singletonList(client));
+
+        Assert.assertEquals(Collections.singletonList(client),
+                index.getCandidates(ADDRESS, heartRateRecord()));
+    }
+
+    @Test
+    public void testClear() {
+        ScanFilterIndex index = new ScanFilterIndex();
+        index.rebuild(Collections.singletonList(new ScanClient(1, SETTINGS, null)));
+        index.clear();
+
+        Assert.assertTrue(index.getCandidates(ADDRESS, null).isEmpty());
+    }
+
+    /**
+     * Every client filters on its own manufacturer id, so each advertisement has at most one
+     * candidate however many clients are scanning.
+     */
+    @Test
+    public void testCandidatesDoNotGrowWithClientCount() {
+        for (int numClients : new int[] {1, 10, 100}) {
+            List<ScanClient> clients = new ArrayList<>();
+            for (int i = 0; i < numClients; i++) {
+                clients.add(new ScanClient(i, SETTINGS, Collections.singletonList(
+                        new ScanFilter.Builder().setManufacturerData(i, new byte[0]).build())));
+            }
+            ScanFilterIndex index = new ScanFilterIndex();
+            index.rebuild(clients);
+
+            for (int id = 0; id < 16; id++) {
+                List<ScanClient> candidates = index.getCandidates(ADDRESS, manufacturerRecord(id));
+                if (id < numClients) {
+                    Assert.assertEquals(Collections.singletonList(clients.get(id)), candidates);
+                } else {
+                    Assert.assertTrue(candidates.isEmpty());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRepeatedLookupsReturnSameCandidates() {
+        ScanFilterIndex index = new ScanFilterIndex();
+        ScanClient client = new ScanClient(1, SETTINGS, Arrays.asList(
+                new ScanFilter.Builder().setDeviceAddress(ADDRESS).build(),
+                new ScanFilter.Builder().setServiceUuid(HEART_RATE_UUID).build()));
+        index.rebuild(Collections.singletonList(client));
+
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(Collections.singletonList(client),
+                    index.getCandidates(ADDRESS, heartRateRecord()));
+            Assert.assertEquals(Collections.singletonList(client),
+                    index.getCandidates(OTHER_ADDRESS, heartRateRecord()));
+            Assert.assertTrue(index.getCandidates(OTHER_ADDRESS, manufacturerRecord(1))
+                    .isEmpty());
+        }
+    }
+
+    private static ScanRecord heartRateRecord() {
+        // Flags, complete list of 16-bit UUIDs: 0x180D.
+        return ScanRecord.parseFromBytes(new byte[] {
+                0x02, 0x01, 0x06, 0x03, 0x03, 0x0D, 0x18});
+    }
+
+    private static ScanRecord manufacturerRecord(int manufacturerId) {
+        // Flags, manufacturer specific data with two bytes of payload.
+        return ScanRecord.parseFromBytes(new byte[] {
+                0x02, 0x01, 0x06, 0x05, (byte) 0xFF, (byte) (manufacturerId & 0xFF),
+                (byte) ((manufacturerId >> 8) & 0xFF), 0x01, 0x02});
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static org.mockito.Mockito.*;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanResult;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Test cases for {@link ScanResultBatcher}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ScanResultBatcherTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final String OTHER_ADDRESS = "00:11:22:33:44:66";
+    private static final long SHORT_WINDOW_MILLIS = 50;
+    // Never expires during a test
+    private static final long LONG_WINDOW_MILLIS = 60 * 1000;
+    private static final long DELIVERY_TIMEOUT_MILLIS = 1000;
+
+    @Mock private GattService mService;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private ScanClient mClient;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mThread = new HandlerThread("ScanResultBatcherTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mClient = new ScanClient(1);
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quitSafely();
+    }
+
+    @Test
+    public void testFlushOnWindowExpiry() {
+        ScanResultBatcher batcher = new ScanResultBatcher(mService, mHandler,
+                SHORT_WINDOW_MILLIS, 100);
+        ScanResult result = makeResult(ADDRESS);
+
+        batcher.add(mClient, result);
+
+        Assert.assertEquals(Arrays.asList(result), waitForBatch());
+    }
+
+    @Test
+    public void testFlushOnMaxResults() {
+        ScanResultBatcher batcher = new ScanResultBatcher(mService, mHandler,
+                LONG_WINDOW_MILLIS, 2);
+        ScanResult first = makeResult(ADDRESS);
+        ScanResult second = makeResult(OTHER_ADDRESS);
+
+        batcher.add(mClient, first);
+        batcher.add(mClient, second);
+
+        Assert.assertEquals(Arrays.asList(first, second), waitForBatch());
+    }
+
+    @Test
+    public void testResultsFromSameDeviceAreMerged() {
+        ScanResultBatcher batcher = new ScanResultBatcher(mService, mHandler,
+                LONG_WINDOW_MILLIS, 2);
+        ScanResult first = makeResult(ADDRESS);
+        ScanResult latest = makeResult(ADDRESS);
+        ScanResult other = makeResult(OTHER_ADDRESS);
+
+        batcher.add(mClient, first);
+        batcher.add(mClient, latest);
+        // Only the second distinct device fills the batch
+        batcher.add(mClient, other);
+
+        Assert.assertEquals(Arrays.asList(latest, other), waitForBatch());
+    }
+
+    @Test
+    public void testRemoveDropsPendingResults() {
+        ScanResultBatcher batcher = new ScanResultBatcher(mService, mHandler,
+                SHORT_WINDOW_MILLIS, 100);
+        batcher.add(mClient, makeResult(ADDRESS));
+
+        batcher.remove(mClient);
+        SystemClock.sleep(SHORT_WINDOW_MILLIS * 4);
+
+        verify(mService, never()).deliverBatchedScanResults(any(), any());
+    }
+
+    private ArrayList<ScanResult> waitForBatch() {
+        ArgumentCaptor<ArrayList<ScanResult>> results = ArgumentCaptor.forClass(ArrayList.class);
+        verify(mService, timeout(DELIVERY_TIMEOUT_MILLIS).times(1))
+                .deliverBatchedScanResults(eq(mClient), results.capture());
+        return results.getValue();
+    }
+
+    private static ScanResult makeResult(String address) {
+        return new ScanResult(BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address), null,
+                -60, SystemClock.elapsedRealtimeNanos());
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for {@link ScanResultDedupCache}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ScanResultDedupCacheTest {
+    private static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final int RSSI_THRESHOLD = 8;
+    private static final int CAPACITY = 2;
+
+    private static final long KEY_1 = ScanResultDedupCache.getKey("00:11:22:33:44:55", 0);
+    private static final long KEY_2 = ScanResultDedupCache.getKey("00:11:22:33:44:66", 0);
+    private static final long KEY_3 = ScanResultDedupCache.getKey("00:11:22:33:44:77", 0);
+    private static final byte[] DATA = {0x02, 0x01, 0x06};
+
+    private ScanResultDedupCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new ScanResultDedupCache(INTERVAL_NANOS, RSSI_THRESHOLD, CAPACITY);
+    }
+
+    @Test
+    public void testKeyIncludesAdvertisingSid() {
+        Assert.assertEquals(0x001122334455L, KEY_1);
+        Assert.assertNotEquals(KEY_1, ScanResultDedupCache.getKey("00:11:22:33:44:55", 1));
+    }
+
+    @Test
+    public void testIdenticalAdvertisementIsSuppressed() {
+        Assert.assertTrue(mCache.shouldDeliver(KEY_1, -50, DATA, 0));
+        Assert.assertFalse(mCache.shouldDeliver(KEY_1, -52, DATA.clone(), 100));
+    }
+
+    @Test
+    public void testDeliveredAgainAfterInterval() {
+        Assert.assertTrue(mCache.shouldDeliver(KEY_1, -50, DATA, 0));
+        Assert.assertTrue(mCache.shouldDeliver(KEY_1, -50, DATA, INTERVAL_NANOS));
+    }
+
+    @Test
+    public void testDeliveredAgainOnRssiChange() {
+        Assert.assertTrue(mCache.shouldDeliver(KEY_1, -50, DATA, 0));
+        Assert.assertTrue(mCache.shouldDeliver(KEY_1, -50 - RSSI_THRESHOLD, DATA, 1));
+    }
+
+    @Test
+    public void testDeliveredAgainOnDataChange() {
+        Assert.assertTrue(mCache.shouldDeliver(KEY_1, -50, DATA, 0));
+        Assert.assertTrue(mCache.shouldDeliver(KEY_1, -50, new byte[] {0x02, 0x01, 0x04}, 1));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        Assert.assertTrue(mCache.shouldDeliver(KEY_1, -50, DATA, 0));
+        Assert.assertTrue(mCache.shouldDeliver(KEY_2, -50, DATA, 0));
+        Assert.assertFalse(mCache.shouldDeliver(KEY_1, -50, DATA, 1));
+        Assert.assertTrue(mCache.shouldDeliver(KEY_3, -50, DATA, 1));
+
+        Assert.assertEquals(CAPACITY, mCache.size());
+        // KEY_2 was the least recently used one.
+        Assert.assertTrue(mCache.shouldDeliver(KEY_2, -50, DATA, 2));
+    }
+}
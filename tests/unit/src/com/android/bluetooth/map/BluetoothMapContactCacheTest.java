@@ -0,0 +1,122 @@
+/*
+ * Copyright 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import static org.mockito.Mockito.*;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Contacts;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Test cases for {@link BluetoothMapContactCache}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothMapContactCacheTest {
+    private static final String PHONE = "5551234";
+    private static final String UNKNOWN_PHONE = "5559999";
+    private static final String NAME = "Alice";
+
+    private BluetoothMapContactCache mCache;
+    private MockContentResolver mResolver;
+    private ContactsProvider mProvider;
+
+    /**
+     * Answers phone lookups for {@link #PHONE} only, counting the queries.
+     */
+    private static class ContactsProvider extends MockContentProvider {
+        int mQueries;
+
+        ContactsProvider(Context context) {
+            super(context);
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            mQueries++;
+            MatrixCursor cursor = new MatrixCursor(projection);
+            if (PHONE.equals(uri.getLastPathSegment())) {
+                Object[] row = new Object[projection.length];
+                for (int column = 0; column < projection.length; column++) {
+                    row[column] = Contacts.DISPLAY_NAME.equals(projection[column]) ? NAME : 1;
+                }
+                cursor.addRow(row);
+            }
+            return cursor;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mProvider = new ContactsProvider(mock(Context.class));
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(ContactsContract.AUTHORITY, mProvider);
+        mCache = new BluetoothMapContactCache(mResolver);
+    }
+
+    @Test
+    public void testNamesAreCached() {
+        Assert.assertEquals(NAME, mCache.getContactName(PHONE, mResolver));
+        Assert.assertEquals(NAME, mCache.getContactName(PHONE, mResolver));
+        Assert.assertEquals(1, mProvider.mQueries);
+    }
+
+    @Test
+    public void testMissingContactIsCached() {
+        Assert.assertNull(mCache.getContactName(UNKNOWN_PHONE, mResolver));
+        Assert.assertNull(mCache.getContactName(UNKNOWN_PHONE, mResolver));
+        Assert.assertEquals(1, mProvider.mQueries);
+    }
+
+    @Test
+    public void testInvalidateNames() {
+        mCache.getContactName(PHONE, mResolver);
+        mCache.invalidateNames();
+        Assert.assertEquals(NAME, mCache.getContactName(PHONE, mResolver));
+        Assert.assertEquals(2, mProvider.mQueries);
+    }
+
+    @Test
+    public void testDumpReportsHitsAndMisses() {
+        mCache.getContactName(PHONE, mResolver);
+        mCache.getContactName(PHONE, mResolver);
+        mCache.getContactName(PHONE, mResolver);
+        mCache.invalidateNames();
+
+        StringBuilder sb = new StringBuilder();
+        mCache.dump(sb);
+        String dump = sb.toString();
+        Assert.assertTrue(dump, dump.contains(
+                "Contact names cache: 0/512 entries, hits: 2, misses: 1, evictions: 1, "
+                + "invalidations: 1"));
+    }
+}
@@ -20,11 +20,13 @@ import static org.mockito.Mockito.*;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.os.Looper;
 import android.os.RemoteException;
 import android.os.UserManager;
+import android.provider.Telephony.Sms;
 import android.telephony.TelephonyManager;
 import android.test.mock.MockContentProvider;
 import android.test.mock.MockContentResolver;
@@ -41,6 +43,9 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @MediumTest
 @RunWith(AndroidJUnit4.class)
 public class BluetoothMapContentObserverTest {
@@ -57,6 +62,50 @@ public class BluetoothMapContentObserverTest {
         }
     }
 
+    /**
+     * Serves SMS rows of (_id, date), honouring the "_id > ? OR date > ?" selection of the
+     * incremental scan. Every other column reads as a sent message in thread 1.
+     */
+    class SmsTestProvider extends MockContentProvider {
+        final List<long[]> mRows = new ArrayList<>();
+        String[] mLastSelectionArgs;
+
+        SmsTestProvider(Context context) {
+            super(context);
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            MatrixCursor cursor = new MatrixCursor(projection);
+            if (!"sms".equals(uri.getAuthority())) {
+                return cursor;
+            }
+            mLastSelectionArgs = selectionArgs;
+            for (long[] row : mRows) {
+                if (selectionArgs != null && row[0] <= Long.parseLong(selectionArgs[0])
+                        && row[1] <= Long.parseLong(selectionArgs[1])) {
+                    continue;
+                }
+                Object[] values = new Object[projection.length];
+                for (int i = 0; i < projection.length; i++) {
+                    if (Sms._ID.equals(projection[i])) {
+                        values[i] = row[0];
+                    } else if (Sms.DATE.equals(projection[i])) {
+                        values[i] = row[1];
+                    } else if (Sms.TYPE.equals(projection[i])) {
+                        values[i] = Sms.MESSAGE_TYPE_SENT;
+                    } else if (Sms.THREAD_ID.equals(projection[i])
+                            || Sms.READ.equals(projection[i])) {
+                        values[i] = 1;
+                    }
+                }
+                cursor.addRow(values);
+            }
+            return cursor;
+        }
+    }
+
     @Before
     public void setUp() {
         mTargetContext = InstrumentationRegistry.getTargetContext();
@@ -94,4 +143,44 @@ public class BluetoothMapContentObserverTest {
             Assert.fail("Threw SQLiteException instead of Assert.failing cleanly");
         }
     }
+
+    @Test
+    public void testIncrementalScanOnlyReadsNewAndRecentMessages() throws RemoteException {
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+        Context mockContext = mock(Context.class);
+        MockContentResolver mockResolver = new MockContentResolver();
+        SmsTestProvider provider = new SmsTestProvider(mockContext);
+        mockResolver.addProvider("sms", provider);
+        mockResolver.addProvider("mms", provider);
+        long oldDate = System.currentTimeMillis() - 7 * 24 * 60 * 60 * 1000L;
+        for (long id = 1; id <= 100; id++) {
+            provider.mRows.add(new long[] {id, oldDate});
+        }
+
+        TelephonyManager mockTelephony = mock(TelephonyManager.class);
+        UserManager mockUserService = mock(UserManager.class);
+        BluetoothMapMasInstance mockMas = mock(BluetoothMapMasInstance.class);
+        when(mockUserService.isUserUnlocked()).thenReturn(true);
+        when(mockContext.getContentResolver()).thenReturn(mockResolver);
+        when(mockContext.getSystemService(Context.TELEPHONY_SERVICE)).thenReturn(mockTelephony);
+        when(mockContext.getSystemService(Context.USER_SERVICE)).thenReturn(mockUserService);
+
+        BluetoothMapContentObserver observer =
+                new BluetoothMapContentObserver(mockContext, null, mockMas, null, true);
+        provider.mRows.add(new long[] {101, System.currentTimeMillis()});
+
+        observer.handleSmsMmsChanges(false);
+        Assert.assertEquals("100", provider.mLastSelectionArgs[0]);
+        StringBuilder sb = new StringBuilder();
+        observer.dump(sb);
+        Assert.assertTrue(sb.toString(), sb.toString().contains("last scan: 1,"));
+
+        observer.handleSmsMmsChanges(true);
+        sb = new StringBuilder();
+        observer.dump(sb);
+        Assert.assertTrue(sb.toString(), sb.toString().contains("last scan: 101,"));
+        Assert.assertTrue(sb.toString(), sb.toString().contains("full resyncs: 1"));
+    }
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import static org.mockito.Mockito.*;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.provider.Telephony.Mms;
+import android.provider.Telephony.Sms;
+import android.telephony.TelephonyManager;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import androidx.test.filters.MediumTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bluetooth.mapapi.BluetoothMapContract;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Test cases for the message listing of {@link BluetoothMapContent}.
+ */
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothMapContentTest {
+    private static final int MESSAGES = 20000;
+    private static final long NEWEST_DATE = 1600000000000L;
+    // Every fourth message is an MMS, the others are SMS. Message i is i seconds old.
+    private static final int MMS_INTERVAL = 4;
+    private static final long PARAMETER_MASK = 0x00000002 | 0x00000040; // datetime, type
+
+    private static final Pattern LIMIT = Pattern.compile("LIMIT (\\d+)(?: OFFSET (\\d+))?");
+
+    private MessageProvider mProvider;
+    private BluetoothMapContent mContent;
+    private BluetoothMapFolderElement mInbox;
+
+    /**
+     * Serves SMS and MMS inbox messages newest first, honouring LIMIT and OFFSET in the sort
+     * order like the telephony provider does.
+     */
+    private static class MessageProvider extends MockContentProvider {
+        // Messages older than this are all read, from here on every other message is unread.
+        int mFirstUnread = 0;
+
+        MessageProvider(Context context) {
+            super(context);
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            boolean mms = "mms".equals(uri.getAuthority());
+            int limit = Integer.MAX_VALUE;
+            int offset = 0;
+            Matcher matcher = LIMIT.matcher(sortOrder != null ? sortOrder : "");
+            if (matcher.find()) {
+                limit = Integer.parseInt(matcher.group(1));
+                if (matcher.group(2) != null) {
+                    offset = Integer.parseInt(matcher.group(2));
+                }
+            }
+            MatrixCursor cursor = new MatrixCursor(projection);
+            int matched = 0;
+            for (int i = 0; i < MESSAGES && cursor.getCount() < limit; i++) {
+                if ((i % MMS_INTERVAL == 0) != mms || matched++ < offset) {
+                    continue;
+                }
+                Object[] row = new Object[projection.length];
+                for (int column = 0; column < projection.length; column++) {
+                    String name = projection[column];
+                    if (BaseColumns._ID.equals(name)) {
+                        row[column] = i + 1;
+                    } else if (Sms.DATE.equals(name)) {
+                        // MMS dates are in seconds.
+                        row[column] = mms ? dateOf(i) / 1000 : dateOf(i);
+                    } else if (Sms.READ.equals(name)) {
+                        row[column] = i >= mFirstUnread && i % 2 == 0 ? 0 : 1;
+                    } else if (Sms.TYPE.equals(name) || Mms.MESSAGE_BOX.equals(name)) {
+                        row[column] = 1;
+                    }
+                }
+                cursor.addRow(row);
+            }
+            return cursor;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Context context = mock(Context.class);
+        MockContentResolver resolver = new MockContentResolver();
+        mProvider = new MessageProvider(context);
+        resolver.addProvider("sms", mProvider);
+        resolver.addProvider("mms", mProvider);
+        TelephonyManager telephony = mock(TelephonyManager.class);
+        when(telephony.getPhoneType()).thenReturn(TelephonyManager.PHONE_TYPE_GSM);
+        when(context.getContentResolver()).thenReturn(resolver);
+        when(context.getSystemService(Context.TELEPHONY_SERVICE)).thenReturn(telephony);
+
+        mContent = new BluetoothMapContent(context, null, null);
+        mInbox = new BluetoothMapFolderElement(BluetoothMapContract.FOLDER_NAME_INBOX, null);
+        mInbox.setHasSmsMmsContent(true);
+    }
+
+    @Test
+    public void testMsgListingMergesTypesByDate() {
+        List<BluetoothMapMessageListingElement> list = listing(0, 10).getList();
+
+        Assert.assertEquals(10, list.size());
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(dateOf(i), list.get(i).getDateTime());
+            Assert.assertEquals(i % MMS_INTERVAL == 0 ? BluetoothMapUtils.TYPE.MMS
+                    : BluetoothMapUtils.TYPE.SMS_GSM, list.get(i).getType());
+        }
+    }
+
+    @Test
+    public void testMsgListingWindow() {
+        BluetoothMapMessageListing listing = listing(2000, 50);
+        List<BluetoothMapMessageListingElement> list = listing.getList();
+
+        Assert.assertEquals(50, list.size());
+        for (int i = 0; i < 50; i++) {
+            Assert.assertEquals(dateOf(2000 + i), list.get(i).getDateTime());
+            Assert.assertEquals(2000 + i + 1, list.get(i).getHandle());
+        }
+        Assert.assertTrue(listing.hasUnread());
+    }
+
+    @Test
+    public void testMsgListingPastTheEnd() {
+        Assert.assertEquals(0, listing(MESSAGES, 50).getCount());
+        Assert.assertEquals(10, listing(MESSAGES - 10, 50).getCount());
+    }
+
+    @Test
+    public void testMsgListingUnreadAfterWindow() {
+        // The first page only holds read messages, the unread ones are further down.
+        mProvider.mFirstUnread = 20;
+        Assert.assertTrue(listing(0, 10).hasUnread());
+
+        mProvider.mFirstUnread = MESSAGES;
+        Assert.assertFalse(listing(0, 10).hasUnread());
+    }
+
+    private BluetoothMapMessageListing listing(int offset, int count) {
+        BluetoothMapAppParams ap = new BluetoothMapAppParams();
+        ap.setParameterMask(PARAMETER_MASK);
+        ap.setStartOffset(offset);
+        ap.setMaxListCount(count);
+        return mContent.msgListing(mInbox, ap);
+    }
+
+    private static long dateOf(int index) {
+        return NEWEST_DATE - index * 1000L;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import static org.mockito.Mockito.*;
+
+import android.test.mock.MockContentResolver;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bluetooth.mapapi.BluetoothMapContract;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Test cases for {@link BluetoothMapFolderCache}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothMapFolderCacheTest {
+    private BluetoothMapFolderCache mCache;
+    private BluetoothMapContent mContent;
+    private BluetoothMapFolderElement mInbox;
+    private BluetoothMapFolderElement mSent;
+
+    @Before
+    public void setUp() {
+        mCache = new BluetoothMapFolderCache(new MockContentResolver(), null, true);
+        mContent = mock(BluetoothMapContent.class);
+        when(mContent.msgListingSize(any(), any())).thenReturn(42);
+        when(mContent.msgListingHasUnread(any(), any())).thenReturn(true);
+        BluetoothMapFolderElement root = new BluetoothMapFolderElement("root", null);
+        BluetoothMapFolderElement msg = root.addFolder("telecom").addFolder("msg");
+        mInbox = msg.addSmsMmsFolder(BluetoothMapContract.FOLDER_NAME_INBOX);
+        mSent = msg.addSmsMmsFolder(BluetoothMapContract.FOLDER_NAME_SENT);
+    }
+
+    @Test
+    public void testListingSizeIsCached() {
+        BluetoothMapFolderCache.ListingSize size =
+                mCache.getListingSize(mInbox, new BluetoothMapAppParams(), mContent);
+        mCache.getListingSize(mInbox, new BluetoothMapAppParams(), mContent);
+
+        Assert.assertEquals(42, size.mSize);
+        Assert.assertTrue(size.mHasUnread);
+        verify(mContent, times(1)).msgListingSize(any(), any());
+        verify(mContent, times(1)).msgListingHasUnread(any(), any());
+    }
+
+    @Test
+    public void testListingSizeIsCachedPerFolderAndFilter() {
+        BluetoothMapAppParams unreadOnly = new BluetoothMapAppParams();
+        unreadOnly.setFilterReadStatus(1);
+
+        mCache.getListingSize(mInbox, new BluetoothMapAppParams(), mContent);
+        mCache.getListingSize(mSent, new BluetoothMapAppParams(), mContent);
+        mCache.getListingSize(mInbox, unreadOnly, mContent);
+        mCache.getListingSize(mInbox, unreadOnly, mContent);
+
+        verify(mContent, times(3)).msgListingSize(any(), any());
+    }
+
+    @Test
+    public void testListingSizeWithRecipientFilterIsNotCached() {
+        BluetoothMapAppParams ap = new BluetoothMapAppParams();
+        ap.setFilterRecipient("Bob");
+
+        mCache.getListingSize(mInbox, ap, mContent);
+        mCache.getListingSize(mInbox, ap, mContent);
+
+        verify(mContent, times(2)).msgListingSize(any(), any());
+    }
+
+    @Test
+    public void testInvalidateListingSizes() {
+        mCache.getListingSize(mInbox, new BluetoothMapAppParams(), mContent);
+        mCache.invalidateListingSizes();
+        mCache.getListingSize(mInbox, new BluetoothMapAppParams(), mContent);
+
+        verify(mContent, times(2)).msgListingSize(any(), any());
+    }
+
+    @Test
+    public void testFoldersAreCached() {
+        Assert.assertNull(mCache.getFolders());
+        mCache.setFolders(mInbox.getRoot(), mCache.getFoldersVersion());
+
+        Assert.assertSame(mInbox.getRoot(), mCache.getFolders());
+    }
+
+    @Test
+    public void testInvalidateFoldersDropsListingSizes() {
+        mCache.setFolders(mInbox.getRoot(), mCache.getFoldersVersion());
+        mCache.getListingSize(mInbox, new BluetoothMapAppParams(), mContent);
+        mCache.invalidateFolders();
+        mCache.getListingSize(mInbox, new BluetoothMapAppParams(), mContent);
+
+        Assert.assertNull(mCache.getFolders());
+        verify(mContent, times(2)).msgListingSize(any(), any());
+    }
+
+    @Test
+    public void testFoldersBuiltBeforeChangeAreNotCached() {
+        int version = mCache.getFoldersVersion();
+        mCache.invalidateFolders();
+        mCache.setFolders(mInbox.getRoot(), version);
+
+        Assert.assertNull(mCache.getFolders());
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bluetooth.map.BluetoothMapContentObserver.Msg;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Test cases for {@link BluetoothMapMessageIndex}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothMapMessageIndexTest {
+    private final BluetoothMapMessageIndex mIndex = new BluetoothMapMessageIndex();
+
+    @Test
+    public void testPutGetRemove() {
+        Msg msg = new Msg(42, 2, 7, 1);
+        msg.localInitiatedSend = true;
+        mIndex.put(msg.id, msg);
+
+        Msg copy = mIndex.get(42);
+        Assert.assertNotSame(msg, copy);
+        Assert.assertEquals(42, copy.id);
+        Assert.assertEquals(2, copy.type);
+        Assert.assertEquals(7, copy.threadId);
+        Assert.assertEquals(1, copy.flagRead);
+        Assert.assertEquals(-1, copy.folderId);
+        Assert.assertTrue(copy.localInitiatedSend);
+        Assert.assertFalse(copy.transparent);
+
+        copy.flagRead = 0;
+        Assert.assertEquals(1, mIndex.get(42).flagRead);
+        mIndex.put(42, copy);
+        Assert.assertEquals(0, mIndex.get(42).flagRead);
+        Assert.assertEquals(1, mIndex.size());
+
+        Assert.assertEquals(42, mIndex.remove(42).id);
+        Assert.assertNull(mIndex.get(42));
+        Assert.assertNull(mIndex.remove(42));
+        Assert.assertEquals(0, mIndex.size());
+    }
+
+    @Test
+    public void testFolderIdsKeptAcrossGrowth() {
+        mIndex.put(1, new Msg(1, 1, 1, 0));
+        Msg email = new Msg(2, 100, 1);
+        email.oldFolderId = 101;
+        email.transparent = true;
+        mIndex.put(2, email);
+        for (long id = 3; id < 100; id++) {
+            mIndex.put(id, new Msg(id, 1, 1, 0));
+        }
+
+        Assert.assertEquals(-1, mIndex.get(1).folderId);
+        Msg copy = mIndex.get(2);
+        Assert.assertEquals(100, copy.folderId);
+        Assert.assertEquals(101, copy.oldFolderId);
+        Assert.assertTrue(copy.transparent);
+    }
+
+    @Test
+    public void testRemoveUnseen() {
+        for (long id = 1; id <= 10; id++) {
+            mIndex.put(id, new Msg(id, 1, 1, 0));
+        }
+
+        mIndex.clearSeen();
+        for (long id = 1; id <= 10; id++) {
+            if (id % 3 != 0) {
+                mIndex.put(id, mIndex.remove(id));
+            }
+        }
+        List<Msg> removed = mIndex.removeUnseen();
+
+        Assert.assertEquals(3, removed.size());
+        Assert.assertEquals(7, mIndex.size());
+        for (Msg msg : removed) {
+            Assert.assertEquals(0, msg.id % 3);
+            Assert.assertFalse(mIndex.containsKey(msg.id));
+        }
+        Assert.assertTrue(mIndex.removeUnseen().isEmpty());
+    }
+
+    @Test
+    public void testMatchesHashMapUnderRandomOperations() {
+        Map<Long, Integer> expected = new HashMap<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            // Small key range to get many collisions and removals within probe sequences.
+            long id = random.nextInt(2000) * 1024L;
+            if (random.nextInt(3) == 0) {
+                Msg removed = mIndex.remove(id);
+                Integer type = expected.remove(id);
+                Assert.assertEquals(type == null, removed == null);
+            } else {
+                int type = random.nextInt(6);
+                mIndex.put(id, new Msg(id, type, 1, 0));
+                expected.put(id, type);
+            }
+        }
+
+        Assert.assertEquals(expected.size(), mIndex.size());
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            Msg msg = mIndex.get(entry.getKey());
+            Assert.assertNotNull(msg);
+            Assert.assertEquals((int) entry.getValue(), msg.type);
+        }
+    }
+
+    @Test
+    public void testFootprint() {
+        BluetoothMapMessageIndex index = new BluetoothMapMessageIndex(10000);
+        for (long id = 0; id < 10000; id++) {
+            index.put(id, new Msg(id, 1, 1, 0));
+        }
+
+        // 18 bytes per slot for SMS/MMS, at most half the table empty after presizing.
+        Assert.assertTrue(index.toString(), index.getFootprint() <= 10000 * 18 * 2);
+        Assert.assertTrue(index.toString(), index.toString().startsWith("10000 messages"));
+    }
+}
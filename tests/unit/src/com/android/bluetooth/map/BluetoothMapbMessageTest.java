@@ -0,0 +1,249 @@
+/*
+ * Copyright 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.MediumTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
+import com.android.bluetooth.map.BluetoothMapbMessageMime.MimePart;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Test cases for parsing pushed bMessages with {@link BluetoothMapbMessage#parse}, and for
+ * streaming bMessages with {@link BluetoothMapbMessage#encode(java.io.OutputStream,
+ * android.content.ContentResolver)}.
+ */
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothMapbMessageTest {
+    private static final String TAG = "BluetoothMapbMessageTest";
+
+    private static final String BODY_LINE =
+            "The quick brown fox jumps over the lazy dog, 0123456789 æøå abcdefghij";
+    private static final String AUTHORITY = "bmessage.test";
+
+    private File mFile;
+    private MockContentResolver mResolver;
+
+    /**
+     * Serves the content of mFile for any Uri.
+     */
+    private class FileProvider extends MockContentProvider {
+        FileProvider(Context context) {
+            super(context);
+        }
+
+        @Override
+        public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+            return ParcelFileDescriptor.open(mFile, ParcelFileDescriptor.MODE_READ_ONLY);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mFile = new File(context.getCacheDir(), TAG);
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(AUTHORITY, new FileProvider(context));
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void testParseEmail() {
+        BluetoothMapbMessage msg = parse(emailBMessage(3));
+
+        Assert.assertEquals(TYPE.EMAIL, msg.getType());
+        Assert.assertEquals("Alice", msg.getOriginators().get(0).getName());
+        Assert.assertEquals("bob@example.com", msg.getRecipients().get(0).getFirstEmail());
+        Assert.assertEquals(BODY_LINE + BODY_LINE + BODY_LINE,
+                ((BluetoothMapbMessageEmail) msg).getEmailBody());
+    }
+
+    @Test
+    public void testParseSkipsEmptyLines() {
+        String bMessage = emailBMessage(1).replace("BEGIN:BENV\r\n", "\r\n\r\nBEGIN:BENV\r\n\n");
+
+        BluetoothMapbMessage msg = parse(bMessage);
+
+        Assert.assertEquals(BODY_LINE, ((BluetoothMapbMessageEmail) msg).getEmailBody());
+    }
+
+    @Test
+    public void testParseSms() {
+        String bMessage = "BEGIN:BMSG\r\nVERSION:1.0\r\nSTATUS:UNREAD\r\nTYPE:SMS_GSM\r\n"
+                + "FOLDER:telecom/msg/outbox\r\nBEGIN:BENV\r\nBEGIN:VCARD\r\nVERSION:2.1\r\n"
+                + "N:Bob\r\nTEL:5551234\r\nEND:VCARD\r\nBEGIN:BBODY\r\nCHARSET:UTF-8\r\n"
+                + "LENGTH:30\r\nBEGIN:MSG\r\nHello\r\nEND:MSG\r\nEND:BBODY\r\nEND:BENV\r\n"
+                + "END:BMSG\r\n";
+
+        BluetoothMapbMessage msg = parse(bMessage);
+
+        Assert.assertEquals(TYPE.SMS_GSM, msg.getType());
+        Assert.assertEquals("Hello", ((BluetoothMapbMessageSms) msg).getSmsBody());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseMissingEndMsg() {
+        String bMessage = emailBMessage(2);
+        bMessage = bMessage.substring(0, bMessage.indexOf("END:MSG"));
+
+        parse(bMessage);
+    }
+
+    @Test
+    public void testEncodeStreamedAttachment() throws IOException {
+        // Not a multiple of the Base64 chunk size, to get a partial last line
+        byte[] image = new byte[200000];
+        new Random(1).nextBytes(image);
+        writeFile(image);
+        BluetoothMapbMessageMime msg = new BluetoothMapbMessageMime();
+        msg.setType(TYPE.MMS);
+        msg.setStatus(true);
+        msg.setFolder("inbox");
+        msg.setContentType("application/vnd.wap.multipart.related");
+        msg.setIncludeAttachments(true);
+        MimePart text = msg.addMimePart();
+        text.mContentType = "text/plain";
+        text.mCharsetName = "utf-8";
+        text.mData = "Look END:MSG".getBytes(StandardCharsets.UTF_8);
+        MimePart attachment = msg.addMimePart();
+        attachment.mContentType = "image/jpeg";
+        attachment.mPartName = "image.jpg";
+        attachment.mDataUri = Uri.parse("content://" + AUTHORITY + "/part/2");
+        attachment.mDataSize = image.length;
+
+        byte[] streamed = encode(msg);
+        attachment.mDataUri = null;
+        attachment.mData = image;
+
+        Assert.assertEquals(new String(msg.encode(), StandardCharsets.UTF_8),
+                new String(streamed, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testEncodeStreamedEmailBody() throws IOException {
+        String body = "Hello\r\nEND:MSG\r\nEND:MS" + BODY_LINE;
+        writeFile(body.getBytes(StandardCharsets.UTF_8));
+        BluetoothMapbMessageEmail msg = new BluetoothMapbMessageEmail();
+        msg.setType(TYPE.EMAIL);
+        msg.setStatus(false);
+        msg.setFolder("inbox");
+        msg.setEmailBodyUri(Uri.parse("content://" + AUTHORITY + "/message/1"));
+
+        byte[] streamed = encode(msg);
+        BluetoothMapbMessageEmail inMemory = new BluetoothMapbMessageEmail();
+        inMemory.setType(TYPE.EMAIL);
+        inMemory.setStatus(false);
+        inMemory.setFolder("inbox");
+        inMemory.setEmailBody(body);
+
+        Assert.assertArrayEquals(inMemory.encode(), streamed);
+    }
+
+    @Test(expected = IOException.class)
+    public void testEncodeTruncatedAttachment() throws IOException {
+        writeFile(new byte[100]);
+        BluetoothMapbMessageMime msg = new BluetoothMapbMessageMime();
+        msg.setType(TYPE.MMS);
+        msg.setStatus(true);
+        msg.setFolder("inbox");
+        msg.setIncludeAttachments(true);
+        MimePart attachment = msg.addMimePart();
+        attachment.mContentType = "image/jpeg";
+        attachment.mDataUri = Uri.parse("content://" + AUTHORITY + "/part/2");
+        attachment.mDataSize = 1000;
+
+        encode(msg);
+    }
+
+    @Test
+    public void testParseLargeEmail() {
+        int lines = 1024 * 1024 / (BODY_LINE.length() + 2);
+
+        BluetoothMapbMessageEmail msg = (BluetoothMapbMessageEmail) parse(emailBMessage(lines));
+
+        String body = msg.getEmailBody();
+        Assert.assertEquals(lines * BODY_LINE.length(), body.length());
+        Assert.assertTrue(body.startsWith(BODY_LINE + BODY_LINE));
+        Assert.assertTrue(body.endsWith(BODY_LINE + BODY_LINE));
+    }
+
+    private byte[] encode(BluetoothMapbMessage msg) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        msg.encode(out, mResolver);
+        return out.toByteArray();
+    }
+
+    private void writeFile(byte[] data) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            out.write(data);
+        }
+    }
+
+    private static BluetoothMapbMessage parse(byte[] bMessage) {
+        InputStream stream = new ByteArrayInputStream(bMessage);
+        return BluetoothMapbMessage.parse(stream, BluetoothMapAppParams.CHARSET_UTF8);
+    }
+
+    private static BluetoothMapbMessage parse(String bMessage) {
+        return parse(bMessage.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String emailBMessage(int bodyLines) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("BEGIN:BMSG\r\nVERSION:1.0\r\nSTATUS:UNREAD\r\nTYPE:EMAIL\r\n")
+                .append("FOLDER:telecom/msg/outbox\r\n")
+                .append("BEGIN:VCARD\r\nVERSION:2.1\r\nN:Alice\r\nEMAIL:alice@example.com\r\n")
+                .append("END:VCARD\r\nBEGIN:BENV\r\n")
+                .append("BEGIN:VCARD\r\nVERSION:2.1\r\nN:Bob\r\nEMAIL:bob@example.com\r\n")
+                .append("END:VCARD\r\nBEGIN:BBODY\r\nCHARSET:UTF-8\r\n")
+                .append("LENGTH:").append(bodyLines * (BODY_LINE.length() + 2)).append("\r\n")
+                .append("BEGIN:MSG\r\n");
+        for (int i = 0; i < bodyLines; i++) {
+            sb.append(BODY_LINE).append("\r\n");
+        }
+        sb.append("END:MSG\r\nEND:BBODY\r\nEND:BENV\r\nEND:BMSG\r\n");
+        return sb.toString();
+    }
+}
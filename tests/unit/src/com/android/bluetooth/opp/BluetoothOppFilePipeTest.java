@@ -0,0 +1,247 @@
+/*
+ * Copyright 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.opp;
+
+import androidx.test.filters.MediumTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Test cases for {@link BluetoothOppFilePipe}.
+ */
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothOppFilePipeTest {
+    private static final int SHARE_ID = 42;
+    private static final int PACKET_SIZE = 1000;
+
+    @Test
+    public void testReadingSplitsFileIntoFullBuffers() throws IOException {
+        byte[] file = makeFile(PACKET_SIZE * 2 + 10);
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        int buffers = 0;
+
+        try (BluetoothOppFilePipe pipe = BluetoothOppFilePipe.forReading(
+                Channels.newChannel(new ByteArrayInputStream(file)), file.length, PACKET_SIZE,
+                SHARE_ID)) {
+            ByteBuffer buffer;
+            while ((buffer = pipe.take()) != null) {
+                Assert.assertTrue(buffer.remaining() == PACKET_SIZE || buffers == 2);
+                sent.write(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                        buffer.remaining());
+                pipe.recycle(buffer);
+                buffers++;
+            }
+            Assert.assertNull(pipe.take());
+        }
+
+        Assert.assertEquals(3, buffers);
+        Assert.assertArrayEquals(file, sent.toByteArray());
+    }
+
+    @Test
+    public void testReadingStopsAtLength() throws IOException {
+        byte[] file = makeFile(PACKET_SIZE * 2);
+        long sent = 0;
+
+        try (BluetoothOppFilePipe pipe = BluetoothOppFilePipe.forReading(
+                Channels.newChannel(new ByteArrayInputStream(file)), PACKET_SIZE + 1,
+                PACKET_SIZE, SHARE_ID)) {
+            ByteBuffer buffer;
+            while ((buffer = pipe.take()) != null) {
+                sent += buffer.remaining();
+                pipe.recycle(buffer);
+            }
+        }
+
+        Assert.assertEquals(PACKET_SIZE + 1, sent);
+    }
+
+    @Test
+    public void testReadingErrorIsThrownToSession() {
+        ReadableByteChannel failing = new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                throw new IOException("Disk removed");
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {}
+        };
+
+        try (BluetoothOppFilePipe pipe = BluetoothOppFilePipe.forReading(failing, PACKET_SIZE,
+                PACKET_SIZE, SHARE_ID)) {
+            pipe.take();
+            Assert.fail("Disk error not thrown");
+        } catch (IOException e) {
+            Assert.assertEquals("Disk removed", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testWritingGathersPacketsIntoFile() throws IOException {
+        byte[] file = makeFile(PACKET_SIZE * 5 + 10);
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        InputStream packets = new PacketStream(file);
+        long received = 0;
+
+        try (BluetoothOppFilePipe pipe = BluetoothOppFilePipe.forWriting(
+                Channels.newChannel(written), PACKET_SIZE * 2, SHARE_ID)) {
+            int readLength;
+            while ((readLength = pipe.readFrom(packets)) != -1) {
+                received += readLength;
+            }
+            pipe.finish();
+        }
+
+        Assert.assertEquals(file.length, received);
+        Assert.assertArrayEquals(file, written.toByteArray());
+    }
+
+    @Test
+    public void testWritingErrorIsThrownToSession() throws IOException {
+        WritableByteChannel failing = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                throw new IOException("Disk full");
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {}
+        };
+
+        try (BluetoothOppFilePipe pipe = BluetoothOppFilePipe.forWriting(failing, PACKET_SIZE,
+                SHARE_ID)) {
+            pipe.readFrom(new PacketStream(makeFile(PACKET_SIZE)));
+            pipe.finish();
+            Assert.fail("Disk error not thrown");
+        } catch (IOException e) {
+            Assert.assertEquals("Disk full", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testBuffersAreReused() throws IOException {
+        BluetoothOppFilePipe.forWriting(Channels.newChannel(new ByteArrayOutputStream()),
+                PACKET_SIZE * 3, SHARE_ID).close();
+        int pooled = BluetoothOppFilePipe.getPooledBufferCount();
+
+        BluetoothOppFilePipe pipe = BluetoothOppFilePipe.forWriting(
+                Channels.newChannel(new ByteArrayOutputStream()), PACKET_SIZE * 3, SHARE_ID);
+
+        Assert.assertEquals(pooled - BluetoothOppFilePipe.BUFFER_COUNT,
+                BluetoothOppFilePipe.getPooledBufferCount());
+        pipe.close();
+        Assert.assertEquals(pooled, BluetoothOppFilePipe.getPooledBufferCount());
+    }
+
+    @Test
+    public void testReadingAheadOnDiskThread() throws Exception {
+        final byte[] file = makeFile(PACKET_SIZE * BluetoothOppFilePipe.BUFFER_COUNT * 2);
+        final Thread sessionThread = Thread.currentThread();
+        final CountDownLatch readAhead = new CountDownLatch(1);
+        final AtomicBoolean readOnSessionThread = new AtomicBoolean();
+        ReadableByteChannel channel = new ReadableByteChannel() {
+            private final ReadableByteChannel mIn =
+                    Channels.newChannel(new ByteArrayInputStream(file));
+            private long mRead;
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                if (Thread.currentThread() == sessionThread) {
+                    readOnSessionThread.set(true);
+                }
+                int read = mIn.read(dst);
+                mRead += Math.max(read, 0);
+                if (mRead >= PACKET_SIZE * BluetoothOppFilePipe.BUFFER_COUNT) {
+                    readAhead.countDown();
+                }
+                return read;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {}
+        };
+        long sent = 0;
+
+        try (BluetoothOppFilePipe pipe = BluetoothOppFilePipe.forReading(channel, file.length,
+                PACKET_SIZE, SHARE_ID)) {
+            ByteBuffer buffer = pipe.take();
+            // All buffers are filled while the session still holds the first one
+            Assert.assertTrue(readAhead.await(5, TimeUnit.SECONDS));
+            while (buffer != null) {
+                sent += buffer.remaining();
+                pipe.recycle(buffer);
+                buffer = pipe.take();
+            }
+        }
+
+        Assert.assertEquals(file.length, sent);
+        Assert.assertFalse(readOnSessionThread.get());
+    }
+
+    /**
+     * Returns the file in packets of at most PACKET_SIZE, like the OBEX input stream.
+     */
+    private static class PacketStream extends ByteArrayInputStream {
+        PacketStream(byte[] file) {
+            super(file);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, PACKET_SIZE));
+        }
+    }
+
+    private static byte[] makeFile(int length) {
+        byte[] file = new byte[length];
+        for (int i = 0; i < length; i++) {
+            file[i] = (byte) i;
+        }
+        return file;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.opp;
+
+import static org.mockito.Mockito.*;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import androidx.test.filters.MediumTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test cases for {@link BluetoothOppProgress}.
+ */
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothOppProgressTest {
+    private static final int SHARE_ID = 42;
+    private static final long TOTAL_BYTES = 1000;
+
+    private SQLiteDatabase mDb;
+    private Context mContext;
+    private int mProviderUpdates;
+    private final List<Long> mProgress = new ArrayList<>();
+    private final BluetoothOppProgress.Listener mListener = new BluetoothOppProgress.Listener() {
+        @Override
+        public void onProgress(int shareId, long currentBytes, long totalBytes) {
+            mProgress.add(currentBytes);
+        }
+    };
+
+    /**
+     * Updates the share table and counts the updates.
+     */
+    private class ShareProvider extends MockContentProvider {
+        @Override
+        public int update(Uri uri, ContentValues values, String selection,
+                String[] selectionArgs) {
+            mProviderUpdates++;
+            return mDb.update("btopp", values, BluetoothShare._ID + "=?",
+                    new String[]{uri.getLastPathSegment()});
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE btopp(" + BluetoothShare._ID + " INTEGER PRIMARY KEY, "
+                + BluetoothShare.CURRENT_BYTES + " INTEGER, " + BluetoothShare.TOTAL_BYTES
+                + " INTEGER, " + BluetoothShare._DATA + " TEXT)");
+        ContentValues values = new ContentValues();
+        values.put(BluetoothShare._ID, SHARE_ID);
+        values.put(BluetoothShare.CURRENT_BYTES, 0);
+        values.put(BluetoothShare.TOTAL_BYTES, TOTAL_BYTES);
+        values.put(BluetoothShare._DATA, "/sdcard/Download/file.jpg");
+        mDb.insert("btopp", null, values);
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(BluetoothShare.CONTENT_URI.getAuthority(), new ShareProvider());
+        mContext = mock(Context.class);
+        when(mContext.getContentResolver()).thenReturn(resolver);
+        BluetoothOppProgress.addListener(mListener);
+    }
+
+    @After
+    public void tearDown() {
+        BluetoothOppProgress.removeListener(mListener);
+        BluetoothOppProgress.finish(mContext, SHARE_ID);
+        mDb.close();
+    }
+
+    @Test
+    public void testListenersAreToldOncePerPercent() {
+        BluetoothOppProgress.start(SHARE_ID, 1000);
+        for (long position = 1; position <= 1000; position++) {
+            BluetoothOppProgress.update(SHARE_ID, position);
+        }
+
+        // Once at 0 % and once per percent after that
+        Assert.assertEquals(101, mProgress.size());
+        Assert.assertEquals(1000L, (long) mProgress.get(100));
+    }
+
+    @Test
+    public void testCurrentBytesOfRunningShare() {
+        Assert.assertEquals(7, BluetoothOppProgress.getCurrentBytes(SHARE_ID, 7));
+
+        BluetoothOppProgress.start(SHARE_ID, 1000);
+        BluetoothOppProgress.update(SHARE_ID, 500);
+
+        Assert.assertEquals(500, BluetoothOppProgress.getCurrentBytes(SHARE_ID, 7));
+    }
+
+    @Test
+    public void testUpdateOfShareNotStartedIsIgnored() {
+        BluetoothOppProgress.update(SHARE_ID, 500);
+
+        Assert.assertTrue(mProgress.isEmpty());
+        Assert.assertEquals(0, BluetoothOppProgress.getCurrentBytes(SHARE_ID, 0));
+    }
+
+    @Test
+    public void testFinishWritesCurrentBytes() {
+        BluetoothOppProgress.start(SHARE_ID, 1000);
+        BluetoothOppProgress.update(SHARE_ID, 600);
+
+        BluetoothOppProgress.finish(mContext, SHARE_ID);
+
+        Assert.assertEquals(600, getCurrentBytesInDb());
+        Assert.assertEquals(0, BluetoothOppProgress.getCurrentBytes(SHARE_ID, 0));
+    }
+
+    @Test
+    public void testProviderIsOnlyUpdatedOnFinish() {
+        BluetoothOppProgress.start(SHARE_ID, TOTAL_BYTES);
+        for (long position = 1; position <= TOTAL_BYTES; position++) {
+            BluetoothOppProgress.update(SHARE_ID, position);
+        }
+
+        Assert.assertEquals(0, mProviderUpdates);
+
+        BluetoothOppProgress.finish(mContext, SHARE_ID);
+
+        Assert.assertEquals(1, mProviderUpdates);
+        Assert.assertEquals(TOTAL_BYTES, getCurrentBytesInDb());
+    }
+
+    private long getCurrentBytesInDb() {
+        try (Cursor cursor = mDb.query("btopp", new String[]{BluetoothShare.CURRENT_BYTES},
+                BluetoothShare._ID + "=" + SHARE_ID, null, null, null, null)) {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.opp;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Test cases for the changed shares recorded by {@link BluetoothOppProvider}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothOppProviderTest {
+    private static final String DB_NAME = "btopp.db";
+
+    private Context mContext;
+    private BluetoothOppProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DB_NAME);
+        mProvider = new BluetoothOppProvider();
+        mProvider.attachInfo(mContext, null);
+        // The share table is created on first use, with all shares changed.
+        mProvider.query(BluetoothShare.CONTENT_URI, null, null, null, null).close();
+        BluetoothOppProvider.takeChangedShares();
+    }
+
+    @After
+    public void tearDown() {
+        mContext.deleteDatabase(DB_NAME);
+    }
+
+    @Test
+    public void testInsertUpdateAndDeleteAreRecorded() {
+        int first = insertShare();
+        int second = insertShare();
+        int third = insertShare();
+        Assert.assertArrayEquals(new int[] {first, second, third},
+                BluetoothOppProvider.takeChangedShares());
+
+        ContentValues values = new ContentValues();
+        values.put(BluetoothShare.STATUS, BluetoothShare.STATUS_SUCCESS);
+        mProvider.update(Uri.parse(BluetoothShare.CONTENT_URI + "/" + third), values, null, null);
+        mProvider.delete(BluetoothShare.CONTENT_URI, BluetoothShare._ID + " < " + second, null);
+
+        Assert.assertArrayEquals(new int[] {first, third},
+                BluetoothOppProvider.takeChangedShares());
+        Assert.assertArrayEquals(new int[0], BluetoothOppProvider.takeChangedShares());
+    }
+
+    @Test
+    public void testUpdateOfAllSharesNeedsFullSync() {
+        insertShare();
+        ContentValues values = new ContentValues();
+        values.put(BluetoothShare.VISIBILITY, BluetoothShare.VISIBILITY_HIDDEN);
+
+        mProvider.update(BluetoothShare.CONTENT_URI, values, null, null);
+
+        Assert.assertNull(BluetoothOppProvider.takeChangedShares());
+        Assert.assertArrayEquals(new int[0], BluetoothOppProvider.takeChangedShares());
+    }
+
+    @Test
+    public void testSelectionMatchingNothingRecordsNothing() {
+        insertShare();
+        BluetoothOppProvider.takeChangedShares();
+
+        mProvider.delete(BluetoothShare.CONTENT_URI, BluetoothShare._ID + " < 0", null);
+
+        Assert.assertArrayEquals(new int[0], BluetoothOppProvider.takeChangedShares());
+    }
+
+    private int insertShare() {
+        ContentValues values = new ContentValues();
+        values.put(BluetoothShare.URI, "content://media/external/images/media/1");
+        values.put(BluetoothShare.DESTINATION, "00:11:22:33:44:55");
+        Uri uri = mProvider.insert(BluetoothShare.CONTENT_URI, values);
+        return Integer.parseInt(uri.getLastPathSegment());
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.opp;
+
+import static org.mockito.Mockito.*;
+
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test cases for {@link BluetoothOppTransferScheduler}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothOppTransferSchedulerTest {
+    private static final String DEVICE_A = "00:11:22:33:44:0A";
+    private static final String DEVICE_B = "00:11:22:33:44:0B";
+    private static final String DEVICE_C = "00:11:22:33:44:0C";
+
+    private Context mContext;
+    private final List<BluetoothOppBatch> mBatches = new ArrayList<>();
+    private int mNextId = 1;
+
+    @Before
+    public void setUp() {
+        mContext = mock(Context.class);
+    }
+
+    @Test
+    public void testRunsUpToLimitWithOneBatchPerDevice() {
+        BluetoothOppTransferScheduler scheduler = new BluetoothOppTransferScheduler(2);
+        BluetoothOppBatch a1 = addBatch(DEVICE_A, BluetoothShare.DIRECTION_OUTBOUND);
+        addBatch(DEVICE_A, BluetoothShare.DIRECTION_OUTBOUND);
+        BluetoothOppBatch b1 = addBatch(DEVICE_B, BluetoothShare.DIRECTION_OUTBOUND);
+        addBatch(DEVICE_C, BluetoothShare.DIRECTION_OUTBOUND);
+
+        Assert.assertSame(a1, startNext(scheduler));
+        Assert.assertSame(b1, startNext(scheduler));
+        Assert.assertNull(scheduler.pickNext(mBatches, true));
+        Assert.assertEquals(2, scheduler.getRunningCount());
+    }
+
+    @Test
+    public void testDevicesTakeTurns() {
+        BluetoothOppTransferScheduler scheduler = new BluetoothOppTransferScheduler(2);
+        BluetoothOppBatch a1 = addBatch(DEVICE_A, BluetoothShare.DIRECTION_OUTBOUND);
+        BluetoothOppBatch a2 = addBatch(DEVICE_A, BluetoothShare.DIRECTION_OUTBOUND);
+        BluetoothOppBatch b1 = addBatch(DEVICE_B, BluetoothShare.DIRECTION_OUTBOUND);
+        BluetoothOppBatch c1 = addBatch(DEVICE_C, BluetoothShare.DIRECTION_OUTBOUND);
+
+        Assert.assertSame(a1, startNext(scheduler));
+        Assert.assertSame(b1, startNext(scheduler));
+        finish(scheduler, a1);
+        // C has not been served yet, although a2 was queued first
+        Assert.assertSame(c1, startNext(scheduler));
+        finish(scheduler, b1);
+        Assert.assertSame(a2, startNext(scheduler));
+    }
+
+    @Test
+    public void testOneTransferRunsInQueueOrder() {
+        BluetoothOppTransferScheduler scheduler = new BluetoothOppTransferScheduler(1);
+        BluetoothOppBatch a1 = addBatch(DEVICE_A, BluetoothShare.DIRECTION_OUTBOUND);
+        BluetoothOppBatch a2 = addBatch(DEVICE_A, BluetoothShare.DIRECTION_OUTBOUND);
+        BluetoothOppBatch inbound = addBatch(DEVICE_B, BluetoothShare.DIRECTION_INBOUND);
+        BluetoothOppBatch c1 = addBatch(DEVICE_C, BluetoothShare.DIRECTION_OUTBOUND);
+
+        Assert.assertSame(a1, startNext(scheduler));
+        finish(scheduler, a1);
+        Assert.assertSame(a2, startNext(scheduler));
+        finish(scheduler, a2);
+        Assert.assertSame(inbound, startNext(scheduler));
+        finish(scheduler, inbound);
+        Assert.assertSame(c1, startNext(scheduler));
+    }
+
+    @Test
+    public void testContentInFlightIsNotSentTwice() {
+        BluetoothOppTransferScheduler scheduler = new BluetoothOppTransferScheduler(2);
+        Uri image = Uri.parse("content://media/external/images/media/1");
+        BluetoothOppBatch a1 = addBatch(DEVICE_A, BluetoothShare.DIRECTION_OUTBOUND, image);
+        BluetoothOppBatch b1 = addBatch(DEVICE_B, BluetoothShare.DIRECTION_OUTBOUND, image);
+        BluetoothOppBatch c1 = addBatch(DEVICE_C, BluetoothShare.DIRECTION_OUTBOUND,
+                Uri.parse("content://media/external/images/media/2"));
+
+        Assert.assertSame(a1, startNext(scheduler));
+        Assert.assertSame(c1, startNext(scheduler));
+        finish(scheduler, a1);
+        Assert.assertSame(b1, startNext(scheduler));
+    }
+
+    @Test
+    public void testInboundGoesFirstWhenServerIsFree() {
+        BluetoothOppTransferScheduler scheduler = new BluetoothOppTransferScheduler(2);
+        addBatch(DEVICE_A, BluetoothShare.DIRECTION_OUTBOUND);
+        BluetoothOppBatch inbound = addBatch(DEVICE_B, BluetoothShare.DIRECTION_INBOUND);
+
+        Assert.assertNotSame(inbound, scheduler.pickNext(mBatches, false));
+        Assert.assertSame(inbound, scheduler.pickNext(mBatches, true));
+    }
+
+    @Test
+    public void testThroughputIsDumpedPerDevice() {
+        BluetoothOppTransferScheduler scheduler = new BluetoothOppTransferScheduler(1);
+        BluetoothOppBatch a1 = addBatch(DEVICE_A, BluetoothShare.DIRECTION_OUTBOUND);
+        startNext(scheduler);
+
+        scheduler.onBatchRemoved(a1, 2048);
+        StringBuilder sb = new StringBuilder();
+        scheduler.dump(sb);
+
+        Assert.assertEquals(0, scheduler.getRunningCount());
+        Assert.assertTrue(sb.toString().contains(DEVICE_A + ": 1 batches, 2 KB"));
+    }
+
+    private BluetoothOppBatch addBatch(String address, int direction) {
+        return addBatch(address, direction, null);
+    }
+
+    private BluetoothOppBatch addBatch(String address, int direction, Uri uri) {
+        int id = mNextId++;
+        BluetoothOppShareInfo info = new BluetoothOppShareInfo(id, uri, null, null, null,
+                direction, address, BluetoothShare.VISIBILITY_VISIBLE,
+                BluetoothShare.USER_CONFIRMATION_CONFIRMED, BluetoothShare.STATUS_PENDING, 0, 0,
+                id, false);
+        BluetoothOppBatch batch = new BluetoothOppBatch(mContext, info);
+        batch.mId = id;
+        mBatches.add(batch);
+        return batch;
+    }
+
+    private BluetoothOppBatch startNext(BluetoothOppTransferScheduler scheduler) {
+        BluetoothOppBatch batch = scheduler.pickNext(mBatches, true);
+        if (batch != null) {
+            scheduler.onBatchStarted(batch);
+        }
+        return batch;
+    }
+
+    private void finish(BluetoothOppTransferScheduler scheduler, BluetoothOppBatch batch) {
+        mBatches.remove(batch);
+        scheduler.onBatchRemoved(batch, 0);
+    }
+}
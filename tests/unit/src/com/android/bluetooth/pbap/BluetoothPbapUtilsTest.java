@@ -0,0 +1,248 @@
+/*
+ * Copyright 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.pbap;
+
+import static org.mockito.Mockito.*;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Note;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.DeletedContacts;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Test cases for the folder version counters kept by {@link BluetoothPbapUtils}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothPbapUtilsTest {
+    private File mFilesDir;
+    private Context mContext;
+    private Handler mHandler;
+    // Rows of contact id, data and mime type
+    private final List<Object[]> mData = new ArrayList<>();
+    // Last updated time by contact id
+    private final Map<Long, Long> mUpdated = new HashMap<>();
+    private final List<Long> mDeleted = new ArrayList<>();
+
+    /**
+     * Serves the contacts in mData, ignoring the selection like a provider reporting every
+     * contact as updated would. The contacts report the times they were last touched.
+     */
+    private class ContactsProvider extends MockContentProvider {
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            if (Contacts.CONTENT_URI.equals(uri)) {
+                MatrixCursor cursor = new MatrixCursor(projection);
+                List<Long> contactIds = new ArrayList<>();
+                for (Object[] row : mData) {
+                    if (!contactIds.contains(row[0])) {
+                        contactIds.add((Long) row[0]);
+                        Object[] values = {row[0], mUpdated.get(row[0])};
+                        cursor.addRow(Arrays.copyOf(values, projection.length));
+                    }
+                }
+                return cursor;
+            } else if (Data.CONTENT_URI.equals(uri)) {
+                MatrixCursor cursor = new MatrixCursor(projection);
+                for (Object[] row : mData) {
+                    cursor.addRow(row);
+                }
+                return cursor;
+            } else if (DeletedContacts.CONTENT_URI.equals(uri)) {
+                MatrixCursor cursor = new MatrixCursor(projection);
+                for (Long contactId : mDeleted) {
+                    cursor.addRow(new Object[]{contactId, System.currentTimeMillis()});
+                }
+                return cursor;
+            }
+            return null;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mFilesDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "BluetoothPbapUtilsTest");
+        mFilesDir.mkdirs();
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(ContactsContract.AUTHORITY, new ContactsProvider());
+        mContext = mock(Context.class);
+        when(mContext.getContentResolver()).thenReturn(resolver);
+        when(mContext.getFilesDir()).thenReturn(mFilesDir);
+        mHandler = new Handler(Looper.getMainLooper());
+        BluetoothPbapUtils.resetContactsState();
+
+        addField(1, StructuredName.CONTENT_ITEM_TYPE, "Alice");
+        addField(1, Phone.CONTENT_ITEM_TYPE, "5551234");
+        addField(2, StructuredName.CONTENT_ITEM_TYPE, "Bob");
+        BluetoothPbapUtils.loadAllContacts(mContext, mHandler);
+    }
+
+    @After
+    public void tearDown() {
+        BluetoothPbapUtils.resetContactsState();
+        for (File file : mFilesDir.listFiles()) {
+            file.delete();
+        }
+        mFilesDir.delete();
+    }
+
+    @Test
+    public void testUnchangedContactsBumpNothing() {
+        long primary = BluetoothPbapUtils.sPrimaryVersionCounter;
+        long secondary = BluetoothPbapUtils.sSecondaryVersionCounter;
+
+        BluetoothPbapUtils.updateSecondaryVersionCounter(mContext, mHandler);
+
+        Assert.assertEquals(2, BluetoothPbapUtils.getContactsStateSize());
+        Assert.assertEquals(primary, BluetoothPbapUtils.sPrimaryVersionCounter);
+        Assert.assertEquals(secondary, BluetoothPbapUtils.sSecondaryVersionCounter);
+    }
+
+    @Test
+    public void testPhoneChangeBumpsBothCounters() {
+        long primary = BluetoothPbapUtils.sPrimaryVersionCounter;
+        long secondary = BluetoothPbapUtils.sSecondaryVersionCounter;
+        mData.get(1)[1] = "5554321";
+        touch(1);
+
+        BluetoothPbapUtils.updateSecondaryVersionCounter(mContext, mHandler);
+
+        Assert.assertEquals(primary + 1, BluetoothPbapUtils.sPrimaryVersionCounter);
+        Assert.assertEquals(secondary + 1, BluetoothPbapUtils.sSecondaryVersionCounter);
+    }
+
+    @Test
+    public void testUpdateOutsideDataBumpsPrimaryCounterOnly() {
+        long primary = BluetoothPbapUtils.sPrimaryVersionCounter;
+        long secondary = BluetoothPbapUtils.sSecondaryVersionCounter;
+        // E.g. the label of the phone number changed, DATA1 stays the same.
+        touch(1);
+
+        BluetoothPbapUtils.updateSecondaryVersionCounter(mContext, mHandler);
+        // Seeing the same update again changes nothing
+        BluetoothPbapUtils.updateSecondaryVersionCounter(mContext, mHandler);
+
+        Assert.assertEquals(primary + 1, BluetoothPbapUtils.sPrimaryVersionCounter);
+        Assert.assertEquals(secondary, BluetoothPbapUtils.sSecondaryVersionCounter);
+    }
+
+    @Test
+    public void testReorderedFieldsBumpNothing() {
+        long primary = BluetoothPbapUtils.sPrimaryVersionCounter;
+        mData.add(mData.remove(0));
+
+        BluetoothPbapUtils.updateSecondaryVersionCounter(mContext, mHandler);
+
+        Assert.assertEquals(primary, BluetoothPbapUtils.sPrimaryVersionCounter);
+    }
+
+    @Test
+    public void testNoteChangeBumpsPrimaryCounterOnly() {
+        long primary = BluetoothPbapUtils.sPrimaryVersionCounter;
+        long secondary = BluetoothPbapUtils.sSecondaryVersionCounter;
+        addField(2, Note.CONTENT_ITEM_TYPE, "A note");
+        touch(2);
+
+        BluetoothPbapUtils.updateSecondaryVersionCounter(mContext, mHandler);
+
+        Assert.assertEquals(primary + 1, BluetoothPbapUtils.sPrimaryVersionCounter);
+        Assert.assertEquals(secondary, BluetoothPbapUtils.sSecondaryVersionCounter);
+    }
+
+    @Test
+    public void testAddedAndDeletedContactsBumpBothCounters() {
+        long primary = BluetoothPbapUtils.sPrimaryVersionCounter;
+        long secondary = BluetoothPbapUtils.sSecondaryVersionCounter;
+        mData.remove(2);
+        mDeleted.add(2L);
+        addField(3, StructuredName.CONTENT_ITEM_TYPE, "Carol");
+
+        BluetoothPbapUtils.updateSecondaryVersionCounter(mContext, mHandler);
+        // Seeing the same deletion again changes nothing
+        BluetoothPbapUtils.updateSecondaryVersionCounter(mContext, mHandler);
+
+        Assert.assertEquals(2, BluetoothPbapUtils.getContactsStateSize());
+        Assert.assertEquals(primary + 2, BluetoothPbapUtils.sPrimaryVersionCounter);
+        Assert.assertEquals(secondary + 2, BluetoothPbapUtils.sSecondaryVersionCounter);
+    }
+
+    @Test
+    public void testRestartRestoresSavedState() {
+        long primary = BluetoothPbapUtils.sPrimaryVersionCounter;
+        long secondary = BluetoothPbapUtils.sSecondaryVersionCounter;
+        BluetoothPbapUtils.resetContactsState();
+
+        BluetoothPbapUtils.loadAllContacts(mContext, mHandler);
+
+        // A full scan would have bumped the counters.
+        Assert.assertEquals(2, BluetoothPbapUtils.getContactsStateSize());
+        Assert.assertEquals(primary, BluetoothPbapUtils.sPrimaryVersionCounter);
+        Assert.assertEquals(secondary, BluetoothPbapUtils.sSecondaryVersionCounter);
+    }
+
+    @Test
+    public void testFieldHashDependsOnTypeAndData() {
+        long hash = BluetoothPbapUtils.hashField(Phone.CONTENT_ITEM_TYPE, "5551234");
+
+        Assert.assertEquals(hash, BluetoothPbapUtils.hashField(Phone.CONTENT_ITEM_TYPE,
+                "5551234"));
+        Assert.assertNotEquals(hash, BluetoothPbapUtils.hashField(Phone.CONTENT_ITEM_TYPE,
+                "5551235"));
+        Assert.assertNotEquals(hash, BluetoothPbapUtils.hashField(Note.CONTENT_ITEM_TYPE,
+                "5551234"));
+        Assert.assertNotEquals(BluetoothPbapUtils.hashField(Note.CONTENT_ITEM_TYPE, null),
+                BluetoothPbapUtils.hashField(Note.CONTENT_ITEM_TYPE, ""));
+    }
+
+    private void addField(long contactId, String mimeType, String data) {
+        mData.add(new Object[]{contactId, data, mimeType});
+        mUpdated.putIfAbsent(contactId, 1000L);
+    }
+
+    private void touch(long contactId) {
+        mUpdated.put(contactId, mUpdated.get(contactId) + 1);
+    }
+}
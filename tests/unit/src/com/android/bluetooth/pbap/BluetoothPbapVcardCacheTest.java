@@ -0,0 +1,203 @@
+/*
+ * Copyright 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.pbap;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.DeletedContacts;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.vcard.VCardConfig;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Test cases for {@link BluetoothPbapVcardCache}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothPbapVcardCacheTest {
+    private static final String DB_NAME = "pbap_vcards_test.db";
+    private static final int V21 = VCardConfig.VCARD_TYPE_V21_GENERIC;
+    private static final int V30 = VCardConfig.VCARD_TYPE_V30_GENERIC;
+    private static final int MAX_ENTRIES = 10;
+    private static final long MAX_BYTES = 100;
+
+    private Context mContext;
+    private BluetoothPbapVcardCache mCache;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DB_NAME);
+        mCache = new BluetoothPbapVcardCache(mContext, DB_NAME, MAX_ENTRIES, MAX_BYTES);
+    }
+
+    @After
+    public void tearDown() {
+        mCache.stop();
+        mContext.deleteDatabase(DB_NAME);
+    }
+
+    @Test
+    public void testCachedOnlyWithSameLastUpdatedAndType() {
+        mCache.putAll(Arrays.asList(BluetoothPbapVcardCache.toValues(1, 100, V21, "one"),
+                BluetoothPbapVcardCache.toValues(2, 200, V21, "two")));
+
+        boolean[] cached = mCache.getCached(new long[] {1, 2, 3}, new long[] {100, 201, 300},
+                V21);
+
+        Assert.assertArrayEquals(new boolean[] {true, false, false}, cached);
+        Assert.assertArrayEquals(new boolean[] {false, false},
+                mCache.getCached(new long[] {1, 2}, new long[] {100, 200}, V30));
+    }
+
+    @Test
+    public void testNegativeLastUpdatedIsNeverCached() {
+        mCache.putAll(Arrays.asList(BluetoothPbapVcardCache.toValues(1, -1, V21, "one")));
+
+        Assert.assertArrayEquals(new boolean[] {false},
+                mCache.getCached(new long[] {1}, new long[] {-1}, V21));
+    }
+
+    @Test
+    public void testPutReplacesVCard() {
+        mCache.putAll(Arrays.asList(BluetoothPbapVcardCache.toValues(1, 100, V21, "old")));
+        mCache.putAll(Arrays.asList(BluetoothPbapVcardCache.toValues(1, 101, V21, "new")));
+
+        Map<Long, String> vcards = mCache.getVCards(new long[] {1}, 0, 1, V21);
+
+        Assert.assertEquals("new", vcards.get(1L));
+        Assert.assertArrayEquals(new boolean[] {true},
+                mCache.getCached(new long[] {1}, new long[] {101}, V21));
+    }
+
+    @Test
+    public void testLookupsAcrossChunks() {
+        int count = BluetoothPbapVcardCache.QUERY_CHUNK_SIZE * 2 + 1;
+        long[] contactIds = new long[count];
+        long[] lastUpdated = new long[count];
+        List<ContentValues> values = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            contactIds[i] = i;
+            lastUpdated[i] = 1000 + i;
+            values.add(BluetoothPbapVcardCache.toValues(i, lastUpdated[i], V30, "vcard" + i));
+        }
+        mCache.putAll(values);
+
+        boolean[] cached = mCache.getCached(contactIds, lastUpdated, V30);
+        Map<Long, String> vcards = mCache.getVCards(contactIds, count - 2, count, V30);
+
+        for (boolean c : cached) {
+            Assert.assertTrue(c);
+        }
+        Assert.assertEquals(2, vcards.size());
+        Assert.assertEquals("vcard" + (count - 1), vcards.get((long) count - 1));
+    }
+
+    @Test
+    public void testOldestDroppedPastMaxEntries() {
+        for (int i = 0; i <= MAX_ENTRIES; i++) {
+            mCache.putAll(Arrays.asList(BluetoothPbapVcardCache.toValues(i, 100, V21, "v")));
+        }
+
+        boolean[] cached = mCache.getCached(new long[] {0, 1, MAX_ENTRIES},
+                new long[] {100, 100, 100}, V21);
+
+        Assert.assertArrayEquals(new boolean[] {false, true, true}, cached);
+    }
+
+    @Test
+    public void testOldestDroppedPastMaxBytes() {
+        String vcard = "0123456789012345678901234567890123456789";
+        mCache.putAll(Arrays.asList(BluetoothPbapVcardCache.toValues(1, 100, V21, vcard),
+                BluetoothPbapVcardCache.toValues(2, 100, V21, vcard)));
+        // 20 characters, but one byte more than fits in UTF-8
+        mCache.putAll(Arrays.asList(BluetoothPbapVcardCache.toValues(3, 100, V21,
+                "0123456789012345678\u00e5")));
+
+        Assert.assertArrayEquals(new boolean[] {false, true, true}, mCache.getCached(
+                new long[] {1, 2, 3}, new long[] {100, 100, 100}, V21));
+    }
+
+    @Test
+    public void testReplacedVCardFreesItsSize() {
+        String vcard = "0123456789012345678901234567890123456789";
+        mCache.putAll(Arrays.asList(BluetoothPbapVcardCache.toValues(1, 100, V21, vcard),
+                BluetoothPbapVcardCache.toValues(2, 100, V21, vcard)));
+        mCache.putAll(Arrays.asList(BluetoothPbapVcardCache.toValues(2, 101, V21, vcard),
+                BluetoothPbapVcardCache.toValues(2, 102, V21, vcard)));
+
+        Assert.assertArrayEquals(new boolean[] {true, true}, mCache.getCached(
+                new long[] {1, 2}, new long[] {100, 102}, V21));
+    }
+
+    @Test
+    public void testPurgeDeletedContacts() {
+        mCache.putAll(Arrays.asList(BluetoothPbapVcardCache.toValues(1, 100, V21, "one"),
+                BluetoothPbapVcardCache.toValues(1, 100, V30, "one"),
+                BluetoothPbapVcardCache.toValues(2, 200, V21, "two")));
+        final MatrixCursor deleted = new MatrixCursor(new String[] {DeletedContacts.CONTACT_ID,
+                DeletedContacts.CONTACT_DELETED_TIMESTAMP});
+        deleted.addRow(new Long[] {1L, System.currentTimeMillis()});
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(ContactsContract.AUTHORITY, new MockContentProvider() {
+            @Override
+            public Cursor query(Uri uri, String[] projection, String selection,
+                    String[] selectionArgs, String sortOrder) {
+                return deleted;
+            }
+        });
+
+        mCache.purgeDeletedContacts(resolver);
+
+        Assert.assertArrayEquals(new boolean[] {false, true},
+                mCache.getCached(new long[] {1, 2}, new long[] {100, 200}, V21));
+        Assert.assertArrayEquals(new boolean[] {false},
+                mCache.getCached(new long[] {1}, new long[] {100}, V30));
+    }
+
+    @Test
+    public void testStopDeletesDatabase() {
+        mCache.putAll(Arrays.asList(BluetoothPbapVcardCache.toValues(1, 100, V21, "one")));
+        Assert.assertTrue(mContext.getDatabasePath(DB_NAME).exists());
+
+        mCache.stop();
+
+        Assert.assertFalse(mContext.getDatabasePath(DB_NAME).exists());
+        Assert.assertArrayEquals(new boolean[] {false},
+                mCache.getCached(new long[] {1}, new long[] {100}, V21));
+        Assert.assertFalse(mContext.getDatabasePath(DB_NAME).exists());
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.pbap;
+
+import static org.mockito.Mockito.*;
+
+import android.content.Context;
+
+import androidx.test.filters.MediumTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bluetooth.pbap.BluetoothPbapVcardManager.VCardFilter;
+import com.android.bluetooth.pbap.BluetoothPbapVcardManager.VCardOutputBuffer;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Test cases for the vCard filtering of {@link BluetoothPbapVcardManager}.
+ */
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothPbapVcardManagerTest {
+    private static final int CONTACTS = 1000;
+    // VERSION, FN, N and TEL
+    private static final byte[] FILTER = new byte[] {0, 0, 0, 0, 0, 0, 0, (byte) 0x87};
+    // All properties the filter has bits for
+    private static final byte[] FILTER_ALL = new byte[] {0, 0, 0, 0, 0x10, (byte) 0x9b, 0x11,
+            0x3f};
+
+    private BluetoothPbapVcardManager mManager;
+
+    @Before
+    public void setUp() {
+        mManager = new BluetoothPbapVcardManager(mock(Context.class));
+    }
+
+    @Test
+    public void testFilterRemovesPropertiesAndContinuationLines() throws IOException {
+        String vCard = "BEGIN:VCARD\r\nVERSION:2.1\r\nN:Doe;John;;;\r\nFN:John Doe\r\n"
+                + "NOTE;ENCODING=QUOTED-PRINTABLE:first=\r\n=0Asecond\r\n"
+                + "TEL;CELL:+1 (555) 123-4567\r\nX-ANDROID-CUSTOM:foo\r\nEND:VCARD\r\n";
+
+        Assert.assertEquals("BEGIN:VCARD\r\nVERSION:2.1\r\nN:Doe;John;;;\r\nFN:John Doe\r\n"
+                + "TEL;CELL:+15551234567\r\nEND:VCARD\r\n", write(vCard, FILTER, true, true));
+    }
+
+    @Test
+    public void testFilterMatchesOldFilter() throws IOException {
+        for (byte[] filter : new byte[][] {null, FILTER, FILTER_ALL}) {
+            for (boolean vCardType21 : new boolean[] {true, false}) {
+                for (int i = 0; i < 100; i++) {
+                    String vCard = generateVCard(i);
+                    VCardFilter vCardFilter = new VCardFilter(filter);
+                    String expected = vCardFilter.apply(vCard, vCardType21);
+
+                    Assert.assertEquals(expected, write(vCard, filter, vCardType21, false));
+                    Assert.assertEquals(mManager.stripTelephoneNumber(expected),
+                            write(vCard, filter, vCardType21, true));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testOutputBufferEncodesLikeGetBytes() throws IOException {
+        String text = "ascii æøå € 😀 \ud800 end";
+        StringBuilder sb = new StringBuilder();
+        // Cross the buffer size to test the flushing
+        while (sb.length() < 20000) {
+            sb.append(text);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        VCardOutputBuffer buffer = new VCardOutputBuffer(out);
+
+        buffer.write(sb.toString(), 0, sb.length());
+        buffer.flush();
+
+        Assert.assertArrayEquals(sb.toString().getBytes(StandardCharsets.UTF_8),
+                out.toByteArray());
+    }
+
+    @Test
+    public void testFilterPhonebookIntoOneBuffer() throws IOException {
+        VCardFilter filter = new VCardFilter(FILTER);
+        StringBuilder expected = new StringBuilder();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        VCardOutputBuffer buffer = new VCardOutputBuffer(out);
+
+        for (int i = 0; i < CONTACTS; i++) {
+            String vCard = generateVCard(i);
+            expected.append(mManager.stripTelephoneNumber(filter.apply(vCard, true)));
+            filter.write(vCard, true, true, buffer);
+        }
+        buffer.flush();
+
+        Assert.assertEquals(expected.toString(),
+                new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    private static String write(String vCard, byte[] filter, boolean vCardType21,
+            boolean stripTel) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        VCardOutputBuffer buffer = new VCardOutputBuffer(out);
+        new VCardFilter(filter).write(vCard, vCardType21, stripTel, buffer);
+        buffer.flush();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns a vCard like the ones composed from the contacts provider.
+     */
+    private static String generateVCard(int index) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("BEGIN:VCARD\r\nVERSION:2.1\r\n")
+                .append("N;CHARSET=UTF-8:Contact").append(index).append(";Åsa;;;\r\n")
+                .append("FN;CHARSET=UTF-8:Åsa Contact").append(index).append("\r\n")
+                .append("TEL;CELL:+1 (555) ").append(1000000 + index).append("\r\n")
+                .append("TEL;HOME:555-").append(index).append("\r\n")
+                .append("EMAIL;HOME:contact").append(index).append("@example.com\r\n");
+        if (index % 3 == 0) {
+            sb.append("ADR;HOME:;;").append(index).append(" Main Street;Springfield;;;\r\n")
+                    .append("ORG:Example Inc.\r\nTITLE:Engineer\r\n");
+        }
+        if (index % 5 == 0) {
+            sb.append("NOTE;ENCODING=QUOTED-PRINTABLE:A note about contact=\r\n")
+                    .append("=0A").append(index).append("\r\n")
+                    .append("X-ANDROID-CUSTOM:vnd.android.cursor.item/nickname;Jo\r\n");
+        }
+        if (index % 7 == 0) {
+            sb.append("NICKNAME:Nick").append(index).append("\r\nBDAY:2000-01-01\r\n")
+                    .append("URL:http://example.com/").append(index).append("\r\n");
+        }
+        return sb.append("END:VCARD\r\n").toString();
+    }
+}